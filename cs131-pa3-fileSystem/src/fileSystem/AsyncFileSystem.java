@@ -0,0 +1,304 @@
+package fileSystem;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Runs the calls of a FileSystem asynchronously. Every call returns at
+ * once with a Future for its result, and may also be given a
+ * CompletionHandler to call when it is done (the two forms of
+ * java.nio.channels.AsynchronousFileChannel). The handler runs before
+ * the next call on the same file starts.
+ *
+ * The file system itself is used through a SynchronizedFileSystem, so
+ * only one call runs at a time. Calls are queued per file: calls on
+ * the same file (through any of its file descriptors, or by inumber)
+ * run one after another in the order they were made, and a worker
+ * thread is only handed a file's next call once its previous one is
+ * done, so workers never wait on each other for the same file. A
+ * queued call costs no thread, so any number of calls can be
+ * outstanding.
+ *
+ * Workers are virtual threads, one per call, where the JVM has them
+ * (Java 21 and later), and otherwise a fixed pool of one thread per
+ * processor.
+ */
+public class AsyncFileSystem {
+    private static final int NONE = Integer.MIN_VALUE; // call on no file
+
+    private final FileSystem fs;
+    private final ExecutorService executor;
+    private final Map<Integer, Deque<Runnable>> queues =
+        new HashMap<Integer, Deque<Runnable>>();
+    private final Map<Integer, Integer> files =
+        new ConcurrentHashMap<Integer, Integer>(); // fd -> inumber
+    private int outstanding; // calls made and not yet done
+
+    /**
+     * @param fs file system to run the calls on
+     */
+    public AsyncFileSystem(FileSystem fs) {
+        this(fs, defaultExecutor());
+    }
+
+    /**
+     * @param fs       file system to run the calls on
+     * @param executor executor to run the calls on, shut down by close()
+     */
+    public AsyncFileSystem(FileSystem fs, ExecutorService executor) {
+        this.fs = fs instanceof SynchronizedFileSystem ? fs
+            : new SynchronizedFileSystem(fs);
+        this.executor = executor;
+    }
+
+    /**
+     * Get an executor that starts a virtual thread per task if the JVM
+     * supports them, or else a pool of daemon threads, one per
+     * processor.
+     */
+    public static ExecutorService defaultExecutor() {
+        try {
+            Method m = Executors.class.getMethod(
+                "newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)m.invoke(null);
+        } catch(ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "async-fs");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        }
+    }
+
+    public Future<Integer> create() {
+        return create(null, null);
+    }
+
+    public <A> Future<Integer> create(A attachment,
+        CompletionHandler<Integer, ? super A> handler) {
+        return submit(NONE, new Callable<Integer>() {
+            public Integer call() throws IOException {
+                return opened(fs.create());
+            }
+        }, attachment, handler);
+    }
+
+    public Future<Integer> open(int inumber) {
+        return open(inumber, null, null);
+    }
+
+    public <A> Future<Integer> open(final int inumber, A attachment,
+        CompletionHandler<Integer, ? super A> handler) {
+        return submit(inumber, new Callable<Integer>() {
+            public Integer call() throws IOException {
+                return opened(fs.open(inumber));
+            }
+        }, attachment, handler);
+    }
+
+    public Future<Integer> read(int fd, byte[] buffer) {
+        return read(fd, buffer, null, null);
+    }
+
+    public <A> Future<Integer> read(final int fd, final byte[] buffer,
+        A attachment, CompletionHandler<Integer, ? super A> handler) {
+        return submit(key(fd), new Callable<Integer>() {
+            public Integer call() throws IOException {
+                return fs.read(fd, buffer);
+            }
+        }, attachment, handler);
+    }
+
+    public Future<Integer> write(int fd, byte[] buffer) {
+        return write(fd, buffer, null, null);
+    }
+
+    public <A> Future<Integer> write(final int fd, final byte[] buffer,
+        A attachment, CompletionHandler<Integer, ? super A> handler) {
+        return submit(key(fd), new Callable<Integer>() {
+            public Integer call() throws IOException {
+                return fs.write(fd, buffer);
+            }
+        }, attachment, handler);
+    }
+
+    public Future<Integer> seek(int fd, int offset, Whence whence) {
+        return seek(fd, offset, whence, null, null);
+    }
+
+    public <A> Future<Integer> seek(final int fd, final int offset,
+        final Whence whence, A attachment,
+        CompletionHandler<Integer, ? super A> handler) {
+        return submit(key(fd), new Callable<Integer>() {
+            public Integer call() throws IOException {
+                return fs.seek(fd, offset, whence);
+            }
+        }, attachment, handler);
+    }
+
+    public Future<Integer> truncate(int fd, int size) {
+        return truncate(fd, size, null, null);
+    }
+
+    public <A> Future<Integer> truncate(final int fd, final int size,
+        A attachment, CompletionHandler<Integer, ? super A> handler) {
+        return submit(key(fd), new Callable<Integer>() {
+            public Integer call() throws IOException {
+                return fs.truncate(fd, size);
+            }
+        }, attachment, handler);
+    }
+
+    public Future<Integer> allocate(int fd, int offset, int length) {
+        return allocate(fd, offset, length, null, null);
+    }
+
+    public <A> Future<Integer> allocate(final int fd, final int offset,
+        final int length, A attachment,
+        CompletionHandler<Integer, ? super A> handler) {
+        return submit(key(fd), new Callable<Integer>() {
+            public Integer call() throws IOException {
+                return fs.allocate(fd, offset, length);
+            }
+        }, attachment, handler);
+    }
+
+    public Future<Integer> close(int fd) {
+        return close(fd, null, null);
+    }
+
+    public <A> Future<Integer> close(final int fd, A attachment,
+        CompletionHandler<Integer, ? super A> handler) {
+        return submit(key(fd), new Callable<Integer>() {
+            public Integer call() throws IOException {
+                int result = fs.close(fd);
+                if(result == 0)
+                    files.remove(fd);
+                return result;
+            }
+        }, attachment, handler);
+    }
+
+    public Future<Integer> delete(int inumber) {
+        return delete(inumber, null, null);
+    }
+
+    public <A> Future<Integer> delete(final int inumber, A attachment,
+        CompletionHandler<Integer, ? super A> handler) {
+        return submit(inumber, new Callable<Integer>() {
+            public Integer call() throws IOException {
+                return fs.delete(inumber);
+            }
+        }, attachment, handler);
+    }
+
+    /**
+     * Wait until every call made so far is done.
+     */
+    public synchronized void awaitIdle() throws InterruptedException {
+        while(outstanding > 0)
+            wait();
+    }
+
+    /**
+     * Wait for the calls made so far and stop the worker threads. The
+     * file system is left mounted.
+     */
+    public void close() throws InterruptedException {
+        awaitIdle();
+        executor.shutdown();
+    }
+
+    /**
+     * Remember which file a new file descriptor is for, so that later
+     * calls through it are queued with the file's other calls.
+     */
+    private int opened(int fd) throws IOException {
+        if(fd >= 0)
+            files.put(fd, fs.inumber(fd));
+        return fd;
+    }
+
+    /**
+     * Get the queue a call through fd belongs to: its file's, or one of
+     * its own if fd is not open (yet).
+     */
+    private int key(int fd) {
+        Integer inumber = files.get(fd);
+        return inumber != null ? inumber : -fd - 1;
+    }
+
+    /**
+     * Queue a call behind the other calls on the same file and hand it
+     * to a worker when its turn comes.
+     */
+    private <A> Future<Integer> submit(final int key, Callable<Integer> call,
+        final A attachment, final CompletionHandler<Integer, ? super A> handler) {
+        final FutureTask<Integer> task = new FutureTask<Integer>(call) {
+            protected void done() {
+                try {
+                    if(handler != null && ! isCancelled())
+                        handler.completed(get(), attachment);
+                } catch(ExecutionException e) {
+                    handler.failed(e.getCause(), attachment);
+                } catch(InterruptedException e) {
+                    handler.failed(e, attachment);
+                } finally {
+                    finished(key, this); // after the handler, to keep order
+                }
+            }
+        };
+        synchronized(this) {
+            ++outstanding;
+        }
+        if(key == NONE) {
+            executor.execute(task);
+            return task;
+        }
+        boolean first;
+        synchronized(queues) {
+            Deque<Runnable> queue = queues.get(key);
+            first = queue == null;
+            if(first)
+                queues.put(key, queue = new ArrayDeque<Runnable>());
+            queue.add(task);
+        }
+        if(first)
+            executor.execute(task);
+        return task;
+    }
+
+    /**
+     * Take a call that is done (or cancelled) off the queue for key and
+     * start the next call queued there, if the done call was running.
+     */
+    private void finished(int key, Runnable task) {
+        if(key != NONE) {
+            Runnable next = null;
+            synchronized(queues) {
+                Deque<Runnable> queue = queues.get(key);
+                boolean running = queue.peek() == task;
+                queue.remove(task);
+                if(queue.isEmpty())
+                    queues.remove(key);
+                else if(running)
+                    next = queue.peek();
+            }
+            if(next != null)
+                executor.execute(next);
+        }
+        synchronized(this) {
+            if(--outstanding == 0)
+                notifyAll();
+        }
+    }
+}
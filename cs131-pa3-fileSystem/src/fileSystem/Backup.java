@@ -0,0 +1,118 @@
+package fileSystem;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Block-level backups of a MyFileSystem: a full image holding every
+ * block that is in use, or, on a file system formatted with
+ * SuperBlock.TRACK, a delta holding only the blocks written since the
+ * last backup (see ChangedBlocks). Free blocks (see FreeMap.isFree)
+ * are left out of both.
+ *
+ * An image is MAGIC and the size of the file system, followed by
+ * records of a block number and the Disk.BLOCK_SIZE bytes of that
+ * block, and ends with block number -1.
+ * Restoring a full image and then each delta taken after it, in order,
+ * onto an empty device rebuilds the file system as it was at the last
+ * one.
+ *
+ * The whole export holds the lock of the file system, so an image is
+ * consistent; every export, full or not, starts a new epoch of
+ * changed blocks.
+ */
+public class Backup {
+    public static final int MAGIC = 0x4d465342; // "MFSB"
+    public static final int BATCH = 64;         // blocks read at once
+
+    /**
+     * Write an image of fs to out.
+     *
+     * @param  fs   file system to back up (not a snapshot view)
+     * @param  lock lock held by every other user of fs
+     * @param  full true for a full image, false for the blocks changed
+     *              since the last export
+     * @return      number of blocks written, or -1 on error
+     */
+    public static int export(MyFileSystem fs, Object lock, OutputStream out,
+                             boolean full) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        synchronized(lock) {
+            ChangedBlocks changed = fs.freeMap.changed;
+            if(! full && changed == null) {
+                System.err.println("File system does not track changed blocks");
+                return -1;
+            }
+            if(fs.checkpoint() < 0)
+                return -1;
+            int size = fs.superBlock.size;
+            data.writeInt(MAGIC);
+            data.writeInt(size);
+
+            int[] nums = new int[BATCH];
+            byte[] buffer = new byte[BATCH * Disk.BLOCK_SIZE];
+            int count = 0, total = 0;
+            for(int n = 0; n <= size; ++n) {
+                if(n < size && wanted(fs, changed, n, full)) {
+                    nums[count++] = n;
+                    if(count < BATCH)
+                        continue;
+                }
+                if(count == 0)
+                    continue;
+                fs.disk.read(nums, count, buffer, 0);
+                for(int i = 0; i < count; ++i) {
+                    data.writeInt(nums[i]);
+                    data.write(buffer, i * Disk.BLOCK_SIZE, Disk.BLOCK_SIZE);
+                }
+                total += count;
+                count  = 0;
+            }
+            data.writeInt(-1);
+            data.flush();
+
+            if(changed != null) {
+                changed.clear();
+                fs.freeMap.save();
+            }
+            return total;
+        }
+    }
+
+    private static boolean wanted(MyFileSystem fs, ChangedBlocks changed,
+                                  int n, boolean full) {
+        if(changed != null && changed.holds(n))
+            return false; // restored as a new epoch
+        return (full || changed.isChanged(n)) && ! fs.freeMap.isFree(n);
+    }
+
+    /**
+     * Write the blocks of an image read from in to device. The device
+     * must not be in use by a file system.
+     *
+     * @return number of blocks written, or -1 if in is not an image
+     */
+    public static int apply(BlockDevice device, InputStream in)
+        throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if(data.readInt() != MAGIC) {
+            System.err.println("Not a backup image");
+            return -1;
+        }
+        int size = data.readInt();
+        byte[] block = new byte[Disk.BLOCK_SIZE];
+        int total = 0;
+        for(int n = data.readInt(); n != -1; n = data.readInt()) {
+            if(n < 0 || n >= size) {
+                System.err.println("Bad block in backup image: " + n);
+                return -1;
+            }
+            data.readFully(block);
+            device.write(n, block);
+            ++total;
+        }
+        return total;
+    }
+}
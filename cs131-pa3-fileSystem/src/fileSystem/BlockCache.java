@@ -0,0 +1,28 @@
+package fileSystem;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small least-recently-used cache of block contents, keyed by block
+ * number.
+ *
+ * MyFileSystem keeps decompressed clusters here, keyed by the first
+ * block of the compressed cluster. Whoever frees or rewrites a block
+ * must remove it from the cache.
+ */
+public class BlockCache extends LinkedHashMap<Integer, byte[]> {
+    private static final long serialVersionUID = 1L;
+    private final int capacity;
+
+    /**
+     * @param capacity maximum number of entries to keep
+     */
+    public BlockCache(int capacity) {
+        super(16, 0.75f, true); // iterate in access order
+        this.capacity = capacity;
+    }
+
+    protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+        return size() > capacity;
+    }
+}
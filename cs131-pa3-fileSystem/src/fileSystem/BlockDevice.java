@@ -0,0 +1,44 @@
+package fileSystem;
+import java.io.IOException;
+
+/**
+ * Stores the blocks of a Disk.
+ *
+ * Blocks are Disk.BLOCK_SIZE bytes and numbered from 0. A block that
+ * has never been written reads as all zeros. Disk checks block numbers
+ * and buffer sizes before calling a device.
+ */
+public interface BlockDevice {
+    /**
+     * Read block blockNum into buffer.
+     */
+    public void read(int blockNum, byte[] buffer) throws IOException;
+
+    /**
+     * Write buffer to block blockNum.
+     */
+    public void write(int blockNum, byte[] buffer) throws IOException;
+
+    /**
+     * Read count blocks: block blockNums[i] into buffer[off + i *
+     * Disk.BLOCK_SIZE ..]. A device made of several devices may read
+     * from all of them at once.
+     */
+    public void read(int[] blockNums, int count, byte[] buffer, int off)
+        throws IOException;
+
+    /**
+     * Write count blocks: buffer[off + i * Disk.BLOCK_SIZE ..] to block
+     * blockNums[i].
+     */
+    public void write(int[] blockNums, int count, byte[] buffer, int off)
+        throws IOException;
+
+    /**
+     * Release the device.
+     *
+     * @param discard true to also throw away the blocks stored,
+     *                false to keep them for the next Disk to use
+     */
+    public void close(boolean discard) throws IOException;
+}
@@ -0,0 +1,74 @@
+package fileSystem;
+import java.util.Arrays;
+
+/**
+ * Caches the translation of logical block numbers of an open file to
+ * the blocks that hold them, so that reading a file does not have to
+ * follow its indirect pointers from the inode every time.
+ *
+ * There are two levels: a small direct-mapped table of recent
+ * translations, and the last IndirectBlock at the bottom of a path of
+ * indirect pointers (the leaf), which translates the COUNT consecutive
+ * logical blocks it covers. A translation to 0 means a hole.
+ *
+ * A BlockMap only stays right while the pointers of the file do not
+ * change, so whoever changes them (writing, truncating) must clear it.
+ */
+public class BlockMap {
+    public static final int SIZE = 64;
+    private int[] logical  = new int[SIZE];
+    private int[] physical = new int[SIZE];
+    private IndirectBlock leaf = new IndirectBlock();
+    private boolean hasLeaf;
+    private int leafFirst;  // logical block number of leaf.ptr[0]
+
+    public BlockMap() {
+        clear();
+    }
+
+    /**
+     * Forget every translation.
+     */
+    public void clear() {
+        Arrays.fill(logical, -1);
+        hasLeaf = false;
+    }
+
+    /**
+     * Translate a logical block number.
+     *
+     * @param  blockNum logical block number within the file
+     * @return          block number (0 for a hole), or -1 if unknown
+     */
+    public int lookup(int blockNum) {
+        int i = blockNum % SIZE;
+        if(logical[i] == blockNum)
+            return physical[i];
+        if(hasLeaf && blockNum >= leafFirst &&
+           blockNum < leafFirst + IndirectBlock.COUNT)
+            return put(blockNum, leaf.ptr[blockNum - leafFirst]);
+        return -1;
+    }
+
+    /**
+     * Remember a translation.
+     *
+     * @return num
+     */
+    public int put(int blockNum, int num) {
+        int i = blockNum % SIZE;
+        logical[i]  = blockNum;
+        physical[i] = num;
+        return num;
+    }
+
+    /**
+     * Remember (a copy of) the IndirectBlock whose first pointer is for
+     * logical block first.
+     */
+    public void setLeaf(IndirectBlock block, int first) {
+        System.arraycopy(block.ptr, 0, leaf.ptr, 0, IndirectBlock.COUNT);
+        hasLeaf   = true;
+        leafFirst = first;
+    }
+}
@@ -0,0 +1,97 @@
+package fileSystem;
+
+/**
+ * The blocks written since the last backup, on a file system formatted
+ * with SuperBlock.TRACK: one bit per block of the file system, stored
+ * in a run of blocks starting at superBlock.changed.
+ *
+ * The FreeMap loads the bits and hands them to the Disk, which marks
+ * every block it writes, and writes them back in save() along with the
+ * free map. Backup reads them to export only the blocks that changed,
+ * then clears them to start the next epoch. The blocks holding the bits
+ * are never marked.
+ */
+public class ChangedBlocks {
+    private static final int BITS = Disk.BLOCK_SIZE * 8; // per block
+
+    private final int first;  // block holding the first bits
+    private final int limit;  // blocks of the file system
+    private final byte[][] bits;
+    private final boolean[] dirty;
+
+    /**
+     * Number of blocks needed for the bits of a file system.
+     */
+    public static int size(SuperBlock superBlock) {
+        return (superBlock.size + BITS - 1) / BITS;
+    }
+
+    /**
+     * Load the bits of a file system from disk.
+     */
+    public ChangedBlocks(Disk disk, SuperBlock superBlock) {
+        first = superBlock.changed;
+        limit = superBlock.size;
+        bits  = new byte[size(superBlock)][Disk.BLOCK_SIZE];
+        dirty = new boolean[bits.length];
+        for(int i = 0; i < bits.length; ++i)
+            disk.read(first + i, bits[i]);
+    }
+
+    /**
+     * Record that block n was written.
+     */
+    public void mark(int n) {
+        if(n >= limit || holds(n) || isChanged(n))
+            return;
+        Bitwise.set(n % BITS, bits[n / BITS]);
+        dirty[n / BITS] = true;
+    }
+
+    /**
+     * Check whether block n is one of the blocks holding the bits.
+     */
+    public boolean holds(int n) {
+        return n >= first && n < first + bits.length;
+    }
+
+    /**
+     * Check whether block n was written since the bits were cleared.
+     */
+    public boolean isChanged(int n) {
+        return n < limit && Bitwise.isset(n % BITS, bits[n / BITS]);
+    }
+
+    /**
+     * Count the blocks written since the bits were cleared.
+     */
+    public int count() {
+        int count = 0;
+        for(int n = 0; n < limit; ++n)
+            if(isChanged(n))
+                ++count;
+        return count;
+    }
+
+    /**
+     * Forget every block written so far, starting a new epoch.
+     */
+    public void clear() {
+        for(int i = 0; i < bits.length; ++i) {
+            Bitwise.clearAll(bits[i]);
+            dirty[i] = true;
+        }
+    }
+
+    /**
+     * Write the bits that changed back to disk.
+     */
+    public void save(Disk disk) {
+        for(int i = 0; i < bits.length; ++i) {
+            if(dirty[i]) {
+                disk.write(first + i, bits[i]);
+                dirty[i] = false;
+            }
+        }
+    }
+}
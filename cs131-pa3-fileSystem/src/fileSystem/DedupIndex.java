@@ -0,0 +1,61 @@
+package fileSystem;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps the hash of a data block's contents to the block holding them,
+ * so that a block written with the same contents can point at the
+ * existing block instead (see FreeMap.addRef).
+ *
+ * The index lives in memory only and is filled as blocks are written,
+ * so duplicates are found among blocks written since the file system
+ * was started. Hashes can collide, so a hit must be confirmed by
+ * comparing contents. Entries must be removed when a block is freed
+ * or rewritten in place.
+ */
+public class DedupIndex {
+    private Map<Long, Integer> blocks = new HashMap<Long, Integer>();
+    private Map<Integer, Long> hashes = new HashMap<Integer, Long>();
+
+    /**
+     * Hash the contents of a block (64-bit FNV-1a).
+     */
+    public static long hash(byte[] block) {
+        long h = 0xcbf29ce484222325L;
+        for(int i = 0; i < block.length; ++i) {
+            h ^= block[i] & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Find a block whose contents had the given hash.
+     *
+     * @return block number, or 0 if there is none
+     */
+    public int find(long hash) {
+        Integer blockNum = blocks.get(hash);
+        return blockNum == null ? 0 : blockNum;
+    }
+
+    /**
+     * Record that block blockNum now holds contents with the given hash.
+     */
+    public void put(long hash, int blockNum) {
+        remove(blockNum);
+        Integer old = blocks.put(hash, blockNum);
+        if(old != null)
+            hashes.remove(old);
+        hashes.put(blockNum, hash);
+    }
+
+    /**
+     * Forget block blockNum (it was freed or is about to change).
+     */
+    public void remove(int blockNum) {
+        Long hash = hashes.remove(blockNum);
+        if(hash != null)
+            blocks.remove(hash);
+    }
+}
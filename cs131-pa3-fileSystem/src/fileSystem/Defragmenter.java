@@ -0,0 +1,67 @@
+package fileSystem;
+import java.io.IOException;
+
+/**
+ * Defragments the files of a MyFileSystem in the background: one pass
+ * over every inumber, defragmenting each file made of more than
+ * maxRuns runs of blocks (see MyFileSystem.fragments). Only one file
+ * is moved per lock hold, and the thread sleeps between files, so
+ * other users of the file system are held up for at most one file at
+ * a time and the disk is not kept busy.
+ *
+ * As with SegmentCleaner, every other thread has to use the file
+ * system through the same lock, normally a SynchronizedFileSystem
+ * wrapping it.
+ */
+public class Defragmenter extends Thread {
+    private final MyFileSystem fs;
+    private final Object lock;
+    private final long period;
+    private final int maxRuns;
+    private int moved;
+
+    /**
+     * @param fs      file system to defragment
+     * @param lock    lock held by every other user of fs
+     * @param period  milliseconds to wait after each file
+     * @param maxRuns most runs a file may have before it is defragmented
+     */
+    public Defragmenter(MyFileSystem fs, Object lock, long period,
+                        int maxRuns) {
+        super("defragmenter");
+        this.fs      = fs;
+        this.lock    = lock;
+        this.period  = period;
+        this.maxRuns = maxRuns;
+        setDaemon(true);
+    }
+
+    public void run() {
+        try {
+            int files = fs.superBlock.isize * InodeBlock.COUNT;
+            for(int inumber = 1; inumber < files && ! isInterrupted();
+                ++inumber) {
+                int n = 0;
+                synchronized(lock) {
+                    if(fs.fragments(inumber) > maxRuns)
+                        n = fs.defragment(inumber);
+                }
+                if(n > 0) {
+                    moved += n;
+                    Thread.sleep(period);
+                }
+            }
+        } catch(InterruptedException e) {
+            // stopped
+        } catch(IOException e) {
+            System.err.println("Defragmenter failed: " + e);
+        }
+    }
+
+    /**
+     * Get the number of blocks moved so far.
+     */
+    public int getMoved() {
+        return moved;
+    }
+}
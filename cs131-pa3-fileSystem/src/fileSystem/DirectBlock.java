@@ -1,4 +1,6 @@
 package fileSystem;
+import java.util.Arrays;
+
 /**
  * Represents a direct block (block containing file data). A
  * DirectBlock tracks its location on disk (so it can be easily read
@@ -58,6 +60,7 @@ public class DirectBlock {
     private byte[] block = new byte[Disk.BLOCK_SIZE];
     private Disk disk;
     private int blockNum;
+    private int srcNum;
     private int blockOff;
     private boolean fresh;
     private boolean inCore = false;
@@ -68,38 +71,98 @@ public class DirectBlock {
     }
 
     public DirectBlock(Disk disk, int blockNum, int blockOff, boolean fresh) {
+        this(disk, blockNum, blockOff, fresh, blockNum);
+    }
+
+    /**
+     * Construct a DirectBlock whose contents are read from block srcNum
+     * but saved to block blockNum. This is how a block still shared with
+     * a snapshot is copied on write: the snapshot keeps srcNum intact.
+     */
+    public DirectBlock(Disk disk, int blockNum, int blockOff, boolean fresh,
+                       int srcNum) {
         this.blockNum = blockNum;
+        this.srcNum   = srcNum;
         this.blockOff = blockOff;
         this.disk     = disk;
         this.fresh    = fresh;
     }
 
+    /**
+     * Make this DirectBlock stand for another block, as if it had just
+     * been constructed with the same arguments, but without allocating
+     * a new buffer. A fresh block is filled with zeros again.
+     *
+     * @return this DirectBlock
+     */
+    public DirectBlock reset(int blockNum, int blockOff, boolean fresh,
+                             int srcNum) {
+        this.blockNum = blockNum;
+        this.srcNum   = srcNum;
+        this.blockOff = blockOff;
+        this.fresh    = fresh;
+        inCore = false;
+        dirty  = false;
+        if(fresh)
+            Arrays.fill(block, (byte)0);
+        return this;
+    }
+
     public int copyTo(byte[] buf, int off) {
+        return copyTo(buf, off, buf.length);
+    }
+
+    /**
+     * Copy into buf[off .. end - 1] at most.
+     */
+    public int copyTo(byte[] buf, int off, int end) {
         if(this != hole && ! inCore)
             read();
         int i = 0;
-        for(; i + off < buf.length && i + blockOff < Disk.BLOCK_SIZE; ++i)
+        for(; i + off < end && i + blockOff < Disk.BLOCK_SIZE; ++i)
             buf[off + i] = block[blockOff + i];
         return i;
     }
 
     public int copyFrom(byte[] buf, int off) {
-        if(! inCore && ! isCompleteOverwrite(buf.length))
+        return copyFrom(buf, off, buf.length);
+    }
+
+    /**
+     * Copy from buf[off .. end - 1] at most.
+     */
+    public int copyFrom(byte[] buf, int off, int end) {
+        if(! inCore && ! isCompleteOverwrite(end - off))
             read();
         int i = 0;
-        for(; i + off < buf.length && i + blockOff < Disk.BLOCK_SIZE; ++i)
+        for(; i + off < end && i + blockOff < Disk.BLOCK_SIZE; ++i)
             block[blockOff + i] = buf[off + i];
         dirty = true;
         return i;
     }
 
     private boolean isCompleteOverwrite(int len) {
-        return fresh || (blockOff == 0 && len >= 512);
+        return fresh || (blockOff == 0 && len >= Disk.BLOCK_SIZE);
+    }
+
+    /**
+     * Get the block number this block is saved to.
+     */
+    public int getBlockNum() {
+        return blockNum;
+    }
+
+    /**
+     * Get the contents of the block (read it first unless it is fresh
+     * or was completely overwritten).
+     */
+    public byte[] getBytes() {
+        return block;
     }
 
     public void read() {
         if(disk != null)
-            disk.read(blockNum, block);
+            disk.read(srcNum, block);
         inCore = true;
     }
 
@@ -5,7 +5,11 @@ import java.io.*;
  * A Disk simulates a block-oriented storage device.
  *
  * The number of blocks on the disk is NUM_BLOCKS, and each block is
- * BLOCK_SIZE bytes in size.
+ * BLOCK_SIZE bytes in size. The blocks are stored by a BlockDevice:
+ * the file NAME in the current directory unless another device is
+ * given. The Disk converts the typed blocks of the file system to and
+ * from bytes and counts reads and writes. With a LatencyModel set, it
+ * also adds up how long a real device would have taken.
  */
 public class Disk {
 	public final static String NAME    = "DISK";
@@ -15,8 +19,12 @@ public class Disk {
 
 	private int readCount;  // useful for debugging, incremented on each read
 	private int writeCount; // useful for debugging, incremented on each write
-	private File file;
-	private RandomAccessFile disk;
+	private BlockDevice device;
+	private ChangedBlocks changed; // marked on each write, or null
+	private LatencyModel model; // prices each request, or null
+	private long time;          // modelled nanoseconds so far
+	private int[] one = new int[1]; // a single-block request for model
+	private byte[] scratch = new byte[BLOCK_SIZE]; // typed blocks go via this
 
 	/**
 	 * Construct a new simulated disk.
@@ -32,14 +40,20 @@ public class Disk {
 	 */
 	public Disk() {
 		try {
-			file = new File(NAME);
-			disk = new RandomAccessFile(file, "rw");
+			device = new FileBlockDevice(new File(NAME));
 		} catch(IOException e) {
 			System.err.println("Unable to start the disk");
 			System.exit(1);
 		}
 	}
 
+	/**
+	 * Construct a simulated disk whose blocks are stored by device.
+	 */
+	public Disk(BlockDevice device) {
+		this.device = device;
+	}
+
 	/**
 	 * Read a block into the buffer.
 	 *
@@ -57,13 +71,69 @@ public class Disk {
 			throw new RuntimeException("read: buffer too small");
 		}
 		try {
-			seek(blocknum);
-			disk.read(buffer);
+			check(blocknum);
+			device.read(blocknum, buffer);
 		} catch(IOException e) {
 			System.err.println(e);
 			System.exit(1);
 		}
 		readCount++;
+		charge(blocknum, false);
+	}
+
+	/**
+	 * Read count blocks into consecutive slices of buffer: block
+	 * blocknums[i] into buffer[off + i * BLOCK_SIZE ..]. A striped
+	 * device reads from all its devices at once.
+	 *
+	 * Immediately terminates your program if there is an underlying
+	 * I/O error.
+	 *
+	 * @throws RuntimeException if a blocknum is out of range or buffer
+	 *                          is too small
+	 */
+	public void read(int[] blocknums, int count, byte[] buffer, int off) {
+		if(off + count * BLOCK_SIZE > buffer.length) {
+			throw new RuntimeException("read: buffer too small");
+		}
+		try {
+			for(int i=0; i<count; i++) {
+				check(blocknums[i]);
+			}
+			device.read(blocknums, count, buffer, off);
+		} catch(IOException e) {
+			System.err.println(e);
+			System.exit(1);
+		}
+		readCount += count;
+		charge(blocknums, count, false);
+	}
+
+	/**
+	 * Write count blocks from consecutive slices of buffer, the
+	 * opposite of read(blocknums, count, buffer, off).
+	 *
+	 * @throws RuntimeException if a blocknum is out of range or buffer
+	 *                          is too small
+	 */
+	public void write(int[] blocknums, int count, byte[] buffer, int off) {
+		if(off + count * BLOCK_SIZE > buffer.length) {
+			throw new RuntimeException("write: buffer too small");
+		}
+		try {
+			for(int i=0; i<count; i++) {
+				check(blocknums[i]);
+			}
+			device.write(blocknums, count, buffer, off);
+		} catch(IOException e) {
+			System.err.println(e);
+			System.exit(1);
+		}
+		writeCount += count;
+		charge(blocknums, count, true);
+		for(int i=0; changed != null && i<count; i++) {
+			changed.mark(blocknums[i]);
+		}
 	}
 
 	/**
@@ -78,24 +148,28 @@ public class Disk {
 	 */
 	public void read(int blocknum, SuperBlock block) {
 		try {
-			seek(blocknum);
-			block.size = disk.readInt();
-			block.isize = disk.readInt();
-			block.msize = disk.readInt();
-			for(int i=0; i<block.freeMap.length; i++) {
-				block.freeMap[i] = disk.readByte();
-			}
-		} catch(EOFException e) {
-			if(blocknum != 0) {
-				System.err.println(e);
-				System.exit(1);
-			}
-			block.size = block.isize = block.msize = 0;
+			check(blocknum);
+			device.read(blocknum, scratch);
+			block.size = getInt(0);
+			block.isize = getInt(4);
+			block.msize = getInt(8);
+			block.snapshots = getInt(12);
+			block.flags = getInt(16);
+			block.refs = getInt(20);
+			block.groups = getInt(24);
+			block.iinit = getInt(28);
+			block.quotas = getInt(32);
+			block.generation = getInt(36);
+			block.changed = getInt(40);
+			block.magic = getInt(44);
+			System.arraycopy(scratch, 48, block.freeMap, 0,
+					block.freeMap.length);
 		} catch(IOException e) {
 			System.err.println(e);
 			System.exit(1);
 		}
 		readCount++;
+		charge(blocknum, false);
 	}
 
 	/**
@@ -110,20 +184,44 @@ public class Disk {
 	 */
 	public void read(int blocknum, InodeBlock block) {
 		try {
-			seek(blocknum);
-			for(int i=0; i<block.inodes.length; i++) {
-				block.inodes[i].flags = disk.readInt();
-				block.inodes[i].owner = disk.readInt();
-				block.inodes[i].size = disk.readInt();
-				for(int j=0; j<13; j++) {
-					block.inodes[i].ptr[j] = disk.readInt();
-				}
-			}
+			check(blocknum);
+			device.read(blocknum, scratch);
+			decode(scratch, 0, block);
 		} catch(IOException e) {
 			System.err.println(e);
 			System.exit(1);
 		}
 		readCount++;
+		charge(blocknum, false);
+	}
+
+	/**
+	 * Read count blocks into InodeBlocks, block blocknums[i] into
+	 * blocks[i], with a single read(blocknums, count, buffer, off).
+	 *
+	 * @throws RuntimeException if a blocknum is out of range
+	 */
+	public void read(int[] blocknums, int count, InodeBlock[] blocks) {
+		byte[] buffer = new byte[count * BLOCK_SIZE];
+		read(blocknums, count, buffer, 0);
+		for(int i=0; i<count; i++) {
+			decode(buffer, i * BLOCK_SIZE, blocks[i]);
+		}
+	}
+
+	/**
+	 * Fill an InodeBlock from the block at buffer[off].
+	 */
+	private static void decode(byte[] buffer, int off, InodeBlock block) {
+		for(int i=0; i<block.inodes.length; i++) {
+			block.inodes[i].flags = getInt(buffer, off);
+			block.inodes[i].owner = getInt(buffer, off + 4);
+			block.inodes[i].size = getInt(buffer, off + 8);
+			off += 12;
+			for(int j=0; j<13; j++, off += 4) {
+				block.inodes[i].ptr[j] = getInt(buffer, off);
+			}
+		}
 	}
 
 	/**
@@ -138,15 +236,17 @@ public class Disk {
 	 */
 	public void read(int blocknum, IndirectBlock block) {
 		try {
-			seek(blocknum);
+			check(blocknum);
+			device.read(blocknum, scratch);
 			for(int i=0; i<block.ptr.length; i++) {
-				block.ptr[i] = disk.readInt();
+				block.ptr[i] = getInt(4 * i);
 			}
 		} catch(IOException e) {
 			System.err.println(e);
 			System.exit(1);
 		}
 		readCount++;
+		charge(blocknum, false);
 	}
 
 	/**
@@ -161,15 +261,14 @@ public class Disk {
 	 */
 	public void read(int blocknum, FreeMapBlock block) {
 		try {
-			seek(blocknum);
-			for(int i=0; i<block.map.length; i++) {
-				block.map[i] = disk.readByte();
-			}
+			check(blocknum);
+			device.read(blocknum, block.map);
 		} catch(IOException e) {
 			System.err.println(e);
 			System.exit(1);
 		}
 		readCount++;
+		charge(blocknum, false);
 	}
 
 	/**
@@ -187,13 +286,17 @@ public class Disk {
 			throw new RuntimeException(
 					"Write: bad buffer size " + buffer.length);
 		try {
-			seek(blocknum);
-			disk.write(buffer);
+			check(blocknum);
+			device.write(blocknum, buffer);
 		} catch(IOException e) {
 			System.err.println(e);
 			System.exit(1);
 		}
 		writeCount++;
+		charge(blocknum, true);
+		if(changed != null) {
+			changed.mark(blocknum);
+		}
 	}
 
 	/**
@@ -205,18 +308,31 @@ public class Disk {
 	 */
 	public void write(int blocknum, SuperBlock block) {
 		try {
-			seek(blocknum);
-			disk.writeInt(block.size);
-			disk.writeInt(block.isize);
-			disk.writeInt(block.msize);
-			for(int i=0; i<block.freeMap.length; i++) {
-				disk.writeByte(block.freeMap[i]);
-			}
+			check(blocknum);
+			putInt(0, block.size);
+			putInt(4, block.isize);
+			putInt(8, block.msize);
+			putInt(12, block.snapshots);
+			putInt(16, block.flags);
+			putInt(20, block.refs);
+			putInt(24, block.groups);
+			putInt(28, block.iinit);
+			putInt(32, block.quotas);
+			putInt(36, block.generation);
+			putInt(40, block.changed);
+			putInt(44, block.magic);
+			System.arraycopy(block.freeMap, 0, scratch, 48,
+					block.freeMap.length);
+			device.write(blocknum, scratch);
 		} catch(IOException e) {
 			System.err.println(e);
 			System.exit(1);
 		}
 		writeCount++;
+		charge(blocknum, true);
+		if(changed != null) {
+			changed.mark(blocknum);
+		}
 	}
 
 	/**
@@ -228,20 +344,27 @@ public class Disk {
 	 */
 	public void write(int blocknum, InodeBlock block) {
 		try {
-			seek(blocknum);
+			check(blocknum);
+			int off = 0;
 			for(int i=0; i<block.inodes.length; i++) {
-				disk.writeInt(block.inodes[i].flags);
-				disk.writeInt(block.inodes[i].owner);
-				disk.writeInt(block.inodes[i].size);
-				for(int j=0; j<13; j++) {
-					disk.writeInt(block.inodes[i].ptr[j]);
+				putInt(off, block.inodes[i].flags);
+				putInt(off + 4, block.inodes[i].owner);
+				putInt(off + 8, block.inodes[i].size);
+				off += 12;
+				for(int j=0; j<13; j++, off += 4) {
+					putInt(off, block.inodes[i].ptr[j]);
 				}
 			}
+			device.write(blocknum, scratch);
 		} catch(IOException e) {
 			System.err.println(e);
 			System.exit(1);
 		}
 		writeCount++;
+		charge(blocknum, true);
+		if(changed != null) {
+			changed.mark(blocknum);
+		}
 	}
 
 	/**
@@ -253,15 +376,20 @@ public class Disk {
 	 */
 	public void write(int blocknum, IndirectBlock block) {
 		try {
-			seek(blocknum);
+			check(blocknum);
 			for(int i=0; i<block.ptr.length; i++) {
-				disk.writeInt(block.ptr[i]);
+				putInt(4 * i, block.ptr[i]);
 			}
+			device.write(blocknum, scratch);
 		} catch(IOException e) {
 			System.err.println(e);
 			System.exit(1);
 		}
 		writeCount++;
+		charge(blocknum, true);
+		if(changed != null) {
+			changed.mark(blocknum);
+		}
 	}
 
 	/**
@@ -273,32 +401,39 @@ public class Disk {
 	 */
 	public void write(int blocknum, FreeMapBlock block) {
 		try {
-			seek(blocknum);
-			for(int i=0; i<block.map.length; i++) {
-				disk.write(block.map[i]);
-			}
+			check(blocknum);
+			device.write(blocknum, block.map);
 		} catch(IOException e) {
 			System.err.println(e);
 			System.exit(1);
 		}
 		writeCount++;
+		charge(blocknum, true);
+		if(changed != null) {
+			changed.mark(blocknum);
+		}
+	}
+
+	/**
+	 * Mark every block written from now on in changed (null to stop).
+	 */
+	public void track(ChangedBlocks changed) {
+		this.changed = changed;
 	}
 
 	/**
 	 * Stop the disk.
 	 *
-	 * @param removeFile true if you want to delete the disk file,
+	 * @param removeFile true if you want to delete the disk file (or
+	 *                   otherwise discard the blocks of the device),
 	 *                   false otherwise
 	 */
 	public void stop(boolean removeFile) {
 		if(printStats)
 			System.out.println(this);
-		if(removeFile) {
-			file.delete();
-		}
 
 		try{
-			disk.close();
+			device.close(removeFile);
 		} catch (IOException e){
 			System.out.println("Disk couldn't be closed");
 		}
@@ -311,23 +446,98 @@ public class Disk {
 		stop(true);
 	}
 
+	/**
+	 * Price every request from now on with model (null to stop). Time
+	 * already counted is kept.
+	 */
+	public void setModel(LatencyModel model) {
+		this.model = model;
+	}
+
+	private void charge(int blocknum, boolean write) {
+		if(model != null) {
+			one[0] = blocknum;
+			time += model.cost(one, 1, write);
+		}
+	}
+
+	private void charge(int[] blocknums, int count, boolean write) {
+		if(model != null) {
+			time += model.cost(blocknums, count, write);
+		}
+	}
+
 	public String toString() {
-		return NAME + "(reads: " + readCount + ", writes: " + writeCount + ")";
+		return NAME + "(reads: " + readCount + ", writes: " + writeCount +
+			(model == null ? "" : ", time: " + time / 1000000 + " ms") + ")";
+	}
+
+	/**
+	 * Get the number of blocks read so far.
+	 */
+	public int getReadCount() {
+		return readCount;
+	}
+
+	/**
+	 * Get the number of blocks written so far.
+	 */
+	public int getWriteCount() {
+		return writeCount;
+	}
+
+	/**
+	 * Get the modelled device time so far in nanoseconds (0 without a
+	 * LatencyModel).
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * Get the device that stores the blocks.
+	 */
+	public BlockDevice getDevice() {
+		return device;
+	}
+
+	/**
+	 * Get the big-endian int at scratch[off] (the byte order of
+	 * RandomAccessFile.readInt).
+	 */
+	private int getInt(int off) {
+		return getInt(scratch, off);
+	}
+
+	/**
+	 * Get the big-endian int at buffer[off].
+	 */
+	private static int getInt(byte[] buffer, int off) {
+		return (buffer[off] & 0xff) << 24 | (buffer[off + 1] & 0xff) << 16 |
+			(buffer[off + 2] & 0xff) << 8 | (buffer[off + 3] & 0xff);
+	}
+
+	/**
+	 * Put v at scratch[off] in big-endian order.
+	 */
+	private void putInt(int off, int v) {
+		scratch[off] = (byte)(v >>> 24);
+		scratch[off + 1] = (byte)(v >>> 16);
+		scratch[off + 2] = (byte)(v >>> 8);
+		scratch[off + 3] = (byte)v;
 	}
 
 	/**
-	 * Seek the underlying disk file to the specified blocknum.
+	 * Check that blocknum is on the disk.
 	 *
 	 * @private
-	 * @param blocknum Block number to which to seek the underlying file
-	 * @throws IOException if there is a disk error
+	 * @param blocknum Block number about to be read or written
 	 * @throws RuntimeException if blocknum is out of range
 	 */
-	private void seek(int blocknum) throws IOException {
+	private void check(int blocknum) {
 		if(blocknum < 0 || blocknum >= NUM_BLOCKS) {
 			throw new RuntimeException ("Attempt to read block " +
 					blocknum + " is out of range");
 		}
-		disk.seek((long)(blocknum * BLOCK_SIZE));
 	}
 }
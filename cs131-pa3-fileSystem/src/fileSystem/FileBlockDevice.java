@@ -0,0 +1,66 @@
+package fileSystem;
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * A BlockDevice stored in a file, block n at byte offset
+ * n * Disk.BLOCK_SIZE. Blocks past the end of the file read as zeros.
+ */
+public class FileBlockDevice implements BlockDevice {
+    private File file;
+    private RandomAccessFile disk;
+
+    /**
+     * Open (or create) the file at path.
+     */
+    public FileBlockDevice(File path) throws IOException {
+        file = path;
+        disk = new RandomAccessFile(file, "rw");
+    }
+
+    public void read(int blockNum, byte[] buffer) throws IOException {
+        read(blockNum, buffer, 0);
+    }
+
+    public void write(int blockNum, byte[] buffer) throws IOException {
+        write(blockNum, buffer, 0);
+    }
+
+    public void read(int[] blockNums, int count, byte[] buffer, int off)
+        throws IOException {
+        for(int i = 0; i < count; ++i)
+            read(blockNums[i], buffer, off + i * Disk.BLOCK_SIZE);
+    }
+
+    public void write(int[] blockNums, int count, byte[] buffer, int off)
+        throws IOException {
+        for(int i = 0; i < count; ++i)
+            write(blockNums[i], buffer, off + i * Disk.BLOCK_SIZE);
+    }
+
+    private void read(int blockNum, byte[] buffer, int off)
+        throws IOException {
+        disk.seek((long)blockNum * Disk.BLOCK_SIZE);
+        int n = 0, len;
+        while(n < Disk.BLOCK_SIZE &&
+              (len = disk.read(buffer, off + n, Disk.BLOCK_SIZE - n)) > 0)
+            n += len;
+        Arrays.fill(buffer, off + n, off + Disk.BLOCK_SIZE, (byte)0);
+    }
+
+    private void write(int blockNum, byte[] buffer, int off)
+        throws IOException {
+        disk.seek((long)blockNum * Disk.BLOCK_SIZE);
+        disk.write(buffer, off, Disk.BLOCK_SIZE);
+    }
+
+    public void close(boolean discard) throws IOException {
+        disk.close();
+        if(discard)
+            file.delete();
+    }
+
+    public String toString() {
+        return "FileBlockDevice(" + file + ")";
+    }
+}
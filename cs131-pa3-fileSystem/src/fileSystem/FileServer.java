@@ -0,0 +1,382 @@
+package fileSystem;
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.*;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Serves the calls of a FileSystem to other processes over a socket,
+ * normally a Unix domain socket (see RemoteFileSystem for the client).
+ *
+ * The protocol is binary and big-endian. A client sends request frames
+ * and gets one response frame back for each, in order, so it may send
+ * several frames before reading the responses (pipelining). A request
+ * frame is an int count followed by count calls; each call is a byte
+ * opcode followed by its arguments:
+ *
+ * <pre>
+ * FORMAT   int size, int isize
+ * CREATE
+ * OPEN     int inumber
+ * INUMBER  int fd
+ * READ     int fd, int length
+ * WRITE    int fd, int length, length bytes
+ * SEEK     int fd, int offset, byte whence (Whence.ordinal())
+ * CLOSE    int fd
+ * DELETE   int inumber
+ * TRUNCATE int fd, int size
+ * ALLOCATE int fd, int offset, int length
+ * </pre>
+ *
+ * The response frame is an int count followed by an int result for
+ * each call, as the FileSystem method returned it; a READ result n &gt;
+ * 0 is followed by the n bytes read. The calls of a frame run one after
+ * another, and a call that fails does not stop the rest.
+ *
+ * A connection can only use the file descriptors it opened itself, and
+ * those still open when it goes away are closed. Each connection is
+ * served by a thread of its own: a virtual thread where the JVM has
+ * them (Java 21 and later), otherwise a pooled platform thread. The
+ * file system is used through a SynchronizedFileSystem.
+ */
+public class FileServer implements Closeable {
+    static final byte FORMAT   =  1;
+    static final byte CREATE   =  2;
+    static final byte OPEN     =  3;
+    static final byte INUMBER  =  4;
+    static final byte READ     =  5;
+    static final byte WRITE    =  6;
+    static final byte SEEK     =  7;
+    static final byte CLOSE    =  8;
+    static final byte DELETE   =  9;
+    static final byte TRUNCATE = 10;
+    static final byte ALLOCATE = 11;
+
+    static final int MAX_OPS    = 1 << 16; // calls per frame
+    static final int MAX_LENGTH = 1 << 24; // bytes per read or write
+
+    private final FileSystem fs;
+    private final ServerSocketChannel channel;
+    private final File socketFile;
+    private final ExecutorService connections;
+    private final Set<SocketChannel> clients = new HashSet<SocketChannel>();
+    private Thread acceptor;
+
+    /**
+     * @param fs      file system to serve
+     * @param channel bound channel to accept connections on, closed by
+     *                close()
+     */
+    public FileServer(FileSystem fs, ServerSocketChannel channel) {
+        this(fs, channel, null);
+    }
+
+    private FileServer(FileSystem fs, ServerSocketChannel channel,
+                       File socketFile) {
+        this.fs = fs instanceof SynchronizedFileSystem ? fs
+            : new SynchronizedFileSystem(fs);
+        this.channel = channel;
+        this.socketFile = socketFile;
+        connections = connectionExecutor();
+    }
+
+    /**
+     * Serve fs on a new Unix domain socket at path. The socket file is
+     * removed by close().
+     *
+     * @throws UnsupportedOperationException if the JVM has no Unix domain
+     *         sockets (before Java 16)
+     */
+    public static FileServer bind(FileSystem fs, File path)
+        throws IOException {
+        ServerSocketChannel channel =
+            (ServerSocketChannel)openUnix(ServerSocketChannel.class);
+        try {
+            channel.bind(unixAddress(path));
+        } catch(IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new FileServer(fs, channel, path);
+    }
+
+    /**
+     * Serve fs on a TCP port of the loopback interface, for JVMs without
+     * Unix domain sockets.
+     *
+     * @param port port to listen on, or 0 for any free port
+     */
+    public static FileServer bind(FileSystem fs, int port)
+        throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                           port));
+        return new FileServer(fs, channel, null);
+    }
+
+    /**
+     * Get the address the server listens on.
+     */
+    public SocketAddress getAddress() throws IOException {
+        return channel.getLocalAddress();
+    }
+
+    /**
+     * Open a channel of type (ServerSocketChannel or SocketChannel) for
+     * Unix domain sockets. Looked up by reflection, since the project is
+     * built for Java 7.
+     */
+    static Object openUnix(Class<?> type) {
+        try {
+            ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+            Method open = type.getMethod("open", ProtocolFamily.class);
+            return open.invoke(null, unix);
+        } catch(IllegalArgumentException e) {
+            throw new UnsupportedOperationException(
+                "No Unix domain sockets in this JVM");
+        } catch(ReflectiveOperationException e) {
+            throw new UnsupportedOperationException(
+                "No Unix domain sockets in this JVM", e);
+        }
+    }
+
+    /**
+     * Get the UnixDomainSocketAddress of path.
+     */
+    static SocketAddress unixAddress(File path) {
+        try {
+            Class<?> type = Class.forName("java.net.UnixDomainSocketAddress");
+            Method of = type.getMethod("of", String.class);
+            return (SocketAddress)of.invoke(null, path.getPath());
+        } catch(ReflectiveOperationException e) {
+            throw new UnsupportedOperationException(
+                "No Unix domain sockets in this JVM", e);
+        }
+    }
+
+    /**
+     * Get an executor that starts a virtual thread per task if the JVM
+     * supports them, or else a growing pool of daemon threads.
+     */
+    private static ExecutorService connectionExecutor() {
+        try {
+            Method m = Executors.class.getMethod(
+                "newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)m.invoke(null);
+        } catch(ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "file-server-connection");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    /**
+     * Start accepting connections on a background thread.
+     */
+    public synchronized void start() {
+        acceptor = new Thread("file-server") {
+            public void run() {
+                try {
+                    while(true) {
+                        final SocketChannel client = channel.accept();
+                        synchronized(clients) {
+                            clients.add(client);
+                        }
+                        connections.execute(new Runnable() {
+                            public void run() {
+                                serve(client);
+                            }
+                        });
+                    }
+                } catch(ClosedChannelException e) {
+                    // closed
+                } catch(IOException e) {
+                    System.err.println("File server failed: " + e);
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Stop accepting connections and drop the open ones, closing the
+     * files they left open. The file system is left mounted.
+     */
+    public void close() throws IOException {
+        channel.close();
+        try {
+            Thread t;
+            synchronized(this) {
+                t = acceptor;
+            }
+            if(t != null)
+                t.join(); // no more clients after this
+            synchronized(clients) {
+                for(SocketChannel client : clients)
+                    client.close();
+            }
+            connections.shutdown();
+            connections.awaitTermination(10, TimeUnit.SECONDS);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if(socketFile != null)
+            socketFile.delete();
+    }
+
+    /**
+     * Answer the request frames of one connection until it is closed.
+     */
+    private void serve(SocketChannel client) {
+        Set<Integer> fds = new HashSet<Integer>();
+        try {
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(client)));
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(client)));
+            while(true) {
+                int count;
+                try {
+                    count = in.readInt();
+                } catch(EOFException e) {
+                    return;
+                }
+                if(count < 0 || count > MAX_OPS)
+                    throw new IOException("Bad frame of " + count + " calls");
+                out.writeInt(count);
+                for(int i = 0; i < count; ++i)
+                    call(in, out, fds);
+                if(in.available() == 0) // no more pipelined frames yet
+                    out.flush();
+            }
+        } catch(AsynchronousCloseException e) {
+            // server closed
+        } catch(IOException e) {
+            System.err.println("File server connection failed: " + e);
+        } finally {
+            for(int fd : fds) {
+                try {
+                    fs.close(fd);
+                } catch(IOException e) {
+                    System.err.println("Error closing fd " + fd + ": " + e);
+                }
+            }
+            synchronized(clients) {
+                clients.remove(client);
+            }
+            try {
+                client.close();
+            } catch(IOException e) {
+                // already gone
+            }
+        }
+    }
+
+    /**
+     * Read one call, make it and write its result.
+     *
+     * @param fds file descriptors opened by the connection
+     */
+    private void call(DataInputStream in, DataOutputStream out,
+                      Set<Integer> fds) throws IOException {
+        byte op = in.readByte();
+        int result;
+        byte[] buffer = null;
+        switch(op) {
+            case FORMAT: {
+                int size = in.readInt();
+                int isize = in.readInt();
+                result = fs.formatDisk(size, isize);
+                break;
+            }
+            case CREATE:
+                result = fs.create();
+                if(result >= 0)
+                    fds.add(result);
+                break;
+            case OPEN:
+                result = fs.open(in.readInt());
+                if(result >= 0)
+                    fds.add(result);
+                break;
+            case INUMBER: {
+                int fd = in.readInt();
+                result = fds.contains(fd) ? fs.inumber(fd) : -1;
+                break;
+            }
+            case READ: {
+                int fd = in.readInt();
+                buffer = new byte[length(in.readInt())];
+                result = fds.contains(fd) ? fs.read(fd, buffer) : -1;
+                break;
+            }
+            case WRITE: {
+                int fd = in.readInt();
+                byte[] data = new byte[length(in.readInt())];
+                in.readFully(data);
+                result = fds.contains(fd) ? fs.write(fd, data) : -1;
+                break;
+            }
+            case SEEK: {
+                int fd = in.readInt();
+                int offset = in.readInt();
+                int whence = in.readByte();
+                if(whence < 0 || whence >= Whence.values().length)
+                    throw new IOException("Bad whence " + whence);
+                result = fds.contains(fd)
+                    ? fs.seek(fd, offset, Whence.values()[whence]) : -1;
+                break;
+            }
+            case CLOSE: {
+                int fd = in.readInt();
+                result = fds.contains(fd) ? fs.close(fd) : -1;
+                if(result == 0)
+                    fds.remove(fd);
+                break;
+            }
+            case DELETE:
+                result = fs.delete(in.readInt());
+                break;
+            case TRUNCATE: {
+                int fd = in.readInt();
+                int size = in.readInt();
+                result = fds.contains(fd) ? fs.truncate(fd, size) : -1;
+                break;
+            }
+            case ALLOCATE: {
+                int fd = in.readInt();
+                int offset = in.readInt();
+                int length = in.readInt();
+                result = fds.contains(fd)
+                    ? fs.allocate(fd, offset, length) : -1;
+                break;
+            }
+            default:
+                throw new IOException("Bad opcode " + op);
+        }
+        out.writeInt(result);
+        if(buffer != null && result > 0)
+            out.write(buffer, 0, result);
+    }
+
+    /**
+     * Check the length of a read or write.
+     */
+    private static int length(int length) throws IOException {
+        if(length < 0 || length > MAX_LENGTH)
+            throw new IOException("Bad length " + length);
+        return length;
+    }
+}
@@ -108,6 +108,33 @@ public interface FileSystem {
      *                or -1 on error
      */
     public int seek(int fd, int offset, Whence whence) throws IOException;
+
+    /**
+     * Set the size of the open file identified by fd.
+     *
+     * A file that shrinks loses its data past size, and the blocks
+     * that held it are freed; one that grows reads as zeros past its
+     * old end. Seek pointers are left where they are.
+     *
+     * @param  fd   fd of an open file
+     * @param  size new size of the file
+     * @return      0 on success, -1 on error
+     */
+    public int truncate(int fd, int size) throws IOException;
+
+    /**
+     * Reserve the blocks for bytes offset to offset + length - 1 of the
+     * open file identified by fd, so that writing them later needs no
+     * allocation and cannot run out of space. Blocks not yet in the
+     * file are allocated together, consecutive where possible, and read
+     * as zeros. The file grows to offset + length if it is smaller.
+     *
+     * @param  fd     fd of an open file
+     * @param  offset first byte to reserve
+     * @param  length number of bytes to reserve
+     * @return        0 on success, -1 on error
+     */
+    public int allocate(int fd, int offset, int length) throws IOException;
     
     /**
      * Close the file identified by fd.
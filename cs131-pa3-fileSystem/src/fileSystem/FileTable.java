@@ -1,4 +1,10 @@
 package fileSystem;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
 /**
  * Tracks open files and provides an interface to interact with files.
  *
@@ -13,10 +19,34 @@ package fileSystem;
  * for each "instance" of an open file (allowing multiple seek
  * pointers into the same file), and there is a per-process table
  * mapping instances to file descriptors.}
+ *
+ * The table grows as files are opened, up to a limit (MAX_FILES unless
+ * set otherwise). File descriptors below the highest one ever used are
+ * kept on a free list when closed, so that allocate() and free() take
+ * constant time, and the file descriptors open on each inumber are
+ * indexed so that getFdFromInumber() does too.
  */
 public class FileTable {
     public static final int MAX_FILES = 20;
-    private FileDescriptor[] fds = new FileDescriptor[MAX_FILES];
+    private FileDescriptor[] fds = new FileDescriptor[16];
+    private int limit;
+    private int top = 0;            // every fd >= top is free
+    private int[] freeList = new int[16];
+    private int[] freePos = new int[16]; // index in freeList, -1 if not
+    private int freeCount = 0;
+    private Map<Integer, Set<Integer>> open =
+        new HashMap<Integer, Set<Integer>>();
+
+    public FileTable() {
+        this(MAX_FILES);
+    }
+
+    /**
+     * @param limit maximum number of files open at once
+     */
+    public FileTable(int limit) {
+        this.limit = limit;
+    }
 
     /**
      * An ADT that contains data about a file. FileTable uses
@@ -28,12 +58,14 @@ public class FileTable {
      *   <li>inode</li>
      *   <li>inumber</li>
      *   <li>seek pointer</li>
+     *   <li>block map (cached block translations)</li>
      * </ul>
      */
     private static class FileDescriptor {
         private Inode inode;
         private int inumber;
         private int seekPtr;
+        private BlockMap blockMap = new BlockMap();
     
         public FileDescriptor(Inode newInode, int newInumber) {
             inode   = newInode;
@@ -53,6 +85,10 @@ public class FileTable {
             return seekPtr;
         }
 
+        public BlockMap getBlockMap() {
+            return blockMap;
+        }
+
         public void setSeekPointer(int p) {
             seekPtr = p;
         }
@@ -69,14 +105,42 @@ public class FileTable {
      *         full
      */
     public int allocate() {
-        for(int fd = 0; fd < MAX_FILES; fd++) {
-            if(fds[fd] == null) {
-                return fd;
-            }
-        }
+        if(freeCount > 0)
+            return freeList[freeCount - 1];
+        if(top < limit)
+            return top;
         System.err.println("Cannot open file (filetable is full)");
         return -1;
     }
+
+    /**
+     * Get the maximum number of files open at once.
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Change the maximum number of files open at once. The limit
+     * cannot be lowered below a file descriptor that has been used.
+     *
+     * @param  limit the new limit
+     * @return       0 on success, -1 otherwise
+     */
+    public int setLimit(int limit) {
+        if(limit < top)
+            return -1;
+        this.limit = limit;
+        return 0;
+    }
+
+    /**
+     * Get a bound on the file descriptors in use: every open file
+     * descriptor is less than size().
+     */
+    public int size() {
+        return top;
+    }
     
     /**
      * Add a new file at the specified fd. Use allocate() to get a
@@ -88,9 +152,23 @@ public class FileTable {
      * @return         0 on success, -1 otherwise
      */
     public int add(Inode inode, int inumber, int fd) {
-        if(fds[fd] != null)
+        if(fd < 0 || fd >= limit || get(fd) != null)
             return -1;
+        if(fd >= fds.length)
+            grow(fd + 1);
+        if(fd < top) {
+            unlinkFree(fd);
+        } else {
+            for(; top < fd; ++top)
+                linkFree(top);
+            top = fd + 1;
+        }
         fds[fd] = new FileDescriptor(inode, inumber);
+
+        Set<Integer> set = open.get(inumber);
+        if(set == null)
+            open.put(inumber, set = new HashSet<Integer>());
+        set.add(fd);
         return 0;
     }
     
@@ -100,7 +178,41 @@ public class FileTable {
      * @param fd The file descriptor to delete
      */
     public void free(int fd) {
+        FileDescriptor f = get(fd);
+        if(f == null)
+            return; // allocated but never added
         fds[fd] = null;
+        linkFree(fd);
+
+        Set<Integer> set = open.get(f.getInumber());
+        set.remove(fd);
+        if(set.isEmpty())
+            open.remove(f.getInumber());
+    }
+
+    private FileDescriptor get(int fd) {
+        return fd >= 0 && fd < fds.length ? fds[fd] : null;
+    }
+
+    private void grow(int n) {
+        int length = Math.max(n, 2 * fds.length);
+        fds      = Arrays.copyOf(fds, length);
+        freeList = Arrays.copyOf(freeList, length);
+        freePos  = Arrays.copyOf(freePos, length);
+    }
+
+    private void linkFree(int fd) {
+        freePos[fd] = freeCount;
+        freeList[freeCount++] = fd;
+    }
+
+    /**
+     * Take fd off the free list, moving the last entry into its place.
+     */
+    private void unlinkFree(int fd) {
+        int last = freeList[--freeCount];
+        freeList[freePos[fd]] = last;
+        freePos[last] = freePos[fd];
     }
 
     /**
@@ -110,13 +222,13 @@ public class FileTable {
      * @return   true if the fd is valid, false otherwise
      */
     public boolean isValid(int fd) {
-        if(fd < 0 || fd >= MAX_FILES) {
+        if(fd < 0 || fd >= limit) {
             System.err.println(
-                "ERROR: Invalid file descriptor (must be 0 <= fd <= " +
-                MAX_FILES + ") : " + fd);
+                "ERROR: Invalid file descriptor (must be 0 <= fd < " +
+                limit + ") : " + fd);
             return false;
         }
-        if(fds[fd] == null) {
+        if(get(fd) == null) {
             return false;
         }
         return true;
@@ -129,7 +241,7 @@ public class FileTable {
      * @return    null if the file descriptor at fd does not exist
      */
     public Inode getInode(int fd) {
-        if(fds[fd] == null) {
+        if(get(fd) == null) {
             return null;
         }
         return fds[fd].getInode();
@@ -142,7 +254,7 @@ public class FileTable {
      * @return    0 if invalid, otherwise Inumber
      */
     public int getInumber(int fd) {
-        if(fds[fd] == null){
+        if(get(fd) == null){
             return 0;
         }
         return fds[fd].getInumber();
@@ -155,12 +267,25 @@ public class FileTable {
      * @return    seek pointer, -1 if fd is invalid
      */
     public int getSeekPointer(int fd) {
-        if(fds[fd] == null){
+        if(get(fd) == null){
             return -1;
         }
         return fds[fd].getSeekPointer();
     }
 
+    /**
+     * Get the cached block translations for a file descriptor.
+     *
+     * @param  fd the identifier of a file descriptor
+     * @return    null if the file descriptor at fd does not exist
+     */
+    public BlockMap getBlockMap(int fd) {
+        if(get(fd) == null) {
+            return null;
+        }
+        return fds[fd].getBlockMap();
+    }
+
     /**
      * Set the seek pointer for a file descriptor.
      *
@@ -169,7 +294,7 @@ public class FileTable {
      * @return    0 on success, -1 otherwise
      */
     public int setSeekPointer(int fd, int p) {
-        if(fds[fd] == null) {
+        if(get(fd) == null) {
             return -1;
         }
         fds[fd].setSeekPointer(p);
@@ -184,7 +309,7 @@ public class FileTable {
      * @return      0 on success, -1 otherwise
      */
     public int setFileSize(int fd, int size) {
-        if(fds[fd] == null) {
+        if(get(fd) == null) {
             return -1;
         }
         fds[fd].setFileSize(size);
@@ -198,13 +323,9 @@ public class FileTable {
      * @return         the fd on success, -1 on error
      */
     public int getFdFromInumber(int inumber) {
-        for(int fd = 0; fd < MAX_FILES; fd++) {
-            if(fds[fd] != null) {
-                if (fds[fd].getInumber() == inumber) {
-                    return fd;
-                }
-            }       
-        }
-        return -1;
+        Set<Integer> set = open.get(inumber);
+        if(set == null)
+            return -1;
+        return set.iterator().next();
     }
 }
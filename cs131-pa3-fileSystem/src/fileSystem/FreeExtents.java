@@ -0,0 +1,139 @@
+package fileSystem;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The free blocks of a FreeMap as extents (runs of consecutive free
+ * blocks), kept in two balanced trees: one by first block, one by
+ * length. A free block at or after a goal, the free run holding or
+ * following a goal, and the smallest free run of a given length are
+ * each found in O(log n) for n extents, and marking a block used or
+ * free is O(log n) too.
+ *
+ * The extents live in memory only: the free map bits stay the record
+ * on disk, and FreeMap rebuilds the extents from them when it is
+ * created.
+ */
+public class FreeExtents {
+    private TreeMap<Integer, Integer> byStart = new TreeMap<Integer, Integer>();
+    private TreeSet<Long> byLength = new TreeSet<Long>(); // length, start
+    private int free;
+
+    /**
+     * Forget every extent.
+     */
+    public void clear() {
+        byStart.clear();
+        byLength.clear();
+        free = 0;
+    }
+
+    /**
+     * Count the free blocks.
+     */
+    public int free() {
+        return free;
+    }
+
+    /**
+     * Count the extents.
+     */
+    public int size() {
+        return byStart.size();
+    }
+
+    /**
+     * Add a run of free blocks that is not next to any extent, for
+     * building the extents in order.
+     */
+    public void addRun(int start, int len) {
+        put(start, len);
+        free += len;
+    }
+
+    /**
+     * Mark block n free, joining it to the extents around it.
+     */
+    public void add(int n) {
+        Map.Entry<Integer, Integer> lo = byStart.floorEntry(n);
+        if(lo != null && lo.getKey() + lo.getValue() > n)
+            return; // already free
+        int start = n, len = 1;
+        if(lo != null && lo.getKey() + lo.getValue() == n) {
+            start = lo.getKey();
+            len  += lo.getValue();
+            remove(lo.getKey(), lo.getValue());
+        }
+        Integer hi = byStart.get(n + 1);
+        if(hi != null) {
+            len += hi;
+            remove(n + 1, hi);
+        }
+        put(start, len);
+        ++free;
+    }
+
+    /**
+     * Mark block n used, splitting the extent holding it.
+     */
+    public void remove(int n) {
+        Map.Entry<Integer, Integer> e = byStart.floorEntry(n);
+        if(e == null || e.getKey() + e.getValue() <= n)
+            return; // not free
+        int start = e.getKey(), end = start + e.getValue();
+        remove(start, e.getValue());
+        if(n > start)
+            put(start, n - start);
+        if(end > n + 1)
+            put(n + 1, end - n - 1);
+        --free;
+    }
+
+    /**
+     * Find the first free block at or after goal, or else the first
+     * free block.
+     *
+     * @return block number, or 0 if no block is free
+     */
+    public int first(int goal) {
+        Map.Entry<Integer, Integer> e = byStart.floorEntry(goal);
+        if(e != null && e.getKey() + e.getValue() > goal)
+            return goal;
+        Integer next = byStart.ceilingKey(goal);
+        if(next == null)
+            next = byStart.isEmpty() ? null : byStart.firstKey();
+        return next == null ? 0 : next;
+    }
+
+    /**
+     * Find len free blocks in a row: from goal on if the extent holding
+     * goal is long enough, else at the start of the next extent if that
+     * one is, else in the shortest extent that is (best fit).
+     *
+     * @param  goal block number to try first (0 for none)
+     * @return      first block of the run, or 0 if there is no such run
+     */
+    public int fit(int len, int goal) {
+        if(goal > 0) {
+            Map.Entry<Integer, Integer> e = byStart.floorEntry(goal);
+            if(e != null && e.getKey() + e.getValue() >= goal + len)
+                return goal;
+            e = byStart.higherEntry(goal);
+            if(e != null && e.getValue() >= len)
+                return e.getKey();
+        }
+        Long best = byLength.ceiling((long)len << 32);
+        return best == null ? 0 : (int)(long)best;
+    }
+
+    private void put(int start, int len) {
+        byStart.put(start, len);
+        byLength.add((long)len << 32 | start);
+    }
+
+    private void remove(int start, int len) {
+        byStart.remove(start);
+        byLength.remove((long)len << 32 | start);
+    }
+}
@@ -1,4 +1,9 @@
 package fileSystem;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
 /**
  * Provides the mechanism for interacting with bits in the
  * free map, regardless of the block in which they reside.
@@ -12,12 +17,69 @@ package fileSystem;
  * Will also save dirty freemap blocks whenever you call
  * save(). Freemap blocks are automatically marked dirty whenever
  * you modifiy them.
+ *
+ * Free blocks are found through FreeExtents, an index of the runs of
+ * free blocks built from the bits when the FreeMap is created and
+ * updated along with them, rather than by scanning the bits.
+ *
+ * Snapshots register a frozen copy of the free map (see copy() and
+ * share()). A block whose bit is set in any such copy is shared with
+ * a snapshot: it is never handed out by find(), even after it has
+ * been cleared here, and must be copied before it is written.
+ *
+ * A deduplicating or cloneable file system (SuperBlock.DEDUP or
+ * SuperBlock.CLONE) also keeps a count of the extra references to each
+ * data block, stored in a run of blocks starting at superBlock.refs.
+ * Clearing a block with extra references only drops one reference, and
+ * such a block is shared as well.
+ *
+ * On a log-structured file system (SuperBlock.LOG) the data blocks
+ * are divided into segments of SEGMENT blocks. find() appends to one
+ * segment at a time and moves on to a clean (entirely free) segment
+ * when it is full, so blocks allocated one after another are
+ * consecutive on disk. Blocks outside that segment are sealed: they
+ * are moved rather than written in place. The segment cleaner in
+ * MyFileSystem uses victims() to pick segments to empty.
+ *
+ * With block groups (see SuperBlock), the free map also counts the
+ * free blocks of each group, and find(goal) lets a file's blocks be
+ * allocated next to each other in the group of its inode.
+ *
+ * With quotas (SuperBlock.QUOTA), every block set or cleared here, and
+ * every extra reference added or dropped, is charged to owner in the
+ * QuotaTable, and find() refuses blocks that would take owner over its
+ * hard limit. Callers set owner before allocating or freeing blocks
+ * for a file, and set it to QuotaTable.NONE for blocks that belong to
+ * no one (or that are only being moved).
+ *
+ * On a tracked file system (SuperBlock.TRACK), the FreeMap also loads
+ * the ChangedBlocks, has the Disk mark every block written in them, and
+ * saves them last in save(), after the blocks it writes itself.
  */
 public class FreeMap {
+    public static final int REFS_PER_BLOCK = Disk.BLOCK_SIZE / 2;
+    public static final int MAX_REFS       = 0xffff;
+    public static final int SEGMENT        = 64; // blocks per log segment
+
     private Disk           disk;
     private SuperBlock     superBlock;
     private FreeMapBlock[] freeMapBlocks;
     private boolean[]      blockIsDirty;
+    private List<byte[][]> shared = new ArrayList<byte[][]>();
+    private int[]          refs;        // extra references, null if unused
+    private Bit            bit = new Bit(); // reused, see Bit.at()
+    private FreeExtents    extents = new FreeExtents(); // blocks find() may use
+    private boolean[]      refsIsDirty;
+    public  DedupIndex     dedup;       // null unless deduplicating
+    private int[]          live;        // used blocks per segment, or null
+    private long[]         written;     // clock when segment last appended
+    private long           clock;       // number of blocks appended
+    private int            current = -1; // segment being appended to
+    private int            head;        // next block to try in it
+    private int[]          groupFree;   // free blocks per group, or null
+    public  QuotaTable     quotas;      // null unless counting blocks
+    public  int            owner = QuotaTable.NONE; // charged by find/clear
+    public  ChangedBlocks  changed;     // null unless tracking writes
 
     /**
      * Construct a new FreeMap. A FreeMap object caches all freemap
@@ -32,6 +94,70 @@ public class FreeMap {
             freeMapBlocks[i] = new FreeMapBlock();
             disk.read(superBlock.mblock0() + i, freeMapBlocks[i]);
         }
+        if(superBlock.refs != 0) {
+            refs        = new int[superBlock.dsize()];
+            refsIsDirty = new boolean[refsSize(superBlock)];
+            dedup       = superBlock.isDeduplicated() ? new DedupIndex() : null;
+            byte[] block = new byte[Disk.BLOCK_SIZE];
+            for(int i = 0; i < refsIsDirty.length; ++i) {
+                disk.read(superBlock.refs + i, block);
+                for(int j = 0; j < REFS_PER_BLOCK; ++j) {
+                    int n = i * REFS_PER_BLOCK + j;
+                    if(n < refs.length)
+                        refs[n] = (block[2 * j] & 0xff) << 8 |
+                                  (block[2 * j + 1] & 0xff);
+                }
+            }
+        }
+        if(superBlock.quotas != 0) {
+            byte[] block = new byte[Disk.BLOCK_SIZE];
+            disk.read(superBlock.quotas, block);
+            quotas = new QuotaTable(block);
+        }
+        if(superBlock.changed != 0)
+            changed = new ChangedBlocks(disk, superBlock);
+        disk.track(changed);
+        if(superBlock.isGrouped()) {
+            groupFree = new int[superBlock.groups];
+            for(int n = superBlock.dblock0(); n < superBlock.size; ++n)
+                if(! bit.at(n).isset())
+                    ++groupFree[superBlock.group(n)];
+        }
+        if(superBlock.isLogged()) {
+            live    = new int[(superBlock.dsize() + SEGMENT - 1) / SEGMENT];
+            written = new long[live.length];
+            for(int n = superBlock.dblock0(); n < superBlock.size; ++n)
+                if(bit.at(n).isset())
+                    ++live[segment(n)];
+        }
+        index();
+    }
+
+    /**
+     * Rebuild the extents from the bits: every block that is clear and
+     * not shared is free.
+     */
+    private void index() {
+        extents.clear();
+        int start = 0;
+        for(int n = superBlock.dblock0(); n <= superBlock.size; ++n) {
+            boolean free = n < superBlock.size && ! bit.at(n).isset() &&
+                           ! isShared(n);
+            if(free && start == 0)
+                start = n;
+            else if(! free && start != 0) {
+                extents.addRun(start, n - start);
+                start = 0;
+            }
+        }
+    }
+
+    /**
+     * Number of blocks needed for the reference counts of a
+     * deduplicating or cloneable file system.
+     */
+    public static int refsSize(SuperBlock superBlock) {
+        return (superBlock.dsize() + REFS_PER_BLOCK - 1) / REFS_PER_BLOCK;
     }
 
     /**
@@ -45,10 +171,115 @@ public class FreeMap {
      * @return block number of free data block or 0 if no free space
      */
     public int find() {
-        for(int n = superBlock.dblock0(); n < superBlock.size; ++n)
-            if(new Bit(n).set())
-                return n; // found and set a clear bit at n
-        return 0;
+        return find(0);
+    }
+
+    /**
+     * Find a free data block like find(), trying goal and the blocks
+     * after it first. A log-structured file system ignores goal.
+     *
+     * @param  goal block number to start looking at (0 for the first
+     *              free block)
+     * @return      block number of free data block or 0 if no free space
+     */
+    public int find(int goal) {
+        if(quotas != null && ! quotas.mayCharge(owner, 1))
+            return 0;
+        if(live != null) {
+            int n = append();
+            if(n != 0)
+                return n;
+        }
+        int n = extents.first(goal);
+        if(n == 0)
+            return 0;
+        bit.at(n).set();
+        used(n, 1);
+        if(live != null) {
+            // no clean segment left: fill holes in this one
+            current = segment(n);
+            head    = n + 1;
+        }
+        return n;
+    }
+
+    /**
+     * Find len consecutive free data blocks and set their bits: from
+     * goal on or in the free run after it if there is room there,
+     * otherwise in the shortest free run that is long enough (see
+     * FreeExtents.fit). You must call save() afterwards.
+     *
+     * @param  len  number of blocks wanted
+     * @param  goal block number to start looking at (0 for the best
+     *              fit anywhere)
+     * @return      block number of the first block of the run, or 0 if
+     *              there is no such run
+     */
+    public int findRun(int len, int goal) {
+        int start = extents.fit(len, goal);
+        for(int n = start; start != 0 && n < start + len; ++n)
+            allocate(n);
+        return start;
+    }
+
+    /**
+     * Mark a particular block as used, for blocks that live at fixed
+     * places such as the inode blocks of a file system with block
+     * groups. You must call save() afterwards.
+     *
+     * @param blockNum block number of data block
+     */
+    public void allocate(int blockNum) {
+        if(bit.at(blockNum).set())
+            used(blockNum, 1);
+    }
+
+    /**
+     * Keep the segment, group and owner counts up to date when a block
+     * becomes used (delta 1) or free (delta -1).
+     */
+    private void used(int blockNum, int delta) {
+        if(quotas != null)
+            quotas.charge(owner, delta);
+        if(delta > 0)
+            extents.remove(blockNum);
+        else if(! isShared(blockNum))
+            extents.add(blockNum);
+        if(live != null) {
+            live[segment(blockNum)] += delta;
+            if(delta > 0)
+                written[segment(blockNum)] = ++clock;
+        }
+        if(groupFree != null)
+            groupFree[superBlock.group(blockNum)] -= delta;
+    }
+
+    /**
+     * Choose a block group for a new file: the one with the most free
+     * blocks, ties going to the first one after group last, so that
+     * files are spread over the groups.
+     *
+     * @param  last group chosen for the previous file (-1 for none)
+     * @return      group number (0 without block groups)
+     */
+    public int emptiestGroup(int last) {
+        if(groupFree == null)
+            return 0;
+        int best = -1;
+        for(int i = 1; i <= groupFree.length; ++i) {
+            int g = (last + i) % groupFree.length;
+            if(best < 0 || groupFree[g] > groupFree[best])
+                best = g;
+        }
+        return best;
+    }
+
+    /**
+     * Count the free blocks of a block group (not counting blocks
+     * kept by snapshots).
+     */
+    public int countFree(int group) {
+        return groupFree == null ? countFree() : groupFree[group];
     }
 
     /**
@@ -62,12 +293,258 @@ public class FreeMap {
      * @param blockNum block number of data block
      */
     public void clear(int blockNum) {
-        new Bit(blockNum).clear();
+        int n = blockNum - superBlock.dblock0();
+        if(refs != null && refs[n] > 0) {
+            --refs[n];
+            refsIsDirty[n / REFS_PER_BLOCK] = true;
+            if(quotas != null)
+                quotas.charge(owner, -1);
+            return;
+        }
+        if(dedup != null)
+            dedup.remove(blockNum);
+        if(bit.at(blockNum).clear())
+            used(blockNum, -1);
+    }
+
+    /**
+     * Allocate the next free block of the segment being appended to,
+     * opening the next clean segment when it is full.
+     *
+     * @return block number, or 0 if there is no clean segment left
+     */
+    private int append() {
+        for(;;) {
+            if(current >= 0) {
+                int end = Math.min(start(current + 1), superBlock.size);
+                for(; head < end; ++head) {
+                    if(! bit.at(head).isset() && ! isShared(head)) {
+                        bit.set();
+                        used(head, 1);
+                        return head++;
+                    }
+                }
+            }
+            int next = -1;
+            for(int k = 1; k <= live.length && next < 0; ++k) {
+                int s = (current + k) % live.length;
+                if(s != current && isClean(s))
+                    next = s;
+            }
+            if(next < 0)
+                return 0;
+            current = next;
+            head    = start(next);
+        }
+    }
+
+    /**
+     * Check whether a block has to be moved rather than written in
+     * place: on a log-structured file system, every block outside the
+     * segment being appended to.
+     */
+    public boolean isSealed(int blockNum) {
+        return live != null && segment(blockNum) != current;
+    }
+
+    /**
+     * Get the log segment holding a data block.
+     */
+    public int segment(int blockNum) {
+        return (blockNum - superBlock.dblock0()) / SEGMENT;
+    }
+
+    /**
+     * Count the log segments, or 0 if the file system is not
+     * log-structured.
+     */
+    public int segments() {
+        return live == null ? 0 : live.length;
+    }
+
+    private int start(int segment) {
+        return superBlock.dblock0() + segment * SEGMENT;
+    }
+
+    private int capacity(int segment) {
+        return Math.min(SEGMENT, superBlock.size - start(segment));
+    }
+
+    /**
+     * Check whether a segment has no used or shared blocks.
+     */
+    private boolean isClean(int segment) {
+        if(live[segment] > 0)
+            return false;
+        if(shared.isEmpty())
+            return true;
+        for(int n = start(segment); n < start(segment) + capacity(segment);
+            ++n)
+            if(isShared(n))
+                return false;
+        return true;
+    }
+
+    /**
+     * Count the clean segments that find() can still append to.
+     */
+    public int cleanSegments() {
+        int clean = 0;
+        for(int s = 0; s < segments(); ++s)
+            if(isClean(s))
+                ++clean;
+        return clean;
+    }
+
+    /**
+     * Choose the segments the cleaner should empty next, using the
+     * cost-benefit policy of Sprite LFS: a segment with utilization u
+     * (fraction of its blocks in use) whose last append was age blocks
+     * ago scores (1 - u) * age / (1 + u). Cleaning reads and rewrites
+     * the used blocks and gains the free ones, and cold segments are
+     * worth cleaning at a higher utilization than hot ones, whose
+     * blocks are likely to be freed soon anyway. Segments that are at
+     * least three quarters full are never chosen, nor is the one being
+     * appended to. Ages start over when the file system is mounted.
+     *
+     * @param  max most segments to choose
+     * @return     segment numbers, best first
+     */
+    public int[] victims(int max) {
+        List<Integer> chosen = new ArrayList<Integer>();
+        final double[] score = new double[segments()];
+        for(int s = 0; s < segments(); ++s) {
+            int cap = capacity(s);
+            if(s == current || live[s] == 0 || live[s] * 4 >= cap * 3)
+                continue;
+            double u = (double)live[s] / cap;
+            score[s] = (1 - u) * (clock - written[s] + 1) / (1 + u);
+            chosen.add(s);
+        }
+        Collections.sort(chosen, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(score[b], score[a]);
+            }
+        });
+        int[] victims = new int[Math.min(max, chosen.size())];
+        for(int i = 0; i < victims.length; ++i)
+            victims[i] = chosen.get(i);
+        return victims;
+    }
+
+    /**
+     * Add a reference to an allocated data block, so that one more
+     * clear() is needed to free it.
+     *
+     * @param  blockNum block number of data block
+     * @return          true on success, false if the file system does
+     *                  not count references, the count is at MAX_REFS
+     *                  or owner is at its hard quota
+     */
+    public boolean addRef(int blockNum) {
+        int n = blockNum - superBlock.dblock0();
+        if(refs == null || refs[n] == MAX_REFS)
+            return false;
+        if(quotas != null && ! quotas.mayCharge(owner, 1))
+            return false;
+        ++refs[n];
+        refsIsDirty[n / REFS_PER_BLOCK] = true;
+        if(quotas != null)
+            quotas.charge(owner, 1);
+        return true;
+    }
+
+    /**
+     * Count the free data blocks (clear and not shared with a snapshot).
+     */
+    public int countFree() {
+        return extents.free();
+    }
+
+    /**
+     * Check whether a block holds nothing worth keeping: a data block
+     * that is clear and not shared. Metadata blocks are never free.
+     *
+     * @param  blockNum any block number of the file system
+     * @return          true if the block's contents do not matter
+     */
+    public boolean isFree(int blockNum) {
+        return blockNum >= superBlock.dblock0() &&
+               ! bit.at(blockNum).isset() && ! isShared(blockNum);
+    }
+
+    /**
+     * Check whether a data block is still referenced by a snapshot or,
+     * on a file system that counts references, by more than one pointer.
+     *
+     * @param  blockNum block number of data block
+     * @return          true if the block must be copied before writing
+     */
+    public boolean isShared(int blockNum) {
+        if(refs != null && refs[blockNum - superBlock.dblock0()] > 0)
+            return true;
+        if(shared.isEmpty())
+            return false;
+        bit.at(blockNum);
+        for(int i = 0; i < shared.size(); ++i)
+            if(Bitwise.isset(bit.mapi, shared.get(i)[bit.dirtyi]))
+                return true;
+        return false;
+    }
+
+    /**
+     * Copy the current state of the free map. The copy has one array
+     * per freemap block (index 0 holds the bits kept in the SuperBlock)
+     * and is laid out exactly like the live map.
+     *
+     * @return copy of every freemap bit
+     */
+    public byte[][] copy() {
+        byte[][] map = new byte[freeMapBlocks.length + 1][];
+        map[0] = superBlock.freeMap.clone();
+        for(int i = 0; i < freeMapBlocks.length; ++i)
+            map[i + 1] = freeMapBlocks[i].map.clone();
+        return map;
+    }
+
+    /**
+     * Clear the bit for blockNum in a map returned by copy().
+     *
+     * @param map      copy of the free map
+     * @param blockNum block number of data block
+     */
+    public void clear(byte[][] map, int blockNum) {
+        bit.at(blockNum);
+        Bitwise.clear(bit.mapi, map[bit.dirtyi]);
+        if(! bit.isset() && ! isShared(blockNum))
+            extents.add(blockNum); // free now
+    }
+
+    /**
+     * Start treating every block set in map as shared.
+     *
+     * @param map copy of the free map taken by a snapshot
+     */
+    public void share(byte[][] map) {
+        shared.add(map);
+        index();
+    }
+
+    /**
+     * Stop treating the blocks set in map as shared. Blocks that are
+     * clear here and in every other shared map become free again.
+     *
+     * @param map map previously passed to share()
+     */
+    public void unshare(byte[][] map) {
+        shared.remove(map);
+        index();
     }
 
     /**
      * Save dirty freemap blocks (will also save the superblock if
-     * bits in superBlock.freeMap were changed).
+     * bits in superBlock.freeMap were changed), reference counts,
+     * quotas and changed blocks.
      *
      * You should call this function before you complete any operation
      * that set or cleared freemap bits.
@@ -83,12 +560,31 @@ public class FreeMap {
                 blockIsDirty[i + 1] = false;
             }
         }
+        for(int i = 0; refs != null && i < refsIsDirty.length; ++i) {
+            if(refsIsDirty[i]) {
+                byte[] block = new byte[Disk.BLOCK_SIZE];
+                for(int j = 0; j < REFS_PER_BLOCK; ++j) {
+                    int n = i * REFS_PER_BLOCK + j;
+                    if(n < refs.length) {
+                        block[2 * j]     = (byte)(refs[n] >>> 8);
+                        block[2 * j + 1] = (byte)refs[n];
+                    }
+                }
+                disk.write(superBlock.refs + i, block);
+                refsIsDirty[i] = false;
+            }
+        }
+        if(quotas != null && quotas.takeDirty())
+            disk.write(superBlock.quotas, quotas.toBlock());
+        if(changed != null)
+            changed.save(disk);
     }
 
     /**
      * Represents an individual bit within the freemap, and provides
      * the means to find, check, set, and clear it, and to mark its
-     * containing block dirty.
+     * containing block dirty. One Bit is moved around with at()
+     * rather than allocating one per bit.
      */
     private class Bit {
         private byte[] map;    // bitmap within a block
@@ -99,9 +595,10 @@ public class FreeMap {
          * Find the portion of the bitmap and offset within that
          * portion where the bit corresponding to blockNum is located.
          *
-         * @param blockNum Block number of data block on disk
+         * @param  blockNum Block number of data block on disk
+         * @return          this Bit
          */
-        public Bit(int blockNum) {
+        public Bit at(int blockNum) {
             blockNum -= superBlock.dblock0();
             if(blockNum < superBlock.freeMap.length * 8) {
                 // bit is in the map stored in the SuperBlock
@@ -116,6 +613,7 @@ public class FreeMap {
                 map        = freeMapBlocks[i].map;
                 dirtyi     = i + 1; // 0th index is for SuperBlock
             }
+            return this;
         }
 
         /**
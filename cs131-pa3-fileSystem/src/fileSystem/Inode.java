@@ -8,21 +8,72 @@ import java.util.Arrays;
  * Use Inodes to describe each file in your file system. Inodes are
  * used to find the blocks that belong to a file, and also contain
  * metadata about the file.
+ *
+ * A file of at most INLINE_SIZE bytes keeps its data in the inode
+ * itself, packed into the ptr array, and has the INLINE flag set. It
+ * is moved to a data block once it grows beyond that.
+ *
+ * The bits of flags from GENERATION up hold the generation in which
+ * the file was last changed (see MyFileSystem.newGeneration).
  */
 public class Inode {
     public final static int SIZE = 64; // size in bytes
+    public final static int ALLOCATED   = 1;  // flag: inode is in use
+    public final static int INLINE      = 2;  // flag: data is in ptr
+    public final static int INLINE_SIZE = 13 * 4;
+    public final static int GENERATION  = 8;  // first bit of generation
     public int flags;
     public int owner;
     public int size;
     public int ptr[] = new int[13];
 
     public void allocate() {
-        flags = 1;
-        owner = 0;
+        allocate(0);
+    }
+
+    /**
+     * Set up a new, empty file belonging to owner.
+     */
+    public void allocate(int owner) {
+        flags = ALLOCATED | INLINE;
+        this.owner = owner;
         size  = 0;
         Arrays.fill(ptr, 0);
     }
 
+    /**
+     * Get the generation in which the file was last changed.
+     */
+    public int generation() {
+        return flags >>> GENERATION;
+    }
+
+    /**
+     * Record that the file changed in generation.
+     */
+    public void setGeneration(int generation) {
+        flags = flags & ((1 << GENERATION) - 1) | generation << GENERATION;
+    }
+
+    public boolean isInline() {
+        return (flags & INLINE) != 0;
+    }
+
+    /**
+     * Get byte i of the data of an inline file.
+     */
+    public byte getInline(int i) {
+        return (byte)(ptr[i / 4] >>> (24 - 8 * (i % 4)));
+    }
+
+    /**
+     * Set byte i of the data of an inline file.
+     */
+    public void setInline(int i, byte b) {
+        int shift = 24 - 8 * (i % 4);
+        ptr[i / 4] = (ptr[i / 4] & ~(0xff << shift)) | ((b & 0xff) << shift);
+    }
+
     public String toString() {
         return
             "Inode(flags: " + flags +
@@ -17,6 +17,18 @@ public class InodeBlock {
         }
     }
     
+    /**
+     * Make every inode free, as on a freshly formatted disk.
+     */
+    public void clear() {
+        for (Inode inode : inodes) {
+            inode.flags = 0;
+            inode.owner = 0;
+            inode.size  = 0;
+            Arrays.fill(inode.ptr, 0);
+        }
+    }
+
     public String toString() {
         return
             "InodeBlock(\n  " + Arrays.toString(inodes).replace(", ", "\n  ") +
@@ -0,0 +1,178 @@
+package fileSystem;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Lists the files of a MyFileSystem (or of a snapshot mounted from it)
+ * straight from the inode table, for backups and reports, instead of
+ * opening every inumber.
+ *
+ * The inode table is split into chunks of CHUNK inode blocks, which
+ * are spread over a ForkJoinPool. Each chunk is read with one batched
+ * read, and the blocks of the files that pass the filters counted,
+ * while holding the lock of the file system; the records are then
+ * handed to the Visitor with the lock released, so other users of the
+ * file system wait for at most one chunk at a time. Open files are
+ * reported as their file descriptors see them.
+ *
+ * Files changed while a scan runs may be reported as they were before
+ * or after the change; scan a snapshot for a consistent view.
+ */
+public class InodeScanner {
+    public static final int CHUNK = 64; // inode blocks per task
+
+    /**
+     * What the scanner reports about one file.
+     */
+    public static class Stat {
+        public final int inumber;
+        public final int flags;
+        public final int owner;
+        public final int size;
+        public final int blocks;     // data and indirect blocks
+        public final int generation; // see MyFileSystem.newGeneration
+
+        Stat(int inumber, Inode inode, int blocks) {
+            this.inumber    = inumber;
+            this.flags      = inode.flags & ((1 << Inode.GENERATION) - 1);
+            this.owner      = inode.owner;
+            this.size       = inode.size;
+            this.blocks     = blocks;
+            this.generation = inode.generation();
+        }
+
+        public String toString() {
+            return "Stat(inumber: " + inumber + ", flags: " + flags +
+                ", owner: " + owner + ", size: " + size +
+                ", blocks: " + blocks + ", generation: " + generation + ")";
+        }
+    }
+
+    /**
+     * Receives the files found. Called from several threads at once.
+     */
+    public interface Visitor {
+        void visit(Stat stat);
+    }
+
+    private final MyFileSystem fs;
+    private final Object lock;
+    private final int parallelism;
+    private int since;
+    private int owner = QuotaTable.NONE;
+
+    /**
+     * @param fs          file system to scan
+     * @param lock        lock held by every other user of fs
+     * @param parallelism number of threads
+     */
+    public InodeScanner(MyFileSystem fs, Object lock, int parallelism) {
+        this.fs          = fs;
+        this.lock        = lock;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Only report files changed in generation or later.
+     */
+    public InodeScanner since(int generation) {
+        since = generation;
+        return this;
+    }
+
+    /**
+     * Only report files of owner (QuotaTable.NONE for any).
+     */
+    public InodeScanner owner(int owner) {
+        this.owner = owner;
+        return this;
+    }
+
+    /**
+     * Report every file that passes the filters to visitor, in no
+     * particular order, and return when all are done.
+     */
+    public void scan(Visitor visitor) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new Task(0, fs.superBlock.isize, visitor));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Scan into a list, in inumber order.
+     */
+    public List<Stat> scan() {
+        final List<Stat> stats = new ArrayList<Stat>();
+        scan(new Visitor() {
+            public void visit(Stat stat) {
+                synchronized(stats) {
+                    stats.add(stat);
+                }
+            }
+        });
+        Collections.sort(stats, new Comparator<Stat>() {
+            public int compare(Stat a, Stat b) {
+                return a.inumber < b.inumber ? -1
+                    : a.inumber == b.inumber ? 0 : 1;
+            }
+        });
+        return stats;
+    }
+
+    /**
+     * Scans inode blocks first to last - 1 (indexes, not block numbers).
+     */
+    private class Task extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int first;
+        private final int last;
+        private final Visitor visitor;
+
+        Task(int first, int last, Visitor visitor) {
+            this.first   = first;
+            this.last    = last;
+            this.visitor = visitor;
+        }
+
+        protected void compute() {
+            if(last - first > CHUNK) {
+                int middle = first + (last - first) / 2;
+                invokeAll(new Task(first, middle, visitor),
+                          new Task(middle, last, visitor));
+                return;
+            }
+            InodeBlock[] blocks = new InodeBlock[last - first];
+            for(int i = 0; i < blocks.length; ++i)
+                blocks[i] = new InodeBlock();
+            List<Stat> stats = new ArrayList<Stat>();
+            synchronized(lock) {
+                fs.readInodeBlocks(first, blocks.length, blocks);
+                for(int i = 0; i < blocks.length; ++i) {
+                    for(int o = 0; o < InodeBlock.COUNT; ++o) {
+                        int inumber = (first + i) * InodeBlock.COUNT + o + 1;
+                        int fd = fs.fileTable.getFdFromInumber(inumber);
+                        Inode inode = fd >= 0 ? fs.fileTable.getInode(fd)
+                            : blocks[i].inodes[o];
+                        if(inode.flags != 0 && matches(inode))
+                            stats.add(new Stat(inumber, inode,
+                                               fs.countBlocks(inode)));
+                    }
+                }
+            }
+            for(Stat stat : stats)
+                visitor.visit(stat);
+        }
+    }
+
+    private boolean matches(Inode inode) {
+        return inode.generation() >= since &&
+               (owner == QuotaTable.NONE || inode.owner == owner);
+    }
+}
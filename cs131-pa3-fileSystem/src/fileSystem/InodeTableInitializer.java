@@ -0,0 +1,48 @@
+package fileSystem;
+import java.io.IOException;
+
+/**
+ * Zeroes the inode blocks that formatDisk left uninitialized in the
+ * background, a batch at a time, until the whole inode table is done
+ * (see MyFileSystem.initInodeTable).
+ *
+ * As with SegmentCleaner, every other thread has to use the file
+ * system through the same lock, normally a SynchronizedFileSystem
+ * wrapping it.
+ */
+public class InodeTableInitializer extends Thread {
+    private static final int BATCH = 64; // inode blocks per pass
+
+    private final MyFileSystem fs;
+    private final Object lock;
+    private final long period;
+
+    /**
+     * @param fs     freshly formatted file system
+     * @param lock   lock held by every other user of fs
+     * @param period milliseconds to wait between passes
+     */
+    public InodeTableInitializer(MyFileSystem fs, Object lock, long period) {
+        super("inode-table-init");
+        this.fs     = fs;
+        this.lock   = lock;
+        this.period = period;
+        setDaemon(true);
+    }
+
+    public void run() {
+        try {
+            while(! isInterrupted()) {
+                Thread.sleep(period);
+                synchronized(lock) {
+                    if(fs.initInodeTable(BATCH) <= 0)
+                        return;
+                }
+            }
+        } catch(InterruptedException e) {
+            // stopped
+        } catch(IOException e) {
+            System.err.println("Inode table initialization failed: " + e);
+        }
+    }
+}
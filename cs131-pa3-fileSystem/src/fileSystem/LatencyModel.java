@@ -0,0 +1,121 @@
+package fileSystem;
+import java.util.Arrays;
+
+/**
+ * Estimates how long a real device would take for the blocks a Disk
+ * reads and writes, so that layout and caching changes can be compared
+ * by modelled device time rather than by block counts alone (see
+ * Disk.setModel and Disk.getTime). The blocks themselves are stored by
+ * the BlockDevice as usual; a model only keeps time.
+ *
+ * Models may remember earlier requests (where the head is, for
+ * instance), so each Disk needs its own.
+ */
+public interface LatencyModel {
+    /**
+     * Account for count blocks, blockNums[0 .. count - 1], read (or
+     * written) in one request.
+     *
+     * @return modelled nanoseconds until the last block is done
+     */
+    long cost(int[] blockNums, int count, boolean write);
+
+    /**
+     * A hard disk: a request for a block that does not follow the last
+     * one moves the head (settle time plus time proportional to the
+     * distance in blocks, up to a full stroke) and then waits half a
+     * rotation on average; every block then takes its transfer time.
+     * The blocks of a multi-block request are served in ascending
+     * order, as a drive with command queueing would.
+     */
+    public static class Rotating implements LatencyModel {
+        private final long settle;    // ns for any seek
+        private final long perBlock;  // ns per block of seek distance
+        private final long maxSeek;   // ns for a full-stroke seek
+        private final long rotation;  // ns per revolution
+        private final long transfer;  // ns per block under the head
+        private int head = -1;        // block after the last one served
+        private int[] sorted = new int[0];
+
+        public Rotating(long settle, long perBlock, long maxSeek,
+                        long rotation, long transfer) {
+            this.settle   = settle;
+            this.perBlock = perBlock;
+            this.maxSeek  = maxSeek;
+            this.rotation = rotation;
+            this.transfer = transfer;
+        }
+
+        /**
+         * A 7200 rpm desktop drive: 0.5 ms settle, 15 ms full stroke
+         * over Disk.NUM_BLOCKS, about 100 MB/s sequential.
+         */
+        public Rotating() {
+            this(500000, 15000000L / Disk.NUM_BLOCKS, 15000000,
+                 60000000000L / 7200, 5000);
+        }
+
+        public long cost(int[] blockNums, int count, boolean write) {
+            if(sorted.length < count)
+                sorted = new int[count];
+            System.arraycopy(blockNums, 0, sorted, 0, count);
+            Arrays.sort(sorted, 0, count);
+            long time = 0;
+            for(int i = 0; i < count; ++i) {
+                int n = sorted[i];
+                if(n != head) {
+                    long distance = Math.abs((long)n - head);
+                    time += Math.min(maxSeek, settle + perBlock * distance) +
+                            rotation / 2;
+                }
+                time += transfer;
+                head = n + 1;
+            }
+            return time;
+        }
+
+        public String toString() {
+            return "Rotating(settle: " + settle + ", perBlock: " + perBlock +
+                ", maxSeek: " + maxSeek + ", rotation: " + rotation +
+                ", transfer: " + transfer + ")";
+        }
+    }
+
+    /**
+     * A solid-state drive: every block costs a fixed latency wherever
+     * it is, and up to queueDepth blocks of one request are served at
+     * once.
+     */
+    public static class Solid implements LatencyModel {
+        private final long readLatency;  // ns per block read
+        private final long writeLatency; // ns per block written
+        private final int  queueDepth;   // blocks served at once
+
+        public Solid(long readLatency, long writeLatency, int queueDepth) {
+            if(queueDepth < 1)
+                throw new IllegalArgumentException("Bad queue depth: " +
+                                                   queueDepth);
+            this.readLatency  = readLatency;
+            this.writeLatency = writeLatency;
+            this.queueDepth   = queueDepth;
+        }
+
+        /**
+         * A SATA flash drive: 80 us reads, 200 us writes, 32 at once.
+         */
+        public Solid() {
+            this(80000, 200000, 32);
+        }
+
+        public long cost(int[] blockNums, int count, boolean write) {
+            long rounds = (count + queueDepth - 1) / queueDepth;
+            return rounds * (write ? writeLatency : readLatency);
+        }
+
+        public String toString() {
+            return "Solid(readLatency: " + readLatency +
+                ", writeLatency: " + writeLatency +
+                ", queueDepth: " + queueDepth + ")";
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package fileSystem;
+/**
+ * Compress and decompress byte arrays in the LZ4 block format.
+ *
+ * A compressed block is a series of sequences. Each sequence starts
+ * with a token byte whose high 4 bits are the number of literals and
+ * low 4 bits the match length minus MIN_MATCH (15 in either half means
+ * more length bytes follow, each adding up to 255). Then come the
+ * literals, a 2-byte little-endian offset back into the output, and
+ * the extra match length bytes. The last sequence has literals only.
+ *
+ * The compressor is the usual greedy one: a hash table remembers the
+ * last position each 4-byte prefix was seen at.
+ */
+public class Lz4 {
+    private static final int MIN_MATCH  = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_BITS  = 12;
+
+    /**
+     * Compress src[0 .. len) into dst starting at dst[off].
+     *
+     * @param  src bytes to compress
+     * @param  len number of bytes of src to compress
+     * @param  dst buffer for the compressed bytes
+     * @param  off offset in dst of the first compressed byte
+     * @return     number of compressed bytes, or -1 if they do not fit
+     *             in dst
+     */
+    public static int compress(byte[] src, int len, byte[] dst, int off) {
+        int[] table = new int[1 << HASH_BITS];
+        int anchor = 0, s = 0, d = off;
+        int limit = len - LAST_LITERALS - MIN_MATCH;
+
+        while(s < limit) {
+            int h = hash(src, s);
+            int ref = table[h] - 1;
+            table[h] = s + 1;
+            if(ref < 0 || s - ref > MAX_OFFSET || ! prefixMatches(src, ref, s)) {
+                ++s;
+                continue;
+            }
+
+            int matchLen = MIN_MATCH;
+            while(s + matchLen < len - LAST_LITERALS &&
+                  src[ref + matchLen] == src[s + matchLen])
+                ++matchLen;
+
+            if((d = writeSequence(src, anchor, s - anchor, s - ref,
+                                  matchLen, dst, d)) < 0)
+                return -1;
+            s += matchLen;
+            anchor = s;
+        }
+        d = writeLiterals(src, anchor, len - anchor, dst, d);
+        return d < 0 ? -1 : d - off;
+    }
+
+    /**
+     * Decompress src[off .. off + len) into dst.
+     *
+     * @param  src compressed bytes
+     * @param  off offset in src of the first compressed byte
+     * @param  len number of compressed bytes
+     * @param  dst buffer for the decompressed bytes
+     * @return     number of decompressed bytes, or -1 if src is
+     *             corrupt or dst is too small
+     */
+    public static int decompress(byte[] src, int off, int len, byte[] dst) {
+        int s = off, d = 0;
+        len += off;
+        try {
+            while(s < len) {
+                int token = src[s++] & 0xff;
+
+                int literals = token >>> 4;
+                if(literals == 15) {
+                    int b;
+                    do {
+                        literals += (b = src[s++] & 0xff);
+                    } while(b == 255);
+                }
+                System.arraycopy(src, s, dst, d, literals);
+                s += literals;
+                d += literals;
+                if(s == len)
+                    return d; // last sequence has no match
+
+                int offset = (src[s] & 0xff) | (src[s + 1] & 0xff) << 8;
+                s += 2;
+                int matchLen = token & 0xf;
+                if(matchLen == 15) {
+                    int b;
+                    do {
+                        matchLen += (b = src[s++] & 0xff);
+                    } while(b == 255);
+                }
+                matchLen += MIN_MATCH;
+                if(offset == 0 || offset > d || d + matchLen > dst.length)
+                    return -1;
+                for(int i = 0; i < matchLen; ++i, ++d)
+                    dst[d] = dst[d - offset]; // may overlap, copy forward
+            }
+        } catch(IndexOutOfBoundsException e) {
+            return -1;
+        }
+        return d;
+    }
+
+    private static int hash(byte[] b, int i) {
+        int v = (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 |
+                (b[i + 2] & 0xff) << 16 | (b[i + 3] & 0xff) << 24;
+        return (v * -1640531535) >>> (32 - HASH_BITS);
+    }
+
+    private static boolean prefixMatches(byte[] b, int i, int j) {
+        return b[i] == b[j] && b[i + 1] == b[j + 1] &&
+               b[i + 2] == b[j + 2] && b[i + 3] == b[j + 3];
+    }
+
+    private static int writeSequence(byte[] src, int lit, int litLen,
+                                     int offset, int matchLen,
+                                     byte[] dst, int d) {
+        int extra = matchLen - MIN_MATCH;
+        int need = 1 + litLen + litLen / 255 + 1 + 2 + extra / 255 + 1;
+        if(d + need > dst.length)
+            return -1;
+
+        int token = d++;
+        d = writeLength(litLen, dst, d);
+        System.arraycopy(src, lit, dst, d, litLen);
+        d += litLen;
+        dst[d++] = (byte)offset;
+        dst[d++] = (byte)(offset >>> 8);
+        d = writeLength(extra, dst, d);
+        dst[token] = (byte)(Math.min(litLen, 15) << 4 | Math.min(extra, 15));
+        return d;
+    }
+
+    private static int writeLiterals(byte[] src, int lit, int litLen,
+                                     byte[] dst, int d) {
+        if(d + 1 + litLen + litLen / 255 + 1 > dst.length)
+            return -1;
+        dst[d++] = (byte)(Math.min(litLen, 15) << 4);
+        d = writeLength(litLen, dst, d);
+        System.arraycopy(src, lit, dst, d, litLen);
+        return d + litLen;
+    }
+
+    /**
+     * Write the bytes that extend a 4-bit length of 15 or more.
+     */
+    private static int writeLength(int n, byte[] dst, int d) {
+        if(n < 15)
+            return d;
+        for(n -= 15; n >= 255; n -= 255)
+            dst[d++] = (byte)255;
+        dst[d++] = (byte)n;
+        return d;
+    }
+}
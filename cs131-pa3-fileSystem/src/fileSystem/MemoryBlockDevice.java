@@ -0,0 +1,82 @@
+package fileSystem;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A BlockDevice kept in memory, for scratch file systems and tests.
+ *
+ * Memory is allocated in chunks of CHUNK blocks the first time one of
+ * them is written, so an empty device costs next to nothing. Chunks
+ * are on the Java heap or, if asked for, off-heap (direct buffers).
+ * The blocks survive close(false), so a new Disk on the same device
+ * sees the same file system, and are dropped by close(true).
+ */
+public class MemoryBlockDevice implements BlockDevice {
+    public static final int CHUNK = 256;
+    private final boolean direct;
+    private ByteBuffer[] chunks;
+
+    /**
+     * Construct a device on the Java heap.
+     */
+    public MemoryBlockDevice() {
+        this(false);
+    }
+
+    /**
+     * @param direct true to keep the blocks outside the Java heap
+     */
+    public MemoryBlockDevice(boolean direct) {
+        this.direct = direct;
+        chunks = new ByteBuffer[(Disk.NUM_BLOCKS + CHUNK - 1) / CHUNK];
+    }
+
+    public void read(int blockNum, byte[] buffer) {
+        read(blockNum, buffer, 0);
+    }
+
+    public void write(int blockNum, byte[] buffer) {
+        write(blockNum, buffer, 0);
+    }
+
+    public void read(int[] blockNums, int count, byte[] buffer, int off) {
+        for(int i = 0; i < count; ++i)
+            read(blockNums[i], buffer, off + i * Disk.BLOCK_SIZE);
+    }
+
+    public void write(int[] blockNums, int count, byte[] buffer, int off) {
+        for(int i = 0; i < count; ++i)
+            write(blockNums[i], buffer, off + i * Disk.BLOCK_SIZE);
+    }
+
+    private void read(int blockNum, byte[] buffer, int off) {
+        ByteBuffer chunk = chunks[blockNum / CHUNK];
+        if(chunk == null) {
+            Arrays.fill(buffer, off, off + Disk.BLOCK_SIZE, (byte)0);
+            return;
+        }
+        chunk.position(blockNum % CHUNK * Disk.BLOCK_SIZE);
+        chunk.get(buffer, off, Disk.BLOCK_SIZE);
+    }
+
+    private void write(int blockNum, byte[] buffer, int off) {
+        ByteBuffer chunk = chunks[blockNum / CHUNK];
+        if(chunk == null) {
+            int size = CHUNK * Disk.BLOCK_SIZE;
+            chunk = direct ? ByteBuffer.allocateDirect(size)
+                           : ByteBuffer.allocate(size);
+            chunks[blockNum / CHUNK] = chunk;
+        }
+        chunk.position(blockNum % CHUNK * Disk.BLOCK_SIZE);
+        chunk.put(buffer, off, Disk.BLOCK_SIZE);
+    }
+
+    public void close(boolean discard) {
+        if(discard)
+            chunks = new ByteBuffer[chunks.length];
+    }
+
+    public String toString() {
+        return "MemoryBlockDevice(" + (direct ? "direct" : "heap") + ")";
+    }
+}
@@ -0,0 +1,311 @@
+package fileSystem;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * A BlockDevice mirrored on two or more devices (RAID-1).
+ *
+ * Every write goes to each mirror that is online; a multi-block write
+ * writes the mirrors in parallel. Reads are spread over the mirrors by
+ * block number: the blocks of one region (REGION consecutive blocks)
+ * are always read from the same mirror while it is in sync, so each
+ * mirror caches its share of the volume, and a multi-block read that
+ * covers several regions reads from several mirrors at once.
+ *
+ * Each mirror has a map of dirty regions: regions it missed writes to
+ * while it was offline. A mirror is never read in a dirty region.
+ * fail() takes a mirror offline (a mirror whose write fails is taken
+ * offline too); rebuild() puts it or a replacement back and copies
+ * only its dirty regions from the other mirrors, on a background
+ * thread and one region at a time, while the device keeps serving I/O.
+ * A blank replacement has to be rebuilt in full.
+ */
+public class MirroredBlockDevice implements BlockDevice {
+    public static final int REGION = 64; // blocks per dirty-region bit
+    private static final int REGIONS =
+        (Disk.NUM_BLOCKS + REGION - 1) / REGION;
+
+    private final BlockDevice[] mirrors;
+    private final boolean[]     online;
+    private final BitSet[]      dirty;
+    private final Thread[]      resyncs;
+    private final ExecutorService io;
+
+    /**
+     * @param mirrors devices holding the same blocks
+     */
+    public MirroredBlockDevice(BlockDevice... mirrors) {
+        if(mirrors.length < 2)
+            throw new IllegalArgumentException("Need at least 2 mirrors");
+        this.mirrors = mirrors;
+        online  = new boolean[mirrors.length];
+        dirty   = new BitSet[mirrors.length];
+        resyncs = new Thread[mirrors.length];
+        for(int i = 0; i < mirrors.length; ++i) {
+            online[i] = true;
+            dirty[i]  = new BitSet(REGIONS);
+        }
+        io = Executors.newFixedThreadPool(mirrors.length,
+                                          new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "mirror-io");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Take mirror i offline. Writes from now on mark its regions dirty.
+     */
+    public synchronized void fail(int i) {
+        online[i] = false;
+    }
+
+    /**
+     * Put mirror i back online, stored on device, and start copying the
+     * regions it is missing from the other mirrors in the background.
+     *
+     * @param i      index of the mirror
+     * @param device the device that was taken offline, or a replacement
+     * @param full   true if device is blank (every region is copied),
+     *               false to copy only the dirty regions
+     */
+    public synchronized void rebuild(final int i, BlockDevice device,
+                                     boolean full) {
+        mirrors[i] = device;
+        if(full)
+            dirty[i].set(0, REGIONS);
+        online[i] = true;
+        resyncs[i] = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while(resyncRegion(i))
+                        Thread.yield(); // let other I/O in between
+                } catch(IOException e) {
+                    System.err.println("Resync of mirror " + i +
+                                       " failed: " + e);
+                    fail(i);
+                }
+            }
+        }, "mirror-resync-" + i);
+        resyncs[i].setDaemon(true);
+        resyncs[i].start();
+    }
+
+    /**
+     * Wait until the background rebuild of mirror i is over.
+     */
+    public void awaitResync(int i) throws InterruptedException {
+        Thread t;
+        synchronized(this) {
+            t = resyncs[i];
+        }
+        if(t != null)
+            t.join();
+    }
+
+    /**
+     * Count the regions mirror i is missing.
+     */
+    public synchronized int dirtyRegions(int i) {
+        return dirty[i].cardinality();
+    }
+
+    /**
+     * Copy one dirty region to mirror i.
+     *
+     * @return false when mirror i has no dirty regions left (or went
+     *         offline)
+     */
+    private synchronized boolean resyncRegion(int i) throws IOException {
+        int region = dirty[i].nextSetBit(0);
+        if(region < 0 || ! online[i])
+            return false;
+        int src = source(region, i);
+        if(src < 0)
+            throw new IOException("No mirror holds region " + region);
+        byte[] block = new byte[Disk.BLOCK_SIZE];
+        int end = Math.min((region + 1) * REGION, Disk.NUM_BLOCKS);
+        for(int n = region * REGION; n < end; ++n) {
+            mirrors[src].read(n, block);
+            mirrors[i].write(n, block);
+        }
+        dirty[i].clear(region);
+        return true;
+    }
+
+    /**
+     * Choose the mirror to read a region from: the region's preferred
+     * mirror if it is in sync, otherwise the next one that is.
+     *
+     * @param  skip mirror not to use, or -1
+     * @return      index of the mirror, or -1 if none holds the region
+     */
+    private int source(int region, int skip) {
+        for(int k = 0; k < mirrors.length; ++k) {
+            int i = (region + k) % mirrors.length;
+            if(i != skip && online[i] && ! dirty[i].get(region))
+                return i;
+        }
+        return -1;
+    }
+
+    public synchronized void read(int blockNum, byte[] buffer)
+        throws IOException {
+        int i = source(blockNum / REGION, -1);
+        if(i < 0)
+            throw new IOException("No mirror holds block " + blockNum);
+        mirrors[i].read(blockNum, buffer);
+    }
+
+    public synchronized void write(int blockNum, byte[] buffer)
+        throws IOException {
+        int written = 0;
+        for(int i = 0; i < mirrors.length; ++i) {
+            if(online[i]) {
+                try {
+                    mirrors[i].write(blockNum, buffer);
+                    ++written;
+                    continue;
+                } catch(IOException e) {
+                    System.err.println("Mirror " + i + " failed: " + e);
+                    online[i] = false;
+                }
+            }
+            dirty[i].set(blockNum / REGION);
+        }
+        if(written == 0)
+            throw new IOException("No mirror could write block " + blockNum);
+    }
+
+    public synchronized void read(int[] blockNums, int count,
+                                  final byte[] buffer, final int off)
+        throws IOException {
+        final int[][] nums  = new int[mirrors.length][count];
+        final int[][] index = new int[mirrors.length][count];
+        final int[] n = new int[mirrors.length];
+        for(int k = 0; k < count; ++k) {
+            int i = source(blockNums[k] / REGION, -1);
+            if(i < 0)
+                throw new IOException("No mirror holds block " +
+                                      blockNums[k]);
+            nums[i][n[i]] = blockNums[k];
+            index[i][n[i]++] = k;
+        }
+
+        List<Callable<Void>> parts = new ArrayList<Callable<Void>>();
+        for(int i = 0; i < mirrors.length; ++i) {
+            if(n[i] == 0)
+                continue;
+            final int mirror = i;
+            parts.add(new Callable<Void>() {
+                public Void call() throws IOException {
+                    byte[] block = new byte[Disk.BLOCK_SIZE];
+                    for(int k = 0; k < n[mirror]; ++k) {
+                        mirrors[mirror].read(nums[mirror][k], block);
+                        System.arraycopy(block, 0, buffer, off +
+                                         index[mirror][k] * Disk.BLOCK_SIZE,
+                                         block.length);
+                    }
+                    return null;
+                }
+            });
+        }
+        for(Throwable t : runAll(parts))
+            if(t != null)
+                throw t instanceof IOException ? (IOException)t
+                                               : new IOException(t);
+    }
+
+    public synchronized void write(final int[] blockNums, final int count,
+                                   final byte[] buffer, final int off)
+        throws IOException {
+        List<Callable<Void>> parts = new ArrayList<Callable<Void>>();
+        final List<Integer> targets = new ArrayList<Integer>();
+        for(int i = 0; i < mirrors.length; ++i) {
+            if(! online[i])
+                continue;
+            final BlockDevice mirror = mirrors[i];
+            targets.add(i);
+            parts.add(new Callable<Void>() {
+                public Void call() throws IOException {
+                    mirror.write(blockNums, count, buffer, off);
+                    return null;
+                }
+            });
+        }
+
+        List<Throwable> errors = runAll(parts);
+        int written = 0;
+        for(int k = 0; k < targets.size(); ++k) {
+            if(errors.get(k) == null) {
+                ++written;
+            } else {
+                System.err.println("Mirror " + targets.get(k) +
+                                   " failed: " + errors.get(k));
+                online[targets.get(k)] = false;
+            }
+        }
+        for(int i = 0; i < mirrors.length; ++i)
+            if(! online[i])
+                for(int k = 0; k < count; ++k)
+                    dirty[i].set(blockNums[k] / REGION);
+        if(written == 0)
+            throw new IOException("No mirror could write");
+    }
+
+    /**
+     * Run parts on the I/O threads (or the calling thread if there is
+     * only one) and wait for all of them.
+     *
+     * @return the exception thrown by each part, null if it succeeded
+     */
+    private List<Throwable> runAll(List<Callable<Void>> parts)
+        throws IOException {
+        List<Throwable> errors = new ArrayList<Throwable>();
+        if(parts.size() == 1) {
+            try {
+                parts.get(0).call();
+                errors.add(null);
+            } catch(Exception e) {
+                errors.add(e);
+            }
+            return errors;
+        }
+        try {
+            for(Future<Void> f : io.invokeAll(parts)) {
+                try {
+                    f.get();
+                    errors.add(null);
+                } catch(ExecutionException e) {
+                    errors.add(e.getCause());
+                }
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        return errors;
+    }
+
+    public void close(boolean discard) throws IOException {
+        for(int i = 0; i < mirrors.length; ++i) {
+            try {
+                awaitResync(i);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        io.shutdown();
+        for(BlockDevice mirror : mirrors)
+            mirror.close(discard);
+    }
+
+    public String toString() {
+        return "MirroredBlockDevice(" + mirrors.length + " mirrors)";
+    }
+}
@@ -1,21 +1,92 @@
 package fileSystem;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Unit tests are in {@see TestMyFileSystem}. See MyFileSystem.java.
  */
 public class MyFileSystem implements FileSystem {
-	public Disk disk = new Disk();
+	public Disk disk;
 	public FileTable fileTable = new FileTable();
-	public SuperBlock superBlock = new SuperBlock();
+	public SuperBlock superBlock;
 	public FreeMap freeMap;
 
 	/**
-	 * Reading from or writing to a file.
+	 * Snapshots of this file system, indexed by id - 1 (null for free
+	 * slots), and the on-disk table listing their descriptor blocks.
+	 */
+	private Snapshot[] snapshots;
+	private IndirectBlock snapshotTable;
+
+	/**
+	 * The snapshot this file system is a read-only view of, or null for the
+	 * live file system.
+	 */
+	private Snapshot snapshot;
+
+	/**
+	 * Number of logical blocks reached through the direct pointers and through
+	 * each level of indirection.
+	 */
+	private static final int DIRECT = 10;
+	private static final int SINGLE = IndirectBlock.COUNT;
+	private static final int DOUBLE = SINGLE * IndirectBlock.COUNT;
+	private static final int TRIPLE = DOUBLE * IndirectBlock.COUNT;
+
+	/**
+	 * On a compressed file system, file data is compressed CLUSTER logical
+	 * blocks at a time (see readCluster).
+	 */
+	private static final int CLUSTER = 8;
+	private static final int CLUSTER_SIZE = CLUSTER * Disk.BLOCK_SIZE;
+	private BlockCache clusterCache = new BlockCache(64);
+
+	/**
+	 * Reused by every read and write, so that the block-at-a-time loops do
+	 * not allocate: the DirectBlock returned by getDirectBlock (valid until
+	 * the next call), and the Slot used to walk the pointers of a file.
+	 */
+	private DirectBlock chunk;
+	private Slot walk = new Slot();
+
+	/**
+	 * Whole blocks are read and written up to BATCH at a time, so that a
+	 * striped disk can keep all its devices busy. batch holds their block
+	 * numbers.
+	 */
+	private static final int BATCH = 64;
+	private int[] batch = new int[BATCH];
+
+	/**
+	 * On a log-structured file system, write runs the segment cleaner on up
+	 * to CLEAN_BATCH segments first whenever fewer than CLEAN_LOW clean
+	 * segments are left to append to.
+	 */
+	private static final int CLEAN_LOW = 2;
+	private static final int CLEAN_BATCH = 4;
+
+	/**
+	 * With block groups, where the next block of the file being written
+	 * should go (see claim), and the group the last new file went to.
+	 */
+	private int goal;
+	private int lastGroup = -1;
+
+	// Owner of the files created from now on (see setUser).
+	//
+	private int user;
+
+	/**
+	 * Reading from or writing to a file, or (c) changing the blocks a file
+	 * already has without adding any (see findSlot).
 	 */
 	private enum MODE {
-		w, r
+		w, r, c
 	};
 
 	/**
@@ -23,11 +94,84 @@ public class MyFileSystem implements FileSystem {
 	 * the new FileSystem if necessary.
 	 */
 	public MyFileSystem() throws IOException {
+		this(new Disk());
+	}
+
+	/**
+	 * Construct a new FileSystem on disk, for example a Disk on a
+	 * MemoryBlockDevice. You are responsible for calling formatDisk on the
+	 * new FileSystem if necessary.
+	 */
+	public MyFileSystem(Disk disk) throws IOException {
+		this.disk = disk;
+		chunk = new DirectBlock(disk, 0, 0, true);
+		superBlock = new SuperBlock();
 		disk.read(0, superBlock);
+		if (superBlock.magic != SuperBlock.MAGIC && superBlock.size != 0) {
+			// Formatted with another layout: treat it as blank rather
+			// than misread it
+			System.err.println("Disk has an old layout and must be formatted again");
+			superBlock = new SuperBlock();
+		}
 		initFreeMap();
 	}
 
+	/**
+	 * Construct a read-only view of a snapshot of the live file system. The
+	 * view shares the disk and free map of live and has its own file table.
+	 */
+	private MyFileSystem(MyFileSystem live, Snapshot snapshot) {
+		this.disk = live.disk;
+		this.chunk = new DirectBlock(disk, 0, 0, true);
+		this.superBlock = live.superBlock;
+		this.freeMap = live.freeMap;
+		this.snapshot = snapshot;
+	}
+
 	public int formatDisk(int size, int isize) throws IOException {
+		return formatDisk(size, isize, 0);
+	}
+
+	/**
+	 * Format the disk like formatDisk(size, isize), choosing options that
+	 * stay fixed for the life of the file system.
+	 *
+	 * @param size
+	 *            Number of blocks total in the file system
+	 * @param isize
+	 *            Number of InodeBlocks in the file system
+	 * @param flags
+	 *            SuperBlock.COMPRESSED to compress file data,
+	 *            SuperBlock.DEDUP to share data blocks with identical
+	 *            contents (the two cannot be combined), and/or
+	 *            SuperBlock.LOG to append every write to log segments
+	 *            (not with DEDUP), SuperBlock.CLONE to count references
+	 *            to data blocks so that files can be cloned (not with
+	 *            COMPRESSED or LOG), SuperBlock.TRACK to record the
+	 *            blocks written since the last backup (see Backup),
+	 *            0 otherwise
+	 * @return 0 on success, -1 otherwise
+	 */
+	public int formatDisk(int size, int isize, int flags) throws IOException {
+		return formatDisk(size, isize, flags, 1);
+	}
+
+	/**
+	 * Format the disk like formatDisk(size, isize, flags), splitting it
+	 * into block groups (see SuperBlock). Each group holds an equal share
+	 * of the inode blocks, new files go to the group with the most free
+	 * blocks, and the blocks of a file are kept in the group of its inode
+	 * as long as there is room.
+	 *
+	 * @param groups
+	 *            number of block groups (1 for the plain layout)
+	 * @return 0 on success, -1 otherwise
+	 */
+	public int formatDisk(int size, int isize, int flags, int groups)
+			throws IOException {
+		if (isReadOnly())
+			return -1;
+
 		// The total size of the file system cannot be larger than the
 		// maximum size of the disk.
 		//
@@ -35,11 +179,35 @@ public class MyFileSystem implements FileSystem {
 			System.err.println("Size exceeds disk size of " + Disk.NUM_BLOCKS);
 			return -1;
 		}
+		if ((flags & SuperBlock.COMPRESSED) != 0
+				&& (flags & SuperBlock.DEDUP) != 0) {
+			System.err.println("Compression and deduplication cannot be combined");
+			return -1;
+		}
+		if ((flags & SuperBlock.LOG) != 0 && (flags & SuperBlock.DEDUP) != 0) {
+			System.err.println("Logging and deduplication cannot be combined");
+			return -1;
+		}
+		if ((flags & SuperBlock.CLONE) != 0
+				&& (flags & (SuperBlock.COMPRESSED | SuperBlock.LOG)) != 0) {
+			System.err.println("Cloning cannot be combined with compression or logging");
+			return -1;
+		}
+		if (groups < 1) {
+			System.err.println("Bad number of block groups: " + groups);
+			return -1;
+		}
+		if (groups > 1 && (flags & SuperBlock.LOG) != 0) {
+			System.err.println("Logging and block groups cannot be combined");
+			return -1;
+		}
 
 		// Calculate the number of blocks needed for the freemap (may
-		// be 0 if the entire free map fits within the superblock.
+		// be 0 if the entire free map fits within the superblock. With
+		// block groups it covers the inode blocks too.
 		//
-		int extra = (size - isize - 1) - superBlock.freeMap.length * 8;
+		int extra = (size - (groups > 1 ? 0 : isize) - 1)
+				- superBlock.freeMap.length * 8;
 		int msize = (int) Math.max(0, Math.ceil(extra / 8.0 / Disk.BLOCK_SIZE));
 
 		// We require that the size of the metadata not exceed the
@@ -50,65 +218,159 @@ public class MyFileSystem implements FileSystem {
 			return -1;
 		}
 
+		// Every block group needs room for a data block after its inodes.
+		//
+		SuperBlock layout = new SuperBlock();
+		layout.size = size;
+		layout.isize = isize;
+		layout.msize = msize;
+		layout.groups = groups;
+		for (int g = 0; g < groups && groups > 1; ++g) {
+			int inodes = Math.max(0, Math.min(layout.groupInodeBlocks(),
+					isize - g * layout.groupInodeBlocks()));
+			if (size - layout.groupStart(g) <= inodes) {
+				System.err.println("Block groups are too small");
+				return -1;
+			}
+		}
+
 		// Initialize and write the superblock.
 		superBlock.size = size;
 		superBlock.isize = isize;
 		superBlock.msize = msize;
+		superBlock.snapshots = 0;
+		superBlock.flags = flags;
+		superBlock.refs = 0;
+		superBlock.groups = groups;
+		superBlock.iinit = 0;
+		superBlock.quotas = 0;
+		superBlock.generation = 1;
+		superBlock.changed = 0;
+		superBlock.magic = SuperBlock.MAGIC;
+		Bitwise.clearAll(superBlock.freeMap);
+		clusterCache.clear();
 		disk.write(0, superBlock);
 
-		// Write empty FreeMapBlocks (if needed) and InodeBlocks, with
-		// FreeMapBlocks immediately following the SuperBlock and
-		// InodeBlocks immediately following the FreeMapBlocks.
+		// Write empty FreeMapBlocks (if needed), immediately following the
+		// SuperBlock. The InodeBlocks, which follow the FreeMapBlocks (or
+		// start each block group), are left as they are and zeroed when
+		// first written to (see preserveInodeBlock) or by initInodeTable.
 		//
-		if (superBlock.mblock0() > 0)
-			for (int i = superBlock.mblock0(); i < superBlock.iblock0(); ++i)
-				disk.write(i, new FreeMapBlock());
-		for (int i = superBlock.iblock0(); i < superBlock.dblock0(); ++i)
-			disk.write(i, new InodeBlock());
+		zero(superBlock.mblock0(), msize);
 
 		// Set up the free map again (because we changed file system
 		// metadata since the constructor was called).
 		//
 		initFreeMap();
+		lastGroup = -1;
+		if (superBlock.isGrouped()) {
+			for (int k = 0; k < isize; ++k)
+				freeMap.allocate(superBlock.inodeBlock(k));
+			freeMap.save();
+		}
+
+		// Reference counts for deduplication and cloning take the first
+		// data blocks, which are consecutive on a freshly formatted disk.
+		//
+		if (superBlock.isCloneable()) {
+			int n = FreeMap.refsSize(superBlock);
+			if (n >= superBlock.dsize()) {
+				System.err.println("Metadata will not fit in file system");
+				return -1;
+			}
+			superBlock.refs = freeMap.find();
+			for (int i = 1; i < n; ++i)
+				freeMap.find();
+			zero(superBlock.refs, n);
+			disk.write(0, superBlock);
+			freeMap.save();
+			initFreeMap();
+		}
+
+		// The quota table takes the next data block.
+		//
+		if (superBlock.hasQuotas()) {
+			superBlock.quotas = freeMap.find();
+			if (superBlock.quotas == 0) {
+				System.err.println("Metadata will not fit in file system");
+				return -1;
+			}
+			zero(superBlock.quotas, 1);
+			disk.write(0, superBlock);
+			freeMap.save();
+			initFreeMap();
+		}
+
+		// The changed block bits come last; every block is unchanged
+		// until the first write after formatting.
+		//
+		if (superBlock.isTracked()) {
+			int n = ChangedBlocks.size(superBlock);
+			int first = freeMap.findRun(n, 0);
+			if (first == 0) {
+				System.err.println("Metadata will not fit in file system");
+				return -1;
+			}
+			zero(first, n);
+			superBlock.changed = first;
+			disk.write(0, superBlock);
+			freeMap.save();
+			initFreeMap();
+		}
 
 		return 0;
 	}
 
 	public int shutdown() throws IOException {
-		// Save any free map blocks that haven't been written
-		freeMap.save();
+		// A snapshot view only has to close its own files; the disk
+		// belongs to the live file system.
+		//
+		if (snapshot != null) {
+			for (int fd = 0; fd < fileTable.size(); ++fd)
+				if (fileTable.getInode(fd) != null)
+					close(fd);
+			return 0;
+		}
 
 		// Close any open files
-		for (int fd = 0; fd < FileTable.MAX_FILES; ++fd)
+		for (int fd = 0; fd < fileTable.size(); ++fd)
 			if (fileTable.isValid(fd))
 				close(fd);
 
+		// Save any free map blocks that haven't been written, and the
+		// blocks that closing changed
+		freeMap.save();
+
 		// Stop the disk and end
 		disk.stop(false);
 		return 0;
 	}
 
 	public int create() throws IOException {
+		if (isReadOnly())
+			return -1;
+
 		// Try to get a free file descriptor.
 		//
 		int fd = fileTable.allocate();
 		if (fd < 0)
 			return -1;
 
-		// Try to find an inode for the new file.
+		// Try to find an inode for the new file, starting in the block
+		// group with the most free space.
 		//
 		InodeBlock block = new InodeBlock();
-		int inumber = 1; // inumbers start at 1, not 0
-		for (int n = superBlock.iblock0(); n < superBlock.dblock0(); ++n) {
-			disk.read(n, block);
-			for (int o = 0; o < InodeBlock.COUNT; ++o, ++inumber) {
-				if (block.inodes[o].flags == 0) {
-					block.inodes[o].allocate();
-					fileTable.add(block.inodes[o], inumber, fd);
-					disk.write(n, block);
-					return fd;
-				}
-			}
+		int first = freeMap.emptiestGroup(lastGroup)
+				* superBlock.groupInodeBlocks();
+		for (int i = 0; i < superBlock.isize; ++i) {
+			int k = (first + i) % superBlock.isize;
+			int n = superBlock.inodeBlock(k);
+			readInodeBlock(n, block);
+			for (int o = 0; o < InodeBlock.COUNT; ++o)
+				if (block.inodes[o].flags == 0)
+					// inumbers start at 1, not 0
+					return allocateInode(fd, k * InodeBlock.COUNT + o + 1,
+							block);
 		}
 
 		// Could not find a free inode, so release our file
@@ -119,6 +381,156 @@ public class MyFileSystem implements FileSystem {
 		return -1;
 	}
 
+	/**
+	 * Create a new file with the given inumber, for callers that name
+	 * files themselves.
+	 *
+	 * @param inumber
+	 *            inumber of the new file
+	 * @return fd of the new open file, or -1 if the inumber is in use or
+	 *         invalid
+	 */
+	public int create(int inumber) throws IOException {
+		if (isReadOnly() || !inumberIsValid(inumber))
+			return -1;
+		int fd = fileTable.allocate();
+		if (fd < 0)
+			return -1;
+		InodeBlock block = new InodeBlock();
+		readInodeBlock(inumberToBlockNum(inumber), block);
+		if (block.inodes[inumberToOffset(inumber)].flags == 0)
+			return allocateInode(fd, inumber, block);
+		fileTable.free(fd);
+		System.err.println("File " + inumber + " exists");
+		return -1;
+	}
+
+	/**
+	 * Find out whether a file exists, without opening it.
+	 *
+	 * @return true if inumber is the inumber of a file
+	 */
+	public boolean exists(int inumber) {
+		if (inumber <= 0 || inumber >= superBlock.isize * InodeBlock.COUNT)
+			return false;
+		InodeBlock block = new InodeBlock();
+		readInodeBlock(inumberToBlockNum(inumber), block);
+		return block.inodes[inumberToOffset(inumber)].flags != 0;
+	}
+
+	/**
+	 * Act on behalf of owner: files created from now on belong to it, and
+	 * on a file system with quotas their blocks count against its limits.
+	 * Blocks are always charged to the owner of the file they belong to.
+	 *
+	 * @param owner
+	 *            owner of new files (0 at first)
+	 */
+	public void setUser(int owner) {
+		user = owner;
+	}
+
+	/**
+	 * Set the quota of owner on a file system formatted with
+	 * SuperBlock.QUOTA.
+	 *
+	 * @param soft
+	 *            blocks owner may use before being warned (0 for no limit)
+	 * @param hard
+	 *            blocks owner may never exceed (0 for no limit)
+	 * @return 0 on success, -1 on error
+	 */
+	public int setQuota(int owner, int soft, int hard) throws IOException {
+		if (isReadOnly())
+			return -1;
+		if (freeMap.quotas == null) {
+			System.err.println("File system has no quotas");
+			return -1;
+		}
+		if (owner == QuotaTable.NONE || soft < 0 || hard < 0) {
+			System.err.println("Bad quota for owner " + owner);
+			return -1;
+		}
+		if (!freeMap.quotas.setLimits(owner, soft, hard)) {
+			System.err.println("Quota table is full");
+			return -1;
+		}
+		freeMap.save();
+		return 0;
+	}
+
+	/**
+	 * Get the number of blocks (data and indirect) used by the files of
+	 * owner, kept up to date as blocks are allocated and freed.
+	 *
+	 * @return number of blocks, or -1 if the file system has no quotas
+	 */
+	public int usage(int owner) {
+		return freeMap.quotas == null ? -1 : freeMap.quotas.usage(owner);
+	}
+
+	/**
+	 * Start a new generation. Every file records the generation in which
+	 * it was last created or changed (written, truncated or allocated),
+	 * so a backup can start a generation and later pick out the files
+	 * changed since (see InodeScanner.since).
+	 *
+	 * @return the new generation, which files changed from now on carry,
+	 *         or -1 on error
+	 */
+	public int newGeneration() throws IOException {
+		if (isReadOnly())
+			return -1;
+		if ((superBlock.generation + 1) >>> (32 - Inode.GENERATION) != 0) {
+			System.err.println("Out of generations");
+			return -1;
+		}
+		++superBlock.generation;
+		disk.write(0, superBlock);
+		return superBlock.generation;
+	}
+
+	/**
+	 * Bring the disk up to date without closing anything: write the inodes
+	 * of open files and any dirty free map blocks, so that a copy of the
+	 * disk taken now (see Backup) holds everything written so far.
+	 *
+	 * @return 0 on success, -1 on error
+	 */
+	int checkpoint() throws IOException {
+		if (isReadOnly())
+			return -1;
+		for (int fd = 0; fd < fileTable.size(); ++fd)
+			if (fileTable.getInode(fd) != null
+					&& writeInode(fileTable.getInumber(fd),
+							fileTable.getInode(fd)) < 0)
+				return -1;
+		freeMap.save();
+		return 0;
+	}
+
+	/**
+	 * Allocate a free inode and open it as fd (see create).
+	 *
+	 * @param block
+	 *            the inode block holding the inode, as read from disk
+	 * @return fd, or -1 if the inode block could not be written
+	 */
+	private int allocateInode(int fd, int inumber, InodeBlock block) {
+		int n = inumberToBlockNum(inumber);
+		Inode inode = block.inodes[inumberToOffset(inumber)];
+		if (!preserveInodeBlock(n)) {
+			fileTable.free(fd);
+			return -1;
+		}
+		inode.allocate(user);
+		inode.setGeneration(superBlock.generation);
+		fileTable.add(inode, inumber, fd);
+		disk.write(n, block);
+		lastGroup = superBlock.group(n);
+		return fd;
+	}
+
 	public int open(int inumber) throws IOException {
 		if (!inumberIsValid(inumber))
 			return -1;
@@ -132,7 +544,7 @@ public class MyFileSystem implements FileSystem {
 		// Get the requested inode from disk.
 		//
 		InodeBlock inodeBlock = new InodeBlock();
-		disk.read(inumberToBlockNum(inumber), inodeBlock);
+		readInodeBlock(inumberToBlockNum(inumber), inodeBlock);
 		Inode inode = inodeBlock.inodes[inumberToOffset(inumber)];
 
 		// If the inode is allocated, associate the inode with the
@@ -154,36 +566,160 @@ public class MyFileSystem implements FileSystem {
 	}
 
 	public int read(int fd, byte[] buffer) throws IOException {
-		if (!fileDescriptorIsValid(fd))
+		return read(fd, buffer, 0, buffer.length);
+	}
+
+	/**
+	 * Read up to count bytes into buffer, starting at buffer[start].
+	 * Otherwise the same as read(fd, buffer).
+	 *
+	 * @return number of bytes read, -1 on error
+	 */
+	public int read(int fd, byte[] buffer, int start, int count)
+			throws IOException {
+		if (!fileDescriptorIsValid(fd) || !sliceIsValid(buffer, start, count))
 			return -1;
 
+		Inode inode = fileTable.getInode(fd);
 		DirectBlock block;
-		int len, off = 0, limit = getReadLimit(fd, buffer.length);
-		for (off = 0; off < limit; off += len) {
-			block = getDirectBlock(fd, MODE.r);
-			len = block.copyTo(buffer, off); // may copy some garbage in
+		int len, off, limit = getReadLimit(fd, count), end = start + limit;
+		if (inode.isInline()) {
+			int seekPtr = fileTable.getSeekPointer(fd) - start;
+			for (off = start; off < end; ++off)
+				buffer[off] = seekPtr + off < Inode.INLINE_SIZE ? inode
+						.getInline(seekPtr + off) : 0;
+			seek(fd, limit, Whence.SEEK_CUR);
+			return limit;
+		}
+		if (superBlock.isCompressed()) {
+			for (off = start; off < end; off += len) {
+				int seekPtr = fileTable.getSeekPointer(fd);
+				int clusterOff = seekPtr % CLUSTER_SIZE;
+				len = Math.min(CLUSTER_SIZE - clusterOff, end - off);
+				byte[] data = readCluster(inode, seekPtr / CLUSTER_SIZE);
+				if (data == null)
+					return -1;
+				System.arraycopy(data, clusterOff, buffer, off, len);
+				seek(fd, len, Whence.SEEK_CUR);
+			}
+			return limit;
+		}
+		BlockMap map = fileTable.getBlockMap(fd);
+		for (off = start; off < end; off += len) {
+			int seekPtr = fileTable.getSeekPointer(fd);
+			int num = translate(inode, seekPtr / Disk.BLOCK_SIZE, map);
+			if (num != 0 && seekPtr % Disk.BLOCK_SIZE == 0
+					&& end - off >= Disk.BLOCK_SIZE) {
+				len = readBlocks(inode, seekPtr / Disk.BLOCK_SIZE,
+						(end - off) / Disk.BLOCK_SIZE, map, buffer, off);
+			} else {
+				block = num == 0 ? DirectBlock.hole : chunk.reset(num,
+						seekPtr % Disk.BLOCK_SIZE, false, num);
+				len = block.copyTo(buffer, off, end);
+			}
 			seek(fd, len, Whence.SEEK_CUR);
 		}
 		return limit;
 	}
 
 	public int write(int fd, byte[] buffer) throws IOException {
-		if (!fileDescriptorIsValid(fd))
+		return write(fd, buffer, 0, buffer.length);
+	}
+
+	/**
+	 * Write count bytes from buffer, starting at buffer[start]. Otherwise
+	 * the same as write(fd, buffer).
+	 *
+	 * @return number of bytes written, -1 on error
+	 */
+	public int write(int fd, byte[] buffer, int start, int count)
+			throws IOException {
+		if (isReadOnly() || !fileDescriptorIsValid(fd)
+				|| !sliceIsValid(buffer, start, count))
 			return -1;
 
+		if (superBlock.isLogged() && freeMap.cleanSegments() < CLEAN_LOW)
+			clean(CLEAN_BATCH);
+
+		Inode inode = fileTable.getInode(fd);
 		DirectBlock block;
-		int len, off = 0;
-		for (off = 0; off < buffer.length; off += len) {
-			if ((block = getDirectBlock(fd, MODE.w)) == null) {
+		int len, off, end = start + count;
+		freeMap.owner = inode.owner;
+		inode.setGeneration(superBlock.generation);
+		clearBlockMaps(fileTable.getInumber(fd)); // pointers may change
+		goal = superBlock.isGrouped() ? superBlock.groupStart(superBlock
+				.group(inumberToBlockNum(fileTable.getInumber(fd)))) : 0;
+		if (inode.isInline()) {
+			int seekPtr = fileTable.getSeekPointer(fd);
+			if (seekPtr + count <= Inode.INLINE_SIZE) {
+				for (off = 0; off < count; ++off)
+					inode.setInline(seekPtr + off, buffer[start + off]);
+				seek(fd, count, Whence.SEEK_CUR);
+				updateFileSize(fd);
+				return count;
+			}
+			if (!moveInlineData(inode)) {
 				System.err.println("File system is full");
 				return -1;
 			}
-			len = block.copyFrom(buffer, off);
+		}
+		if (superBlock.isCompressed()) {
+			for (off = start; off < end; off += len) {
+				int seekPtr = fileTable.getSeekPointer(fd);
+				int cluster = seekPtr / CLUSTER_SIZE;
+				int clusterOff = seekPtr % CLUSTER_SIZE;
+				len = Math.min(CLUSTER_SIZE - clusterOff, end - off);
+				byte[] data = len == CLUSTER_SIZE ? new byte[CLUSTER_SIZE]
+						: readCluster(inode, cluster);
+				if (data == null) {
+					freeMap.save();
+					return -1;
+				}
+				if (len != CLUSTER_SIZE)
+					data = data.clone();
+				System.arraycopy(buffer, off, data, clusterOff, len);
+				if (!writeCluster(inode, cluster, data)) {
+					freeMap.save();
+					System.err.println("File system is full");
+					return -1;
+				}
+				seek(fd, len, Whence.SEEK_CUR);
+				updateFileSize(fd);
+			}
+			return count;
+		}
+		for (off = start; off < end; off += len) {
+			int seekPtr = fileTable.getSeekPointer(fd);
+			if (freeMap.dedup == null && seekPtr % Disk.BLOCK_SIZE == 0
+					&& end - off >= Disk.BLOCK_SIZE) {
+				len = writeBlocks(inode, seekPtr,
+						(end - off) / Disk.BLOCK_SIZE, buffer, off);
+				seek(fd, len, Whence.SEEK_CUR);
+				updateFileSize(fd);
+				if (len > 0)
+					continue;
+				freeMap.save();
+				System.err.println("File system is full");
+				return -1;
+			}
+			block = getDirectBlock(inode, seekPtr, MODE.w);
+			if (block == null) {
+				freeMap.save();
+				System.err.println("File system is full");
+				return -1;
+			}
+			int blockNum = fileTable.getSeekPointer(fd) / Disk.BLOCK_SIZE;
+			len = block.copyFrom(buffer, off, end);
 			seek(fd, len, Whence.SEEK_CUR);
 			updateFileSize(fd);
-			block.save();
+			if (freeMap.dedup != null)
+				saveDeduplicated(inode, blockNum, block);
+			else
+				block.save();
 		}
-		return buffer.length;
+		if (freeMap.dedup != null)
+			freeMap.save();
+		return count;
 	}
 
 	public int seek(int fd, int offset, Whence whence) throws IOException {
@@ -214,17 +750,176 @@ public class MyFileSystem implements FileSystem {
 		return ptr;
 	}
 
+	public int truncate(int fd, int size) throws IOException {
+		if (isReadOnly() || !fileDescriptorIsValid(fd))
+			return -1;
+		if (size < 0) {
+			System.err.println("Cannot truncate to size < 0");
+			return -1;
+		}
+		Inode inode = fileTable.getInode(fd);
+		inode.setGeneration(superBlock.generation);
+		if (size >= inode.size) {
+			fileTable.setFileSize(fd, size); // the rest reads as a hole
+			return 0;
+		}
+		freeMap.owner = inode.owner;
+		fileTable.getBlockMap(fd).clear();
+		if (inode.isInline()) {
+			for (int i = size; i < Math.min(inode.size, Inode.INLINE_SIZE); ++i)
+				inode.setInline(i, (byte) 0);
+			fileTable.setFileSize(fd, size);
+			return 0;
+		}
+
+		// Zero the tail of the last block (or cluster) kept, so that it
+		// reads as zeros if the file grows again, and copy the indirect
+		// blocks above it if they are shared: those are the only blocks
+		// that change without being freed. Where the path runs into a
+		// hole there is nothing below to change, so nothing is allocated.
+		//
+		int unit = superBlock.isCompressed() ? CLUSTER_SIZE : Disk.BLOCK_SIZE;
+		int keep = (size + unit - 1) / unit * (unit / Disk.BLOCK_SIZE);
+		int tail = keep * Disk.BLOCK_SIZE - size;
+		if (tail > 0 && findSlot(inode, size / unit * (unit / Disk.BLOCK_SIZE),
+				MODE.r, walk) && walk.get() != 0) {
+			int seekPtr = fileTable.getSeekPointer(fd);
+			fileTable.setSeekPointer(fd, size);
+			int n = write(fd, new byte[tail]);
+			fileTable.setSeekPointer(fd, seekPtr);
+			if (n < 0)
+				return -1;
+		}
+		if (keep > DIRECT && !findSlot(inode, keep - 1, MODE.c, walk)) {
+			flush(walk);
+			System.err.println("File system is full");
+			return -1;
+		}
+		flush(walk);
+		walk.block = null; // its IndirectBlocks may be freed
+		walk.logical = -1;
+
+		// Free everything from block keep on.
+		//
+		for (int i = 0, first = 0; i < inode.ptr.length; ++i) {
+			int levels = i < DIRECT ? 0 : i - DIRECT + 1;
+			inode.ptr[i] = truncateBlocks(inode.ptr[i], levels, first, keep);
+			first += span(levels);
+		}
+		freeMap.save();
+		if (size == 0)
+			inode.flags |= Inode.INLINE; // no blocks left
+		fileTable.setFileSize(fd, size);
+
+		// Other descriptors of the file must not keep pointers to the
+		// blocks just freed.
+		//
+		int inumber = fileTable.getInumber(fd);
+		for (int other = 0; other < fileTable.size(); ++other) {
+			Inode copy = fileTable.getInode(other);
+			if (copy == null || copy == inode
+					|| fileTable.getInumber(other) != inumber)
+				continue;
+			copy.flags = inode.flags;
+			copy.size = inode.size;
+			System.arraycopy(inode.ptr, 0, copy.ptr, 0, copy.ptr.length);
+			fileTable.getBlockMap(other).clear();
+		}
+		return 0;
+	}
+
+	public int allocate(int fd, int offset, int length) throws IOException {
+		if (isReadOnly() || !fileDescriptorIsValid(fd))
+			return -1;
+		if (offset < 0 || length <= 0 || offset > Integer.MAX_VALUE - length) {
+			System.err.println("Bad range to allocate");
+			return -1;
+		}
+		if (superBlock.isCompressed() || superBlock.isLogged()) {
+			// Clusters are rewritten and logs appended to on every write
+			System.err.println("Compressed and log-structured file systems "
+					+ "cannot preallocate");
+			return -1;
+		}
+		Inode inode = fileTable.getInode(fd);
+		freeMap.owner = inode.owner;
+		inode.setGeneration(superBlock.generation);
+		fileTable.getBlockMap(fd).clear(); // pointers change
+		goal = superBlock.isGrouped() ? superBlock.groupStart(superBlock
+				.group(inumberToBlockNum(fileTable.getInumber(fd)))) : 0;
+		if (inode.isInline() && !moveInlineData(inode)) {
+			System.err.println("File system is full");
+			return -1;
+		}
+
+		// Find the holes in the range, and start looking for free blocks
+		// after the block before the first of them.
+		//
+		List<Integer> holes = new ArrayList<Integer>();
+		int last = (offset + length - 1) / Disk.BLOCK_SIZE;
+		for (int b = offset / Disk.BLOCK_SIZE; b <= last; ++b)
+			if (!nextSlot(inode, b, MODE.r, walk) || walk.get() == 0)
+				holes.add(b);
+		int near = goal;
+		if (!holes.isEmpty() && holes.get(0) > 0
+				&& findSlot(inode, holes.get(0) - 1, MODE.r, walk)
+				&& walk.get() != 0)
+			near = walk.get() + 1;
+		if (holes.size() > freeMap.countFree()) {
+			System.err.println("File system is full");
+			return -1;
+		}
+		if (freeMap.quotas != null
+				&& !freeMap.quotas.mayCharge(inode.owner, holes.size()))
+			return -1;
+
+		// Fill them with zeroed runs of free blocks, as long as can be
+		// found: halve the length whenever there is no run that long.
+		//
+		int i = 0, len = holes.size();
+		while (i < holes.size()) {
+			len = Math.min(len, holes.size() - i);
+			int start = freeMap.findRun(len, near);
+			if (start == 0 && len > 1) {
+				len /= 2;
+				continue;
+			}
+			if (start == 0) {
+				System.err.println("File system is full");
+				return -1;
+			}
+			zero(start, len);
+			for (int j = 0; j < len; ++j) {
+				if (!nextSlot(inode, holes.get(i + j), MODE.w, walk)) {
+					for (; j < len; ++j)
+						freeMap.clear(start + j);
+					flush(walk);
+					freeMap.save();
+					System.err.println("File system is full");
+					return -1;
+				}
+				walk.set(start + j);
+			}
+			flush(walk);
+			freeMap.save();
+			i += len;
+			near = start + len;
+		}
+		if (offset + length > inode.size)
+			fileTable.setFileSize(fd, offset + length);
+		return 0;
+	}
+
 	public int close(int fd) throws IOException {
 		if (!fileDescriptorIsValid(fd))
 			return -1;
 
-		// Read the InodeBlock in, modify it, and write it back out.
+		// Write the inode back out (nothing to write for a snapshot,
+		// which cannot have been modified).
 		//
-		InodeBlock inodeBlock = new InodeBlock();
-		int inumber = fileTable.getInumber(fd);
-		disk.read(inumberToBlockNum(inumber), inodeBlock);
-		inodeBlock.inodes[inumberToOffset(inumber)] = fileTable.getInode(fd);
-		disk.write(inumberToBlockNum(inumber), inodeBlock);
+		if (snapshot == null
+				&& writeInode(fileTable.getInumber(fd), fileTable.getInode(fd)) < 0)
+			return -1;
 
 		// Free the file descriptor and return successfully.
 		//
@@ -233,6 +928,9 @@ public class MyFileSystem implements FileSystem {
 	}
 
 	public int delete(int inumber) throws IOException {
+		if (isReadOnly() || !inumberIsValid(inumber))
+			return -1;
+
 		// Disallow deleting of open files.
 		//
 		int fd;
@@ -244,41 +942,815 @@ public class MyFileSystem implements FileSystem {
 		// Get inode for this file.
 		//
 		InodeBlock inodeBlock = new InodeBlock();
-		disk.read(inumberToBlockNum(inumber), inodeBlock);
+		int n = inumberToBlockNum(inumber);
+		readInodeBlock(n, inodeBlock);
 		Inode inode = inodeBlock.inodes[inumberToOffset(inumber)];
+		if (!preserveInodeBlock(n))
+			return -1;
+		freeMap.owner = inode.owner;
 
-		// Free all direct blocks in the free map. No need to clear
-		// the inode pointers, they are cleared when allocating a new
-		// file.
+		// Free all blocks in the free map, including everything below
+		// the indirect pointers. No need to clear the inode pointers,
+		// they are cleared when allocating a new file. An inline file
+		// has no blocks; its pointers hold data.
 		//
-		for (int i = 0; i < inode.ptr.length; ++i)
-			if (inode.ptr[i] != 0)
-				freeMap.clear(inode.ptr[i]);
-		freeMap.save();
+		if (!inode.isInline()) {
+			for (int i = 0; i < inode.ptr.length; ++i)
+				if (inode.ptr[i] != 0)
+					freeBlocks(inode.ptr[i], i < DIRECT ? 0 : i - DIRECT + 1);
+			freeMap.save();
+		}
 
 		// Mark the inode as free and write it to disk.
 		//
 		inode.flags = 0;
-		disk.write(inumberToBlockNum(inumber), inodeBlock);
+		disk.write(n, inodeBlock);
 		return 0;
 	}
 
 	/**
-	 * Initialize the freeMap instance. Should be called at the end of the
-	 * constructor and from formatDisk.
-	 */
-	private void initFreeMap() {
-		freeMap = new FreeMap(disk, superBlock);
-	}
-
-	/**
-	 * Ensure that the fd is within the valid range and refers to an open file.
-	 * Prints an error message if it is invalid.
+	 * Create a new file with the contents of file inumber by sharing its
+	 * data blocks rather than copying them (a reflink). Only the inode and
+	 * the indirect blocks are written, so cloning even a large file costs
+	 * a few blocks; each data block gains a reference, and whichever file
+	 * writes to it first gets its own copy. The file may be open, in which
+	 * case the clone has everything written through its descriptors.
 	 *
-	 * @return boolean true if fd is valid, false otherwise
-	 */
+	 * The file system must count references (SuperBlock.CLONE or
+	 * SuperBlock.DEDUP). The clone belongs to the current user (see
+	 * setUser), who is charged for every block it points at. A block that
+	 * already has FreeMap.MAX_REFS references is copied instead.
+	 *
+	 * @param inumber
+	 *            inumber of the file to clone
+	 * @return fd of the new open file, or -1 on error
+	 */
+	public int clone(int inumber) throws IOException {
+		if (isReadOnly() || !inumberIsValid(inumber))
+			return -1;
+		if (!superBlock.isCloneable()) {
+			System.err.println("File system was not formatted for cloning");
+			return -1;
+		}
+		Inode source = currentInode(inumber);
+		if (source.flags == 0) {
+			System.err.println("File " + inumber + " does not exist");
+			return -1;
+		}
+		int fd = create();
+		if (fd < 0)
+			return -1;
+
+		// Copy the pointers of the source, cloning what lies below them.
+		// Its indirect blocks must be on disk for that.
+		//
+		Inode inode = fileTable.getInode(fd);
+		freeMap.owner = inode.owner;
+		flush(walk);
+		inode.size = source.size;
+		if (source.isInline()) {
+			System.arraycopy(source.ptr, 0, inode.ptr, 0, inode.ptr.length);
+		} else {
+			inode.flags &= ~Inode.INLINE;
+			for (int i = 0; i < inode.ptr.length; ++i) {
+				int num = cloneBlocks(source.ptr[i], i < DIRECT ? 0 : i
+						- DIRECT + 1);
+				if (num < 0) {
+					discardClone(fd);
+					System.err.println("File system is full");
+					return -1;
+				}
+				inode.ptr[i] = num;
+			}
+		}
+		freeMap.save();
+		if (writeInode(fileTable.getInumber(fd), inode) < 0) {
+			discardClone(fd);
+			return -1;
+		}
+		return fd;
+	}
+
+	/**
+	 * Undo a clone that could not be finished: drop the references and
+	 * free the blocks it took, then close and delete the new file. The
+	 * blocks are freed here rather than by delete, so they are not leaked
+	 * even if the inode cannot be written.
+	 */
+	private void discardClone(int fd) throws IOException {
+		Inode inode = fileTable.getInode(fd);
+		int clone = fileTable.getInumber(fd);
+		for (int i = 0; !inode.isInline() && i < inode.ptr.length; ++i) {
+			if (inode.ptr[i] != 0) {
+				freeBlocks(inode.ptr[i], i < DIRECT ? 0 : i - DIRECT + 1);
+				inode.ptr[i] = 0;
+			}
+		}
+		inode.size = 0;
+		freeMap.save();
+		if (close(fd) < 0)
+			fileTable.free(fd);
+		delete(clone);
+	}
+
+	/**
+	 * Copy count bytes from the seek pointer of srcFd to the seek pointer
+	 * of dstFd, moving both on, without the data passing through the
+	 * caller. Whole blocks are read and written BATCH at a time, as by
+	 * read and write. Stops early at the end of the source file.
+	 *
+	 * Unlike clone this works on any file system, and on any range, but
+	 * the blocks are copied.
+	 *
+	 * @return number of bytes copied, or -1 on error
+	 */
+	public int copyRange(int srcFd, int dstFd, int count) throws IOException {
+		if (isReadOnly() || !fileDescriptorIsValid(srcFd)
+				|| !fileDescriptorIsValid(dstFd))
+			return -1;
+		if (srcFd == dstFd || count < 0) {
+			System.err.println("Bad copy from fd " + srcFd + " to fd " + dstFd);
+			return -1;
+		}
+		byte[] buf = new byte[Math.min(count, BATCH * Disk.BLOCK_SIZE)];
+		int done = 0;
+		while (done < count) {
+			int n = read(srcFd, buf, 0, Math.min(buf.length, count - done));
+			if (n <= 0)
+				return n < 0 ? -1 : done;
+			if (write(dstFd, buf, 0, n) < 0)
+				return -1;
+			done += n;
+		}
+		return done;
+	}
+
+	/**
+	 * Take a snapshot of the whole file system. Only the free map is copied,
+	 * so this costs the same no matter how much file data there is; blocks are
+	 * copied later, and only when the live file system writes to them.
+	 *
+	 * The inodes of open files are written out first so that the snapshot
+	 * includes everything written so far.
+	 *
+	 * @return id of the new snapshot, or -1 on error
+	 */
+	public int snapshot() throws IOException {
+		if (isReadOnly())
+			return -1;
+		if (superBlock.isLogged()) {
+			// The cleaner only knows how to move the blocks of live files
+			System.err.println("Log-structured file systems have no snapshots");
+			return -1;
+		}
+		if (!Snapshot.fits(superBlock)) {
+			System.err.println("File system is too large for snapshots");
+			return -1;
+		}
+		freeMap.owner = QuotaTable.NONE; // snapshots belong to no one
+
+		// Find a free slot in the snapshot table, creating the table
+		// the first time a snapshot is taken.
+		//
+		if (superBlock.snapshots == 0) {
+			int table = freeMap.find();
+			if (table == 0) {
+				System.err.println("File system is full");
+				return -1;
+			}
+			disk.write(table, snapshotTable);
+			superBlock.snapshots = table;
+			disk.write(0, superBlock);
+			freeMap.save();
+		}
+		int slot = 0;
+		while (slot < snapshots.length && snapshots[slot] != null)
+			++slot;
+		if (slot == snapshots.length) {
+			System.err.println("Too many snapshots");
+			return -1;
+		}
+
+		for (int fd = 0; fd < fileTable.size(); ++fd)
+			if (fileTable.getInode(fd) != null
+					&& writeInode(fileTable.getInumber(fd),
+							fileTable.getInode(fd)) < 0)
+				return -1;
+
+		// Copy the free map, leaving out the blocks that store
+		// snapshots (they are freed by deleteSnapshot, not by the
+		// snapshots that happen to include them).
+		//
+		byte[][] map = freeMap.copy();
+		freeMap.clear(map, superBlock.snapshots);
+		for (Snapshot s : snapshots)
+			if (s != null)
+				for (int n : s.metadata())
+					freeMap.clear(map, n);
+		for (Snapshot s : snapshots)
+			if (s != null)
+				for (int n : s.inodeMap)
+					if (n != 0)
+						freeMap.clear(map, n);
+
+		int[] blocks = new int[1 + Snapshot.mapSize(superBlock)
+				+ Snapshot.inodeMapSize(superBlock)];
+		for (int i = 0; i < blocks.length; ++i) {
+			if ((blocks[i] = freeMap.find()) == 0) {
+				for (int j = 0; j < i; ++j)
+					freeMap.clear(blocks[j]);
+				freeMap.save();
+				System.err.println("File system is full");
+				return -1;
+			}
+		}
+		int[] mapBlocks = new int[Snapshot.mapSize(superBlock)];
+		int[] inodeMapBlocks = new int[Snapshot.inodeMapSize(superBlock)];
+		System.arraycopy(blocks, 1, mapBlocks, 0, mapBlocks.length);
+		System.arraycopy(blocks, 1 + mapBlocks.length, inodeMapBlocks, 0,
+				inodeMapBlocks.length);
+
+		Snapshot s = new Snapshot(slot + 1, blocks[0], mapBlocks,
+				inodeMapBlocks, map, superBlock.isize);
+		s.save(disk);
+		snapshots[slot] = s;
+		snapshotTable.ptr[slot] = s.descriptor;
+		disk.write(superBlock.snapshots, snapshotTable);
+		freeMap.share(map);
+		freeMap.save();
+		return s.id;
+	}
+
+	/**
+	 * Delete a snapshot. Blocks that were kept only for this snapshot become
+	 * free again. Any view returned by mountSnapshot for it must no longer be
+	 * used.
+	 *
+	 * @param id
+	 *            id of the snapshot
+	 * @return 0 on success, -1 on error
+	 */
+	public int deleteSnapshot(int id) throws IOException {
+		if (isReadOnly() || !snapshotIsValid(id))
+			return -1;
+
+		Snapshot s = snapshots[id - 1];
+		snapshots[id - 1] = null;
+		freeMap.owner = QuotaTable.NONE;
+		snapshotTable.ptr[id - 1] = 0;
+		disk.write(superBlock.snapshots, snapshotTable);
+
+		freeMap.unshare(s.map);
+		for (int n : s.metadata())
+			freeMap.clear(n);
+		for (int n : s.inodeMap)
+			if (n != 0 && !inodeBlockIsPreserved(n))
+				freeMap.clear(n);
+		freeMap.save();
+		return 0;
+	}
+
+	/**
+	 * Mount a snapshot as a read-only file system. Files are opened by
+	 * inumber just like in the live file system and see their contents as of
+	 * the moment the snapshot was taken. Anything that would modify the
+	 * snapshot returns -1.
+	 *
+	 * @param id
+	 *            id of the snapshot
+	 * @return read-only view of the snapshot, or null on error
+	 */
+	public FileSystem mountSnapshot(int id) {
+		if (isReadOnly() || !snapshotIsValid(id))
+			return null;
+		return new MyFileSystem(this, snapshots[id - 1]);
+	}
+
+	/**
+	 * Run the segment cleaner of a log-structured file system: move the
+	 * blocks still in use out of up to count segments, chosen by
+	 * FreeMap.victims, to the end of the log, so that the segments can be
+	 * appended to again. Every file is walked to find the pointers to
+	 * update, including the in-memory inodes of open files. write runs
+	 * the cleaner when clean segments run low; it can also be run between
+	 * operations, for example from an idle thread.
+	 *
+	 * @param count
+	 *            most segments to clean
+	 * @return number of segments cleaned, or -1 if the file system is not
+	 *         log-structured
+	 */
+	public int clean(int count) throws IOException {
+		if (isReadOnly())
+			return -1;
+		if (!superBlock.isLogged()) {
+			System.err.println("File system is not log-structured");
+			return -1;
+		}
+		int[] victims = freeMap.victims(count);
+		if (victims.length == 0)
+			return 0;
+		freeMap.owner = QuotaTable.NONE; // blocks are only moved
+		boolean[] victim = new boolean[freeMap.segments()];
+		for (int s : victims)
+			victim[s] = true;
+
+		flush(walk);
+		walk.block = null; // its IndirectBlocks may move
+		walk.logical = -1;
+		Map<Integer, Integer> moved = new HashMap<Integer, Integer>();
+		InodeBlock block = new InodeBlock();
+		for (int k = 0; k < superBlock.isize; ++k) {
+			int n = superBlock.inodeBlock(k);
+			readInodeBlock(n, block);
+			boolean changed = false;
+			for (int o = 0; o < InodeBlock.COUNT; ++o) {
+				// The inode of an open file is moved through its fd below:
+				// the copy here is stale and may name blocks freed since
+				if (fileTable.getFdFromInumber(k * InodeBlock.COUNT + o + 1) < 0)
+					changed |= relocate(block.inodes[o], victim, moved);
+			}
+			if (changed)
+				disk.write(n, block);
+		}
+		for (int fd = 0; fd < fileTable.size(); ++fd) {
+			Inode inode = fileTable.getInode(fd);
+			if (inode != null) {
+				if (relocate(inode, victim, moved))
+					writeInode(fileTable.getInumber(fd), inode);
+				fileTable.getBlockMap(fd).clear();
+			}
+		}
+		clusterCache.clear();
+		freeMap.save();
+		return victims.length;
+	}
+
+	/**
+	 * Move the blocks of an inode that lie in victim segments (see clean).
+	 *
+	 * @return true if any pointer of the inode changed
+	 */
+	private boolean relocate(Inode inode, boolean[] victim,
+			Map<Integer, Integer> moved) {
+		if (inode.flags == 0 || inode.isInline())
+			return false;
+		boolean changed = false;
+		for (int i = 0; i < inode.ptr.length; ++i) {
+			int num = relocate(inode.ptr[i], i < DIRECT ? 0 : i - DIRECT + 1,
+					victim, moved);
+			changed |= num != inode.ptr[i];
+			inode.ptr[i] = num;
+		}
+		return changed;
+	}
+
+	/**
+	 * Move a block (and, if it is an indirect block, the blocks below it)
+	 * out of the victim segments. A block reached again, for example
+	 * through a second open inode of the same file, goes where it went the
+	 * first time. A block is left where it is if there is no room to move
+	 * it to.
+	 *
+	 * @param num
+	 *            block number (0 for a hole)
+	 * @param levels
+	 *            levels of indirection below num (0 for a direct block)
+	 * @return new block number of the block
+	 */
+	private int relocate(int num, int levels, boolean[] victim,
+			Map<Integer, Integer> moved) {
+		if (num == 0)
+			return 0;
+		Integer done = moved.get(num);
+		if (done != null)
+			return done;
+
+		IndirectBlock block = null;
+		boolean changed = false;
+		if (levels > 0) {
+			block = new IndirectBlock();
+			disk.read(num, block);
+			for (int i = 0; i < IndirectBlock.COUNT; ++i) {
+				int to = relocate(block.ptr[i], levels - 1, victim, moved);
+				changed |= to != block.ptr[i];
+				block.ptr[i] = to;
+			}
+		}
+
+		int to = victim[freeMap.segment(num)] ? freeMap.find() : 0;
+		if (to != 0) {
+			if (block == null) {
+				byte[] data = new byte[Disk.BLOCK_SIZE];
+				disk.read(num, data);
+				disk.write(to, data);
+			} else {
+				disk.write(to, block);
+			}
+			freeMap.clear(num);
+		} else {
+			to = num;
+			if (changed)
+				disk.write(num, block);
+		}
+		if (levels > 0 || to != num)
+			moved.put(num, to);
+		return to;
+	}
+
+	/**
+	 * Initialize the freeMap instance. Should be called at the end of the
+	 * constructor and from formatDisk. Also loads any snapshots, which the
+	 * free map has to know about.
+	 */
+	private void initFreeMap() {
+		freeMap = new FreeMap(disk, superBlock);
+		snapshots = new Snapshot[IndirectBlock.COUNT];
+		snapshotTable = new IndirectBlock();
+		if (superBlock.snapshots == 0)
+			return;
+		disk.read(superBlock.snapshots, snapshotTable);
+		for (int i = 0; i < IndirectBlock.COUNT; ++i) {
+			if (snapshotTable.ptr[i] != 0) {
+				snapshots[i] = Snapshot.load(disk, i + 1, snapshotTable.ptr[i],
+						superBlock);
+				freeMap.share(snapshots[i].map);
+			}
+		}
+	}
+
+	/**
+	 * Measure how fragmented a file is: the number of runs of consecutive
+	 * blocks its data blocks make up, taken in logical order (holes do not
+	 * count). A contiguous file has 1, an empty or inline file 0.
+	 *
+	 * @param inumber
+	 *            inumber of the file
+	 * @return number of runs, or -1 if inumber is invalid
+	 */
+	public int fragments(int inumber) throws IOException {
+		if (!inumberIsValid(inumber))
+			return -1;
+		Inode inode = currentInode(inumber);
+		if (inode.flags == 0 || inode.isInline())
+			return 0;
+		List<Integer> meta = new ArrayList<Integer>();
+		List<Integer> data = new ArrayList<Integer>();
+		for (int i = 0; i < inode.ptr.length; ++i)
+			collectBlocks(inode.ptr[i], i < DIRECT ? 0 : i - DIRECT + 1,
+					meta, data);
+		int runs = data.isEmpty() ? 0 : 1;
+		for (int i = 1; i < data.size(); ++i)
+			if (data.get(i) != data.get(i - 1) + 1)
+				++runs;
+		return runs;
+	}
+
+	/**
+	 * Defragment a file: move its blocks to one run of free blocks, the
+	 * indirect blocks first (top-down) and then the data blocks in logical
+	 * order, so that the data can be read sequentially. The file stays
+	 * readable throughout (the old blocks are freed only once the new ones
+	 * are in place) and may be open; open file descriptors see the new
+	 * pointers. Defragmenter runs this over every file in the background.
+	 *
+	 * Files with blocks shared with a snapshot or with another file
+	 * (deduplication or cloning) are left alone, and so are all files of a
+	 * log-structured file system, where the cleaner rewrites blocks
+	 * instead.
+	 *
+	 * @param inumber
+	 *            inumber of the file
+	 * @return number of blocks moved (0 if the file was already
+	 *         contiguous or is left alone), or -1 on error, including when
+	 *         there is no free run long enough
+	 */
+	public int defragment(int inumber) throws IOException {
+		if (isReadOnly() || !inumberIsValid(inumber))
+			return -1;
+		Inode inode = currentInode(inumber);
+		if (superBlock.isLogged() || inode.flags == 0 || inode.isInline()
+				|| fragments(inumber) <= 1)
+			return 0;
+
+		List<Integer> meta = new ArrayList<Integer>();
+		List<Integer> data = new ArrayList<Integer>();
+		for (int i = 0; i < inode.ptr.length; ++i)
+			collectBlocks(inode.ptr[i], i < DIRECT ? 0 : i - DIRECT + 1,
+					meta, data);
+		for (int num : meta)
+			if (freeMap.isShared(num))
+				return 0;
+		for (int num : data)
+			if (freeMap.isShared(num))
+				return 0;
+
+		int near = superBlock.isGrouped() ? superBlock.groupStart(superBlock
+				.group(inumberToBlockNum(inumber))) : 0;
+		freeMap.owner = QuotaTable.NONE; // blocks are only moved
+		int start = freeMap.findRun(meta.size() + data.size(), near);
+		if (start == 0) {
+			System.err.println("No room to defragment file " + inumber);
+			return -1;
+		}
+		Map<Integer, Integer> moved = new HashMap<Integer, Integer>();
+		for (int i = 0; i < meta.size(); ++i)
+			moved.put(meta.get(i), start + i);
+		for (int i = 0; i < data.size(); ++i)
+			moved.put(data.get(i), start + meta.size() + i);
+
+		// Copy the data, then write the indirect blocks with their new
+		// pointers; the old blocks are untouched until freed below.
+		//
+		flush(walk);
+		walk.block = null;
+		walk.logical = -1;
+		int[] from = new int[BATCH];
+		byte[] buf = new byte[BATCH * Disk.BLOCK_SIZE];
+		for (int i = 0; i < data.size(); i += BATCH) {
+			int n = Math.min(BATCH, data.size() - i);
+			for (int j = 0; j < n; ++j) {
+				from[j] = data.get(i + j);
+				batch[j] = moved.get(from[j]);
+			}
+			disk.read(from, n, buf, 0);
+			disk.write(batch, n, buf, 0);
+		}
+		int[] old = inode.ptr.clone();
+		for (int i = 0; i < inode.ptr.length; ++i)
+			inode.ptr[i] = rewriteBlocks(inode.ptr[i], i < DIRECT ? 0 : i
+					- DIRECT + 1, moved);
+
+		// Save the inode, then point every open descriptor of the file at
+		// the new blocks before freeing the old ones. If the inode cannot
+		// be saved, the file keeps its old blocks and the new run is freed.
+		//
+		if (writeInode(inumber, inode) < 0) {
+			System.arraycopy(old, 0, inode.ptr, 0, old.length);
+			for (int num : moved.values())
+				freeMap.clear(num);
+			freeMap.save();
+			return -1;
+		}
+		for (int fd = 0; fd < fileTable.size(); ++fd) {
+			Inode other = fileTable.getInode(fd);
+			if (other == null || fileTable.getInumber(fd) != inumber)
+				continue;
+			for (int i = 0; other != inode && i < other.ptr.length; ++i)
+				if (moved.containsKey(other.ptr[i]))
+					other.ptr[i] = moved.get(other.ptr[i]);
+			fileTable.getBlockMap(fd).clear();
+		}
+		for (int num : moved.keySet()) {
+			freeMap.clear(num);
+			clusterCache.remove(num);
+		}
+		freeMap.save();
+		return moved.size();
+	}
+
+	/**
+	 * Get the inode of a file: the one in the file table if the file is
+	 * open (it may be newer than the one on disk), otherwise the one on
+	 * disk.
+	 */
+	private Inode currentInode(int inumber) {
+		int fd = fileTable.getFdFromInumber(inumber);
+		if (fd >= 0)
+			return fileTable.getInode(fd);
+		InodeBlock block = new InodeBlock();
+		readInodeBlock(inumberToBlockNum(inumber), block);
+		return block.inodes[inumberToOffset(inumber)];
+	}
+
+	/**
+	 * Collect the blocks below a pointer of a file in the order defragment
+	 * lays them out: indirect blocks into meta (each before those below
+	 * it) and data blocks into data, in logical order.
+	 *
+	 * @param num
+	 *            block number (0 for a hole)
+	 * @param levels
+	 *            levels of indirection below num (0 for a direct block)
+	 */
+	private void collectBlocks(int num, int levels, List<Integer> meta,
+			List<Integer> data) {
+		if (num == 0)
+			return;
+		if (levels == 0) {
+			data.add(num);
+			return;
+		}
+		meta.add(num);
+		IndirectBlock block = new IndirectBlock();
+		disk.read(num, block);
+		for (int i = 0; i < IndirectBlock.COUNT; ++i)
+			collectBlocks(block.ptr[i], levels - 1, meta, data);
+	}
+
+	/**
+	 * Write the indirect blocks below a pointer to where defragment moves
+	 * them, with their pointers updated.
+	 *
+	 * @return new block number for the pointer
+	 */
+	private int rewriteBlocks(int num, int levels, Map<Integer, Integer> moved) {
+		if (num == 0)
+			return 0;
+		if (levels > 0) {
+			IndirectBlock block = new IndirectBlock();
+			disk.read(num, block);
+			for (int i = 0; i < IndirectBlock.COUNT; ++i)
+				block.ptr[i] = rewriteBlocks(block.ptr[i], levels - 1, moved);
+			disk.write(moved.get(num), block);
+		}
+		return moved.get(num);
+	}
+
+	/**
+	 * Zero up to count more InodeBlocks ahead of need (formatDisk leaves
+	 * them for later, see SuperBlock.inodeIsInit), for example from an
+	 * idle thread.
+	 *
+	 * @param count
+	 *            most InodeBlocks to zero
+	 * @return number of InodeBlocks still to zero, or -1 on error
+	 */
+	public int initInodeTable(int count) throws IOException {
+		if (isReadOnly())
+			return -1;
+		int last = Math.min(superBlock.isize, superBlock.iinit + count) - 1;
+		initInodeBlocks(last);
+		return superBlock.isize - superBlock.iinit;
+	}
+
+	/**
+	 * Zero the InodeBlocks that have not been initialized yet, up to and
+	 * including index last, BATCH at a time, and save the new watermark.
+	 */
+	private void initInodeBlocks(int last) {
+		if (last < superBlock.iinit)
+			return;
+		byte[] zeros = new byte[BATCH * Disk.BLOCK_SIZE];
+		while (superBlock.iinit <= last) {
+			int n = 0;
+			for (; n < BATCH && superBlock.iinit + n <= last; ++n)
+				batch[n] = superBlock.inodeBlock(superBlock.iinit + n);
+			disk.write(batch, n, zeros, 0);
+			superBlock.iinit += n;
+		}
+		disk.write(0, superBlock);
+	}
+
+	/**
+	 * Zero count consecutive blocks starting at first, BATCH at a time.
+	 */
+	private void zero(int first, int count) {
+		byte[] zeros = new byte[Math.min(count, BATCH) * Disk.BLOCK_SIZE];
+		for (int i = 0; i < count; i += BATCH) {
+			int n = Math.min(BATCH, count - i);
+			for (int j = 0; j < n; ++j)
+				batch[j] = first + i + j;
+			disk.write(batch, n, zeros, 0);
+		}
+	}
+
+	/**
+	 * Read an InodeBlock. A snapshot view reads the copy preserved for the
+	 * snapshot if the live file system has changed the block since. An
+	 * InodeBlock that has not been initialized yet reads as empty.
+	 */
+	private void readInodeBlock(int n, InodeBlock block) {
+		int k = superBlock.inodeIndex(n);
+		if (!superBlock.inodeIsInit(k)) {
+			block.clear();
+			return;
+		}
+		if (snapshot != null)
+			n = snapshot.inodeBlock(k, n);
+		disk.read(n, block);
+	}
+
+	/**
+	 * Read count consecutive inode blocks, starting with inode block k
+	 * (not block number), with one batched read, as readInodeBlock would.
+	 * For InodeScanner, which must hold the lock of the file system.
+	 */
+	void readInodeBlocks(int k, int count, InodeBlock[] blocks) {
+		int[] nums = new int[count];
+		int n = 0;
+		for (int i = 0; i < count; ++i) {
+			if (superBlock.inodeIsInit(k + i)) {
+				nums[n] = superBlock.inodeBlock(k + i);
+				if (snapshot != null)
+					nums[n] = snapshot.inodeBlock(k + i, nums[n]);
+				++n;
+			} else {
+				blocks[i].clear();
+			}
+		}
+		disk.read(nums, n, blocks); // the initialized blocks come first
+	}
+
+	/**
+	 * Write the inode of a file back to its InodeBlock.
+	 *
+	 * @return 0 on success, -1 if the old InodeBlock could not be preserved
+	 *         for a snapshot
+	 */
+	private int writeInode(int inumber, Inode inode) {
+		InodeBlock inodeBlock = new InodeBlock();
+		int n = inumberToBlockNum(inumber);
+		readInodeBlock(n, inodeBlock);
+		if (!preserveInodeBlock(n))
+			return -1;
+		inodeBlock.inodes[inumberToOffset(inumber)] = inode;
+		disk.write(n, inodeBlock);
+		return 0;
+	}
+
+	/**
+	 * Copy InodeBlock n aside for every snapshot that still sees its current
+	 * contents. Must be called before InodeBlock n is written, which is also
+	 * when it (and any uninitialized InodeBlocks before it) are zeroed.
+	 *
+	 * @return true on success, false if there is no room for the copy
+	 */
+	private boolean preserveInodeBlock(int n) {
+		int k = superBlock.inodeIndex(n);
+		initInodeBlocks(k);
+		int copy = 0;
+		for (Snapshot s : snapshots) {
+			if (s == null || s.inodeMap[k] != 0)
+				continue;
+			if (copy == 0) {
+				int owner = freeMap.owner;
+				freeMap.owner = QuotaTable.NONE; // kept for the snapshots
+				copy = freeMap.find();
+				freeMap.owner = owner;
+				if (copy == 0) {
+					System.err.println("File system is full");
+					return false;
+				}
+				byte[] buf = new byte[Disk.BLOCK_SIZE];
+				disk.read(n, buf);
+				disk.write(copy, buf);
+				freeMap.save();
+			}
+			s.inodeMap[k] = copy;
+			s.saveInodeMap(disk, k);
+		}
+		return true;
+	}
+
+	/**
+	 * Check whether a preserved InodeBlock copy is used by any snapshot.
+	 */
+	private boolean inodeBlockIsPreserved(int n) {
+		for (Snapshot s : snapshots)
+			if (s != null)
+				for (int copy : s.inodeMap)
+					if (copy == n)
+						return true;
+		return false;
+	}
+
+	/**
+	 * Refuse to modify a snapshot. Prints an error message if this file system
+	 * is a snapshot view.
+	 *
+	 * @return boolean true if this file system is read-only, false otherwise
+	 */
+	private boolean isReadOnly() {
+		if (snapshot != null) {
+			System.err.println("Snapshot " + snapshot.id + " is read-only");
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Ensure that id refers to an existing snapshot. Prints an error message
+	 * if it does not.
+	 *
+	 * @return boolean true if id is valid, false otherwise
+	 */
+	private boolean snapshotIsValid(int id) {
+		if (id <= 0 || id > snapshots.length || snapshots[id - 1] == null) {
+			System.err.println("Snapshot " + id + " does not exist");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Ensure that the fd is within the valid range and refers to an open file.
+	 * Prints an error message if it is invalid.
+	 *
+	 * @return boolean true if fd is valid, false otherwise
+	 */
 	private boolean fileDescriptorIsValid(int fd) {
-		if ((fd < 0 || fd >= FileTable.MAX_FILES || fileTable.getInode(fd) == null)) {
+		if (fd < 0 || fileTable.getInode(fd) == null) {
 			System.err.println("File descriptor " + fd + " is invalid");
 			return false;
 		}
@@ -299,6 +1771,20 @@ public class MyFileSystem implements FileSystem {
 		return true;
 	}
 
+	/**
+	 * Ensure that buffer[start .. start + count - 1] lies within buffer.
+	 * Prints an error message if it does not.
+	 *
+	 * @return boolean true if the slice is valid, false otherwise
+	 */
+	private boolean sliceIsValid(byte[] buffer, int start, int count) {
+		if (start < 0 || count < 0 || start > buffer.length - count) {
+			System.err.println("Invalid buffer slice " + start + "+" + count);
+			return false;
+		}
+		return true;
+	}
+
 	/**
 	 * Get a DirectBlock object representing the direct block given the current
 	 * seek position in the open file identified by fd. A DirectBlock references
@@ -311,382 +1797,679 @@ public class MyFileSystem implements FileSystem {
 	 * returned. If the seek position is in a hole and create is false, then a
 	 * block containing zeroes will be returned.
 	 *
-	 * @param fd
-	 *            valid file descriptor of an open file
+	 * In MODE.w, every block on the way down that is still shared with a
+	 * snapshot (indirect blocks as well as the direct block itself) is moved
+	 * to a newly allocated block first, so the snapshot keeps the original.
+	 *
+	 * @param inode
+	 *            inode of an open file
+	 * @param seekPtr
+	 *            seek position within the file
 	 * @param mode
 	 *            MODE.w if holes should be filled, MODE.r otherwise (holes will
 	 *            be read as blocks of all zeros)
 	 * @returns DirectBlock block and offset in that block where the seek
-	 *          position of fd can be found
+	 *          position of fd can be found (the same object each call)
 	 */
-	private DirectBlock getDirectBlock(int fd, MODE mode) {// FIXME!!!
-		Inode inode = fileTable.getInode(fd);
-		int seekPtr = fileTable.getSeekPointer(fd);
+	private DirectBlock getDirectBlock(Inode inode, int seekPtr, MODE mode) {
 		int blockNum = seekPtr / Disk.BLOCK_SIZE;
 		int blockOff = seekPtr % Disk.BLOCK_SIZE;
+		Slot slot = walk;
+
+		if (!findSlot(inode, blockNum, mode, slot))
+			return mode == MODE.r ? DirectBlock.hole : null;
+		int src = slot.get();
+		boolean fresh = src == 0;
+		if (mode == MODE.r)
+			return fresh ? DirectBlock.hole : chunk.reset(src, blockOff,
+					false, src);
+
+		int num = claim(slot);
+		flush(slot);
+		if (num == 0)
+			return null;
+		return chunk.reset(num, blockOff, fresh, src);
+	}
 
-		if (blockNum >= 10 + IndirectBlock.COUNT + IndirectBlock.COUNT
-				* IndirectBlock.COUNT + IndirectBlock.COUNT
-				* IndirectBlock.COUNT * IndirectBlock.COUNT) {
+	/**
+	 * Read whole blocks of a file straight into buffer, stopping before the
+	 * first hole.
+	 *
+	 * @param inode
+	 *            inode of an open file
+	 * @param blockNum
+	 *            logical block number of the first block, which is not a hole
+	 * @param count
+	 *            number of blocks wanted
+	 * @param map
+	 *            cached translations for the file
+	 * @return number of bytes read
+	 */
+	private int readBlocks(Inode inode, int blockNum, int count, BlockMap map,
+			byte[] buffer, int off) {
+		int n = 0;
+		while (n < Math.min(count, BATCH)
+				&& (batch[n] = translate(inode, blockNum + n, map)) != 0)
+			++n;
+		disk.read(batch, n, buffer, off);
+		return n * Disk.BLOCK_SIZE;
+	}
+
+	/**
+	 * Write whole blocks of a file straight from buffer, allocating (or
+	 * copying on write) each block first.
+	 *
+	 * @param inode
+	 *            inode of an open file
+	 * @param seekPtr
+	 *            seek position of the first block (a multiple of BLOCK_SIZE)
+	 * @param count
+	 *            number of blocks to write
+	 * @return number of bytes written, less than asked for if the file
+	 *         system is full
+	 */
+	private int writeBlocks(Inode inode, int seekPtr, int count, byte[] buffer,
+			int off) {
+		int n = 0;
+		for (; n < Math.min(count, BATCH); ++n) {
+			DirectBlock block = getDirectBlock(inode, seekPtr + n
+					* Disk.BLOCK_SIZE, MODE.w);
+			if (block == null)
+				break;
+			batch[n] = block.getBlockNum();
+		}
+		disk.write(batch, n, buffer, off);
+		return n * Disk.BLOCK_SIZE;
+	}
+
+	/**
+	 * Find the block holding a logical block of a file, using and filling
+	 * the BlockMap of the file descriptor it is read through.
+	 *
+	 * @param inode
+	 *            inode of an open file
+	 * @param blockNum
+	 *            logical block number within the file
+	 * @param map
+	 *            cached translations for the file
+	 * @return block number, or 0 if the logical block is a hole
+	 */
+	private int translate(Inode inode, int blockNum, BlockMap map) {
+		int num = map.lookup(blockNum);
+		if (num >= 0)
+			return num;
+		Slot slot = walk;
+		if (!findSlot(inode, blockNum, MODE.r, slot))
+			return map.put(blockNum, 0);
+		if (slot.block != null)
+			map.setLeaf(slot.block, blockNum - slot.index);
+		return map.put(blockNum, slot.get());
+	}
+
+	/**
+	 * Forget the cached translations of every file descriptor open on
+	 * inumber. Indirect blocks are shared by all of them, so a change made
+	 * through one can leave the others with a stale leaf.
+	 */
+	private void clearBlockMaps(int inumber) {
+		for (int fd = 0; fd < fileTable.size(); ++fd)
+			if (fileTable.getInode(fd) != null
+					&& fileTable.getInumber(fd) == inumber)
+				fileTable.getBlockMap(fd).clear();
+	}
+
+	/**
+	 * The location of one block pointer: inode.ptr[index] if block is null,
+	 * otherwise block.ptr[index], where block is the IndirectBlock stored at
+	 * blockNum. A Slot also remembers the logical block it was found for, so
+	 * that nextSlot can step along the same IndirectBlock. The IndirectBlocks
+	 * read on the way down are kept for the next walk to reuse.
+	 */
+	private static class Slot {
+		private Inode inode;
+		private IndirectBlock block;
+		private int blockNum;
+		private int index;
+		private int logical = -1;
+		private boolean writable; // found in MODE.w
+		private boolean dirty; // block must be written back
+		private int[] path = new int[3];
+		private IndirectBlock[] blocks = new IndirectBlock[3]; // per level
+
+		private int get() {
+			return block == null ? inode.ptr[index] : block.ptr[index];
+		}
+
+		private void set(int num) {
+			if (block == null) {
+				inode.ptr[index] = num;
+			} else {
+				block.ptr[index] = num;
+				dirty = true;
+			}
+		}
+	}
+
+	/**
+	 * Follow the pointers of inode down to the slot holding the pointer for a
+	 * logical block. In MODE.w, missing IndirectBlocks on the way are
+	 * allocated and those still shared with a snapshot are copied; the slot
+	 * itself is left for the caller to fill. MODE.c copies shared
+	 * IndirectBlocks the same way but stops at a hole, leaving no slot
+	 * found. Call flush when done with the slot.
+	 *
+	 * @param inode
+	 *            inode of the file
+	 * @param blockNum
+	 *            logical block number within the file
+	 * @param mode
+	 *            MODE.w to create the path, MODE.r to only follow it,
+	 *            MODE.c to make the part of it that exists writable
+	 * @param slot
+	 *            filled with the location of the pointer
+	 * @return true on success (including a hole in MODE.c); false if the
+	 *         path runs into a hole (MODE.r) or the file system is full
+	 *         (MODE.w and MODE.c)
+	 */
+	private boolean findSlot(Inode inode, int blockNum, MODE mode, Slot slot) {
+		int[] path = slot.path;
+		int levels = indexPath(blockNum, path);
+
+		if (levels < 0) {
 			System.err.println("Large files unsupported");
 			System.exit(1);
 		}
-		if (9 < blockNum && blockNum < 10 + IndirectBlock.COUNT) {
-			if (inode.ptr[10] == 0) {
-				if (mode == MODE.r)
-					return DirectBlock.hole;
-				else if (mode == MODE.w
-						&& (inode.ptr[10] = freeMap.find()) == 0)
-					return null;
-				else {
-					IndirectBlock indirectBlock = new IndirectBlock();
-					if ((indirectBlock.ptr[blockNum - 10] = freeMap.find()) == 0)
-						return null;
-					else {
-						disk.write(inode.ptr[10], indirectBlock);
-						return new DirectBlock(disk,
-								indirectBlock.ptr[blockNum - 10], blockOff,
-								true);
-					}
-				}
-			} else {
-				IndirectBlock indirectBlock = new IndirectBlock();
-				disk.read(inode.ptr[10], indirectBlock);
-				boolean fresh = indirectBlock.ptr[blockNum - 10] == 0;
-				if (fresh)
-					if (mode == MODE.r)
-						return DirectBlock.hole;
-					else if (mode == MODE.w
-							&& (indirectBlock.ptr[blockNum - 10] = freeMap
-									.find()) == 0) {
-						return null;
-					} else {
-						disk.write(inode.ptr[10], indirectBlock);
-					}
-				return new DirectBlock(disk, indirectBlock.ptr[blockNum - 10],
-						blockOff, fresh);
-			}// end single
-
-		} else if (10 + IndirectBlock.COUNT <= blockNum
-				&& blockNum < 10 + IndirectBlock.COUNT + IndirectBlock.COUNT
-						* IndirectBlock.COUNT) {
-			if (inode.ptr[11] == 0) {
-				if (mode == MODE.r)
-					return DirectBlock.hole;
-				else if (mode == MODE.w
-						&& (inode.ptr[11] = freeMap.find()) == 0)
-					return null;
-				else {
-					IndirectBlock indirectBlock = new IndirectBlock();
-					int backoffInIndirect = blockNum
-							- (10 + IndirectBlock.COUNT);
-					int addUpToCount = 0;
-					while (addUpToCount < IndirectBlock.COUNT) {
-						if (IndirectBlock.COUNT * addUpToCount <= backoffInIndirect
-								&& backoffInIndirect < IndirectBlock.COUNT
-										* (addUpToCount + 1)) {
-							if ((indirectBlock.ptr[addUpToCount] = freeMap
-									.find()) == 0) {
-								return null;
-							} else {
-								IndirectBlock indirectBlock2 = new IndirectBlock();
-								if ((indirectBlock2.ptr[(blockNum - (10 + indirectBlock.COUNT))
-										% indirectBlock.COUNT] = freeMap.find()) == 0)
-									return null;
-								else {
-									disk.write(indirectBlock.ptr[addUpToCount],
-											indirectBlock2);
-									disk.write(inode.ptr[11], indirectBlock);
-									return new DirectBlock(
-											disk,
-											indirectBlock2.ptr[(blockNum - (10 + indirectBlock.COUNT))
-													% indirectBlock.COUNT],
-											blockOff, true);
-								}
-							}
-						}
-						addUpToCount++;
-					}
-				}
-			} else {
-				IndirectBlock indirectBlock = new IndirectBlock();
-				disk.read(inode.ptr[11], indirectBlock);
-				int backoffInIndirect = blockNum - (10 + IndirectBlock.COUNT);
-				int addUpToCount = 0;
-				while (addUpToCount < IndirectBlock.COUNT) {
-					if (IndirectBlock.COUNT * addUpToCount <= backoffInIndirect
-							&& backoffInIndirect < IndirectBlock.COUNT
-									* (addUpToCount + 1)) {
-						if (indirectBlock.ptr[addUpToCount] == 0) {
-							if (mode == MODE.r) {
-								return DirectBlock.hole;
-							} else if (mode == MODE.w
-									&& (indirectBlock.ptr[addUpToCount] = freeMap
-											.find()) == 0) {
-								return null;
-							} else {
-								IndirectBlock indirectBlock2 = new IndirectBlock();
-								if ((indirectBlock2.ptr[(blockNum - (10 + indirectBlock.COUNT))
-										% indirectBlock.COUNT] = freeMap.find()) == 0)
-									return null;
-								else {
-									disk.write(indirectBlock.ptr[addUpToCount],
-											indirectBlock2);
-									disk.write(inode.ptr[11], indirectBlock);
-									return new DirectBlock(
-											disk,
-											indirectBlock2.ptr[(blockNum - (10 + indirectBlock.COUNT))
-													% indirectBlock.COUNT],
-											blockOff, true);
-								}
-							}
-						} else if (indirectBlock.ptr[addUpToCount] != 0) {
-							IndirectBlock indirectBlock2 = new IndirectBlock();
-							disk.read(indirectBlock.ptr[addUpToCount],
-									indirectBlock2);
-							boolean fresh = indirectBlock2.ptr[(blockNum - (10 + indirectBlock.COUNT))
-									% indirectBlock.COUNT] == 0;
-							if (fresh) {
-								if (mode == MODE.r)
-									return DirectBlock.hole;
-								else if (mode == MODE.w
-										&& (indirectBlock2.ptr[(blockNum - (10 + indirectBlock.COUNT))
-												% indirectBlock.COUNT] = freeMap
-												.find()) == 0) {
-									return null;
-								} else {
-									disk.write(indirectBlock.ptr[addUpToCount],
-											indirectBlock2);
-									disk.write(inode.ptr[11], indirectBlock);
-								}
-							}
-							return new DirectBlock(
-									disk,
-									indirectBlock2.ptr[(blockNum - (10 + indirectBlock.COUNT))
-											% indirectBlock.COUNT], blockOff,
-									fresh);
-						}
-					}
-					addUpToCount++;
-				}
-			}// end double
-
-		} else if (10 + IndirectBlock.COUNT + IndirectBlock.COUNT
-				* IndirectBlock.COUNT <= blockNum
-				&& blockNum < 10 + IndirectBlock.COUNT + IndirectBlock.COUNT
-						* IndirectBlock.COUNT + IndirectBlock.COUNT
-						* IndirectBlock.COUNT * IndirectBlock.COUNT) {
-			if (inode.ptr[12] == 0) {
-				if (mode == MODE.r)
-					return DirectBlock.hole;
-				else if (mode == MODE.w
-						&& (inode.ptr[12] = freeMap.find()) == 0) {
-					return null;
-				} else {
-					IndirectBlock indirectBlock = new IndirectBlock();
-					int blockoffInIndirect = blockNum
-							- (10 + indirectBlock.COUNT + indirectBlock.COUNT
-									* indirectBlock.COUNT);
-					int addUpToCount = 0;
-					while (addUpToCount < indirectBlock.COUNT) {
-						if (addUpToCount * indirectBlock.COUNT
-								* indirectBlock.COUNT <= blockoffInIndirect
-								&& blockoffInIndirect < (addUpToCount + 1)
-										* indirectBlock.COUNT
-										* indirectBlock.COUNT) {
-							if ((indirectBlock.ptr[addUpToCount] = freeMap
-									.find()) == 0)
-								return null;
-							else {
-								IndirectBlock indirectBlock2 = new IndirectBlock();
-								int addUpToCount2 = 0;
-								while (addUpToCount2 < indirectBlock.COUNT) {
-									if (addUpToCount2 * indirectBlock.COUNT <= blockoffInIndirect
-											&& blockoffInIndirect < (addUpToCount2 + 1)
-													* indirectBlock.COUNT) {
-										if ((indirectBlock2.ptr[addUpToCount2] = freeMap
-												.find()) == 0)
-											return null;
-										else {
-											IndirectBlock indirectBlock3 = new IndirectBlock();
-											if ((indirectBlock3.ptr[(blockNum - (10 + indirectBlock.COUNT + indirectBlock.COUNT
-													* indirectBlock.COUNT))
-													% indirectBlock.COUNT] = freeMap
-													.find()) == 0)
-												return null;
-											else {
-												disk.write(
-														indirectBlock2.ptr[addUpToCount2],
-														indirectBlock3);
-												disk.write(
-														indirectBlock.ptr[addUpToCount],
-														indirectBlock2);
-												disk.write(inode.ptr[12],
-														indirectBlock);
-												return new DirectBlock(
-														disk,
-														indirectBlock3.ptr[(blockNum - (10 + indirectBlock.COUNT + indirectBlock.COUNT
-																* indirectBlock.COUNT))
-																% indirectBlock.COUNT],
-														blockOff, true);
-											}
-										}
-									}
-									addUpToCount2++;
-								}
-							}
-						}
-						addUpToCount++;
-					}
-				}
+
+		flush(slot);
+		slot.inode = inode;
+		slot.block = null;
+		slot.index = levels == 0 ? blockNum : DIRECT + levels - 1;
+		slot.logical = blockNum;
+		slot.writable = mode != MODE.r;
+		for (int level = 0; level < levels; ++level) {
+			int src = slot.get();
+			int num = mode == MODE.w || mode == MODE.c && src != 0 ? claim(slot)
+					: src;
+			if (num == 0) {
+				flush(slot);
+				slot.block = null;
+				slot.logical = -1;
+				return mode == MODE.c && src == 0;
+			}
+			flush(slot);
+
+			if (slot.blocks[level] == null)
+				slot.blocks[level] = new IndirectBlock();
+			IndirectBlock block = slot.blocks[level];
+			if (src != 0)
+				disk.read(src, block);
+			else
+				block.clear();
+			slot.block = block;
+			slot.blockNum = num;
+			slot.index = path[level];
+			slot.dirty = num != src; // new or moved
+		}
+		return true;
+	}
+
+	/**
+	 * Like findSlot, but cheap when the slot was last found for a logical
+	 * block held by the same IndirectBlock: the slot is just moved along it.
+	 */
+	private boolean nextSlot(Inode inode, int blockNum, MODE mode, Slot slot) {
+		if (slot.block != null && slot.inode == inode
+				&& (slot.writable || mode == MODE.r) && blockNum >= DIRECT
+				&& slot.logical >= DIRECT
+				&& (blockNum - DIRECT) / IndirectBlock.COUNT == (slot.logical - DIRECT)
+						/ IndirectBlock.COUNT) {
+			slot.index = (blockNum - DIRECT) % IndirectBlock.COUNT;
+			slot.logical = blockNum;
+			return true;
+		}
+		return findSlot(inode, blockNum, mode, slot);
+	}
+
+	/**
+	 * Make the pointer at slot safe to write through. If it is 0, a block is
+	 * allocated. If it points at a shared block (one kept by a snapshot or,
+	 * with deduplication, pointed to more than once), a new block takes its
+	 * place (the caller copies the contents) and this pointer's reference to
+	 * the old one is dropped. On a log-structured file system the same goes
+	 * for a sealed block, so that every write is appended to the log.
+	 *
+	 * With block groups, a new block goes right after the one the previous
+	 * pointer leads to, or else after the last block allocated by this
+	 * write, which starts out at the group of the file's inode.
+	 *
+	 * @return block number now at slot, or 0 if the file system is full
+	 */
+	private int claim(Slot slot) {
+		int num = slot.get();
+		if (num != 0 && !freeMap.isShared(num) && !freeMap.isSealed(num))
+			return num;
+		if (goal != 0 && slot.index > 0) {
+			int prev = slot.block == null ? slot.inode.ptr[slot.index - 1]
+					: slot.block.ptr[slot.index - 1];
+			if (prev != 0)
+				goal = prev + 1;
+		}
+		int copy = freeMap.find(goal);
+		if (copy == 0)
+			return 0;
+		if (goal != 0)
+			goal = copy + 1;
+		if (num != 0)
+			freeMap.clear(num); // the other owners keep num
+		slot.set(copy);
+		return copy;
+	}
+
+	/**
+	 * Save a block written on a deduplicating file system. If a block with
+	 * the same contents is already on disk, the file is pointed at that
+	 * block instead and the block just written to is freed; otherwise the
+	 * block is saved and its contents recorded in the index.
+	 *
+	 * @param inode
+	 *            inode of the file
+	 * @param blockNum
+	 *            logical block number of block within the file
+	 * @param block
+	 *            block returned by getDirectBlock in MODE.w
+	 */
+	private void saveDeduplicated(Inode inode, int blockNum, DirectBlock block) {
+		int num = block.getBlockNum();
+		byte[] data = block.getBytes();
+		freeMap.dedup.remove(num); // its contents are changing
+
+		long hash = DedupIndex.hash(data);
+		int dup = freeMap.dedup.find(hash);
+		if (dup == 0 || dup == num || !sameContents(dup, data)
+				|| !freeMap.addRef(dup)) {
+			block.save();
+			freeMap.dedup.put(hash, num);
+			return;
+		}
+
+		// The path to the slot was just claimed, so this only rereads it.
+		Slot slot = new Slot();
+		findSlot(inode, blockNum, MODE.w, slot);
+		slot.set(dup);
+		flush(slot);
+		freeMap.clear(num);
+	}
+
+	/**
+	 * Compare a block on disk with data (hashes can collide).
+	 */
+	private boolean sameContents(int num, byte[] data) {
+		byte[] other = new byte[Disk.BLOCK_SIZE];
+		disk.read(num, other);
+		return Arrays.equals(other, data);
+	}
+
+	/**
+	 * Write the IndirectBlock of a slot back to disk if it was changed.
+	 */
+	private void flush(Slot slot) {
+		if (slot.dirty) {
+			disk.write(slot.blockNum, slot.block);
+			slot.dirty = false;
+		}
+	}
+
+	/**
+	 * Read a cluster of a file on a compressed file system. Clusters are
+	 * CLUSTER consecutive logical blocks, and their pointers tell how they
+	 * are stored: if all are 0 the cluster is a hole, if none is 0 the blocks
+	 * are stored as they are, and otherwise the first few pointers lead to a
+	 * 4-byte length followed by that many bytes of LZ4 output. Decompressed
+	 * clusters are kept in clusterCache, keyed by their first block.
+	 *
+	 * @param inode
+	 *            inode of an open file
+	 * @param cluster
+	 *            cluster number within the file
+	 * @return contents of the cluster (must not be modified), or null if it
+	 *         is corrupt
+	 */
+	private byte[] readCluster(Inode inode, int cluster) {
+		int[] ptrs = clusterPointers(inode, cluster);
+		if (ptrs[0] == 0)
+			return new byte[CLUSTER_SIZE];
+		byte[] data = clusterCache.get(ptrs[0]);
+		if (data != null)
+			return data;
+
+		byte[] block = new byte[Disk.BLOCK_SIZE];
+		data = new byte[CLUSTER_SIZE];
+		if (ptrs[CLUSTER - 1] != 0) {
+			for (int i = 0; i < CLUSTER; ++i) {
+				disk.read(ptrs[i], block);
+				System.arraycopy(block, 0, data, i * Disk.BLOCK_SIZE,
+						Disk.BLOCK_SIZE);
+			}
+		} else {
+			byte[] packed = new byte[CLUSTER_SIZE];
+			int k = 0;
+			for (; k < CLUSTER && ptrs[k] != 0; ++k) {
+				disk.read(ptrs[k], block);
+				System.arraycopy(block, 0, packed, k * Disk.BLOCK_SIZE,
+						Disk.BLOCK_SIZE);
+			}
+			int len = (packed[0] & 0xff) << 24 | (packed[1] & 0xff) << 16
+					| (packed[2] & 0xff) << 8 | (packed[3] & 0xff);
+			if (len < 0 || len > k * Disk.BLOCK_SIZE - 4
+					|| Lz4.decompress(packed, 4, len, data) < 0) {
+				System.err.println("Cluster " + cluster + " is corrupt");
+				return null;
+			}
+		}
+		clusterCache.put(ptrs[0], data);
+		return data;
+	}
+
+	/**
+	 * Write a cluster of a file on a compressed file system (see
+	 * readCluster). The cluster always goes to newly allocated blocks, and the
+	 * blocks it used before are freed afterwards, so a failed write leaves the
+	 * old contents in place.
+	 *
+	 * @param inode
+	 *            inode of an open file
+	 * @param cluster
+	 *            cluster number within the file
+	 * @param data
+	 *            new contents of the cluster (kept in clusterCache, so the
+	 *            caller must not modify it afterwards)
+	 * @return true on success, false if the file system is full
+	 */
+	private boolean writeCluster(Inode inode, int cluster, byte[] data) {
+		int k = 0;
+		byte[] packed = data;
+		for (int i = 0; i < CLUSTER_SIZE; ++i) {
+			if (data[i] != 0) {
+				k = CLUSTER;
+				break;
+			}
+		}
+		if (k > 0) {
+			packed = new byte[CLUSTER_SIZE];
+			int len = Lz4.compress(data, CLUSTER_SIZE, packed, 4);
+			if (len >= 0 && (k = (4 + len + Disk.BLOCK_SIZE - 1)
+					/ Disk.BLOCK_SIZE) < CLUSTER) {
+				packed[0] = (byte) (len >>> 24);
+				packed[1] = (byte) (len >>> 16);
+				packed[2] = (byte) (len >>> 8);
+				packed[3] = (byte) len;
 			} else {
-				IndirectBlock indirectBlock = new IndirectBlock();
-				disk.read(inode.ptr[12], indirectBlock);
-				int blockoffInIndirect = blockNum
-						- (10 + indirectBlock.COUNT + indirectBlock.COUNT
-								* indirectBlock.COUNT);
-				int addUpToCount = 0;
-				while (addUpToCount < indirectBlock.COUNT) {
-					if (addUpToCount * indirectBlock.COUNT
-							* indirectBlock.COUNT <= blockoffInIndirect
-							&& blockoffInIndirect < (addUpToCount + 1)
-									* indirectBlock.COUNT * indirectBlock.COUNT) {
-						if (indirectBlock.ptr[addUpToCount] == 0) {
-							if (mode == MODE.r)
-								return DirectBlock.hole;
-							else if (mode == MODE.w
-									&& (indirectBlock.ptr[addUpToCount] = freeMap
-											.find()) == 0) {
-								return null;
-							} else {
-								IndirectBlock indirectBlock2 = new IndirectBlock();
-								int addUpToCount2 = 0;
-								while (addUpToCount2 < indirectBlock.COUNT) {
-									if (addUpToCount2 * indirectBlock.COUNT <= blockoffInIndirect
-											&& blockoffInIndirect < (addUpToCount2 + 1)
-													* indirectBlock.COUNT) {
-										if ((indirectBlock2.ptr[addUpToCount2] = freeMap
-												.find()) == 0)
-											return null;
-										else {
-											IndirectBlock indirectBlock3 = new IndirectBlock();
-											if ((indirectBlock3.ptr[(blockNum - (10 + indirectBlock.COUNT + indirectBlock.COUNT
-													* indirectBlock.COUNT))
-													% indirectBlock.COUNT] = freeMap
-													.find()) == 0)
-												return null;
-											else {
-												disk.write(
-														indirectBlock2.ptr[addUpToCount2],
-														indirectBlock3);
-												disk.write(
-														indirectBlock.ptr[addUpToCount],
-														indirectBlock2);
-												disk.write(inode.ptr[12],
-														indirectBlock);
-												return new DirectBlock(
-														disk,
-														indirectBlock3.ptr[(blockNum - (10 + indirectBlock.COUNT + indirectBlock.COUNT
-																* indirectBlock.COUNT))
-																% indirectBlock.COUNT],
-														blockOff, true);
-											}
-										}
-									}
-									addUpToCount2++;
-								}
-
-							}
-						} else if (indirectBlock.ptr[addUpToCount] != 0) {
-							IndirectBlock indirectBlock2 = new IndirectBlock();
-							disk.read(indirectBlock.ptr[addUpToCount],
-									indirectBlock2);
-							int addUpToCount2 = 0;
-							while (addUpToCount2 < indirectBlock.COUNT) {
-								if (addUpToCount2 * indirectBlock.COUNT <= blockoffInIndirect
-										&& blockoffInIndirect < (addUpToCount2 + 1)
-												* indirectBlock.COUNT) {
-									if (indirectBlock2.ptr[addUpToCount2] == 0) {
-										if ((indirectBlock2.ptr[addUpToCount2] = freeMap
-												.find()) == 0)
-											return null;
-										else {
-											IndirectBlock indirectBlock3 = new IndirectBlock();
-											if ((indirectBlock3.ptr[(blockNum - (10 + indirectBlock.COUNT + indirectBlock.COUNT
-													* indirectBlock.COUNT))
-													% indirectBlock.COUNT] = freeMap
-													.find()) == 0)
-												return null;
-											else {
-												disk.write(indirectBlock2.ptr[addUpToCount2],indirectBlock3);
-												disk.write(indirectBlock.ptr[addUpToCount],indirectBlock2);
-												disk.write(inode.ptr[12],indirectBlock);
-												return new DirectBlock(
-														disk,
-														indirectBlock3.ptr[(blockNum - (10 + indirectBlock.COUNT + indirectBlock.COUNT
-																* indirectBlock.COUNT))
-																% indirectBlock.COUNT],
-														blockOff, true);
-											}
-										}
-									}else if(indirectBlock2.ptr[addUpToCount2] != 0) {
-										IndirectBlock indirectBlock3 = new IndirectBlock();
-										disk.read(indirectBlock2.ptr[addUpToCount2], indirectBlock3);
-										boolean fresh = indirectBlock3.ptr[(blockNum - (10 + indirectBlock.COUNT + indirectBlock.COUNT
-												* indirectBlock.COUNT))
-												% indirectBlock.COUNT] == 0;
-										if(fresh)
-											if ((indirectBlock3.ptr[(blockNum - (10 + indirectBlock.COUNT + indirectBlock.COUNT
-													* indirectBlock.COUNT))
-													% indirectBlock.COUNT] = freeMap
-													.find()) == 0)
-												return null;
-											else {
-												disk.write(
-														indirectBlock2.ptr[addUpToCount2],
-														indirectBlock3);
-												disk.write(
-														indirectBlock.ptr[addUpToCount],
-														indirectBlock2);
-												disk.write(inode.ptr[12],
-														indirectBlock);
-												return new DirectBlock(
-														disk,
-														indirectBlock3.ptr[(blockNum - (10 + indirectBlock.COUNT + indirectBlock.COUNT
-																* indirectBlock.COUNT))
-																% indirectBlock.COUNT],
-														blockOff, fresh);
-											}
-										return new DirectBlock(disk,
-												indirectBlock3.ptr[(blockNum - (10 + indirectBlock.COUNT + indirectBlock.COUNT
-														* indirectBlock.COUNT))
-														% indirectBlock.COUNT],
-												blockOff, fresh);
-									}
-								}
-								addUpToCount2++;
-							}
-						}
-					}
-					addUpToCount++;
-				}
-			}// end triple
-			
-		} else if (blockNum <= 9) {
-			boolean fresh = inode.ptr[blockNum] == 0;
+				k = CLUSTER;
+				packed = data;
+			}
+		}
 
-			// The blockNum is a logical block number referring to a
-			// pointer in the inode.
+		int[] old = clusterPointers(inode, cluster);
+		int[] ptrs = new int[CLUSTER];
+		byte[] block = new byte[Disk.BLOCK_SIZE];
+		for (int i = 0; i < k; ++i) {
+			if ((ptrs[i] = freeMap.find(goal)) == 0) {
+				for (int j = 0; j < i; ++j)
+					freeMap.clear(ptrs[j]);
+				return false;
+			}
+			if (goal != 0)
+				goal = ptrs[i] + 1;
+			System.arraycopy(packed, i * Disk.BLOCK_SIZE, block, 0,
+					Disk.BLOCK_SIZE);
+			disk.write(ptrs[i], block);
+		}
 
-			if (fresh)
-				if (mode == MODE.r)
-					return DirectBlock.hole;
-				else if ((inode.ptr[blockNum] = freeMap.find()) == 0)
-					return null;
-			return new DirectBlock(disk, inode.ptr[blockNum], blockOff, fresh);
+		Slot slot = new Slot();
+		for (int i = 0; i < CLUSTER; ++i) {
+			if (ptrs[i] == 0 && old[i] == 0)
+				continue;
+			if (!nextSlot(inode, cluster * CLUSTER + i, MODE.w, slot))
+				return false;
+			slot.set(ptrs[i]);
 		}
-		return null;
+		flush(slot);
+
+		if (old[0] != 0)
+			clusterCache.remove(old[0]);
+		for (int i = 0; i < CLUSTER; ++i)
+			if (old[i] != 0)
+				freeMap.clear(old[i]);
+		if (k > 0)
+			clusterCache.put(ptrs[0], data);
+		return true;
+	}
 
+	/**
+	 * Get the pointers of the CLUSTER logical blocks of a cluster (0 for
+	 * holes).
+	 */
+	private int[] clusterPointers(Inode inode, int cluster) {
+		int[] ptrs = new int[CLUSTER];
+		Slot slot = new Slot();
+		for (int i = 0; i < CLUSTER; ++i)
+			if (nextSlot(inode, cluster * CLUSTER + i, MODE.r, slot))
+				ptrs[i] = slot.get();
+		return ptrs;
+	}
+
+	/**
+	 * Split a logical block number into the indices to follow at each level
+	 * of indirection. Logical blocks 0 to 9 are reached through the direct
+	 * pointers, the rest through ptr[10], ptr[11] and ptr[12] (single, double
+	 * and triple indirection).
+	 *
+	 * @param blockNum
+	 *            logical block number within a file
+	 * @param path
+	 *            filled with the index into each indirect block, top first
+	 * @return int number of indirect blocks on the way (0 for a direct
+	 *         pointer), or -1 if blockNum is too large
+	 */
+	private static int indexPath(int blockNum, int[] path) {
+		if (blockNum < DIRECT)
+			return 0;
+		blockNum -= DIRECT;
+		if (blockNum < SINGLE) {
+			path[0] = blockNum;
+			return 1;
+		}
+		blockNum -= SINGLE;
+		if (blockNum < DOUBLE) {
+			path[0] = blockNum / IndirectBlock.COUNT;
+			path[1] = blockNum % IndirectBlock.COUNT;
+			return 2;
+		}
+		blockNum -= DOUBLE;
+		if (blockNum < TRIPLE) {
+			path[0] = blockNum / DOUBLE;
+			path[1] = blockNum / IndirectBlock.COUNT % IndirectBlock.COUNT;
+			path[2] = blockNum % IndirectBlock.COUNT;
+			return 3;
+		}
+		return -1;
+	}
+
+	/**
+	 * Move the data of an inline file into its first data block, turning it
+	 * into an ordinary file. Called when a write would grow the file beyond
+	 * Inode.INLINE_SIZE bytes.
+	 *
+	 * @return true on success, false (leaving the file inline) if there is
+	 *         no free block
+	 */
+	private boolean moveInlineData(Inode inode) {
+		byte[] data = new byte[Math.min(inode.size, Inode.INLINE_SIZE)];
+		for (int i = 0; i < data.length; ++i)
+			data[i] = inode.getInline(i);
+		int[] ptr = inode.ptr.clone();
+
+		inode.flags &= ~Inode.INLINE;
+		Arrays.fill(inode.ptr, 0);
+		if (data.length > 0 && superBlock.isCompressed()) {
+			byte[] cluster = new byte[CLUSTER_SIZE];
+			System.arraycopy(data, 0, cluster, 0, data.length);
+			if (!writeCluster(inode, 0, cluster)) {
+				inode.flags |= Inode.INLINE;
+				inode.ptr = ptr;
+				return false;
+			}
+		} else if (data.length > 0) {
+			DirectBlock block = getDirectBlock(inode, 0, MODE.w);
+			if (block == null) {
+				inode.flags |= Inode.INLINE;
+				inode.ptr = ptr;
+				return false;
+			}
+			block.copyFrom(data, 0);
+			block.save();
+		}
+		return true;
+	}
+
+	/**
+	 * Free the blocks below a pointer of a file that hold logical blocks
+	 * from keep on (see truncate), and indirect blocks left with nothing
+	 * below them. Indirect blocks that are kept are written in place; the
+	 * caller has copied any that were shared.
+	 *
+	 * @param num
+	 *            block number (0 for a hole)
+	 * @param levels
+	 *            levels of indirection below num (0 for a direct block)
+	 * @param first
+	 *            first logical block below num
+	 * @param keep
+	 *            number of logical blocks to keep
+	 * @return block number for the pointer to hold from now on (0 if num
+	 *         was freed)
+	 */
+	private int truncateBlocks(int num, int levels, int first, int keep) {
+		if (num == 0 || first + span(levels) <= keep)
+			return num;
+		if (first >= keep) {
+			freeBlocks(num, levels);
+			return 0;
+		}
+		IndirectBlock block = new IndirectBlock();
+		disk.read(num, block);
+		boolean empty = true;
+		for (int i = 0; i < IndirectBlock.COUNT; ++i) {
+			block.ptr[i] = truncateBlocks(block.ptr[i], levels - 1, first + i
+					* span(levels - 1), keep);
+			empty &= block.ptr[i] == 0;
+		}
+		if (empty) {
+			freeMap.clear(num);
+			return 0;
+		}
+		disk.write(num, block);
+		return num;
+	}
+
+	/**
+	 * Count the logical blocks below a pointer with levels levels of
+	 * indirection.
+	 */
+	private static int span(int levels) {
+		int n = 1;
+		for (int i = 0; i < levels; ++i)
+			n *= IndirectBlock.COUNT;
+		return n;
+	}
+
+	/**
+	 * Count the blocks of a file, data and indirect, as they are on disk.
+	 * Holes count for nothing and blocks shared with other files count in
+	 * full. For InodeScanner, which must hold the lock of the file system.
+	 */
+	int countBlocks(Inode inode) {
+		if (inode.flags == 0 || inode.isInline())
+			return 0;
+		flush(walk);
+		int n = 0;
+		for (int i = 0; i < inode.ptr.length; ++i)
+			n += countBlocks(inode.ptr[i], i < DIRECT ? 0 : i - DIRECT + 1);
+		return n;
+	}
+
+	private int countBlocks(int num, int levels) {
+		if (num == 0)
+			return 0;
+		int n = 1;
+		if (levels > 0) {
+			IndirectBlock block = new IndirectBlock();
+			disk.read(num, block);
+			for (int i = 0; i < IndirectBlock.COUNT; ++i)
+				n += countBlocks(block.ptr[i], levels - 1);
+		}
+		return n;
+	}
+
+	/**
+	 * Clone the blocks below a pointer of a file (see clone): a data block
+	 * gains a reference, or is copied if it cannot, and an indirect block
+	 * is copied with the pointers below it cloned in turn.
+	 *
+	 * @param num
+	 *            block number (0 for a hole)
+	 * @param levels
+	 *            levels of indirection below num (0 for a direct block)
+	 * @return block number for the clone to point at (0 for a hole), or -1
+	 *         if the file system is full, in which case nothing is left
+	 *         allocated
+	 */
+	private int cloneBlocks(int num, int levels) {
+		if (num == 0)
+			return 0;
+		if (levels == 0 && freeMap.addRef(num))
+			return num;
+		int copy = freeMap.find(num);
+		if (copy == 0)
+			return -1;
+		if (levels == 0) {
+			byte[] data = new byte[Disk.BLOCK_SIZE];
+			disk.read(num, data);
+			disk.write(copy, data);
+			return copy;
+		}
+		IndirectBlock block = new IndirectBlock();
+		disk.read(num, block);
+		for (int i = 0; i < IndirectBlock.COUNT; ++i) {
+			if ((block.ptr[i] = cloneBlocks(block.ptr[i], levels - 1)) < 0) {
+				Arrays.fill(block.ptr, i, IndirectBlock.COUNT, 0);
+				disk.write(copy, block);
+				freeBlocks(copy, levels);
+				return -1;
+			}
+		}
+		disk.write(copy, block);
+		return copy;
+	}
+
+	/**
+	 * Free a block and, if it is an indirect block, every block below it.
+	 *
+	 * @param num
+	 *            block number
+	 * @param levels
+	 *            levels of indirection below num (0 for a direct block)
+	 */
+	private void freeBlocks(int num, int levels) {
+		if (levels > 0) {
+			IndirectBlock block = new IndirectBlock();
+			disk.read(num, block);
+			for (int i = 0; i < IndirectBlock.COUNT; ++i)
+				if (block.ptr[i] != 0)
+					freeBlocks(block.ptr[i], levels - 1);
+		}
+		freeMap.clear(num);
+		clusterCache.remove(num);
 	}
 
 	/**
@@ -697,7 +2480,7 @@ public class MyFileSystem implements FileSystem {
 	 * @return int block number of InodeBlock
 	 */
 	private int inumberToBlockNum(int inumber) {
-		return superBlock.iblock0() + (inumber - 1) / InodeBlock.COUNT;
+		return superBlock.inodeBlock((inumber - 1) / InodeBlock.COUNT);
 	}
 
 	/**
@@ -0,0 +1,324 @@
+package fileSystem;
+import java.io.*;
+import java.util.*;
+
+/**
+ * A test file (see Shell) compiled for fast replay.
+ *
+ * Every command becomes STRIDE ints in ops: the opcode, the variable
+ * slot the result is assigned to (-1 if none), a mask telling which
+ * arguments are variable slots rather than constants, and up to three
+ * arguments. Variable names are resolved to slots once, when the file
+ * is compiled, and the buffers for reads and writes of a constant size
+ * are built then too (one for all ops with the same size and pattern).
+ * Comments, blank lines, vars and help compile to nothing, and quit
+ * ends the plan. Arguments past ARGS are optional and default to 0 (the
+ * flags of format). backup and restore are refused: they work on files
+ * outside the file system and remount the disk under the plan.
+ *
+ * A plan keeps its buffers and variables, so it can only be run by one
+ * thread at a time.
+ */
+public class Plan {
+    public static final int FORMAT   = 0;
+    public static final int SHUTDOWN = 1;
+    public static final int CREATE   = 2;
+    public static final int OPEN     = 3;
+    public static final int INUMBER  = 4;
+    public static final int READ     = 5;
+    public static final int WRITE    = 6;
+    public static final int SEEK     = 7;
+    public static final int CLOSE    = 8;
+    public static final int DELETE   = 9;
+    public static final int TRUNCATE = 10;
+    public static final int ALLOCATE = 11;
+    public static final String[] NAMES = {
+        "format", "shutdown", "create", "open", "inumber",
+        "read", "write", "seek", "close", "delete", "truncate", "allocate"
+    };
+    private static final int[] ARGS = { 2, 0, 0, 1, 1, 2, 3, 3, 1, 1, 2, 3 };
+    private static final int[] MAX_ARGS = { 3, 0, 0, 1, 1, 2, 3, 3, 1, 1, 2, 3 };
+
+    private static final int STRIDE = 6;
+    private static final int OP     = 0;
+    private static final int TARGET = 1;
+    private static final int MASK   = 2;
+    private static final int ARG    = 3;
+
+    private int[]    ops;
+    private int      count;      // number of ops
+    private byte[][] buffers;    // per op, null unless size is constant
+    private String[] patterns;   // per op, pattern of a write
+    private int[]    vars;
+
+    private Plan(int[] ops, int count, byte[][] buffers,
+                 String[] patterns, int nvars) {
+        this.ops      = ops;
+        this.count    = count;
+        this.buffers  = buffers;
+        this.patterns = patterns;
+        this.vars     = new int[nvars];
+    }
+
+    /**
+     * Compile a test file.
+     *
+     * @param  in   contents of the test file
+     * @param  name name of the test file, for error messages
+     * @return      the plan
+     * @throws IllegalArgumentException if a line is not a valid command
+     */
+    public static Plan compile(Reader in, String name) throws IOException {
+        BufferedReader data = new BufferedReader(in);
+        Map<String, Integer> slots = new HashMap<String, Integer>();
+        int[] ops = new int[STRIDE * 64];
+        List<byte[]> buffers = new ArrayList<byte[]>();
+        List<String> patterns = new ArrayList<String>();
+        Map<String, byte[]> shared = new HashMap<String, byte[]>();
+        int count = 0;
+
+        String line;
+        for(int lineNum = 1; (line = data.readLine()) != null; ++lineNum) {
+            line = line.trim();
+            if(line.length() == 0 || line.startsWith("//") ||
+               line.startsWith("/*"))
+                continue;
+
+            String target = null;
+            int equals = line.indexOf('=');
+            if(equals > 0) {
+                target = line.substring(0, equals).trim();
+                line = line.substring(equals + 1).trim();
+            }
+            StringTokenizer cmds = new StringTokenizer(line);
+            if(! cmds.hasMoreTokens())
+                throw error(name, lineNum, "missing command");
+            String cmd = cmds.nextToken().toLowerCase();
+            if(cmd.equals("quit"))
+                break;
+            if(cmd.equals("vars") || cmd.equals("help"))
+                continue;
+            if(cmd.equals("backup") || cmd.equals("restore"))
+                throw error(name, lineNum, cmd + " cannot be replayed");
+            int op = opcode(cmd);
+            if(op < 0)
+                throw error(name, lineNum, "unknown command " + cmd);
+
+            if(ops.length < STRIDE * (count + 1))
+                ops = Arrays.copyOf(ops, ops.length * 2);
+            int base = STRIDE * count;
+            ops[base + OP] = op;
+            ops[base + MASK] = 0;
+            String pattern = null;
+            for(int i = 0; i < MAX_ARGS[op]; ++i) {
+                if(! cmds.hasMoreTokens() && i >= ARGS[op]) {
+                    ops[base + ARG + i] = 0;
+                    continue;
+                }
+                if(! cmds.hasMoreTokens())
+                    throw error(name, lineNum, "too few arguments");
+                String arg = cmds.nextToken();
+                if(op == WRITE && i == 1) {
+                    pattern = arg;
+                    continue;
+                }
+                Integer slot = slots.get(arg);
+                if(slot != null) {
+                    ops[base + MASK] |= 1 << i;
+                    ops[base + ARG + i] = slot;
+                } else {
+                    try {
+                        ops[base + ARG + i] = Integer.parseInt(arg);
+                    } catch(NumberFormatException e) {
+                        throw error(name, lineNum, "bad argument " + arg);
+                    }
+                }
+            }
+            if(cmds.hasMoreTokens())
+                throw error(name, lineNum, "too many arguments");
+
+            // The buffer of a read or write is its last argument
+            byte[] buffer = null;
+            int sizeArg = op == READ ? 1 : 2;
+            if((op == READ || op == WRITE) &&
+               (ops[base + MASK] & 1 << sizeArg) == 0) {
+                int size = ops[base + ARG + sizeArg];
+                if(size < 0)
+                    throw error(name, lineNum, "bad size " + size);
+                String key = op == READ ? "r " + size
+                                        : "w " + size + " " + pattern;
+                buffer = shared.get(key);
+                if(buffer == null)
+                    shared.put(key, buffer = op == READ ? new byte[size]
+                                                        : fill(pattern, size));
+            }
+            buffers.add(buffer);
+            patterns.add(pattern);
+
+            if(target == null) {
+                ops[base + TARGET] = -1;
+            } else {
+                Integer slot = slots.get(target);
+                if(slot == null)
+                    slots.put(target, slot = slots.size());
+                ops[base + TARGET] = slot;
+            }
+            ++count;
+        }
+        return new Plan(ops, count,
+                        buffers.toArray(new byte[count][]),
+                        patterns.toArray(new String[count]), slots.size());
+    }
+
+    /**
+     * Number of operations in the plan.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Run every operation of the plan against fs, in order.
+     *
+     * @param  fs    file system to run against
+     * @param  stats receives the latency of each operation
+     * @return       number of operations that returned -1
+     */
+    public int run(FileSystem fs, Stats stats) throws IOException {
+        int failed = 0;
+        for(int base = 0; base < STRIDE * count; base += STRIDE) {
+            int op = ops[base + OP];
+            int a = arg(base, 0), b = arg(base, 1), c = arg(base, 2);
+            long start = System.nanoTime();
+            int result;
+            switch(op) {
+                case FORMAT:   result = format(fs, a, b, c);            break;
+                case SHUTDOWN: result = fs.shutdown();                  break;
+                case CREATE:   result = fs.create();                    break;
+                case OPEN:     result = fs.open(a);                     break;
+                case INUMBER:  result = fs.inumber(a);                  break;
+                case READ:     result = fs.read(a, buffer(base, b));    break;
+                case WRITE:    result = fs.write(a, buffer(base, c));   break;
+                case SEEK:     result = fs.seek(a, b, whence(c));       break;
+                case CLOSE:    result = fs.close(a);                    break;
+                case TRUNCATE: result = fs.truncate(a, b);              break;
+                case ALLOCATE: result = fs.allocate(a, b, c);           break;
+                default:       result = fs.delete(a);                   break;
+            }
+            stats.add(op, System.nanoTime() - start);
+            if(result == -1)
+                ++failed;
+            if(ops[base + TARGET] >= 0)
+                vars[ops[base + TARGET]] = result;
+        }
+        return failed;
+    }
+
+    private static int format(FileSystem fs, int size, int isize, int flags)
+        throws IOException {
+        if(flags == 0)
+            return fs.formatDisk(size, isize);
+        if(! (fs instanceof MyFileSystem)) {
+            System.err.println("Format flags need a MyFileSystem");
+            return -1;
+        }
+        return ((MyFileSystem)fs).formatDisk(size, isize, flags);
+    }
+
+    private int arg(int base, int i) {
+        int value = ops[base + ARG + i];
+        return (ops[base + MASK] & 1 << i) != 0 ? vars[value] : value;
+    }
+
+    /**
+     * Get the buffer of a read or write, building it now if its size
+     * comes from a variable.
+     */
+    private byte[] buffer(int base, int size) {
+        int i = base / STRIDE;
+        if(buffers[i] != null)
+            return buffers[i];
+        size = Math.max(size, 0);
+        return ops[base + OP] == READ ? new byte[size]
+                                      : fill(patterns[i], size);
+    }
+
+    private static byte[] fill(String pattern, int size) {
+        byte[] buffer = new byte[size];
+        for(int i = 0; i < size; ++i)
+            buffer[i] = (byte)pattern.charAt(i % pattern.length());
+        return buffer;
+    }
+
+    private static Whence whence(int seekCode) {
+        switch(seekCode) {
+            case 0:  return Whence.SEEK_SET;
+            case 2:  return Whence.SEEK_END;
+            default: return Whence.SEEK_CUR;
+        }
+    }
+
+    private static int opcode(String cmd) {
+        if(cmd.equals("formatdisk"))
+            return FORMAT;
+        for(int op = 0; op < NAMES.length; ++op)
+            if(NAMES[op].equals(cmd))
+                return op;
+        return -1;
+    }
+
+    private static IllegalArgumentException error(String name, int lineNum,
+                                                  String message) {
+        return new IllegalArgumentException(name + ":" + lineNum + ": " +
+                                            message);
+    }
+
+    /**
+     * Operation counts and latencies, by opcode.
+     */
+    public static class Stats {
+        public long[] count = new long[NAMES.length];
+        public long[] nanos = new long[NAMES.length];
+        public long[] max   = new long[NAMES.length];
+
+        public void add(int op, long elapsed) {
+            ++count[op];
+            nanos[op] += elapsed;
+            if(elapsed > max[op])
+                max[op] = elapsed;
+        }
+
+        public void add(Stats other) {
+            for(int op = 0; op < NAMES.length; ++op) {
+                count[op] += other.count[op];
+                nanos[op] += other.nanos[op];
+                max[op] = Math.max(max[op], other.max[op]);
+            }
+        }
+
+        public long total() {
+            long total = 0;
+            for(int op = 0; op < NAMES.length; ++op)
+                total += count[op];
+            return total;
+        }
+
+        /**
+         * Print the number of operations per second over elapsed
+         * nanoseconds of wall-clock time, then the latency of each
+         * kind of operation.
+         */
+        public void print(PrintStream out, long elapsed) {
+            long total = total();
+            out.printf("%d ops in %.3f s: %.0f ops/sec%n", total,
+                       elapsed / 1e9, total * 1e9 / Math.max(elapsed, 1));
+            out.printf("    %-10s %10s %12s %12s%n",
+                       "op", "count", "mean us", "max us");
+            for(int op = 0; op < NAMES.length; ++op)
+                if(count[op] > 0)
+                    out.printf("    %-10s %10d %12.2f %12.2f%n", NAMES[op],
+                               count[op], nanos[op] / 1e3 / count[op],
+                               max[op] / 1e3);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package fileSystem;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counts the blocks used by each owner of files and holds their soft
+ * and hard limits, for a file system formatted with SuperBlock.QUOTA.
+ *
+ * The table is one block (superBlock.quotas) with an entry of ENTRY
+ * bytes per owner: owner, blocks used, soft limit and hard limit (0
+ * for no limit). It is kept in memory by the FreeMap, which charges an
+ * owner whenever it hands out or frees a block for them (see
+ * FreeMap.owner), and written back by FreeMap.save, so keeping the
+ * counts costs no disk reads. A block that files share (through
+ * deduplication or cloning) counts once for every file pointing at it.
+ *
+ * Going over the soft limit prints a warning; the hard limit cannot be
+ * exceeded.
+ */
+public class QuotaTable {
+    public static final int NONE   = -1; // charge nobody
+    public static final int ENTRY  = 16; // bytes per owner
+    public static final int OWNERS = Disk.BLOCK_SIZE / ENTRY;
+
+    private int[] owner = new int[OWNERS];
+    private int[] used  = new int[OWNERS];
+    private int[] soft  = new int[OWNERS];
+    private int[] hard  = new int[OWNERS];
+    private int count;
+    private Map<Integer, Integer> slots = new HashMap<Integer, Integer>();
+    private boolean dirty;
+
+    /**
+     * Load a table from its block.
+     */
+    public QuotaTable(byte[] block) {
+        for(int i = 0; i < OWNERS; ++i) {
+            int off = i * ENTRY;
+            if(getInt(block, off + 4) == 0 && getInt(block, off + 8) == 0 &&
+               getInt(block, off + 12) == 0)
+                continue; // unused entry
+            owner[count] = getInt(block, off);
+            used[count]  = getInt(block, off + 4);
+            soft[count]  = getInt(block, off + 8);
+            hard[count]  = getInt(block, off + 12);
+            slots.put(owner[count], count);
+            ++count;
+        }
+    }
+
+    /**
+     * Store the table in a block.
+     */
+    public byte[] toBlock() {
+        byte[] block = new byte[Disk.BLOCK_SIZE];
+        for(int i = 0; i < count; ++i) {
+            int off = i * ENTRY;
+            putInt(block, off, owner[i]);
+            putInt(block, off + 4, used[i]);
+            putInt(block, off + 8, soft[i]);
+            putInt(block, off + 12, hard[i]);
+        }
+        return block;
+    }
+
+    /**
+     * Get the number of blocks used by owner.
+     */
+    public int usage(int owner) {
+        Integer i = slots.get(owner);
+        return i == null ? 0 : used[i];
+    }
+
+    /**
+     * Get the soft limit of owner (0 for none).
+     */
+    public int softLimit(int owner) {
+        Integer i = slots.get(owner);
+        return i == null ? 0 : soft[i];
+    }
+
+    /**
+     * Get the hard limit of owner (0 for none).
+     */
+    public int hardLimit(int owner) {
+        Integer i = slots.get(owner);
+        return i == null ? 0 : hard[i];
+    }
+
+    /**
+     * Set the limits of owner, in blocks (0 for none).
+     *
+     * @return false if the table has no room for another owner
+     */
+    public boolean setLimits(int owner, int soft, int hard) {
+        int i = slot(owner);
+        if(i < 0)
+            return false;
+        this.soft[i] = soft;
+        this.hard[i] = hard;
+        dirty = true;
+        return true;
+    }
+
+    /**
+     * Check whether owner may be charged count more blocks. Prints an
+     * error message if not.
+     */
+    public boolean mayCharge(int owner, int count) {
+        if(owner == NONE)
+            return true;
+        Integer i = slots.get(owner);
+        if(i == null && this.count == OWNERS) {
+            System.err.println("Quota table is full");
+            return false;
+        }
+        if(i != null && hard[i] != 0 && used[i] + count > hard[i]) {
+            System.err.println("Disk quota exceeded for owner " + owner);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Count delta more blocks (or fewer, if negative) as used by owner.
+     * Call mayCharge first when delta is positive.
+     */
+    public void charge(int owner, int delta) {
+        if(owner == NONE)
+            return;
+        int i = slot(owner);
+        if(i < 0)
+            return; // refused by mayCharge
+        if(delta > 0 && soft[i] != 0 && used[i] <= soft[i] &&
+           used[i] + delta > soft[i])
+            System.err.println("Owner " + owner + " is over its soft quota");
+        used[i] += delta;
+        dirty = true;
+    }
+
+    /**
+     * Check whether the table changed since it was last saved, and
+     * forget that it did.
+     */
+    public boolean takeDirty() {
+        boolean was = dirty;
+        dirty = false;
+        return was;
+    }
+
+    /**
+     * Find the entry of owner, adding one if it has none.
+     *
+     * @return index of the entry, or -1 if the table is full
+     */
+    private int slot(int owner) {
+        Integer i = slots.get(owner);
+        if(i != null)
+            return i;
+        if(count == OWNERS)
+            return -1;
+        this.owner[count] = owner;
+        slots.put(owner, count);
+        return count++;
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return (b[off] & 0xff) << 24 | (b[off + 1] & 0xff) << 16 |
+               (b[off + 2] & 0xff) << 8 | (b[off + 3] & 0xff);
+    }
+
+    private static void putInt(byte[] b, int off, int value) {
+        b[off]     = (byte)(value >>> 24);
+        b[off + 1] = (byte)(value >>> 16);
+        b[off + 2] = (byte)(value >>> 8);
+        b[off + 3] = (byte)value;
+    }
+}
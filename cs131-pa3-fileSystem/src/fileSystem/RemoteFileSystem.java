@@ -0,0 +1,295 @@
+package fileSystem;
+import java.io.*;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A FileSystem served by a FileServer in another process (or thread).
+ *
+ * Each FileSystem call is sent as a frame of its own and waits for its
+ * result. To save round trips, several calls can be sent as one frame
+ * with a Batch, and several batches can be sent before their results
+ * are received:
+ *
+ * <pre>
+ * RemoteFileSystem.Batch a = remote.batch().write(fd, x).write(fd, y);
+ * RemoteFileSystem.Batch b = remote.batch().seek(fd, 0, Whence.SEEK_SET)
+ *                                          .read(fd, buf);
+ * a.send();
+ * b.send();
+ * int[] ra = remote.receive();  // results of a
+ * int[] rb = remote.receive();  // results of b; buf is filled in
+ * </pre>
+ *
+ * The server stops reading once it cannot write its responses, so a
+ * client should not send many more frames than it receives.
+ *
+ * Not thread-safe; use one RemoteFileSystem per thread.
+ */
+public class RemoteFileSystem implements FileSystem {
+    private final SocketChannel channel;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final Deque<Batch> sent = new ArrayDeque<Batch>();
+
+    /**
+     * @param channel connected channel to a FileServer, closed by
+     *                shutdown()
+     */
+    public RemoteFileSystem(SocketChannel channel) {
+        this.channel = channel;
+        in = new DataInputStream(
+            new BufferedInputStream(Channels.newInputStream(channel)));
+        out = new DataOutputStream(
+            new BufferedOutputStream(Channels.newOutputStream(channel)));
+    }
+
+    /**
+     * Connect to a FileServer on the Unix domain socket at path.
+     *
+     * @throws UnsupportedOperationException if the JVM has no Unix domain
+     *         sockets (before Java 16)
+     */
+    public static RemoteFileSystem connect(File path) throws IOException {
+        return connect((SocketChannel)FileServer.openUnix(SocketChannel.class),
+                       FileServer.unixAddress(path));
+    }
+
+    /**
+     * Connect to a FileServer at address (FileServer.getAddress()).
+     */
+    public static RemoteFileSystem connect(SocketAddress address)
+        throws IOException {
+        return connect(SocketChannel.open(), address);
+    }
+
+    private static RemoteFileSystem connect(SocketChannel channel,
+                                            SocketAddress address)
+        throws IOException {
+        try {
+            channel.connect(address);
+        } catch(IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new RemoteFileSystem(channel);
+    }
+
+    /**
+     * Calls sent to the server as one frame. Each method adds a call and
+     * returns the batch, so that calls can be chained.
+     */
+    public class Batch {
+        private final ByteArrayOutputStream bytes =
+            new ByteArrayOutputStream();
+        private final DataOutputStream frame = new DataOutputStream(bytes);
+        private final List<byte[]> reads = new ArrayList<byte[]>();
+        private int count;
+
+        private Batch op(byte op, byte[] read) throws IOException {
+            frame.writeByte(op);
+            reads.add(read);
+            ++count;
+            return this;
+        }
+
+        public Batch formatDisk(int size, int isize) throws IOException {
+            op(FileServer.FORMAT, null);
+            frame.writeInt(size);
+            frame.writeInt(isize);
+            return this;
+        }
+
+        public Batch create() throws IOException {
+            return op(FileServer.CREATE, null);
+        }
+
+        public Batch open(int inumber) throws IOException {
+            op(FileServer.OPEN, null);
+            frame.writeInt(inumber);
+            return this;
+        }
+
+        public Batch inumber(int fd) throws IOException {
+            op(FileServer.INUMBER, null);
+            frame.writeInt(fd);
+            return this;
+        }
+
+        /**
+         * @param buffer filled in by receive()
+         */
+        public Batch read(int fd, byte[] buffer) throws IOException {
+            op(FileServer.READ, buffer);
+            frame.writeInt(fd);
+            frame.writeInt(buffer.length);
+            return this;
+        }
+
+        public Batch write(int fd, byte[] buffer) throws IOException {
+            op(FileServer.WRITE, null);
+            frame.writeInt(fd);
+            frame.writeInt(buffer.length);
+            frame.write(buffer);
+            return this;
+        }
+
+        public Batch seek(int fd, int offset, Whence whence)
+            throws IOException {
+            op(FileServer.SEEK, null);
+            frame.writeInt(fd);
+            frame.writeInt(offset);
+            frame.writeByte(whence.ordinal());
+            return this;
+        }
+
+        public Batch truncate(int fd, int size) throws IOException {
+            op(FileServer.TRUNCATE, null);
+            frame.writeInt(fd);
+            frame.writeInt(size);
+            return this;
+        }
+
+        public Batch allocate(int fd, int offset, int length)
+            throws IOException {
+            op(FileServer.ALLOCATE, null);
+            frame.writeInt(fd);
+            frame.writeInt(offset);
+            frame.writeInt(length);
+            return this;
+        }
+
+        public Batch close(int fd) throws IOException {
+            op(FileServer.CLOSE, null);
+            frame.writeInt(fd);
+            return this;
+        }
+
+        public Batch delete(int inumber) throws IOException {
+            op(FileServer.DELETE, null);
+            frame.writeInt(inumber);
+            return this;
+        }
+
+        /**
+         * Send the calls without waiting for their results; receive()
+         * gets them.
+         */
+        public void send() throws IOException {
+            out.writeInt(count);
+            bytes.writeTo(out);
+            out.flush();
+            sent.add(this);
+        }
+
+        /**
+         * Send the calls and wait for their results.
+         */
+        public int[] run() throws IOException {
+            if(! sent.isEmpty())
+                throw new IllegalStateException("Results not received");
+            send();
+            return receive();
+        }
+    }
+
+    /**
+     * Start a batch of calls.
+     */
+    public Batch batch() {
+        return new Batch();
+    }
+
+    /**
+     * Count the batches sent and not received yet.
+     */
+    public int pending() {
+        return sent.size();
+    }
+
+    /**
+     * Wait for the results of the oldest batch sent and not received
+     * yet, filling in the buffers of its reads.
+     *
+     * @return the result of each call of the batch
+     */
+    public int[] receive() throws IOException {
+        Batch batch = sent.poll();
+        if(batch == null)
+            throw new IllegalStateException("No batch sent");
+        int count = in.readInt();
+        if(count != batch.count)
+            throw new IOException("Got " + count + " results for " +
+                                  batch.count + " calls");
+        int[] results = new int[count];
+        for(int i = 0; i < count; ++i) {
+            results[i] = in.readInt();
+            byte[] buffer = batch.reads.get(i);
+            if(buffer != null && results[i] > 0) {
+                if(results[i] > buffer.length)
+                    throw new IOException("Read " + results[i] +
+                                          " bytes into " + buffer.length);
+                in.readFully(buffer, 0, results[i]);
+            }
+        }
+        return results;
+    }
+
+    public int formatDisk(int size, int isize) throws IOException {
+        return batch().formatDisk(size, isize).run()[0];
+    }
+
+    /**
+     * Close the connection. The server closes the files it left open;
+     * the file system itself stays up.
+     */
+    public int shutdown() throws IOException {
+        channel.close();
+        return 0;
+    }
+
+    public int create() throws IOException {
+        return batch().create().run()[0];
+    }
+
+    public int open(int inumber) throws IOException {
+        return batch().open(inumber).run()[0];
+    }
+
+    public int inumber(int fd) throws IOException {
+        return batch().inumber(fd).run()[0];
+    }
+
+    public int read(int fd, byte[] buffer) throws IOException {
+        return batch().read(fd, buffer).run()[0];
+    }
+
+    public int write(int fd, byte[] buffer) throws IOException {
+        return batch().write(fd, buffer).run()[0];
+    }
+
+    public int seek(int fd, int offset, Whence whence) throws IOException {
+        return batch().seek(fd, offset, whence).run()[0];
+    }
+
+    public int truncate(int fd, int size) throws IOException {
+        return batch().truncate(fd, size).run()[0];
+    }
+
+    public int allocate(int fd, int offset, int length) throws IOException {
+        return batch().allocate(fd, offset, length).run()[0];
+    }
+
+    public int close(int fd) throws IOException {
+        return batch().close(fd).run()[0];
+    }
+
+    public int delete(int inumber) throws IOException {
+        return batch().delete(inumber).run()[0];
+    }
+}
@@ -0,0 +1,53 @@
+package fileSystem;
+import java.io.IOException;
+
+/**
+ * Cleans the segments of a log-structured MyFileSystem in the
+ * background, a few at a time, so that writes seldom have to wait for
+ * the cleaner themselves (see MyFileSystem.clean).
+ *
+ * MyFileSystem is not thread-safe, so every other thread has to use the
+ * file system through the same lock, normally a SynchronizedFileSystem
+ * wrapping it:
+ *
+ * <pre>
+ * SynchronizedFileSystem shared = new SynchronizedFileSystem(fs);
+ * new SegmentCleaner(fs, shared, 100).start();
+ * </pre>
+ */
+public class SegmentCleaner extends Thread {
+    private static final int BATCH = 4; // segments per pass
+
+    private final MyFileSystem fs;
+    private final Object lock;
+    private final long period;
+
+    /**
+     * @param fs     log-structured file system to clean
+     * @param lock   lock held by every other user of fs
+     * @param period milliseconds to wait between passes
+     */
+    public SegmentCleaner(MyFileSystem fs, Object lock, long period) {
+        super("segment-cleaner");
+        this.fs     = fs;
+        this.lock   = lock;
+        this.period = period;
+        setDaemon(true);
+    }
+
+    public void run() {
+        try {
+            while(! isInterrupted()) {
+                Thread.sleep(period);
+                synchronized(lock) {
+                    if(fs.clean(BATCH) < 0)
+                        return;
+                }
+            }
+        } catch(InterruptedException e) {
+            // stopped
+        } catch(IOException e) {
+            System.err.println("Segment cleaner failed: " + e);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package fileSystem;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Basic driver program to be used to test your FileSystem implementation.
@@ -10,10 +11,12 @@ import java.util.*;
  *   <li>class MyFileSystem implements FileSystem</li>
  * </ul>
  * 
- * It can be run in two modes:
+ * It can be run in three modes:
  * <dl>
  *   <dt>Interactive</dt>
  *   <dt>With a test file</dt>
+ *   <dt>Replaying test files (-replay [-threads n] [-model hdd|ssd]
+ *       file...)</dt>
  * </dl>
  * 
  * To get a list of supported commands, type 'help' at the command line.
@@ -23,6 +26,15 @@ import java.util.*;
  * line) as well as comments.  Comments beginning with /* will be
  * ignored completely by the driver.  Comments beginning with // will
  * be echoed to the output.  See the sample testfile for an example.
+ *
+ * In replay mode each test file is compiled into a Plan first and then
+ * run without printing results, and the number of operations per
+ * second and the latency of each kind of operation are reported. With
+ * -model, the time a hard disk or SSD would have spent on the blocks
+ * read and written is reported too (see LatencyModel). Each
+ * file is an independent stream of operations; with -threads, the
+ * streams run on that many threads against a SynchronizedFileSystem
+ * (so they should not format the disk or share variables).
  */
 public class Shell {
     // File System object to be used for the function calls
@@ -53,8 +65,14 @@ public class Shell {
 
     public static void main(String [] args){
 
+        if (args.length > 0 && args[0].equals("-replay")) {
+            replay(args);
+            return;
+        }
+
         // Check for correct number of arguments
-        if (args.length > 1) System.err.println ("Usage: Prog3 [filename]");
+        if (args.length > 1) System.err.println ("Usage: Prog3 [filename]\n" +
+            "       Prog3 -replay [-threads n] [-model hdd|ssd] filename...");
 
         // Is the input coming from a file
         boolean fromFile = (args.length==1);
@@ -131,7 +149,18 @@ public class Shell {
                 {
                     int arg1 = nextValue(cmds);
                     int arg2 = nextValue(cmds);
-                    result = fs.formatDisk(arg1,arg2);
+                    if (cmds.hasMoreTokens()) {
+                        int flags = nextValue(cmds);
+                        if (fs instanceof MyFileSystem)
+                            result = ((MyFileSystem)fs).formatDisk(arg1,arg2,
+                                                                  flags);
+                        else {
+                            System.err.println("Format flags need a MyFileSystem");
+                            result = -1;
+                        }
+                    }
+                    else
+                        result = fs.formatDisk(arg1,arg2);
                 }
                 else if (cmd.equalsIgnoreCase("shutdown")) {
                     result = fs.shutdown();
@@ -162,12 +191,31 @@ public class Shell {
                     int arg3 = nextValue(cmds);
                     result = fs.seek(arg1,arg2,seekCodeToWhence(arg3));
                 } 
+                else if (cmd.equalsIgnoreCase("truncate")) {
+                    int arg1 = nextValue(cmds);
+                    int arg2 = nextValue(cmds);
+                    result = fs.truncate(arg1,arg2);
+                } 
+                else if (cmd.equalsIgnoreCase("allocate")) {
+                    int arg1 = nextValue(cmds);
+                    int arg2 = nextValue(cmds);
+                    int arg3 = nextValue(cmds);
+                    result = fs.allocate(arg1,arg2,arg3);
+                } 
                 else if (cmd.equalsIgnoreCase("close")) {
                     result = fs.close(nextValue(cmds));
                 } 
                 else if (cmd.equalsIgnoreCase("delete")) {
                     result = fs.delete(nextValue(cmds));
                 } 
+                else if (cmd.equalsIgnoreCase("backup")) {
+                    String arg1 = cmds.nextToken();
+                    String arg2 = cmds.nextToken();
+                    result = backup(arg1,arg2.equalsIgnoreCase("full"));
+                } 
+                else if (cmd.equalsIgnoreCase("restore")) {
+                    result = restore(cmds.nextToken());
+                } 
                 else if (cmd.equalsIgnoreCase("quit")) {
                     System.exit(0);
                 } 
@@ -210,6 +258,103 @@ public class Shell {
         }
     }
 
+    /** replay compiles the test files named in args, runs them and
+     ** reports how long the operations took.
+     **/
+    private static void replay(String[] args) {
+        int threads = 1;
+        int first = 1;
+        LatencyModel model = null;
+        boolean bad = false;
+        while (first + 1 < args.length && args[first].startsWith("-")) {
+            if (args[first].equals("-threads")) {
+                try {
+                    threads = Integer.parseInt(args[first + 1]);
+                } catch (NumberFormatException e) {
+                    threads = 0;
+                }
+            } else if (args[first].equals("-model")
+                       && args[first + 1].equals("hdd")) {
+                model = new LatencyModel.Rotating();
+            } else if (args[first].equals("-model")
+                       && args[first + 1].equals("ssd")) {
+                model = new LatencyModel.Solid();
+            } else {
+                bad = true;
+            }
+            first += 2;
+        }
+        if (bad || threads < 1 || first >= args.length) {
+            System.err.println("Usage: Prog3 -replay [-threads n] " +
+                               "[-model hdd|ssd] filename...");
+            System.exit(1);
+        }
+
+        final Plan[] plans = new Plan[args.length - first];
+        Disk disk = null;
+        try {
+            for (int i = 0; i < plans.length; i++) {
+                Reader in = new FileReader(args[first + i]);
+                try {
+                    plans[i] = Plan.compile(in, args[first + i]);
+                } finally {
+                    in.close();
+                }
+            }
+            MyFileSystem mine = new MyFileSystem();
+            mine.disk.setModel(model);
+            disk = mine.disk;
+            fs = mine;
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.println(e);
+            System.exit(1);
+        }
+        if (threads > 1)
+            fs = new SynchronizedFileSystem(fs);
+
+        final Plan.Stats[] stats = new Plan.Stats[plans.length];
+        final int[] failed = new int[plans.length];
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> done = new ArrayList<Future<?>>();
+        long start = System.nanoTime();
+        for (int i = 0; i < plans.length; i++) {
+            final int stream = i;
+            stats[i] = new Plan.Stats();
+            done.add(pool.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    failed[stream] = plans[stream].run(fs, stats[stream]);
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<?> f : done)
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.err.println(e.getCause());
+        }
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+
+        Plan.Stats total = new Plan.Stats();
+        int errors = 0;
+        for (int i = 0; i < plans.length; i++) {
+            total.add(stats[i]);
+            errors += failed[i];
+        }
+        total.print(System.out, elapsed);
+        System.out.println("    " + errors + " ops returned -1");
+        if (model != null)
+            System.out.println("    " + model + ": " +
+                               disk.getTime() / 1000000 +
+                               " ms of device time");
+    }
+
     /** Helper function for main, to interpret a command argument */
     static private int nextValue(StringTokenizer cmds)
     {
@@ -223,7 +368,7 @@ public class Shell {
      ** the system.
      **/
     private static void help() {
-        System.out.println ("\tformatDisk size isize");
+        System.out.println ("\tformatDisk size isize [flags]");
         System.out.println ("\tshutdown");
         System.out.println ("\tcreate");
         System.out.println ("\topen inum");
@@ -231,13 +376,59 @@ public class Shell {
         System.out.println ("\tread fd size");
         System.out.println ("\twrite fd pattern size");
         System.out.println ("\tseek fd offset whence");
+        System.out.println ("\ttruncate fd size");
+        System.out.println ("\tallocate fd offset length");
         System.out.println ("\tclose fd");
         System.out.println ("\tdelete inum");
+        System.out.println ("\tbackup file full|changes");
+        System.out.println ("\trestore file");
         System.out.println ("\tquit");
         System.out.println ("\tvars");
         System.out.println ("\thelp");
     }
 
+    /** backup writes an image of the file system to a file: every block
+     ** in use, or only those changed since the last backup (see Backup).
+     ** It returns the number of blocks written or -1 on error.
+     **/
+    private static int backup(String file, boolean full) throws IOException {
+        if (! (fs instanceof MyFileSystem)) {
+            System.err.println("Backups need a MyFileSystem");
+            return -1;
+        }
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            return Backup.export((MyFileSystem)fs, fs, out, full);
+        } finally {
+            out.close();
+        }
+    }
+
+    /** restore applies an image written by backup to the device of the
+     ** file system and mounts the device again; files left open are
+     ** saved and then dropped. It returns the number of blocks restored or -1 on error.
+     **/
+    private static int restore(String file) throws IOException {
+        if (! (fs instanceof MyFileSystem)) {
+            System.err.println("Restores need a MyFileSystem");
+            return -1;
+        }
+        // Save what is open first, so that a rejected image leaves the
+        // file system as it was. The device stays open: a stopped device
+        // cannot be reused.
+        MyFileSystem mine = (MyFileSystem)fs;
+        if (mine.checkpoint() < 0)
+            return -1;
+        BlockDevice device = mine.disk.getDevice();
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            return Backup.apply(device, in);
+        } finally {
+            in.close();
+            fs = new MyFileSystem(new Disk(device));
+        }
+    }
+
     /** readTest will read in a buffer from the disk and print the contents
      ** to the screen.  It will return the number of bytes read or a -1 on
      ** error.
@@ -0,0 +1,165 @@
+package fileSystem;
+/**
+ * A read-only, point-in-time image of the whole file system.
+ *
+ * Taking a snapshot copies only the free map: every block in use at
+ * that moment stays set in the snapshot's map, so FreeMap will not
+ * hand it out again and MyFileSystem copies it before writing to
+ * it. Inode blocks live at fixed locations and cannot be redirected,
+ * so the live file system instead preserves the old contents of an
+ * inode block the first time it rewrites one; inodeMap records where
+ * each preserved copy went (0 while the inode block is unchanged).
+ *
+ * On disk a snapshot is described by a descriptor block (laid out
+ * like an IndirectBlock) holding the number of map blocks, the number
+ * of inode map blocks, and then the block numbers of both.
+ */
+public class Snapshot {
+    public int      id;
+    public int      descriptor;
+    public byte[][] map;
+    public int[]    inodeMap;
+    public int[]    mapBlocks;
+    public int[]    inodeMapBlocks;
+
+    public Snapshot(int id, int descriptor, int[] mapBlocks,
+                    int[] inodeMapBlocks, byte[][] map, int isize) {
+        this.id             = id;
+        this.descriptor     = descriptor;
+        this.mapBlocks      = mapBlocks;
+        this.inodeMapBlocks = inodeMapBlocks;
+        this.map            = map;
+        this.inodeMap       = new int[isize];
+    }
+
+    /**
+     * Number of blocks needed to store the free map copy.
+     */
+    public static int mapSize(SuperBlock superBlock) {
+        return superBlock.msize + 1;
+    }
+
+    /**
+     * Number of IndirectBlocks needed to store the inode map.
+     */
+    public static int inodeMapSize(SuperBlock superBlock) {
+        return (superBlock.isize + IndirectBlock.COUNT - 1) /
+            IndirectBlock.COUNT;
+    }
+
+    /**
+     * Check that the block numbers of a snapshot fit in its descriptor.
+     */
+    public static boolean fits(SuperBlock superBlock) {
+        return 2 + mapSize(superBlock) + inodeMapSize(superBlock) <=
+            IndirectBlock.COUNT;
+    }
+
+    /**
+     * Read a snapshot back from its descriptor block.
+     *
+     * @param  disk       disk holding the snapshot
+     * @param  id         id of the snapshot
+     * @param  descriptor block number of the descriptor block
+     * @param  superBlock SuperBlock of the file system
+     * @return            the snapshot
+     */
+    public static Snapshot load(Disk disk, int id, int descriptor,
+                                SuperBlock superBlock) {
+        IndirectBlock block = new IndirectBlock();
+        disk.read(descriptor, block);
+        int[] mapBlocks      = new int[block.ptr[0]];
+        int[] inodeMapBlocks = new int[block.ptr[1]];
+        System.arraycopy(block.ptr, 2, mapBlocks, 0, mapBlocks.length);
+        System.arraycopy(block.ptr, 2 + mapBlocks.length,
+                         inodeMapBlocks, 0, inodeMapBlocks.length);
+
+        byte[][] map = new byte[mapBlocks.length][];
+        FreeMapBlock mapBlock = new FreeMapBlock();
+        for(int i = 0; i < mapBlocks.length; ++i) {
+            disk.read(mapBlocks[i], mapBlock);
+            map[i] = new byte[i == 0 ? superBlock.freeMap.length
+                                     : Disk.BLOCK_SIZE];
+            System.arraycopy(mapBlock.map, 0, map[i], 0, map[i].length);
+        }
+
+        Snapshot snapshot = new Snapshot(id, descriptor, mapBlocks,
+                                         inodeMapBlocks, map,
+                                         superBlock.isize);
+        for(int i = 0; i < inodeMapBlocks.length; ++i) {
+            disk.read(inodeMapBlocks[i], block);
+            int n = Math.min(IndirectBlock.COUNT,
+                             superBlock.isize - i * IndirectBlock.COUNT);
+            System.arraycopy(block.ptr, 0, snapshot.inodeMap,
+                             i * IndirectBlock.COUNT, n);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Write the descriptor, the free map copy and the inode map.
+     */
+    public void save(Disk disk) {
+        IndirectBlock block = new IndirectBlock();
+        block.ptr[0] = mapBlocks.length;
+        block.ptr[1] = inodeMapBlocks.length;
+        System.arraycopy(mapBlocks, 0, block.ptr, 2, mapBlocks.length);
+        System.arraycopy(inodeMapBlocks, 0, block.ptr, 2 + mapBlocks.length,
+                         inodeMapBlocks.length);
+        disk.write(descriptor, block);
+
+        FreeMapBlock mapBlock = new FreeMapBlock();
+        for(int i = 0; i < mapBlocks.length; ++i) {
+            Bitwise.clearAll(mapBlock.map);
+            System.arraycopy(map[i], 0, mapBlock.map, 0, map[i].length);
+            disk.write(mapBlocks[i], mapBlock);
+        }
+
+        for(int i = 0; i < inodeMapBlocks.length; ++i)
+            saveInodeMap(disk, i * IndirectBlock.COUNT);
+    }
+
+    /**
+     * Write the inode map block holding the entry for inode block k.
+     *
+     * @param disk disk holding the snapshot
+     * @param k    index of the inode block (0 is the first inode block)
+     */
+    public void saveInodeMap(Disk disk, int k) {
+        int i = k / IndirectBlock.COUNT;
+        IndirectBlock block = new IndirectBlock();
+        int n = Math.min(IndirectBlock.COUNT,
+                         inodeMap.length - i * IndirectBlock.COUNT);
+        System.arraycopy(inodeMap, i * IndirectBlock.COUNT, block.ptr, 0, n);
+        disk.write(inodeMapBlocks[i], block);
+    }
+
+    /**
+     * Find the block holding inode block k as of this snapshot.
+     *
+     * @param  k    index of the inode block (0 is the first inode block)
+     * @param  live block number of the live inode block
+     * @return      block number of the preserved copy, or live if the
+     *              inode block has not changed since the snapshot
+     */
+    public int inodeBlock(int k, int live) {
+        return inodeMap[k] != 0 ? inodeMap[k] : live;
+    }
+
+    /**
+     * List every block used to store this snapshot (not including
+     * preserved inode blocks, which may be shared between snapshots).
+     */
+    public int[] metadata() {
+        int[] blocks = new int[1 + mapBlocks.length + inodeMapBlocks.length];
+        blocks[0] = descriptor;
+        System.arraycopy(mapBlocks, 0, blocks, 1, mapBlocks.length);
+        System.arraycopy(inodeMapBlocks, 0, blocks, 1 + mapBlocks.length,
+                         inodeMapBlocks.length);
+        return blocks;
+    }
+
+    public String toString() {
+        return "Snapshot(id: " + id + ", descriptor: " + descriptor + ")";
+    }
+}
@@ -0,0 +1,156 @@
+package fileSystem;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * A BlockDevice striped across several devices (RAID-0).
+ *
+ * Blocks are dealt out in stripe units of unit consecutive blocks:
+ * the first unit goes to device 0, the next to device 1, and so on,
+ * wrapping around. Reading or writing several blocks at once groups
+ * them by device and runs the groups at the same time, one thread per
+ * device, so a large sequential transfer keeps every device busy.
+ *
+ * Closing a StripedBlockDevice stops its threads; to mount the volume
+ * again, stripe a new one across the same devices.
+ */
+public class StripedBlockDevice implements BlockDevice {
+    private final BlockDevice[] devices;
+    private final int unit;
+    private final ExecutorService io;
+
+    /**
+     * @param unit    number of consecutive blocks per device
+     * @param devices devices to stripe across
+     */
+    public StripedBlockDevice(int unit, BlockDevice... devices) {
+        if(unit < 1 || devices.length < 1)
+            throw new IllegalArgumentException("Bad stripe: " + unit +
+                                               " x " + devices.length);
+        this.unit    = unit;
+        this.devices = devices;
+        io = Executors.newFixedThreadPool(devices.length,
+                                          new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "stripe-io");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Stripe across files, one FileBlockDevice per path.
+     */
+    public static StripedBlockDevice open(int unit, File... paths)
+        throws IOException {
+        BlockDevice[] devices = new BlockDevice[paths.length];
+        for(int i = 0; i < paths.length; ++i)
+            devices[i] = new FileBlockDevice(paths[i]);
+        return new StripedBlockDevice(unit, devices);
+    }
+
+    private int device(int blockNum) {
+        return blockNum / unit % devices.length;
+    }
+
+    private int local(int blockNum) {
+        return blockNum / unit / devices.length * unit + blockNum % unit;
+    }
+
+    public void read(int blockNum, byte[] buffer) throws IOException {
+        devices[device(blockNum)].read(local(blockNum), buffer);
+    }
+
+    public void write(int blockNum, byte[] buffer) throws IOException {
+        devices[device(blockNum)].write(local(blockNum), buffer);
+    }
+
+    public void read(int[] blockNums, int count, byte[] buffer, int off)
+        throws IOException {
+        transfer(false, blockNums, count, buffer, off);
+    }
+
+    public void write(int[] blockNums, int count, byte[] buffer, int off)
+        throws IOException {
+        transfer(true, blockNums, count, buffer, off);
+    }
+
+    /**
+     * Split a multi-block transfer by device and run the parts in
+     * parallel. The blocks of one device keep their order, so that a
+     * file device sees a sequential stream.
+     */
+    private void transfer(final boolean write, int[] blockNums, int count,
+                          final byte[] buffer, final int off)
+        throws IOException {
+        final int[][] local = new int[devices.length][count];
+        final int[][] index = new int[devices.length][count];
+        final int[] n = new int[devices.length];
+        for(int i = 0; i < count; ++i) {
+            int d = device(blockNums[i]);
+            local[d][n[d]] = local(blockNums[i]);
+            index[d][n[d]++] = i;
+        }
+
+        List<Callable<Void>> parts = new ArrayList<Callable<Void>>();
+        for(int d = 0; d < devices.length; ++d) {
+            if(n[d] == 0)
+                continue;
+            final int dev = d;
+            parts.add(new Callable<Void>() {
+                public Void call() throws IOException {
+                    byte[] block = new byte[Disk.BLOCK_SIZE];
+                    for(int i = 0; i < n[dev]; ++i) {
+                        int at = off + index[dev][i] * Disk.BLOCK_SIZE;
+                        if(write) {
+                            System.arraycopy(buffer, at, block, 0,
+                                             block.length);
+                            devices[dev].write(local[dev][i], block);
+                        } else {
+                            devices[dev].read(local[dev][i], block);
+                            System.arraycopy(block, 0, buffer, at,
+                                             block.length);
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        if(parts.size() == 1) {
+            try {
+                parts.get(0).call();
+            } catch(IOException e) {
+                throw e;
+            } catch(Exception e) {
+                throw new IOException(e);
+            }
+            return;
+        }
+
+        try {
+            for(Future<Void> f : io.invokeAll(parts))
+                f.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    public void close(boolean discard) throws IOException {
+        io.shutdown();
+        for(BlockDevice device : devices)
+            device.close(discard);
+    }
+
+    public String toString() {
+        return "StripedBlockDevice(" + devices.length + " x " + unit + ")";
+    }
+}
@@ -1,36 +1,204 @@
 package fileSystem;
 /**
  * A disk block which stores information about a file system.
+ *
+ * The SuperBlock is followed by the freemap blocks. On a file system
+ * with one block group (groups <= 1) the inode blocks come next, and
+ * the data blocks after them. Otherwise the rest of the disk is split
+ * into groups equal runs of blocks, each starting with its share of
+ * the inode blocks, so that files can be kept close to their inodes;
+ * the free map then covers the inode blocks too (they are always in
+ * use).
+ *
+ * magic is MAGIC on every disk formatted with the current layout, and
+ * MAGIC changes whenever the layout does, so a disk formatted with an
+ * older layout is refused rather than misread (see MyFileSystem).
  */
 public class SuperBlock {
+    public static final int MAGIC      = 0x4d465302; // "MFS", layout 2
+
+    public static final int COMPRESSED = 1; // file data is compressed
+    public static final int DEDUP      = 2; // identical blocks are shared
+    public static final int LOG        = 4; // blocks are appended to segments
+    public static final int QUOTA      = 8; // blocks are counted per owner
+    public static final int CLONE      = 16; // files can share blocks
+    public static final int TRACK      = 32; // written blocks are tracked
+
     public int size;       // size of file system (in blocks)
     public int msize;      // number of blocks used by the free space map
     public int isize;      // number of inode blocks
+    public int snapshots;  // block holding the snapshot table (0 if none)
+    public int flags;      // options chosen by formatDisk
+    public int refs;       // first block of reference counts (0 if none)
+    public int groups;     // number of block groups (0 or 1 for one)
+    public int iinit;      // inode blocks written so far (see inodeIsInit)
+    public int quotas;     // block holding the QuotaTable (0 if none)
+    public int generation; // stamped on inodes as they change
+    public int changed;    // first block of ChangedBlocks (0 if none)
+    public int magic;      // MAGIC, or the disk needs formatting
 
-    // first bits of free map (size of block - space for 3 ints of metadata)
-    public byte freeMap[] = new byte[Disk.BLOCK_SIZE - 12];
+    // first bits of free map (size of block - space for 12 ints of metadata)
+    public byte freeMap[] = new byte[Disk.BLOCK_SIZE - 48];
 
     public String toString () {
         return
             "SuperBlock(size: " + size +
             ", isize: " + isize +
             ", msize: " + msize +
+            ", snapshots: " + snapshots +
+            ", flags: " + flags +
+            ", refs: " + refs +
+            ", groups: " + groups +
+            ", iinit: " + iinit +
+            ", quotas: " + quotas +
+            ", generation: " + generation +
+            ", changed: " + changed +
+            ", magic: " + Integer.toHexString(magic) +
             ", FreeMap(\n  " +
             Bitwise.toString(freeMap, ",", "\n  ", 8) + ")";
     }
 
+    /**
+     * Check whether file data is stored in compressed clusters.
+     */
+    public boolean isCompressed() {
+        return (flags & COMPRESSED) != 0;
+    }
+
+    /**
+     * Check whether identical data blocks are stored once.
+     */
+    public boolean isDeduplicated() {
+        return (flags & DEDUP) != 0;
+    }
+
+    /**
+     * Check whether blocks are written by appending them to log
+     * segments instead of in place (see FreeMap.SEGMENT).
+     */
+    public boolean isLogged() {
+        return (flags & LOG) != 0;
+    }
+
+    /**
+     * Check whether data blocks carry reference counts so that files can
+     * be cloned (see MyFileSystem.clone). Deduplicating file systems
+     * count references too.
+     */
+    public boolean isCloneable() {
+        return (flags & (CLONE | DEDUP)) != 0;
+    }
+
+    /**
+     * Check whether the blocks written since the last backup are
+     * recorded (see ChangedBlocks).
+     */
+    public boolean isTracked() {
+        return (flags & TRACK) != 0;
+    }
+
+    /**
+     * Check whether the blocks used by each owner are counted and
+     * limited (see QuotaTable).
+     */
+    public boolean hasQuotas() {
+        return (flags & QUOTA) != 0;
+    }
+
     /**
      * Compute the number of data blocks in the file system. Will
      * return 0 if the file system is uninitialized.
      *
      * The number of data blocks is the number of blocks in the file
      * system minus the super block size (1), the number of inode
-     * blocks, and the number of freemap blocks.
+     * blocks, and the number of freemap blocks. With block groups,
+     * the inode blocks are counted as well, since they are among the
+     * blocks covered by the free map.
      *
      * @return number of data blocks
      */
     public int dsize() {
-        return size - isize - msize - 1;
+        return size - (isGrouped() ? 0 : isize) - msize - 1;
+    }
+
+    /**
+     * Check whether the disk is split into more than one block group.
+     */
+    public boolean isGrouped() {
+        return groups > 1;
+    }
+
+    /**
+     * Compute the number of blocks in each block group (the last one
+     * may be shorter).
+     */
+    public int groupSize() {
+        int n = Math.max(1, groups);
+        return (size - iblock0() + n - 1) / n;
+    }
+
+    /**
+     * Compute the number of inode blocks in each block group (the
+     * last one may have fewer).
+     */
+    public int groupInodeBlocks() {
+        int n = Math.max(1, groups);
+        return (isize + n - 1) / n;
+    }
+
+    /**
+     * Compute the block group a block belongs to.
+     *
+     * @param  blockNum inode or data block
+     * @return          group number, from 0
+     */
+    public int group(int blockNum) {
+        return isGrouped() ? (blockNum - iblock0()) / groupSize() : 0;
+    }
+
+    /**
+     * Compute the number of the first block of a block group.
+     */
+    public int groupStart(int group) {
+        return isGrouped() ? iblock0() + group * groupSize() : dblock0();
+    }
+
+    /**
+     * Compute the block number of an inode block.
+     *
+     * @param  k index of the inode block, from 0 to isize - 1
+     * @return   block number of inode block k
+     */
+    public int inodeBlock(int k) {
+        if(! isGrouped())
+            return iblock0() + k;
+        int g = k / groupInodeBlocks();
+        return iblock0() + g * groupSize() + k % groupInodeBlocks();
+    }
+
+    /**
+     * Check whether an inode block has been initialized. formatDisk
+     * does not write the inode blocks; the first iinit of them (by
+     * index) have been zeroed since, and the others hold whatever was
+     * on the disk before and must be read as empty.
+     *
+     * @param  k index of the inode block
+     * @return   true if inode block k can be read from disk
+     */
+    public boolean inodeIsInit(int k) {
+        return k < iinit;
+    }
+
+    /**
+     * Compute the index of an inode block from its block number (the
+     * inverse of inodeBlock).
+     */
+    public int inodeIndex(int blockNum) {
+        if(! isGrouped())
+            return blockNum - iblock0();
+        int g = group(blockNum);
+        return g * groupInodeBlocks() + blockNum - iblock0() -
+            g * groupSize();
     }
 
     /**
@@ -45,7 +213,8 @@ public class SuperBlock {
     }
 
     /**
-     * Compute the number of the first inode block.
+     * Compute the number of the first inode block (with block groups,
+     * the first inode block of group 0).
      *
      * @return block number of the first inode block
      */
@@ -54,11 +223,12 @@ public class SuperBlock {
     }
 
     /**
-     * Compute the number of the first data block.
+     * Compute the number of the first data block, or with block
+     * groups, the first block covered by the free map.
      *
      * @return block number of the first data block
      */
     public int dblock0() {
-        return iblock0() + isize;
+        return iblock0() + (isGrouped() ? 0 : isize);
     }
 }
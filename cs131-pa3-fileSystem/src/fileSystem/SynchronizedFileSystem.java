@@ -0,0 +1,65 @@
+package fileSystem;
+import java.io.IOException;
+
+/**
+ * Wraps a FileSystem so that several threads can use it: each call
+ * holds a single lock for its whole duration.
+ */
+public class SynchronizedFileSystem implements FileSystem {
+    private final FileSystem fs;
+
+    public SynchronizedFileSystem(FileSystem fs) {
+        this.fs = fs;
+    }
+
+    public synchronized int formatDisk(int size, int isize)
+        throws IOException {
+        return fs.formatDisk(size, isize);
+    }
+
+    public synchronized int shutdown() throws IOException {
+        return fs.shutdown();
+    }
+
+    public synchronized int create() throws IOException {
+        return fs.create();
+    }
+
+    public synchronized int open(int inumber) throws IOException {
+        return fs.open(inumber);
+    }
+
+    public synchronized int inumber(int fd) throws IOException {
+        return fs.inumber(fd);
+    }
+
+    public synchronized int read(int fd, byte[] buffer) throws IOException {
+        return fs.read(fd, buffer);
+    }
+
+    public synchronized int write(int fd, byte[] buffer) throws IOException {
+        return fs.write(fd, buffer);
+    }
+
+    public synchronized int seek(int fd, int offset, Whence whence)
+        throws IOException {
+        return fs.seek(fd, offset, whence);
+    }
+
+    public synchronized int truncate(int fd, int size) throws IOException {
+        return fs.truncate(fd, size);
+    }
+
+    public synchronized int allocate(int fd, int offset, int length)
+        throws IOException {
+        return fs.allocate(fd, offset, length);
+    }
+
+    public synchronized int close(int fd) throws IOException {
+        return fs.close(fd);
+    }
+
+    public synchronized int delete(int inumber) throws IOException {
+        return fs.delete(inumber);
+    }
+}
@@ -0,0 +1,152 @@
+package fileSystem;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.*;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.Collections;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * A MyFileSystem volume mounted as a java.nio.file.FileSystem, so that
+ * Files, FileChannel and the rest of java.nio.file work on it (see
+ * VolumeProvider, which mounts them). Paths are described in
+ * VolumePath.
+ *
+ * MyFileSystem is not thread-safe: every use of it by the channels and
+ * the provider holds the lock of the MyFileSystem object.
+ */
+public class Volume extends java.nio.file.FileSystem {
+    private final VolumeProvider provider;
+    private final File disk;
+    final MyFileSystem fs;
+    private boolean open = true;
+
+    Volume(VolumeProvider provider, File disk, MyFileSystem fs) {
+        this.provider = provider;
+        this.disk     = disk;
+        this.fs       = fs;
+    }
+
+    /**
+     * Get the file holding the volume.
+     */
+    public File getDisk() {
+        return disk;
+    }
+
+    public FileSystemProvider provider() {
+        return provider;
+    }
+
+    /**
+     * Shut the volume down. Channels still open on it are closed.
+     */
+    public void close() throws IOException {
+        synchronized(fs) {
+            if(! open)
+                return;
+            open = false;
+            fs.shutdown();
+        }
+        provider.unmount(this);
+    }
+
+    public boolean isOpen() {
+        synchronized(fs) {
+            return open;
+        }
+    }
+
+    /**
+     * @throws ClosedFileSystemException if the volume was closed
+     */
+    void checkOpen() {
+        if(! open)
+            throw new ClosedFileSystemException();
+    }
+
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    public String getSeparator() {
+        return "/";
+    }
+
+    public Iterable<Path> getRootDirectories() {
+        return Collections.<Path>singletonList(new VolumePath(this, true));
+    }
+
+    public Iterable<FileStore> getFileStores() {
+        return Collections.emptyList();
+    }
+
+    public Set<String> supportedFileAttributeViews() {
+        return Collections.singleton("basic");
+    }
+
+    public Path getPath(String first, String... more) {
+        StringBuilder path = new StringBuilder(first);
+        for(String name : more)
+            path.append('/').append(name);
+        return VolumePath.parse(this, path.toString());
+    }
+
+    /**
+     * Supports the "regex" syntax and a "glob" syntax with only * and ?.
+     */
+    public PathMatcher getPathMatcher(String syntaxAndPattern) {
+        int colon = syntaxAndPattern.indexOf(':');
+        if(colon < 0)
+            throw new IllegalArgumentException(syntaxAndPattern);
+        String syntax  = syntaxAndPattern.substring(0, colon);
+        String pattern = syntaxAndPattern.substring(colon + 1);
+        String regex;
+        if(syntax.equalsIgnoreCase("regex")) {
+            regex = pattern;
+        } else if(syntax.equalsIgnoreCase("glob")) {
+            StringBuilder r = new StringBuilder();
+            for(char c : pattern.toCharArray()) {
+                if(c == '*')
+                    r.append("[^/]*");
+                else if(c == '?')
+                    r.append("[^/]");
+                else
+                    r.append(Pattern.quote(String.valueOf(c)));
+            }
+            regex = r.toString();
+        } else {
+            throw new UnsupportedOperationException("Syntax " + syntax);
+        }
+        final Pattern p = Pattern.compile(regex);
+        return new PathMatcher() {
+            public boolean matches(Path path) {
+                return p.matcher(path.toString()).matches();
+            }
+        };
+    }
+
+    public UserPrincipalLookupService getUserPrincipalLookupService() {
+        throw new UnsupportedOperationException();
+    }
+
+    public WatchService newWatchService() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Get the URI of a path on this volume: myfs:DISK!path.
+     */
+    URI toUri(String path) {
+        try {
+            return new URI(VolumeProvider.SCHEME,
+                           disk.getAbsolutePath() + "!" + path, null);
+        } catch(URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
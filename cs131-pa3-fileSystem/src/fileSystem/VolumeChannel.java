@@ -0,0 +1,383 @@
+package fileSystem;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.*;
+
+/**
+ * A FileChannel on a file of a Volume, through a file descriptor of its
+ * own. The channel position is the seek pointer of the descriptor.
+ *
+ * A heap ByteBuffer is read and written in place: MyFileSystem copies
+ * straight between its array and the blocks, and whole blocks go to
+ * and from the disk in batches. Other buffers are copied through an
+ * array of CHUNK bytes. transferTo and transferFrom move CHUNK bytes
+ * per call, except between two channels of the same volume, where
+ * MyFileSystem.copyRange copies the whole range at once. Files cannot
+ * be mapped or locked.
+ */
+public class VolumeChannel extends FileChannel {
+    static final int CHUNK = 64 * Disk.BLOCK_SIZE;
+
+    private final Volume volume;
+    private final MyFileSystem fs;
+    private final int fd;
+    private final boolean readable;
+    private final boolean writable;
+    private final boolean append;
+
+    /**
+     * @param fd open file descriptor, closed with the channel
+     */
+    VolumeChannel(Volume volume, int fd, boolean readable, boolean writable,
+                  boolean append) {
+        this.volume   = volume;
+        this.fs       = volume.fs;
+        this.fd       = fd;
+        this.readable = readable;
+        this.writable = writable;
+        this.append   = append;
+    }
+
+    /**
+     * Get the inumber of the file.
+     */
+    public int inumber() throws IOException {
+        synchronized(fs) {
+            check();
+            return fs.inumber(fd);
+        }
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        synchronized(fs) {
+            check();
+            if(! readable)
+                throw new NonReadableChannelException();
+            if(dst.remaining() > 0 && position() >= size())
+                return -1;
+            int total = 0;
+            while(dst.hasRemaining()) {
+                int n = readSome(dst);
+                total += n;
+                if(n == 0)
+                    break;
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Read into dst once, in place if dst has an array.
+     */
+    private int readSome(ByteBuffer dst) throws IOException {
+        int n;
+        if(dst.hasArray()) {
+            n = fs.read(fd, dst.array(), dst.arrayOffset() + dst.position(),
+                        dst.remaining());
+            if(n > 0)
+                dst.position(dst.position() + n);
+        } else {
+            byte[] buf = new byte[Math.min(dst.remaining(), CHUNK)];
+            n = fs.read(fd, buf);
+            if(n > 0)
+                dst.put(buf, 0, n);
+        }
+        if(n < 0)
+            throw new IOException("Read failed");
+        return n;
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        synchronized(fs) {
+            check();
+            if(! writable)
+                throw new NonWritableChannelException();
+            if(append)
+                fs.seek(fd, 0, Whence.SEEK_END);
+            int total = 0;
+            while(src.hasRemaining()) {
+                int n;
+                if(src.hasArray()) {
+                    n = fs.write(fd, src.array(),
+                                 src.arrayOffset() + src.position(),
+                                 src.remaining());
+                    if(n > 0)
+                        src.position(src.position() + n);
+                } else {
+                    byte[] buf = new byte[Math.min(src.remaining(), CHUNK)];
+                    src.get(buf);
+                    n = fs.write(fd, buf);
+                }
+                if(n < 0)
+                    throw new IOException("Write failed (file system full?)");
+                total += n;
+            }
+            return total;
+        }
+    }
+
+    public long read(ByteBuffer[] dsts, int offset, int length)
+        throws IOException {
+        synchronized(fs) {
+            long total = 0;
+            for(int i = offset; i < offset + length; ++i) {
+                if(! dsts[i].hasRemaining())
+                    continue;
+                int n = read(dsts[i]);
+                if(n < 0)
+                    return total == 0 ? -1 : total;
+                total += n;
+                if(dsts[i].hasRemaining())
+                    break;
+            }
+            return total;
+        }
+    }
+
+    public long write(ByteBuffer[] srcs, int offset, int length)
+        throws IOException {
+        synchronized(fs) {
+            long total = 0;
+            for(int i = offset; i < offset + length; ++i)
+                total += write(srcs[i]);
+            return total;
+        }
+    }
+
+    public long position() throws IOException {
+        synchronized(fs) {
+            check();
+            return fs.fileTable.getSeekPointer(fd);
+        }
+    }
+
+    public FileChannel position(long newPosition) throws IOException {
+        synchronized(fs) {
+            check();
+            if(newPosition < 0)
+                throw new IllegalArgumentException("Negative position");
+            fs.seek(fd, toInt(newPosition), Whence.SEEK_SET);
+            return this;
+        }
+    }
+
+    public long size() throws IOException {
+        synchronized(fs) {
+            check();
+            return fs.fileTable.getInode(fd).size;
+        }
+    }
+
+    public FileChannel truncate(long size) throws IOException {
+        synchronized(fs) {
+            check();
+            if(! writable)
+                throw new NonWritableChannelException();
+            if(size < 0)
+                throw new IllegalArgumentException("Negative size");
+            if(size < size() && fs.truncate(fd, toInt(size)) < 0)
+                throw new IOException("Truncate failed");
+            if(position() > size)
+                position(size);
+            return this;
+        }
+    }
+
+    /**
+     * Every write goes to the disk at once; the inode of the file is
+     * written when the channel is closed.
+     */
+    public void force(boolean metaData) throws IOException {
+        synchronized(fs) {
+            check();
+        }
+    }
+
+    public long transferTo(long position, long count,
+                           WritableByteChannel target) throws IOException {
+        synchronized(fs) {
+            check();
+            if(! readable)
+                throw new NonReadableChannelException();
+            if(sameVolume(target))
+                return ((VolumeChannel)target).copyFrom(this, position, count);
+            long saved = position();
+            ByteBuffer buf = ByteBuffer.allocate(CHUNK);
+            long done = 0;
+            try {
+                position(position);
+                while(done < count) {
+                    buf.clear().limit((int)Math.min(CHUNK, count - done));
+                    if(read(buf) <= 0)
+                        break;
+                    buf.flip();
+                    int n = target.write(buf);
+                    done += n;
+                    if(buf.hasRemaining())
+                        break; // target is full
+                }
+            } finally {
+                position(saved);
+            }
+            return done;
+        }
+    }
+
+    public long transferFrom(ReadableByteChannel src, long position,
+                             long count) throws IOException {
+        synchronized(fs) {
+            check();
+            if(! writable)
+                throw new NonWritableChannelException();
+            if(position > size())
+                return 0;
+            if(sameVolume(src)) {
+                long saved = position();
+                try {
+                    position(position);
+                    return copyFrom((VolumeChannel)src, -1, count);
+                } finally {
+                    position(saved);
+                }
+            }
+            long saved = position();
+            ByteBuffer buf = ByteBuffer.allocate(CHUNK);
+            long done = 0;
+            try {
+                position(position);
+                while(done < count) {
+                    buf.clear().limit((int)Math.min(CHUNK, count - done));
+                    int n = src.read(buf);
+                    if(n <= 0)
+                        break;
+                    buf.flip();
+                    writeAtPosition(buf);
+                    done += n;
+                }
+            } finally {
+                position(saved);
+            }
+            return done;
+        }
+    }
+
+    /**
+     * Check whether channel is a VolumeChannel on the same volume.
+     */
+    private boolean sameVolume(Channel channel) {
+        return channel instanceof VolumeChannel &&
+               ((VolumeChannel)channel).fs == fs;
+    }
+
+    /**
+     * Copy count bytes from src to this channel inside the file system
+     * (see MyFileSystem.copyRange).
+     *
+     * @param position where to read src, leaving its position alone (for
+     *                 transferTo, which writes at the end in append
+     *                 mode), or -1 to read at and move its position (for
+     *                 transferFrom, which writes at our position)
+     */
+    private long copyFrom(VolumeChannel src, long position, long count)
+        throws IOException {
+        check();
+        src.check();
+        if(! writable)
+            throw new NonWritableChannelException();
+        if(! src.readable)
+            throw new NonReadableChannelException();
+        long saved = src.position();
+        int n;
+        try {
+            if(position >= 0) {
+                if(append)
+                    fs.seek(fd, 0, Whence.SEEK_END);
+                src.position(position);
+            }
+            n = fs.copyRange(src.fd, fd,
+                             (int)Math.min(count, Integer.MAX_VALUE));
+        } finally {
+            if(position >= 0)
+                src.position(saved);
+        }
+        if(n < 0)
+            throw new IOException("Copy failed (file system full?)");
+        return n;
+    }
+
+    public int read(ByteBuffer dst, long position) throws IOException {
+        synchronized(fs) {
+            check();
+            long saved = position();
+            try {
+                position(position);
+                return read(dst);
+            } finally {
+                position(saved);
+            }
+        }
+    }
+
+    public int write(ByteBuffer src, long position) throws IOException {
+        synchronized(fs) {
+            check();
+            if(! writable)
+                throw new NonWritableChannelException();
+            long saved = position();
+            try {
+                position(position);
+                return writeAtPosition(src);
+            } finally {
+                position(saved);
+            }
+        }
+    }
+
+    /**
+     * Write at the channel position even in append mode.
+     */
+    private int writeAtPosition(ByteBuffer src) throws IOException {
+        if(! append)
+            return write(src);
+        byte[] buf = new byte[src.remaining()];
+        src.get(buf);
+        if(fs.write(fd, buf) < 0)
+            throw new IOException("Write failed (file system full?)");
+        return buf.length;
+    }
+
+    public MappedByteBuffer map(MapMode mode, long position, long size) {
+        throw new UnsupportedOperationException();
+    }
+
+    public FileLock lock(long position, long size, boolean shared) {
+        throw new UnsupportedOperationException();
+    }
+
+    public FileLock tryLock(long position, long size, boolean shared) {
+        throw new UnsupportedOperationException();
+    }
+
+    protected void implCloseChannel() throws IOException {
+        synchronized(fs) {
+            if(volume.isOpen())
+                fs.close(fd);
+        }
+    }
+
+    /**
+     * @throws ClosedChannelException if the channel or its volume is
+     *         closed
+     */
+    private void check() throws ClosedChannelException {
+        if(! isOpen() || ! volume.isOpen())
+            throw new ClosedChannelException();
+    }
+
+    private static int toInt(long position) throws IOException {
+        if(position > Integer.MAX_VALUE)
+            throw new IOException("Position " + position + " is too large");
+        return (int)position;
+    }
+}
@@ -0,0 +1,255 @@
+package fileSystem;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A Path on a Volume. A volume has no directories: the root "/" holds
+ * every file, and each file is named by its inumber, as in "/7".
+ * Relative paths ("7") are resolved against the root.
+ */
+public class VolumePath implements Path {
+    private final Volume volume;
+    private final boolean absolute;
+    private final String[] names;
+
+    VolumePath(Volume volume, boolean absolute, String... names) {
+        this.volume   = volume;
+        this.absolute = absolute;
+        this.names    = names;
+    }
+
+    /**
+     * Parse path, "/"-separated.
+     */
+    static VolumePath parse(Volume volume, String path) {
+        List<String> names = new ArrayList<String>();
+        for(String name : path.split("/"))
+            if(! name.isEmpty())
+                names.add(name);
+        return new VolumePath(volume, path.startsWith("/"),
+                              names.toArray(new String[names.size()]));
+    }
+
+    /**
+     * Get the inumber of the file the path names.
+     *
+     * @throws NoSuchFileException if the path cannot name a file
+     */
+    int inumber() throws NoSuchFileException {
+        VolumePath path = (VolumePath)toAbsolutePath().normalize();
+        if(path.names.length == 1) {
+            try {
+                int inumber = Integer.parseInt(path.names[0]);
+                if(inumber > 0)
+                    return inumber;
+            } catch(NumberFormatException e) {
+                // not a file name
+            }
+        }
+        throw new NoSuchFileException(toString());
+    }
+
+    /**
+     * @return true if the path names the root
+     */
+    boolean isRoot() {
+        return ((VolumePath)toAbsolutePath().normalize()).names.length == 0;
+    }
+
+    public Volume getFileSystem() {
+        return volume;
+    }
+
+    public boolean isAbsolute() {
+        return absolute;
+    }
+
+    public Path getRoot() {
+        return absolute ? new VolumePath(volume, true) : null;
+    }
+
+    public Path getFileName() {
+        return names.length == 0 ? null : getName(names.length - 1);
+    }
+
+    public Path getParent() {
+        if(names.length == 0 || (names.length == 1 && ! absolute))
+            return null;
+        return new VolumePath(volume, absolute,
+                              Arrays.copyOf(names, names.length - 1));
+    }
+
+    public int getNameCount() {
+        return names.length;
+    }
+
+    public Path getName(int index) {
+        return subpath(index, index + 1);
+    }
+
+    public Path subpath(int beginIndex, int endIndex) {
+        if(beginIndex < 0 || endIndex > names.length || beginIndex >= endIndex)
+            throw new IllegalArgumentException();
+        return new VolumePath(volume, false,
+                              Arrays.copyOfRange(names, beginIndex, endIndex));
+    }
+
+    public boolean startsWith(Path other) {
+        VolumePath o = cast(other);
+        if(o == null || o.absolute != absolute || o.names.length > names.length)
+            return false;
+        for(int i = 0; i < o.names.length; ++i)
+            if(! o.names[i].equals(names[i]))
+                return false;
+        return true;
+    }
+
+    public boolean startsWith(String other) {
+        return startsWith(parse(volume, other));
+    }
+
+    public boolean endsWith(Path other) {
+        VolumePath o = cast(other);
+        if(o == null || o.names.length > names.length ||
+           (o.absolute && (! absolute || o.names.length != names.length)))
+            return false;
+        int skip = names.length - o.names.length;
+        for(int i = 0; i < o.names.length; ++i)
+            if(! o.names[i].equals(names[skip + i]))
+                return false;
+        return true;
+    }
+
+    public boolean endsWith(String other) {
+        return endsWith(parse(volume, other));
+    }
+
+    public Path normalize() {
+        List<String> out = new ArrayList<String>();
+        for(String name : names) {
+            if(name.equals("."))
+                continue;
+            if(name.equals("..") && ! out.isEmpty() &&
+               ! out.get(out.size() - 1).equals(".."))
+                out.remove(out.size() - 1);
+            else if(! name.equals("..") || ! absolute)
+                out.add(name);
+        }
+        return new VolumePath(volume, absolute,
+                              out.toArray(new String[out.size()]));
+    }
+
+    public Path resolve(Path other) {
+        VolumePath o = cast(other);
+        if(o == null)
+            throw new ProviderMismatchException();
+        if(o.absolute)
+            return o;
+        String[] joined = Arrays.copyOf(names, names.length + o.names.length);
+        System.arraycopy(o.names, 0, joined, names.length, o.names.length);
+        return new VolumePath(volume, absolute, joined);
+    }
+
+    public Path resolve(String other) {
+        return resolve(parse(volume, other));
+    }
+
+    public Path resolveSibling(Path other) {
+        Path parent = getParent();
+        return parent == null ? other : parent.resolve(other);
+    }
+
+    public Path resolveSibling(String other) {
+        return resolveSibling(parse(volume, other));
+    }
+
+    public Path relativize(Path other) {
+        VolumePath o = cast(other);
+        if(o == null || o.absolute != absolute)
+            throw new IllegalArgumentException("Cannot relativize " + other);
+        int common = 0;
+        while(common < names.length && common < o.names.length &&
+              names[common].equals(o.names[common]))
+            ++common;
+        List<String> out = new ArrayList<String>();
+        for(int i = common; i < names.length; ++i)
+            out.add("..");
+        for(int i = common; i < o.names.length; ++i)
+            out.add(o.names[i]);
+        return new VolumePath(volume, false,
+                              out.toArray(new String[out.size()]));
+    }
+
+    public URI toUri() {
+        return volume.toUri(toAbsolutePath().toString());
+    }
+
+    public Path toAbsolutePath() {
+        return absolute ? this : new VolumePath(volume, true, names);
+    }
+
+    public Path toRealPath(LinkOption... options) throws IOException {
+        VolumePath path = (VolumePath)toAbsolutePath().normalize();
+        volume.provider().checkAccess(path);
+        return path;
+    }
+
+    public File toFile() {
+        throw new UnsupportedOperationException();
+    }
+
+    public WatchKey register(WatchService watcher,
+                             WatchEvent.Kind<?>[] events,
+                             WatchEvent.Modifier... modifiers) {
+        throw new UnsupportedOperationException();
+    }
+
+    public WatchKey register(WatchService watcher,
+                             WatchEvent.Kind<?>... events) {
+        throw new UnsupportedOperationException();
+    }
+
+    public Iterator<Path> iterator() {
+        List<Path> parts = new ArrayList<Path>();
+        for(int i = 0; i < names.length; ++i)
+            parts.add(getName(i));
+        return parts.iterator();
+    }
+
+    public int compareTo(Path other) {
+        return toString().compareTo(other.toString());
+    }
+
+    public boolean equals(Object other) {
+        VolumePath o = other instanceof Path ? cast((Path)other) : null;
+        return o != null && o.absolute == absolute &&
+            Arrays.equals(o.names, names);
+    }
+
+    public int hashCode() {
+        return Arrays.hashCode(names) ^ (absolute ? 1 : 0);
+    }
+
+    public String toString() {
+        StringBuilder s = new StringBuilder(absolute ? "/" : "");
+        for(int i = 0; i < names.length; ++i)
+            s.append(i > 0 ? "/" : "").append(names[i]);
+        return s.toString();
+    }
+
+    /**
+     * Get other as a path on the same volume, or null.
+     */
+    private VolumePath cast(Path other) {
+        if(! (other instanceof VolumePath) ||
+           ((VolumePath)other).volume != volume)
+            return null;
+        return (VolumePath)other;
+    }
+}
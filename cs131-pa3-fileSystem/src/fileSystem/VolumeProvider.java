@@ -0,0 +1,367 @@
+package fileSystem;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mounts MyFileSystem volumes as java.nio.file file systems (Volume),
+ * under the URI scheme "myfs". The URI of a volume is "myfs:" followed
+ * by the absolute path of its disk file, and the URI of a file on it
+ * adds "!" and the path of the file:
+ *
+ * <pre>
+ * Map&lt;String, String&gt; env = new HashMap&lt;String, String&gt;();
+ * env.put("create", "true");
+ * FileSystem volume = FileSystems.newFileSystem(
+ *     URI.create("myfs:/tmp/DISK"), env);
+ * Files.copy(Paths.get("input.dat"), volume.getPath("/1"));
+ * </pre>
+ *
+ * With "create" set to "true" the disk is formatted when mounted, with
+ * "size" blocks (Disk.NUM_BLOCKS by default) of which "isize" are inode
+ * blocks (16 by default).
+ *
+ * Files are named by inumber, so a new file can be created at any path
+ * "/n" whose inode is free. Directories other than the root cannot be
+ * created, and only the "basic" file attributes are supported.
+ */
+public class VolumeProvider extends FileSystemProvider {
+    public static final String SCHEME = "myfs";
+    private static final int ISIZE = 16; // inode blocks of a new volume
+
+    private final Map<File, Volume> volumes = new HashMap<File, Volume>();
+
+    public String getScheme() {
+        return SCHEME;
+    }
+
+    public java.nio.file.FileSystem newFileSystem(URI uri, Map<String, ?> env)
+        throws IOException {
+        return mount(disk(uri), env);
+    }
+
+    public java.nio.file.FileSystem newFileSystem(Path path,
+                                                  Map<String, ?> env)
+        throws IOException {
+        return mount(path.toFile(), env);
+    }
+
+    public java.nio.file.FileSystem getFileSystem(URI uri) {
+        synchronized(volumes) {
+            Volume volume = volumes.get(disk(uri));
+            if(volume == null)
+                throw new FileSystemNotFoundException(uri.toString());
+            return volume;
+        }
+    }
+
+    public Path getPath(URI uri) {
+        String ssp = uri.getSchemeSpecificPart();
+        int bang = ssp.indexOf('!');
+        return getFileSystem(uri).getPath(bang < 0 ? "/"
+                                          : ssp.substring(bang + 1));
+    }
+
+    /**
+     * Get the disk file named by a myfs URI.
+     */
+    private static File disk(URI uri) {
+        if(! SCHEME.equalsIgnoreCase(uri.getScheme()))
+            throw new IllegalArgumentException("Not a myfs URI: " + uri);
+        String ssp = uri.getSchemeSpecificPart();
+        int bang = ssp.indexOf('!');
+        return new File(bang < 0 ? ssp : ssp.substring(0, bang))
+            .getAbsoluteFile();
+    }
+
+    private Volume mount(File disk, Map<String, ?> env) throws IOException {
+        disk = disk.getAbsoluteFile();
+        synchronized(volumes) {
+            if(volumes.containsKey(disk))
+                throw new FileSystemAlreadyExistsException(disk.toString());
+            boolean create = "true".equals(String.valueOf(env.get("create")));
+            if(! create && ! disk.exists())
+                throw new NoSuchFileException(disk.toString());
+            MyFileSystem fs = new MyFileSystem(
+                new Disk(new FileBlockDevice(disk)));
+            if(create) {
+                int size  = option(env, "size", Disk.NUM_BLOCKS);
+                int isize = option(env, "isize", ISIZE);
+                if(fs.formatDisk(size, isize) < 0) {
+                    fs.shutdown();
+                    throw new IOException("Cannot format " + disk);
+                }
+            }
+            Volume volume = new Volume(this, disk, fs);
+            volumes.put(disk, volume);
+            return volume;
+        }
+    }
+
+    private static int option(Map<String, ?> env, String key, int value) {
+        Object v = env.get(key);
+        return v == null ? value : Integer.parseInt(String.valueOf(v));
+    }
+
+    /**
+     * Forget a volume that was closed.
+     */
+    void unmount(Volume volume) {
+        synchronized(volumes) {
+            volumes.remove(volume.getDisk().getAbsoluteFile());
+        }
+    }
+
+    private static VolumePath cast(Path path) {
+        if(! (path instanceof VolumePath))
+            throw new ProviderMismatchException();
+        return (VolumePath)path;
+    }
+
+    public SeekableByteChannel newByteChannel(Path path,
+        Set<? extends OpenOption> options, FileAttribute<?>... attrs)
+        throws IOException {
+        return newFileChannel(path, options, attrs);
+    }
+
+    public FileChannel newFileChannel(Path path,
+        Set<? extends OpenOption> options, FileAttribute<?>... attrs)
+        throws IOException {
+        if(attrs.length > 0)
+            throw new UnsupportedOperationException("File attributes");
+        VolumePath p = cast(path);
+        Volume volume = p.getFileSystem();
+        MyFileSystem fs = volume.fs;
+        boolean append = options.contains(StandardOpenOption.APPEND);
+        boolean write  = append || options.contains(StandardOpenOption.WRITE);
+        boolean read   = options.contains(StandardOpenOption.READ) || ! write;
+        int inumber = p.inumber();
+        synchronized(fs) {
+            volume.checkOpen();
+            int fd;
+            if(fs.exists(inumber)) {
+                if(write && options.contains(StandardOpenOption.CREATE_NEW))
+                    throw new FileAlreadyExistsException(path.toString());
+                fd = fs.open(inumber);
+                if(fd >= 0 && write &&
+                   options.contains(StandardOpenOption.TRUNCATE_EXISTING) &&
+                   fs.truncate(fd, 0) < 0) {
+                    fs.close(fd);
+                    throw new FileSystemException(path.toString(), null,
+                                                  "Cannot truncate file");
+                }
+            } else if(write &&
+                      (options.contains(StandardOpenOption.CREATE) ||
+                       options.contains(StandardOpenOption.CREATE_NEW))) {
+                fd = fs.create(inumber);
+            } else {
+                throw new NoSuchFileException(path.toString());
+            }
+            if(fd < 0)
+                throw new FileSystemException(path.toString(), null,
+                                              "Cannot open file");
+            return new VolumeChannel(volume, fd, read, write, append);
+        }
+    }
+
+    /**
+     * List the files on the volume, in inumber order.
+     */
+    public DirectoryStream<Path> newDirectoryStream(Path dir,
+        final DirectoryStream.Filter<? super Path> filter) throws IOException {
+        VolumePath p = cast(dir);
+        if(! p.isRoot())
+            throw new NotDirectoryException(dir.toString());
+        Volume volume = p.getFileSystem();
+        final List<Path> files = new ArrayList<Path>();
+        synchronized(volume.fs) {
+            volume.checkOpen();
+            int count = volume.fs.superBlock.isize * InodeBlock.COUNT;
+            for(int inumber = 1; inumber < count; ++inumber) {
+                Path file = dir.resolve(String.valueOf(inumber));
+                if(volume.fs.exists(inumber) && filter.accept(file))
+                    files.add(file);
+            }
+        }
+        return new DirectoryStream<Path>() {
+            public Iterator<Path> iterator() {
+                return files.iterator();
+            }
+
+            public void close() {
+            }
+        };
+    }
+
+    public void createDirectory(Path dir, FileAttribute<?>... attrs)
+        throws IOException {
+        if(cast(dir).isRoot())
+            throw new FileAlreadyExistsException(dir.toString());
+        throw new UnsupportedOperationException("Volumes have no directories");
+    }
+
+    public void delete(Path path) throws IOException {
+        VolumePath p = cast(path);
+        Volume volume = p.getFileSystem();
+        int inumber = p.inumber();
+        synchronized(volume.fs) {
+            volume.checkOpen();
+            if(! volume.fs.exists(inumber))
+                throw new NoSuchFileException(path.toString());
+            if(volume.fs.delete(inumber) < 0)
+                throw new FileSystemException(path.toString(), null,
+                                              "File is open");
+        }
+    }
+
+    public void copy(Path source, Path target, CopyOption... options)
+        throws IOException {
+        Set<OpenOption> create = new HashSet<OpenOption>();
+        create.add(StandardOpenOption.WRITE);
+        create.add(Arrays.asList(options)
+                   .contains(StandardCopyOption.REPLACE_EXISTING)
+                   ? StandardOpenOption.CREATE : StandardOpenOption.CREATE_NEW);
+        create.add(StandardOpenOption.TRUNCATE_EXISTING);
+        FileChannel in = newFileChannel(source,
+            Collections.singleton(StandardOpenOption.READ));
+        try {
+            FileChannel out = newFileChannel(target, create);
+            try {
+                long size = in.size();
+                for(long done = 0; done < size; )
+                    done += in.transferTo(done, size - done, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    public void move(Path source, Path target, CopyOption... options)
+        throws IOException {
+        if(isSameFile(source, target))
+            return;
+        copy(source, target, options);
+        delete(source);
+    }
+
+    public boolean isSameFile(Path path, Path path2) throws IOException {
+        return path.toAbsolutePath().normalize()
+            .equals(path2.toAbsolutePath().normalize());
+    }
+
+    public boolean isHidden(Path path) {
+        return false;
+    }
+
+    public FileStore getFileStore(Path path) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void checkAccess(Path path, AccessMode... modes) throws IOException {
+        VolumePath p = cast(path);
+        Volume volume = p.getFileSystem();
+        for(AccessMode mode : modes)
+            if(mode == AccessMode.EXECUTE)
+                throw new AccessDeniedException(path.toString());
+        if(p.isRoot())
+            return;
+        int inumber = p.inumber();
+        synchronized(volume.fs) {
+            volume.checkOpen();
+            if(! volume.fs.exists(inumber))
+                throw new NoSuchFileException(path.toString());
+        }
+    }
+
+    public <V extends FileAttributeView> V getFileAttributeView(Path path,
+        Class<V> type, LinkOption... options) {
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <A extends BasicFileAttributes> A readAttributes(Path path,
+        Class<A> type, LinkOption... options) throws IOException {
+        if(type != BasicFileAttributes.class)
+            throw new UnsupportedOperationException(type.getName());
+        VolumePath p = cast(path);
+        if(p.isRoot())
+            return (A)new Attributes(-1, 0);
+        Volume volume = p.getFileSystem();
+        int inumber = p.inumber();
+        synchronized(volume.fs) {
+            volume.checkOpen();
+            if(! volume.fs.exists(inumber))
+                throw new NoSuchFileException(path.toString());
+            int fd = volume.fs.open(inumber);
+            long size = volume.fs.seek(fd, 0, Whence.SEEK_END);
+            volume.fs.close(fd);
+            return (A)new Attributes(inumber, size);
+        }
+    }
+
+    public Map<String, Object> readAttributes(Path path, String attributes,
+        LinkOption... options) throws IOException {
+        String names = attributes.startsWith("basic:")
+            ? attributes.substring(6) : attributes;
+        BasicFileAttributes a = readAttributes(path,
+                                               BasicFileAttributes.class);
+        Map<String, Object> all = new HashMap<String, Object>();
+        all.put("size", a.size());
+        all.put("isRegularFile", a.isRegularFile());
+        all.put("isDirectory", a.isDirectory());
+        all.put("isSymbolicLink", false);
+        all.put("isOther", false);
+        all.put("fileKey", a.fileKey());
+        all.put("lastModifiedTime", a.lastModifiedTime());
+        all.put("lastAccessTime", a.lastAccessTime());
+        all.put("creationTime", a.creationTime());
+        if(names.equals("*"))
+            return all;
+        Map<String, Object> some = new HashMap<String, Object>();
+        for(String name : names.split(",")) {
+            if(! all.containsKey(name))
+                throw new IllegalArgumentException("No attribute " + name);
+            some.put(name, all.get(name));
+        }
+        return some;
+    }
+
+    public void setAttribute(Path path, String attribute, Object value,
+                             LinkOption... options) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * The basic attributes of a file (or, with inumber -1, the root).
+     * Volumes keep no times.
+     */
+    private static class Attributes implements BasicFileAttributes {
+        private static final FileTime NEVER = FileTime.from(0, TimeUnit.SECONDS);
+        private final int inumber;
+        private final long size;
+
+        Attributes(int inumber, long size) {
+            this.inumber = inumber;
+            this.size    = size;
+        }
+
+        public FileTime lastModifiedTime() { return NEVER; }
+        public FileTime lastAccessTime()   { return NEVER; }
+        public FileTime creationTime()     { return NEVER; }
+        public boolean isRegularFile()     { return inumber > 0; }
+        public boolean isDirectory()       { return inumber < 0; }
+        public boolean isSymbolicLink()    { return false; }
+        public boolean isOther()           { return false; }
+        public long size()                 { return size; }
+        public Object fileKey()            { return inumber; }
+    }
+}
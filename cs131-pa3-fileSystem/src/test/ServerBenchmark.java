@@ -0,0 +1,131 @@
+package test;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.*;
+
+import fileSystem.Disk;
+import fileSystem.FileServer;
+import fileSystem.MemoryBlockDevice;
+import fileSystem.MyFileSystem;
+import fileSystem.RemoteFileSystem;
+import fileSystem.Whence;
+
+/**
+ * Load generator for FileServer: measure calls per second and the 99th
+ * percentile latency of a frame with 1, 4 and 16 clients (or the
+ * counts given as arguments).
+ *
+ * The server runs in this JVM on a Unix domain socket in the temporary
+ * directory (a loopback TCP port on JVMs without them), serving an
+ * in-memory volume. Each client has a file of its own and keeps DEPTH
+ * frames in flight, each a seek and BATCH 512-byte writes or reads.
+ */
+public class ServerBenchmark {
+    private static final int FRAMES = 20000; // per client
+    private static final int DEPTH  = 8;     // frames in flight
+    private static final int BATCH  = 4;     // calls per frame
+    private static final int SIZE   = 512;   // bytes per call
+
+    public static void main(String[] args) throws Exception {
+        int[] counts = { 1, 4, 16 };
+        if(args.length > 0) {
+            counts = new int[args.length];
+            for(int i = 0; i < args.length; ++i)
+                counts[i] = Integer.parseInt(args[i]);
+        }
+        MyFileSystem fs = new MyFileSystem(new Disk(new MemoryBlockDevice()));
+        fs.formatDisk(Disk.NUM_BLOCKS, 16);
+
+        File path = new File(System.getProperty("java.io.tmpdir"),
+                             "fs-bench-" + System.nanoTime() + ".sock");
+        FileServer server;
+        String kind = "unix socket";
+        try {
+            server = FileServer.bind(fs, path);
+        } catch(UnsupportedOperationException e) {
+            server = FileServer.bind(fs, 0);
+            kind = "loopback";
+        }
+        server.start();
+        for(int n : counts)
+            run(server, path, kind, n);
+        server.close();
+        fs.shutdown();
+    }
+
+    private static void run(final FileServer server, final File path,
+                            String kind, int clients) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        final boolean unix = kind.equals("unix socket");
+        final long[][] latencies = new long[clients][];
+        Future<?>[] done = new Future<?>[clients];
+        long start = System.nanoTime();
+        for(int c = 0; c < clients; ++c) {
+            final int client = c;
+            done[c] = pool.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    RemoteFileSystem remote = unix
+                        ? RemoteFileSystem.connect(path)
+                        : RemoteFileSystem.connect(server.getAddress());
+                    latencies[client] = load(remote);
+                    remote.shutdown();
+                    return null;
+                }
+            });
+        }
+        for(Future<?> f : done)
+            f.get();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        pool.shutdown();
+
+        long[] all = new long[clients * FRAMES];
+        for(int c = 0; c < clients; ++c)
+            System.arraycopy(latencies[c], 0, all, c * FRAMES, FRAMES);
+        Arrays.sort(all);
+        System.out.printf("%s, %d client(s): %.0f calls/s, p99 %.1f us%n",
+                          kind, clients,
+                          (double)all.length * (BATCH + 1) / seconds,
+                          all[all.length * 99 / 100] / 1e3);
+    }
+
+    /**
+     * Write and then read back the start of a file, keeping DEPTH frames
+     * in flight. Each frame seeks back to 0 first, so the file stays
+     * small whatever FRAMES is.
+     *
+     * @return the latency of each frame in nanoseconds
+     */
+    private static long[] load(RemoteFileSystem remote) throws IOException {
+        int fd = remote.create();
+        byte[] data = new byte[SIZE];
+        byte[] buf = new byte[SIZE];
+        long[] sentAt = new long[FRAMES];
+        long[] latency = new long[FRAMES];
+        int received = 0;
+        for(int f = 0; f < FRAMES; ++f) {
+            RemoteFileSystem.Batch batch = remote.batch();
+            batch.seek(fd, 0, Whence.SEEK_SET);
+            for(int i = 0; i < BATCH; ++i) {
+                if(f < FRAMES / 2)
+                    batch.write(fd, data);
+                else
+                    batch.read(fd, buf);
+            }
+            sentAt[f] = System.nanoTime();
+            batch.send();
+            if(remote.pending() == DEPTH) {
+                remote.receive();
+                latency[received] = System.nanoTime() - sentAt[received];
+                ++received;
+            }
+        }
+        while(received < FRAMES) {
+            remote.receive();
+            latency[received] = System.nanoTime() - sentAt[received];
+            ++received;
+        }
+        remote.close(fd);
+        return latency;
+    }
+}
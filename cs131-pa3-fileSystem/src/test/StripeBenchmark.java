@@ -0,0 +1,63 @@
+package test;
+
+import java.io.*;
+
+import fileSystem.BlockDevice;
+import fileSystem.Disk;
+import fileSystem.MyFileSystem;
+import fileSystem.StripedBlockDevice;
+import fileSystem.Whence;
+
+/**
+ * Measure large sequential reads from volumes striped across 1, 2, 4
+ * and 8 files (or the counts given as arguments).
+ *
+ * Each volume gets a 32 MB file, written and then read back in 1 MB
+ * calls a few times; the best read rate is reported. The backing
+ * files are created in the temporary directory (set java.io.tmpdir to
+ * put them on the devices to compare) and deleted afterwards.
+ */
+public class StripeBenchmark {
+    private static final int FILE_SIZE = 32 << 20;
+    private static final int CALL_SIZE = 1 << 20;
+    private static final int UNIT      = 16; // blocks per stripe unit
+    private static final int ROUNDS    = 5;
+
+    public static void main(String[] args) throws IOException {
+        int[] counts = { 1, 2, 4, 8 };
+        if(args.length > 0) {
+            counts = new int[args.length];
+            for(int i = 0; i < args.length; ++i)
+                counts[i] = Integer.parseInt(args[i]);
+        }
+        for(int n : counts)
+            run(n);
+    }
+
+    private static void run(int n) throws IOException {
+        File[] paths = new File[n];
+        for(int i = 0; i < n; ++i)
+            paths[i] = File.createTempFile("stripe" + i + "-", ".img");
+        BlockDevice device = StripedBlockDevice.open(UNIT, paths);
+        MyFileSystem fs = new MyFileSystem(new Disk(device));
+        fs.formatDisk(Disk.NUM_BLOCKS, 2);
+
+        int fd = fs.create();
+        byte[] buf = new byte[CALL_SIZE];
+        for(int off = 0; off < FILE_SIZE; off += buf.length)
+            fs.write(fd, buf);
+
+        double best = 0;
+        for(int round = 0; round < ROUNDS; ++round) {
+            fs.seek(fd, 0, Whence.SEEK_SET);
+            long start = System.nanoTime();
+            for(int off = 0; off < FILE_SIZE; off += buf.length)
+                fs.read(fd, buf);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            best = Math.max(best, FILE_SIZE / seconds / (1 << 20));
+        }
+        fs.close(fd);
+        fs.disk.stop(true);
+        System.out.printf("%d device(s): %.1f MB/s%n", n, best);
+    }
+}
@@ -1,18 +1,42 @@
 package test;
 
 import java.io.*;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.*;
 import org.junit.runner.RunWith;
 import org.junit.experimental.runners.Enclosed;
 
+import fileSystem.AsyncFileSystem;
+import fileSystem.Backup;
+import fileSystem.BlockDevice;
+import fileSystem.Defragmenter;
 import fileSystem.Disk;
+import fileSystem.FileBlockDevice;
+import fileSystem.FileServer;
+import fileSystem.FileSystem;
 import fileSystem.FileTable;
+import fileSystem.FreeExtents;
 import fileSystem.IndirectBlock;
 import fileSystem.Inode;
+import fileSystem.InodeTableInitializer;
+import fileSystem.LatencyModel;
+import fileSystem.MemoryBlockDevice;
+import fileSystem.MirroredBlockDevice;
 import fileSystem.InodeBlock;
+import fileSystem.InodeScanner;
 import fileSystem.MyFileSystem;
+import fileSystem.Plan;
+import fileSystem.RemoteFileSystem;
+import fileSystem.StripedBlockDevice;
+import fileSystem.SuperBlock;
 import fileSystem.Whence;
 import static org.junit.Assert.*;
 
@@ -30,26 +54,19 @@ import static org.junit.Assert.*;
  */
 @RunWith(Enclosed.class)
 public class TestMyFileSystem {
-    public static void deleteDisk() {
-        new File("DISK").delete();
-    }
-
     @BeforeClass
     public static void init() {
         Disk.printStats = false;
     }
 
     public static class Format {
+        private BlockDevice device;
         private MyFileSystem fs;
 
-        @BeforeClass
-        public static void startFresh() {
-            deleteDisk();
-        }
-
         @Before
         public void setUp() throws IOException {
-            fs = new MyFileSystem();
+            device = new MemoryBlockDevice();
+            fs = new MyFileSystem(new Disk(device));
             fs.formatDisk(100, 5);
         }
         
@@ -68,16 +85,34 @@ public class TestMyFileSystem {
         @Test
         public void testFormatDisk() throws IOException {
             testSuperBlock();
+            assertEquals(SuperBlock.MAGIC, fs.superBlock.magic);
+        }
+
+        @Test
+        public void testOldLayoutRefused() throws IOException {
+            BlockDevice device = new MemoryBlockDevice();
+            byte[] old = new byte[Disk.BLOCK_SIZE];
+            old[3] = 100; // size, with no magic
+            old[7] = 5;   // isize
+            device.write(0, old);
+            MyFileSystem other = new MyFileSystem(new Disk(device));
+            assertEquals(0, other.superBlock.size);
+            assertEquals(-1, other.open(1));
+            assertEquals(0, other.formatDisk(100, 5));
+            other.shutdown();
+            assertEquals(100, new MyFileSystem(new Disk(device))
+                         .superBlock.size);
         }
     }
 
     public static class FreeMap {
+        private BlockDevice device;
         private MyFileSystem fs;
         
         @Before
         public void setUp() throws IOException {
-            deleteDisk();
-            fs = new MyFileSystem();
+            device = new MemoryBlockDevice();
+            fs = new MyFileSystem(new Disk(device));
             fs.formatDisk(100, 5);
         }
         
@@ -102,12 +137,13 @@ public class TestMyFileSystem {
     }
 
     public static class FileSystemInterface {
+        private BlockDevice device;
         private MyFileSystem fs;
         
         @Before
         public void setUp() throws IOException {
-            deleteDisk();
-            fs = new MyFileSystem();
+            device = new MemoryBlockDevice();
+            fs = new MyFileSystem(new Disk(device));
             fs.formatDisk(100, 2);
         }
         
@@ -133,6 +169,143 @@ public class TestMyFileSystem {
                 fs.fileTable.free(fd);
         }
 
+        @Test
+        public void testLargeFileTable() {
+            FileTable table = new FileTable(5000);
+            for(int fd = 0; fd < 5000; ++fd) {
+                assertEquals(fd, table.allocate());
+                assertEquals(0, table.add(new Inode(), fd % 7 + 1, fd));
+            }
+            assertEquals(-1, table.allocate());
+            assertEquals(-1, table.setLimit(10));
+
+            // Freed file descriptors are reused
+            table.free(1234);
+            table.free(17);
+            assertEquals(17, table.allocate());
+            assertEquals(0, table.add(new Inode(), 3, 17));
+            assertEquals(1234, table.allocate());
+            assertEquals(-1, table.add(new Inode(), 3, 4999)); // in use
+
+            // Every fd open on inumber 1 has to be closed before it is
+            // no longer found
+            int fd;
+            while((fd = table.getFdFromInumber(1)) != -1) {
+                assertEquals(1, table.getInumber(fd));
+                table.free(fd);
+            }
+            assertEquals(2, table.getInumber(table.getFdFromInumber(2)));
+        }
+
+        @Test
+        public void testSequentialReadSkipsIndirectBlocks()
+            throws IOException {
+            fs.formatDisk(1000, 2);
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            // Start in the double-indirect range
+            int start = (10 + IndirectBlock.COUNT) * Disk.BLOCK_SIZE;
+            byte[] buf = new byte[100 * Disk.BLOCK_SIZE];
+            new Random(1).nextBytes(buf);
+            assertEquals(start, fs.seek(fd, start, Whence.SEEK_SET));
+            assertEquals(buf.length, fs.write(fd, buf));
+            assertEquals(0, fs.close(fd));
+
+            fd = fs.open(inumber);
+            assertEquals(start, fs.seek(fd, start, Whence.SEEK_SET));
+            int reads = fs.disk.getReadCount();
+            byte[] block = new byte[Disk.BLOCK_SIZE];
+            for(int i = 0; i < 100; ++i) {
+                assertEquals(block.length, fs.read(fd, block));
+                assertEquals(buf[i * Disk.BLOCK_SIZE], block[0]);
+            }
+            // 100 data blocks and the two indirect blocks on the way
+            assertEquals(102, fs.disk.getReadCount() - reads);
+            assertEquals(0, fs.close(fd));
+        }
+
+        @Test
+        public void testWriteAfterReadingHole() throws IOException {
+            int fd = fs.create();
+            int hole = 20 * Disk.BLOCK_SIZE;
+            assertEquals(hole, fs.seek(fd, hole, Whence.SEEK_SET));
+            assertEquals(1, fs.write(fd, new byte[] { 'x' }));
+
+            byte[] buf = new byte[1];
+            assertEquals(0, fs.seek(fd, 0, Whence.SEEK_SET));
+            assertEquals(1, fs.read(fd, buf));
+            assertEquals(0, buf[0]); // hole, now cached
+            assertEquals(0, fs.seek(fd, 0, Whence.SEEK_SET));
+            assertEquals(1, fs.write(fd, new byte[] { 'y' }));
+            assertEquals(0, fs.seek(fd, 0, Whence.SEEK_SET));
+            assertEquals(1, fs.read(fd, buf));
+            assertEquals('y', buf[0]);
+        }
+
+        @Test
+        public void testWriteThroughOtherDescriptor() throws IOException {
+            fs.formatDisk(1000, 2);
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            // Blocks 10 and 12 share an indirect block, 11 is a hole
+            byte[] block = new byte[Disk.BLOCK_SIZE];
+            assertEquals(10 * Disk.BLOCK_SIZE,
+                         fs.seek(fd, 10 * Disk.BLOCK_SIZE, Whence.SEEK_SET));
+            assertEquals(block.length, fs.write(fd, block));
+            assertEquals(12 * Disk.BLOCK_SIZE,
+                         fs.seek(fd, 12 * Disk.BLOCK_SIZE, Whence.SEEK_SET));
+            assertEquals(block.length, fs.write(fd, block));
+            assertEquals(0, fs.close(fd));
+
+            fd = fs.open(inumber);
+            int other = fs.open(inumber);
+            byte[] buf = new byte[3 * Disk.BLOCK_SIZE];
+            assertEquals(10 * Disk.BLOCK_SIZE,
+                         fs.seek(other, 10 * Disk.BLOCK_SIZE, Whence.SEEK_SET));
+            assertEquals(buf.length, fs.read(other, buf)); // hole cached
+
+            Arrays.fill(block, (byte)'z');
+            assertEquals(11 * Disk.BLOCK_SIZE,
+                         fs.seek(fd, 11 * Disk.BLOCK_SIZE, Whence.SEEK_SET));
+            assertEquals(block.length, fs.write(fd, block));
+            assertEquals(11 * Disk.BLOCK_SIZE,
+                         fs.seek(other, 11 * Disk.BLOCK_SIZE, Whence.SEEK_SET));
+            assertEquals(block.length, fs.read(other, block));
+            assertEquals('z', block[0]);
+            assertEquals('z', block[block.length - 1]);
+            assertEquals(0, fs.close(other));
+            assertEquals(0, fs.close(fd));
+        }
+
+        @Test
+        public void testLargeReadAcrossHole() throws IOException {
+            int fd = fs.create();
+            byte[] a = new byte[3 * Disk.BLOCK_SIZE];
+            Arrays.fill(a, (byte)'a');
+            assertEquals(a.length, fs.write(fd, a));
+            int hole = 10 * Disk.BLOCK_SIZE;
+            assertEquals(hole, fs.seek(fd, hole, Whence.SEEK_SET));
+            assertEquals(a.length, fs.write(fd, a));
+
+            byte[] expected = new byte[hole + a.length];
+            Arrays.fill(expected, 0, a.length, (byte)'a');
+            Arrays.fill(expected, hole, expected.length, (byte)'a');
+            byte[] buf = new byte[expected.length];
+            assertEquals(0, fs.seek(fd, 0, Whence.SEEK_SET));
+            assertEquals(buf.length, fs.read(fd, buf));
+            assertTrue(Arrays.equals(expected, buf));
+        }
+
+        @Test
+        public void testOpenSameFileTwice() throws IOException {
+            int fd1 = fs.create();
+            int fd2 = fs.open(fs.inumber(fd1));
+            assertEquals(0, fs.close(fd1));
+            assertEquals(-1, fs.delete(1)); // still open on fd2
+            assertEquals(0, fs.close(fd2));
+            assertEquals(0, fs.delete(1));
+        }
+
         @Test
         public void testCreate() throws IOException {
             int maxInumber = 2 * InodeBlock.COUNT;
@@ -150,7 +323,7 @@ public class TestMyFileSystem {
             assertEquals(0, fd);
             assertEquals(1, fs.fileTable.getInumber(fd));
             fs.shutdown();
-            fs = new MyFileSystem();
+            fs = new MyFileSystem(new Disk(device));
             fd = fs.open(1);
             assertEquals(0, fd);
             assertEquals(1, fs.fileTable.getInumber(fd));
@@ -231,11 +404,12 @@ public class TestMyFileSystem {
             byte[] foo = { 'f', 'o', 'o' };
             assertEquals(3, fs.write(fd, foo));
             assertEquals(3, fs.seek(fd, 0, Whence.SEEK_CUR));
-            assertEquals(4, fs.freeMap.find()); // block 3 should be used
-            fs.freeMap.clear(4);
+            assertEquals(3, fs.freeMap.find()); // foo is kept in the inode
+            fs.freeMap.clear(3);
             testFileSize(fd, 3);
 
-            // Write 4 blocks worth of data and check again
+            // Write 4 blocks worth of data and check again (foo moves
+            // to block 3)
             byte[] buf = new byte[Disk.BLOCK_SIZE * 4];
             Arrays.fill(buf, (byte)'a');
             assertEquals(Disk.BLOCK_SIZE * 4, fs.write(fd, buf));
@@ -347,12 +521,13 @@ public class TestMyFileSystem {
     }
     
     public static class Indirection {
+        private BlockDevice device;
         private MyFileSystem fs;
         
         @Before
         public void setUp() throws IOException {
-            deleteDisk();
-            fs = new MyFileSystem();
+            device = new MemoryBlockDevice();
+            fs = new MyFileSystem(new Disk(device));
         }
         
         @After
@@ -654,4 +829,2349 @@ public class TestMyFileSystem {
   
         }
     }
+
+    public static class Snapshots {
+        private BlockDevice device;
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            device = new MemoryBlockDevice();
+            fs = new MyFileSystem(new Disk(device));
+            fs.formatDisk(1000, 2);
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+        }
+
+        private byte[] fill(int size, char c) {
+            byte[] buf = new byte[size];
+            Arrays.fill(buf, (byte)c);
+            return buf;
+        }
+
+        private byte[] readAll(FileSystem view, int inumber, int size)
+            throws IOException {
+            int fd = view.open(inumber);
+            byte[] buf = new byte[size];
+            assertEquals(size, view.read(fd, buf));
+            assertEquals(0, view.close(fd));
+            return buf;
+        }
+
+        @Test
+        public void testSnapshotKeepsOldContents() throws IOException {
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            int size = Disk.BLOCK_SIZE * 20;
+            assertEquals(size, fs.write(fd, fill(size, 'a')));
+
+            int id = fs.snapshot();
+            assertEquals(1, id);
+
+            // Overwrite the file in the live file system while it is
+            // still open
+            fs.seek(fd, 0, Whence.SEEK_SET);
+            assertEquals(size, fs.write(fd, fill(size, 'b')));
+            assertEquals(0, fs.close(fd));
+
+            assertTrue(Arrays.equals(fill(size, 'b'),
+                                     readAll(fs, inumber, size)));
+            FileSystem view = fs.mountSnapshot(id);
+            assertTrue(Arrays.equals(fill(size, 'a'),
+                                     readAll(view, inumber, size)));
+        }
+
+        @Test
+        public void testSnapshotIsReadOnly() throws IOException {
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            assertEquals(3, fs.write(fd, fill(3, 'a')));
+            assertEquals(0, fs.close(fd));
+
+            FileSystem view = fs.mountSnapshot(fs.snapshot());
+            assertEquals(-1, view.create());
+            assertEquals(-1, view.delete(inumber));
+            fd = view.open(inumber);
+            assertEquals(-1, view.write(fd, fill(3, 'b')));
+            assertEquals(0, view.close(fd));
+            assertNull(fs.mountSnapshot(2));
+        }
+
+        @Test
+        public void testWritesOnlyCopyChangedBlocks() throws IOException {
+            int fd = fs.create();
+            int size = Disk.BLOCK_SIZE * 20;
+            assertEquals(size, fs.write(fd, fill(size, 'a')));
+            fs.snapshot();
+
+            int next = fs.freeMap.find();
+            fs.freeMap.clear(next);
+
+            // Block 12 is reached through the single indirect block,
+            // so both of them are copied, and nothing else
+            fs.seek(fd, Disk.BLOCK_SIZE * 12, Whence.SEEK_SET);
+            assertEquals(10, fs.write(fd, fill(10, 'b')));
+            assertEquals(next + 2, fs.freeMap.find());
+        }
+
+        @Test
+        public void testDeletedFileStaysInSnapshot() throws IOException {
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            assertEquals(100, fs.write(fd, fill(100, 'a')));
+            assertEquals(0, fs.close(fd));
+
+            int id = fs.snapshot();
+            assertEquals(0, fs.delete(inumber));
+            assertEquals(-1, fs.open(inumber));
+
+            // A new file must not reuse the blocks of the deleted one
+            fd = fs.create();
+            assertEquals(inumber, fs.inumber(fd));
+            assertEquals(100, fs.write(fd, fill(100, 'b')));
+            assertEquals(0, fs.close(fd));
+
+            assertTrue(Arrays.equals(fill(100, 'a'),
+                readAll(fs.mountSnapshot(id), inumber, 100)));
+        }
+
+        @Test
+        public void testDeleteSnapshot() throws IOException {
+            int fd = fs.create();
+            assertEquals(100, fs.write(fd, fill(100, 'a')));
+            int id = fs.snapshot();
+
+            int next = fs.freeMap.find();
+            fs.freeMap.clear(next);
+            fs.seek(fd, 0, Whence.SEEK_SET);
+            assertEquals(100, fs.write(fd, fill(100, 'b')));
+
+            // The old data block was only kept for the snapshot
+            int old = fs.freeMap.find();
+            assertTrue(old > next);
+            fs.freeMap.clear(old);
+            assertEquals(0, fs.deleteSnapshot(id));
+            assertTrue(fs.freeMap.find() < next);
+            assertEquals(-1, fs.deleteSnapshot(id));
+            assertNull(fs.mountSnapshot(id));
+        }
+
+        @Test
+        public void testSnapshotSurvivesRemount() throws IOException {
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            assertEquals(100, fs.write(fd, fill(100, 'a')));
+            int id = fs.snapshot();
+            fs.seek(fd, 0, Whence.SEEK_SET);
+            assertEquals(100, fs.write(fd, fill(100, 'b')));
+            fs.shutdown();
+
+            fs = new MyFileSystem(new Disk(device));
+            assertTrue(Arrays.equals(fill(100, 'a'),
+                readAll(fs.mountSnapshot(id), inumber, 100)));
+            assertTrue(Arrays.equals(fill(100, 'b'),
+                readAll(fs, inumber, 100)));
+        }
+    }
+
+    public static class InlineFiles {
+        private BlockDevice device;
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            device = new MemoryBlockDevice();
+            fs = new MyFileSystem(new Disk(device));
+            fs.formatDisk(100, 2);
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+        }
+
+        @Test
+        public void testSmallFileUsesNoBlocks() throws IOException {
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            byte[] foo = new byte[Inode.INLINE_SIZE];
+            for(int i = 0; i < foo.length; ++i)
+                foo[i] = (byte)i;
+            assertEquals(foo.length, fs.write(fd, foo));
+            assertTrue(fs.fileTable.getInode(fd).isInline());
+            assertEquals(0, fs.close(fd));
+            assertEquals(3, fs.freeMap.find()); // first data block is free
+            fs.freeMap.clear(3);
+
+            fd = fs.open(inumber);
+            byte[] buf = new byte[100];
+            assertEquals(foo.length, fs.read(fd, buf));
+            for(int i = 0; i < foo.length; ++i)
+                assertEquals(foo[i], buf[i]);
+        }
+
+        @Test
+        public void testGrowingFileMovesToBlock() throws IOException {
+            int fd = fs.create();
+            byte[] foo = { 'f', 'o', 'o' };
+            byte[] bar = new byte[Inode.INLINE_SIZE];
+            Arrays.fill(bar, (byte)'b');
+            assertEquals(3, fs.write(fd, foo));
+            assertEquals(bar.length, fs.write(fd, bar));
+            assertFalse(fs.fileTable.getInode(fd).isInline());
+            assertEquals(4, fs.freeMap.find()); // block 3 is used now
+
+            byte[] buf = new byte[3 + bar.length];
+            assertEquals(0, fs.seek(fd, 0, Whence.SEEK_SET));
+            assertEquals(buf.length, fs.read(fd, buf));
+            assertEquals('f', buf[0]);
+            assertEquals('o', buf[2]);
+            assertEquals('b', buf[3]);
+            assertEquals('b', buf[buf.length - 1]);
+        }
+
+        @Test
+        public void testHoleInInlineFile() throws IOException {
+            int fd = fs.create();
+            byte[] foo = { 'f', 'o', 'o' };
+            assertEquals(10, fs.seek(fd, 10, Whence.SEEK_SET));
+            assertEquals(3, fs.write(fd, foo));
+            assertTrue(fs.fileTable.getInode(fd).isInline());
+
+            byte[] buf = new byte[13];
+            assertEquals(0, fs.seek(fd, 0, Whence.SEEK_SET));
+            assertEquals(13, fs.read(fd, buf));
+            assertEquals('\0', buf[0]);
+            assertEquals('\0', buf[9]);
+            assertEquals('f', buf[10]);
+        }
+
+        @Test
+        public void testDeleteInlineFile() throws IOException {
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            byte[] foo = { 0, 0, 0, 4 }; // looks like a pointer to block 4
+            assertEquals(4, fs.write(fd, foo));
+            assertEquals(0, fs.close(fd));
+            assertEquals(3, fs.freeMap.find());
+            assertEquals(4, fs.freeMap.find());
+            assertEquals(0, fs.delete(inumber));
+            assertEquals(5, fs.freeMap.find()); // block 4 was not freed
+        }
+    }
+
+    public static class Compression {
+        private BlockDevice device;
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            device = new MemoryBlockDevice();
+            fs = new MyFileSystem(new Disk(device));
+            fs.formatDisk(1000, 2, SuperBlock.COMPRESSED);
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+        }
+
+        private byte[] text(int size) {
+            byte[] line = "12:00:01 GET /index.html 200\n".getBytes();
+            byte[] buf = new byte[size];
+            for(int i = 0; i < size; ++i)
+                buf[i] = line[i % line.length];
+            return buf;
+        }
+
+        private void assertContents(int inumber, byte[] expected)
+            throws IOException {
+            int fd = fs.open(inumber);
+            byte[] buf = new byte[expected.length];
+            assertEquals(expected.length, fs.read(fd, buf));
+            assertTrue(Arrays.equals(expected, buf));
+            assertEquals(0, fs.close(fd));
+        }
+
+        @Test
+        public void testCorruptClusterFailsRead() throws IOException {
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            assertEquals(4096, fs.write(fd, text(4096)));
+            int first = fs.fileTable.getInode(fd).ptr[0];
+            assertEquals(0, fs.close(fd));
+            fs.shutdown();
+
+            // an impossible length in front of the LZ4 output
+            byte[] block = new byte[Disk.BLOCK_SIZE];
+            fs = new MyFileSystem(new Disk(device));
+            fs.disk.read(first, block);
+            block[0] = 0x7f;
+            fs.disk.write(first, block);
+            fd = fs.open(inumber);
+            assertEquals(-1, fs.read(fd, new byte[100]));
+            assertEquals(-1, fs.read(fd, new byte[100])); // not cached
+            assertEquals(-1, fs.write(fd, new byte[100]));
+            assertEquals(0, fs.close(fd));
+        }
+
+        @Test
+        public void testCompressibleFileUsesFewBlocks() throws IOException {
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            byte[] buf = text(Disk.BLOCK_SIZE * 64);
+            assertEquals(buf.length, fs.write(fd, buf));
+            assertEquals(0, fs.close(fd));
+
+            // 8 clusters of 1 block each, plus an indirect block
+            assertEquals(3 + 9, fs.freeMap.find());
+
+            // Read back through a fresh file system (no cached clusters)
+            fs.shutdown();
+            fs = new MyFileSystem(new Disk(device));
+            assertContents(inumber, buf);
+        }
+
+        @Test
+        public void testIncompressibleFile() throws IOException {
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            byte[] buf = new byte[Disk.BLOCK_SIZE * 20 + 7];
+            new Random(42).nextBytes(buf);
+            assertEquals(buf.length, fs.write(fd, buf));
+            assertEquals(0, fs.close(fd));
+            assertContents(inumber, buf);
+        }
+
+        @Test
+        public void testPartialOverwrite() throws IOException {
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            byte[] buf = text(10000);
+            assertEquals(buf.length, fs.write(fd, buf));
+
+            byte[] bar = { 'b', 'a', 'r' };
+            assertEquals(4094, fs.seek(fd, 4094, Whence.SEEK_SET));
+            assertEquals(3, fs.write(fd, bar)); // spans two clusters
+            System.arraycopy(bar, 0, buf, 4094, 3);
+            assertEquals(0, fs.close(fd));
+
+            fs.shutdown();
+            fs = new MyFileSystem(new Disk(device));
+            assertContents(inumber, buf);
+        }
+
+        @Test
+        public void testHoles() throws IOException {
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            byte[] foo = text(100);
+            int hole = Disk.BLOCK_SIZE * 200;
+            assertEquals(hole, fs.seek(fd, hole, Whence.SEEK_SET));
+            assertEquals(foo.length, fs.write(fd, foo));
+            assertEquals(0, fs.close(fd));
+
+            byte[] expected = new byte[hole + foo.length];
+            System.arraycopy(foo, 0, expected, hole, foo.length);
+            assertContents(inumber, expected);
+        }
+
+        @Test
+        public void testDeleteFreesClusters() throws IOException {
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            assertEquals(50000, fs.write(fd, text(50000)));
+            assertEquals(0, fs.close(fd));
+            assertEquals(0, fs.delete(inumber));
+            assertEquals(3, fs.freeMap.find());
+        }
+    }
+
+    public static class Dedup {
+        private BlockDevice device;
+        private MyFileSystem fs;
+        private int free; // free blocks after formatting
+
+        @Before
+        public void setUp() throws IOException {
+            device = new MemoryBlockDevice();
+            fs = new MyFileSystem(new Disk(device));
+            fs.formatDisk(1000, 2, SuperBlock.DEDUP);
+            free = fs.freeMap.countFree();
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+        }
+
+        private int createFile(byte[] buf) throws IOException {
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            assertEquals(buf.length, fs.write(fd, buf));
+            assertEquals(0, fs.close(fd));
+            return inumber;
+        }
+
+        private void assertContents(int inumber, byte[] expected)
+            throws IOException {
+            int fd = fs.open(inumber);
+            byte[] buf = new byte[expected.length];
+            assertEquals(expected.length, fs.read(fd, buf));
+            assertTrue(Arrays.equals(expected, buf));
+            assertEquals(0, fs.close(fd));
+        }
+
+        @Test
+        public void testRefCountsReserved() {
+            // 997 data blocks need 4 blocks of reference counts
+            assertEquals(997 - 4, free);
+        }
+
+        @Test
+        public void testDuplicateFilesShareBlocks() throws IOException {
+            byte[] buf = new byte[Disk.BLOCK_SIZE * 4];
+            new Random(7).nextBytes(buf);
+            int foo = createFile(buf);
+            assertEquals(free - 4, fs.freeMap.countFree());
+            int bar = createFile(buf);
+            assertEquals(free - 4, fs.freeMap.countFree());
+            assertContents(foo, buf);
+            assertContents(bar, buf);
+        }
+
+        @Test
+        public void testRepeatedBlocksWithinFile() throws IOException {
+            byte[] buf = new byte[Disk.BLOCK_SIZE * 20];
+            Arrays.fill(buf, (byte)'x');
+            int foo = createFile(buf);
+            assertEquals(free - 2, fs.freeMap.countFree()); // and an indirect
+            assertContents(foo, buf);
+        }
+
+        @Test
+        public void testOverwriteSharedBlock() throws IOException {
+            byte[] buf = new byte[Disk.BLOCK_SIZE * 2];
+            new Random(7).nextBytes(buf);
+            int foo = createFile(buf);
+            int bar = createFile(buf);
+
+            int fd = fs.open(foo);
+            byte[] baz = { 'b', 'a', 'z' };
+            assertEquals(3, fs.write(fd, baz));
+            assertEquals(0, fs.close(fd));
+            assertEquals(free - 3, fs.freeMap.countFree());
+
+            assertContents(bar, buf);
+            byte[] expected = buf.clone();
+            System.arraycopy(baz, 0, expected, 0, 3);
+            assertContents(foo, expected);
+        }
+
+        @Test
+        public void testDeleteDropsReference() throws IOException {
+            byte[] buf = new byte[Disk.BLOCK_SIZE * 3];
+            new Random(7).nextBytes(buf);
+            int foo = createFile(buf);
+            int bar = createFile(buf);
+
+            assertEquals(0, fs.delete(foo));
+            assertEquals(free - 3, fs.freeMap.countFree());
+
+            // Reference counts survive a restart
+            fs.shutdown();
+            fs = new MyFileSystem(new Disk(device));
+            assertContents(bar, buf);
+            assertEquals(0, fs.delete(bar));
+            assertEquals(free, fs.freeMap.countFree());
+        }
+
+        @Test
+        public void testThousandDuplicateFiles() throws IOException {
+            // 1000 inodes need 125 inode blocks
+            assertEquals(0, fs.formatDisk(1000, 125, SuperBlock.DEDUP));
+            free = fs.freeMap.countFree();
+            byte[] buf = new byte[Disk.BLOCK_SIZE * 2];
+            new Random(7).nextBytes(buf);
+            int first = createFile(buf);
+            for(int i = 1; i < 1000; ++i)
+                createFile(buf);
+            assertEquals(free - 2, fs.freeMap.countFree());
+            assertContents(first, buf);
+        }
+
+        @Test
+        public void testCompressionRejected() throws IOException {
+            assertEquals(-1, fs.formatDisk(1000, 2,
+                SuperBlock.DEDUP | SuperBlock.COMPRESSED));
+        }
+    }
+
+    public static class Log {
+        private BlockDevice device;
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            device = new MemoryBlockDevice();
+            fs = new MyFileSystem(new Disk(device));
+            fs.formatDisk(1000, 2, SuperBlock.LOG);
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+        }
+
+        private byte[] block(int seed) {
+            byte[] buf = new byte[Disk.BLOCK_SIZE];
+            new Random(seed).nextBytes(buf);
+            return buf;
+        }
+
+        private void assertContents(int inumber, byte[] expected)
+            throws IOException {
+            int fd = fs.open(inumber);
+            byte[] buf = new byte[expected.length];
+            assertEquals(expected.length, fs.read(fd, buf));
+            assertTrue(Arrays.equals(expected, buf));
+            assertEquals(0, fs.close(fd));
+        }
+
+        @Test
+        public void testOverwritesAreAppended() throws IOException {
+            int fd = fs.create();
+            assertEquals(70 * Disk.BLOCK_SIZE,
+                         fs.write(fd, new byte[70 * Disk.BLOCK_SIZE]));
+            Inode inode = fs.fileTable.getInode(fd);
+            int three = inode.ptr[3], six = inode.ptr[6];
+            int free = fs.freeMap.countFree();
+
+            fs.seek(fd, 3 * Disk.BLOCK_SIZE, Whence.SEEK_SET);
+            fs.write(fd, block(3));
+            fs.seek(fd, 6 * Disk.BLOCK_SIZE, Whence.SEEK_SET);
+            fs.write(fd, block(6));
+            assertTrue(inode.ptr[3] > three && inode.ptr[3] > six);
+            assertEquals(inode.ptr[3] + 1, inode.ptr[6]);
+            assertEquals(free, fs.freeMap.countFree()); // old blocks freed
+            assertEquals(0, fs.close(fd));
+        }
+
+        @Test
+        public void testRandomOverwritesOutlastDisk() throws IOException {
+            byte[] expected = new byte[300 * Disk.BLOCK_SIZE];
+            int fd = fs.create();
+            assertEquals(expected.length, fs.write(fd, expected));
+            Random random = new Random(11);
+            for(int i = 0; i < 3000; ++i) {
+                int n = random.nextInt(300);
+                byte[] buf = block(i);
+                fs.seek(fd, n * Disk.BLOCK_SIZE, Whence.SEEK_SET);
+                assertEquals(buf.length, fs.write(fd, buf));
+                System.arraycopy(buf, 0, expected, n * Disk.BLOCK_SIZE,
+                                 buf.length);
+            }
+            assertEquals(0, fs.close(fd));
+            assertContents(1, expected);
+
+            fs.shutdown();
+            fs = new MyFileSystem(new Disk(device));
+            assertContents(1, expected);
+        }
+
+        @Test
+        public void testCleanWhileReopened() throws IOException {
+            fs.shutdown();
+            fs = new MyFileSystem(new Disk(device));
+            fs.formatDisk(1400, 4, SuperBlock.LOG);
+            int free = fs.freeMap.countFree();
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            assertEquals(500 * Disk.BLOCK_SIZE,
+                         fs.write(fd, new byte[500 * Disk.BLOCK_SIZE]));
+            assertEquals(0, fs.close(fd));
+
+            // the inode on disk goes stale while the file is open again
+            fd = fs.open(inumber);
+            Random random = new Random(3);
+            for(int i = 0; i < 50000; ++i) {
+                fs.seek(fd, random.nextInt(500) * Disk.BLOCK_SIZE,
+                        Whence.SEEK_SET);
+                assertEquals(Disk.BLOCK_SIZE, fs.write(fd, block(i)));
+            }
+            assertEquals(0, fs.close(fd));
+            assertEquals(0, fs.delete(inumber));
+            assertEquals(free, fs.freeMap.countFree());
+        }
+
+        @Test
+        public void testCleanHalfEmptySegments() throws IOException {
+            int a = fs.create(), b = fs.create();
+            byte[] data = new byte[16 * Disk.BLOCK_SIZE];
+            new Random(5).nextBytes(data);
+            byte[] expected = new byte[128 * Disk.BLOCK_SIZE];
+            for(int i = 0; i < 8; ++i) {
+                assertEquals(data.length, fs.write(a, data));
+                assertEquals(data.length, fs.write(b, data));
+                System.arraycopy(data, 0, expected, i * data.length,
+                                 data.length);
+            }
+            assertEquals(0, fs.close(a));
+            assertEquals(0, fs.close(b));
+            assertEquals(0, fs.delete(1));
+
+            int free = fs.freeMap.countFree();
+            int clean = fs.freeMap.cleanSegments();
+            assertTrue(fs.clean(10) >= 4);
+            assertTrue(fs.freeMap.cleanSegments() >= clean + 2);
+            assertEquals(free, fs.freeMap.countFree());
+            assertContents(2, expected);
+        }
+
+        @Test
+        public void testNoDedup() throws IOException {
+            assertEquals(-1, fs.formatDisk(1000, 2,
+                                           SuperBlock.LOG | SuperBlock.DEDUP));
+        }
+    }
+
+    public static class BlockGroups {
+        private BlockDevice device;
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            device = new MemoryBlockDevice();
+            fs = new MyFileSystem(new Disk(device));
+            assertEquals(0, fs.formatDisk(1000, 4, 0, 4));
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+        }
+
+        private int createFile(byte[] buf) throws IOException {
+            int fd = fs.create();
+            assertEquals(buf.length, fs.write(fd, buf));
+            return fd;
+        }
+
+        @Test
+        public void testInodeBlockInEachGroup() {
+            SuperBlock sb = fs.superBlock;
+            assertEquals(1000 - 1, sb.dsize()); // inode blocks included
+            assertEquals(1000 - 1 - 4, fs.freeMap.countFree());
+            for(int k = 0; k < 4; ++k) {
+                assertEquals(k, sb.group(sb.inodeBlock(k)));
+                assertEquals(sb.groupStart(k), sb.inodeBlock(k));
+                assertEquals(k, sb.inodeIndex(sb.inodeBlock(k)));
+                int blocks = Math.min(sb.groupSize(), 1000 - sb.groupStart(k));
+                assertEquals(blocks - 1, fs.freeMap.countFree(k));
+            }
+        }
+
+        @Test
+        public void testFilesSpreadOverGroups() throws IOException {
+            SuperBlock sb = fs.superBlock;
+            boolean[] used = new boolean[4];
+            for(int i = 0; i < 4; ++i) {
+                int fd = createFile(new byte[10 * Disk.BLOCK_SIZE]);
+                Inode inode = fs.fileTable.getInode(fd);
+                int group = sb.group(sb.inodeBlock(
+                    (fs.inumber(fd) - 1) / InodeBlock.COUNT));
+                assertFalse(used[group]);
+                used[group] = true;
+                for(int b = 0; b < 10; ++b) {
+                    assertEquals(group, sb.group(inode.ptr[b]));
+                    assertEquals(inode.ptr[0] + b, inode.ptr[b]);
+                }
+                assertEquals(0, fs.close(fd));
+            }
+        }
+
+        @Test
+        public void testAppendStaysContiguous() throws IOException {
+            int a = createFile(new byte[Disk.BLOCK_SIZE]);
+            int b = createFile(new byte[Disk.BLOCK_SIZE]);
+            assertEquals(Disk.BLOCK_SIZE, fs.write(a, new byte[Disk.BLOCK_SIZE]));
+            Inode inode = fs.fileTable.getInode(a);
+            assertEquals(inode.ptr[0] + 1, inode.ptr[1]);
+            assertEquals(0, fs.close(a));
+            assertEquals(0, fs.close(b));
+        }
+
+        @Test
+        public void testFileLargerThanGroup() throws IOException {
+            byte[] buf = new byte[400 * Disk.BLOCK_SIZE];
+            new Random(9).nextBytes(buf);
+            int fd = createFile(buf);
+            int inumber = fs.inumber(fd);
+            assertEquals(0, fs.close(fd));
+            fs.shutdown();
+
+            fs = new MyFileSystem(new Disk(device));
+            assertEquals(4, fs.superBlock.groups);
+            fd = fs.open(inumber);
+            byte[] copy = new byte[buf.length];
+            assertEquals(buf.length, fs.read(fd, copy));
+            assertTrue(Arrays.equals(buf, copy));
+            assertEquals(0, fs.close(fd));
+            assertEquals(0, fs.delete(inumber));
+            assertEquals(1000 - 1 - 4, fs.freeMap.countFree());
+        }
+
+        @Test
+        public void testGroupsTooSmall() throws IOException {
+            assertEquals(-1, fs.formatDisk(10, 1, 0, 8)); // last groups empty
+        }
+    }
+
+    public static class Extents {
+        @Test
+        public void testJoinAndSplit() {
+            FreeExtents e = new FreeExtents();
+            for(int n = 10; n < 20; ++n)
+                if(n != 15)
+                    e.add(n);
+            assertEquals(2, e.size());
+            e.add(15);
+            assertEquals(1, e.size());
+            assertEquals(10, e.free());
+            e.remove(12);
+            e.remove(12);
+            assertEquals(2, e.size());
+            assertEquals(9, e.free());
+            assertEquals(13, e.first(12));
+            assertEquals(10, e.first(25));
+            assertEquals(0, new FreeExtents().first(1));
+        }
+
+        @Test
+        public void testFit() {
+            FreeExtents e = new FreeExtents();
+            e.addRun(100, 3);
+            e.addRun(200, 10);
+            e.addRun(300, 5);
+            assertEquals(300, e.fit(4, 0));   // best fit
+            assertEquals(204, e.fit(4, 204)); // room from goal on
+            assertEquals(200, e.fit(4, 150)); // next run
+            assertEquals(300, e.fit(4, 208)); // no room near goal
+            assertEquals(0, e.fit(11, 0));
+        }
+
+        @Test
+        public void testMatchesBitmap() throws IOException {
+            MyFileSystem fs = new MyFileSystem(new Disk(new MemoryBlockDevice()));
+            fs.formatDisk(5000, 4);
+            Random random = new Random(7);
+            List<Integer> files = new ArrayList<Integer>();
+            for(int i = 0; i < 200; ++i) {
+                if(files.size() > 5 && random.nextBoolean()) {
+                    fs.delete(files.remove(random.nextInt(files.size())));
+                } else {
+                    int fd = fs.create();
+                    fs.write(fd, new byte[random.nextInt(40) * 512 + 100]);
+                    files.add(fs.inumber(fd));
+                    fs.close(fd);
+                }
+                if(i == 100)
+                    fs.snapshot();
+            }
+            // a FreeMap built from the bits on disk agrees
+            fs.deleteSnapshot(1);
+            assertEquals(new fileSystem.FreeMap(fs.disk, fs.superBlock)
+                         .countFree(), fs.freeMap.countFree());
+            fs.shutdown();
+        }
+
+        @Test
+        public void testSharedBlocksAreNotFree() throws IOException {
+            MyFileSystem fs = new MyFileSystem(new Disk(new MemoryBlockDevice()));
+            fs.formatDisk(1000, 2);
+            int fd = fs.create();
+            fs.write(fd, new byte[20 * Disk.BLOCK_SIZE]);
+            int inumber = fs.inumber(fd);
+            fs.close(fd);
+            fs.snapshot();
+            int free = fs.freeMap.countFree();
+            fs.delete(inumber);
+            // only the copy of the inode block kept for the snapshot
+            assertEquals(free - 1, fs.freeMap.countFree());
+            fs.deleteSnapshot(1);
+            assertTrue(fs.freeMap.countFree() > free + 20);
+            fs.shutdown();
+        }
+    }
+
+    public static class Clones {
+        private BlockDevice device;
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            device = new MemoryBlockDevice();
+            fs = new MyFileSystem(new Disk(device));
+            fs.formatDisk(2000, 4, SuperBlock.CLONE | SuperBlock.QUOTA);
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+        }
+
+        private static byte[] pattern(int size, int seed) {
+            byte[] data = new byte[size];
+            for(int i = 0; i < size; ++i)
+                data[i] = (byte)(i * 7 + i / 512 + seed);
+            return data;
+        }
+
+        private byte[] contents(int fd, int size) throws IOException {
+            byte[] data = new byte[size];
+            fs.seek(fd, 0, Whence.SEEK_SET);
+            assertEquals(size, fs.read(fd, data));
+            return data;
+        }
+
+        @Test
+        public void testCloneSharesBlocks() throws IOException {
+            byte[] data = pattern(300 * Disk.BLOCK_SIZE, 1); // two levels
+            int fd = fs.create();
+            fs.write(fd, data);
+            int inumber = fs.inumber(fd);
+            fs.close(fd);
+            int free = fs.freeMap.countFree();
+            fd = fs.clone(inumber);
+            assertTrue(fd >= 0);
+            assertTrue(fs.inumber(fd) != inumber);
+            // only the indirect blocks are copied
+            assertEquals(free - 4, fs.freeMap.countFree());
+            assertArrayEquals(data, contents(fd, data.length));
+            fs.close(fd);
+        }
+
+        @Test
+        public void testFullDiskLeavesNothing() throws IOException {
+            int fd = fs.create();
+            fs.write(fd, pattern(300 * Disk.BLOCK_SIZE, 5));
+            int inumber = fs.inumber(fd);
+            fs.close(fd);
+            int filler = fs.create();
+            while(fs.freeMap.countFree() > 0)
+                fs.write(filler, new byte[Disk.BLOCK_SIZE]);
+            fs.close(filler);
+
+            // the data blocks gain references, then the indirect blocks
+            // cannot be copied
+            assertEquals(-1, fs.clone(inumber));
+            assertEquals(0, fs.freeMap.countFree());
+            for(int i = 0; i < fs.fileTable.size(); ++i)
+                assertFalse(fs.fileTable.isValid(i)); // no descriptor leaked
+            assertEquals(0, fs.delete(inumber));
+            assertEquals(304, fs.freeMap.countFree()); // no references left
+        }
+
+        @Test
+        public void testWritesAreCopied() throws IOException {
+            byte[] data = pattern(40 * Disk.BLOCK_SIZE, 2);
+            int fd = fs.create();
+            fs.write(fd, data);
+            int copy = fs.clone(fs.inumber(fd));
+            fs.seek(copy, 100, Whence.SEEK_SET);
+            fs.write(copy, new byte[3 * Disk.BLOCK_SIZE]);
+            assertArrayEquals(data, contents(fd, data.length));
+            byte[] changed = data.clone();
+            Arrays.fill(changed, 100, 100 + 3 * Disk.BLOCK_SIZE, (byte)0);
+            assertArrayEquals(changed, contents(copy, data.length));
+            fs.close(copy);
+            fs.close(fd);
+        }
+
+        @Test
+        public void testDeleteEither() throws IOException {
+            int free = fs.freeMap.countFree();
+            byte[] data = pattern(50 * Disk.BLOCK_SIZE, 3);
+            int fd = fs.create();
+            fs.write(fd, data);
+            int inumber = fs.inumber(fd);
+            fs.close(fd);
+            fd = fs.clone(inumber);
+            int clone = fs.inumber(fd);
+            fs.close(fd);
+            fs.delete(inumber);
+            fd = fs.open(clone);
+            assertArrayEquals(data, contents(fd, data.length));
+            fs.close(fd);
+            fs.delete(clone);
+            assertEquals(free, fs.freeMap.countFree());
+        }
+
+        @Test
+        public void testCloneOpenFile() throws IOException {
+            int fd = fs.create();
+            fs.write(fd, new byte[] { 1, 2, 3 }); // inline, not yet on disk
+            int copy = fs.clone(fs.inumber(fd));
+            assertArrayEquals(new byte[] { 1, 2, 3 }, contents(copy, 3));
+            fs.write(fd, pattern(20 * Disk.BLOCK_SIZE, 4));
+            int copy2 = fs.clone(fs.inumber(fd));
+            assertArrayEquals(contents(fd, 20 * Disk.BLOCK_SIZE + 3),
+                              contents(copy2, 20 * Disk.BLOCK_SIZE + 3));
+            fs.close(copy2);
+            fs.close(copy);
+            fs.close(fd);
+        }
+
+        @Test
+        public void testClonesAreCharged() throws IOException {
+            int fd = fs.create();
+            fs.write(fd, new byte[20 * Disk.BLOCK_SIZE]);
+            fs.setUser(5);
+            fs.setQuota(5, 0, 10);
+            assertEquals(-1, fs.clone(fs.inumber(fd)));
+            assertEquals(0, fs.usage(5));
+            fs.setQuota(5, 0, 30);
+            int copy = fs.clone(fs.inumber(fd));
+            assertTrue(copy >= 0);
+            assertEquals(fs.usage(0), fs.usage(5));
+            fs.close(copy);
+            fs.close(fd);
+        }
+
+        @Test
+        public void testNeedsReferenceCounts() throws IOException {
+            fs.formatDisk(2000, 4);
+            int fd = fs.create();
+            fs.write(fd, new byte[100]);
+            assertEquals(-1, fs.clone(fs.inumber(fd)));
+            fs.close(fd);
+            assertEquals(-1, fs.formatDisk(2000, 4,
+                                           SuperBlock.CLONE | SuperBlock.LOG));
+            assertEquals(0, fs.formatDisk(2000, 4));
+        }
+
+        @Test
+        public void testCopyRange() throws IOException {
+            fs.formatDisk(2000, 4);
+            byte[] data = pattern(100 * Disk.BLOCK_SIZE, 5);
+            int src = fs.create();
+            fs.write(src, data);
+            int dst = fs.create();
+            fs.write(dst, new byte[10]);
+            fs.seek(src, 300, Whence.SEEK_SET);
+            assertEquals(data.length - 300,
+                         fs.copyRange(src, dst, data.length)); // stops at EOF
+            byte[] expected = new byte[data.length - 290];
+            System.arraycopy(data, 300, expected, 10, data.length - 300);
+            assertArrayEquals(expected, contents(dst, expected.length));
+            assertEquals(-1, fs.copyRange(src, src, 10));
+            fs.close(dst);
+            fs.close(src);
+        }
+    }
+
+    public static class Truncate {
+        private BlockDevice device;
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            device = new MemoryBlockDevice();
+            fs = new MyFileSystem(new Disk(device));
+            fs.formatDisk(2000, 4);
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+        }
+
+        private static byte[] pattern(int size) {
+            byte[] data = new byte[size];
+            for(int i = 0; i < size; ++i)
+                data[i] = (byte)(i * 7 + i / 512 + 1);
+            return data;
+        }
+
+        private byte[] contents(int fd, int size) throws IOException {
+            byte[] data = new byte[size];
+            fs.seek(fd, 0, Whence.SEEK_SET);
+            assertEquals(size, fs.read(fd, data));
+            return data;
+        }
+
+        @Test
+        public void testShrinkFreesBlocks() throws IOException {
+            int free = fs.freeMap.countFree();
+            byte[] data = pattern(300 * Disk.BLOCK_SIZE);
+            int fd = fs.create();
+            fs.write(fd, data);
+            assertEquals(0, fs.truncate(fd, 200 * Disk.BLOCK_SIZE));
+            // 200 blocks and 3 indirect blocks: one single, two double
+            assertEquals(free - 203, fs.freeMap.countFree());
+            assertArrayEquals(Arrays.copyOf(data, 200 * Disk.BLOCK_SIZE),
+                              contents(fd, 200 * Disk.BLOCK_SIZE));
+            assertEquals(0, fs.truncate(fd, 5 * Disk.BLOCK_SIZE + 100));
+            assertEquals(free - 6, fs.freeMap.countFree());
+            assertEquals(0, fs.truncate(fd, 0));
+            assertEquals(free, fs.freeMap.countFree());
+            assertEquals(0, fs.read(fd, new byte[10]));
+            fs.close(fd);
+        }
+
+        @Test
+        public void testIntoHoleOnFullDisk() throws IOException {
+            byte[] block = pattern(Disk.BLOCK_SIZE);
+            int fd = fs.create();
+            fs.write(fd, block);
+            // second leaf of the double indirect block; the first is a hole
+            int far = (10 + IndirectBlock.COUNT + IndirectBlock.COUNT + 5)
+                * Disk.BLOCK_SIZE;
+            fs.seek(fd, far, Whence.SEEK_SET);
+            fs.write(fd, block);
+            int filler = fs.create();
+            while(fs.freeMap.countFree() > 0)
+                fs.write(filler, new byte[Disk.BLOCK_SIZE]);
+
+            int size = (10 + IndirectBlock.COUNT + 50) * Disk.BLOCK_SIZE + 1;
+            assertEquals(0, fs.truncate(fd, size));
+            // the data block, its leaf and the double indirect block
+            assertEquals(3, fs.freeMap.countFree());
+            byte[] expected = new byte[size];
+            System.arraycopy(block, 0, expected, 0, block.length);
+            assertArrayEquals(expected, contents(fd, size));
+            fs.close(filler);
+            fs.close(fd);
+        }
+
+        @Test
+        public void testGrowingReadsZeros() throws IOException {
+            byte[] data = pattern(3 * Disk.BLOCK_SIZE);
+            int fd = fs.create();
+            fs.write(fd, data);
+            fs.truncate(fd, 700);
+            fs.truncate(fd, 4 * Disk.BLOCK_SIZE);
+            byte[] expected = new byte[4 * Disk.BLOCK_SIZE];
+            System.arraycopy(data, 0, expected, 0, 700);
+            assertArrayEquals(expected, contents(fd, expected.length));
+
+            int small = fs.create(); // inline
+            fs.write(small, new byte[] { 1, 2, 3, 4 });
+            fs.truncate(small, 2);
+            fs.truncate(small, 4);
+            assertArrayEquals(new byte[] { 1, 2, 0, 0 }, contents(small, 4));
+            fs.close(small);
+            fs.close(fd);
+        }
+
+        @Test
+        public void testSnapshotKeepsData() throws IOException {
+            byte[] data = pattern(150 * Disk.BLOCK_SIZE);
+            int fd = fs.create();
+            fs.write(fd, data);
+            int inumber = fs.inumber(fd);
+            FileSystem view = fs.mountSnapshot(fs.snapshot());
+            fs.truncate(fd, 20 * Disk.BLOCK_SIZE + 5);
+            int old = view.open(inumber);
+            byte[] read = new byte[data.length];
+            assertEquals(data.length, view.read(old, read));
+            assertArrayEquals(data, read);
+            view.close(old);
+            assertArrayEquals(Arrays.copyOf(data, 20 * Disk.BLOCK_SIZE + 5),
+                              contents(fd, 20 * Disk.BLOCK_SIZE + 5));
+            fs.close(fd);
+        }
+
+        @Test
+        public void testOtherDescriptors() throws IOException {
+            byte[] data = pattern(50 * Disk.BLOCK_SIZE);
+            int fd = fs.create();
+            fs.write(fd, data);
+            fs.close(fd);
+            fd = fs.open(1);
+            int other = fs.open(1);
+            byte[] buf = new byte[Disk.BLOCK_SIZE];
+            fs.seek(other, 40 * Disk.BLOCK_SIZE, Whence.SEEK_SET);
+            assertEquals(buf.length, fs.read(other, buf)); // cached
+            fs.truncate(fd, Disk.BLOCK_SIZE);
+            fs.seek(other, 40 * Disk.BLOCK_SIZE, Whence.SEEK_SET);
+            assertEquals(0, fs.read(other, buf));
+            fs.close(fd);
+            fs.close(other);
+        }
+
+        @Test
+        public void testAllocate() throws IOException {
+            int fd = fs.create();
+            fs.write(fd, pattern(2 * Disk.BLOCK_SIZE));
+            int free = fs.freeMap.countFree();
+            assertEquals(0, fs.allocate(fd, 100, 100 * Disk.BLOCK_SIZE));
+            assertEquals(100 * Disk.BLOCK_SIZE + 100, fs.fileTable.getInode(fd).size);
+            // 99 new blocks and an indirect block
+            assertEquals(free - 100, fs.freeMap.countFree());
+            assertEquals(1, fs.fragments(fs.inumber(fd)));
+            byte[] expected = new byte[100 * Disk.BLOCK_SIZE + 100];
+            System.arraycopy(pattern(2 * Disk.BLOCK_SIZE), 0, expected, 0,
+                             2 * Disk.BLOCK_SIZE);
+            assertArrayEquals(expected, contents(fd, expected.length));
+            // writing needs no more blocks
+            fs.seek(fd, 0, Whence.SEEK_SET);
+            fs.write(fd, new byte[expected.length]);
+            assertEquals(free - 100, fs.freeMap.countFree());
+            fs.close(fd);
+        }
+
+        @Test
+        public void testAllocateErrors() throws IOException {
+            int fd = fs.create();
+            assertEquals(-1, fs.allocate(fd, -1, 10));
+            assertEquals(-1, fs.allocate(fd, 0, 0));
+            assertEquals(-1, fs.allocate(fd, 0, 3000 * Disk.BLOCK_SIZE));
+            assertEquals(0, fs.fileTable.getInode(fd).size);
+            fs.close(fd);
+            fs.formatDisk(2000, 4, SuperBlock.COMPRESSED);
+            fd = fs.create();
+            assertEquals(-1, fs.allocate(fd, 0, 10));
+            fs.close(fd);
+        }
+    }
+
+    public static class Scanner {
+        private BlockDevice device;
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            device = new MemoryBlockDevice();
+            fs = new MyFileSystem(new Disk(device));
+            fs.formatDisk(5000, 200); // several chunks
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+        }
+
+        private int file(int size) throws IOException {
+            int fd = fs.create();
+            fs.write(fd, new byte[size]);
+            int inumber = fs.inumber(fd);
+            fs.close(fd);
+            return inumber;
+        }
+
+        @Test
+        public void testListsEveryFile() throws IOException {
+            Map<Integer, Integer> sizes = new TreeMap<Integer, Integer>();
+            Random random = new Random(3);
+            for(int i = 0; i < 300; ++i) {
+                int size = random.nextInt(10 * Disk.BLOCK_SIZE);
+                sizes.put(file(size), size);
+            }
+            for(int i = 0; i < 50; ++i) {
+                int inumber = new ArrayList<Integer>(sizes.keySet())
+                    .get(random.nextInt(sizes.size()));
+                fs.delete(inumber);
+                sizes.remove(inumber);
+            }
+            List<InodeScanner.Stat> stats =
+                new InodeScanner(fs, fs, 4).scan();
+            assertEquals(sizes.size(), stats.size());
+            int i = 0;
+            for(Map.Entry<Integer, Integer> e : sizes.entrySet()) {
+                InodeScanner.Stat stat = stats.get(i++);
+                int size = e.getValue();
+                assertEquals((int)e.getKey(), stat.inumber);
+                assertEquals(size, stat.size);
+                assertEquals(size <= Inode.INLINE_SIZE ? 0
+                             : (size + Disk.BLOCK_SIZE - 1) / Disk.BLOCK_SIZE,
+                             stat.blocks);
+            }
+        }
+
+        @Test
+        public void testIndirectBlocksCount() throws IOException {
+            int inumber = file(300 * Disk.BLOCK_SIZE);
+            InodeScanner.Stat stat = new InodeScanner(fs, fs, 2).scan().get(0);
+            assertEquals(inumber, stat.inumber);
+            assertEquals(304, stat.blocks);
+            assertEquals(Inode.ALLOCATED, stat.flags);
+        }
+
+        @Test
+        public void testOpenFilesAsSeen() throws IOException {
+            int fd = fs.create();
+            fs.write(fd, new byte[1000]); // inode not written yet
+            List<InodeScanner.Stat> stats = new InodeScanner(fs, fs, 2).scan();
+            assertEquals(1, stats.size());
+            assertEquals(1000, stats.get(0).size);
+            assertEquals(2, stats.get(0).blocks);
+            fs.close(fd);
+        }
+
+        @Test
+        public void testChangedSince() throws IOException {
+            int a = file(100), b = file(100);
+            file(100);
+            int generation = fs.newGeneration();
+            int fd = fs.open(a);
+            fs.write(fd, new byte[] { 1 });
+            fs.close(fd);
+            fd = fs.open(b);
+            fs.read(fd, new byte[10]); // reading changes nothing
+            fs.close(fd);
+            int d = file(10);
+            fs.shutdown();
+
+            fs = new MyFileSystem(new Disk(device)); // generations are kept on disk
+            List<InodeScanner.Stat> stats =
+                new InodeScanner(fs, fs, 2).since(generation).scan();
+            assertEquals(2, stats.size());
+            assertEquals(a, stats.get(0).inumber);
+            assertEquals(d, stats.get(1).inumber);
+            assertEquals(generation, stats.get(1).generation);
+            assertEquals(generation + 1, fs.newGeneration());
+        }
+
+        @Test
+        public void testOwnerAndSnapshot() throws IOException {
+            file(10);
+            fs.setUser(7);
+            int mine = file(10);
+            MyFileSystem view = (MyFileSystem)fs.mountSnapshot(fs.snapshot());
+            fs.delete(mine);
+            assertEquals(0, new InodeScanner(fs, fs, 2).owner(7).scan().size());
+            List<InodeScanner.Stat> stats =
+                new InodeScanner(view, fs, 2).owner(7).scan();
+            assertEquals(1, stats.size());
+            assertEquals(mine, stats.get(0).inumber);
+        }
+    }
+
+    public static class Quotas {
+        private BlockDevice device;
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            device = new MemoryBlockDevice();
+            fs = new MyFileSystem(new Disk(device));
+            fs.formatDisk(1000, 2, SuperBlock.QUOTA);
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+        }
+
+        private int writeFile(int owner, int blocks) throws IOException {
+            fs.setUser(owner);
+            int fd = fs.create();
+            int result = fs.write(fd, new byte[blocks * Disk.BLOCK_SIZE]);
+            int inumber = fs.inumber(fd);
+            fs.close(fd);
+            return result < 0 ? -inumber : inumber;
+        }
+
+        @Test
+        public void testUsageFollowsBlocks() throws IOException {
+            int a = writeFile(7, 10);
+            assertEquals(10, fs.usage(7));
+            int b = writeFile(7, 20); // 20 data blocks and 1 indirect
+            assertEquals(31, fs.usage(7));
+            writeFile(8, 1);
+            assertEquals(1, fs.usage(8));
+            assertEquals(0, fs.usage(0));
+
+            fs.delete(a);
+            assertEquals(21, fs.usage(7));
+            fs.delete(b);
+            assertEquals(0, fs.usage(7));
+        }
+
+        @Test
+        public void testInlineFilesUseNoBlocks() throws IOException {
+            fs.setUser(3);
+            int fd = fs.create();
+            fs.write(fd, new byte[10]);
+            assertEquals(0, fs.usage(3));
+            fs.write(fd, new byte[Inode.INLINE_SIZE]); // moved out
+            assertEquals(1, fs.usage(3));
+            fs.close(fd);
+        }
+
+        @Test
+        public void testHardLimit() throws IOException {
+            assertEquals(0, fs.setQuota(7, 3, 5));
+            assertTrue(writeFile(7, 10) < 0);
+            assertEquals(5, fs.usage(7));
+            assertTrue(writeFile(8, 10) > 0); // others are not limited
+            assertEquals(0, fs.setQuota(7, 0, 0));
+            assertTrue(writeFile(7, 10) > 0);
+        }
+
+        @Test
+        public void testKeptAcrossMounts() throws IOException {
+            fs.setQuota(7, 50, 100);
+            writeFile(7, 12);
+            fs.shutdown();
+            fs = new MyFileSystem(new Disk(device));
+            assertEquals(12 + 1, fs.usage(7));
+            assertEquals(100, fs.freeMap.quotas.hardLimit(7));
+            assertEquals(50, fs.freeMap.quotas.softLimit(7));
+        }
+
+        @Test
+        public void testNoExtraReads() throws IOException {
+            byte[] data = new byte[30 * Disk.BLOCK_SIZE];
+            int fd = fs.create();
+            int before = fs.disk.getReadCount();
+            fs.write(fd, data);
+            int withQuotas = fs.disk.getReadCount() - before;
+            fs.close(fd);
+            fs.shutdown();
+
+            device = new MemoryBlockDevice();
+            fs = new MyFileSystem(new Disk(device));
+            fs.formatDisk(1000, 2);
+            fd = fs.create();
+            before = fs.disk.getReadCount();
+            fs.write(fd, data);
+            assertEquals(fs.disk.getReadCount() - before, withQuotas);
+            fs.close(fd);
+        }
+
+        @Test
+        public void testMovingBlocksIsFree() throws IOException {
+            fs.setUser(4);
+            int[] fds = new int[2];
+            for(int i = 0; i < fds.length; ++i)
+                fds[i] = fs.create();
+            for(int n = 0; n < 20; ++n)
+                for(int fd : fds)
+                    fs.write(fd, new byte[Disk.BLOCK_SIZE]);
+            int inumber = fs.inumber(fds[0]);
+            for(int fd : fds)
+                fs.close(fd);
+            int used = fs.usage(4);
+            assertTrue(fs.defragment(inumber) > 0);
+            assertEquals(used, fs.usage(4));
+        }
+
+        @Test
+        public void testSharedBlocksCountPerFile() throws IOException {
+            fs.shutdown();
+            device = new MemoryBlockDevice();
+            fs = new MyFileSystem(new Disk(device));
+            fs.formatDisk(1000, 2, SuperBlock.DEDUP | SuperBlock.QUOTA);
+            byte[] data = new byte[Disk.BLOCK_SIZE];
+            Arrays.fill(data, (byte)5);
+            int[] inumbers = new int[2];
+            for(int owner = 1; owner <= 2; ++owner) {
+                fs.setUser(owner);
+                int fd = fs.create();
+                fs.write(fd, data);
+                inumbers[owner - 1] = fs.inumber(fd);
+                fs.close(fd);
+                assertEquals(1, fs.usage(owner));
+            }
+            fs.delete(inumbers[0]);
+            assertEquals(0, fs.usage(1));
+            assertEquals(1, fs.usage(2));
+        }
+
+        @Test
+        public void testNoQuotas() throws IOException {
+            fs.shutdown();
+            device = new MemoryBlockDevice();
+            fs = new MyFileSystem(new Disk(device));
+            fs.formatDisk(1000, 2);
+            assertEquals(-1, fs.usage(0));
+            assertEquals(-1, fs.setQuota(1, 0, 10));
+        }
+    }
+
+    public static class LazyFormat {
+        private MemoryBlockDevice device;
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            // Leave garbage where the inode blocks will go
+            device = new MemoryBlockDevice();
+            byte[] junk = new byte[Disk.BLOCK_SIZE];
+            Arrays.fill(junk, (byte)0xff);
+            for(int n = 1; n < 200; ++n)
+                device.write(n, junk);
+            fs = new MyFileSystem(new Disk(device));
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+        }
+
+        @Test
+        public void testFormatSkipsInodeBlocks() throws IOException {
+            int writes = fs.disk.getWriteCount();
+            assertEquals(0, fs.formatDisk(20000, 100));
+            // just the superblock and 4 freemap blocks
+            assertTrue(fs.disk.getWriteCount() - writes < 10);
+            assertEquals(0, fs.superBlock.iinit);
+            assertEquals(-1, fs.open(50)); // garbage reads as free
+
+            int fd = fs.create();
+            assertEquals(1, fs.inumber(fd));
+            assertEquals(0, fs.close(fd));
+            assertEquals(1, fs.superBlock.iinit);
+        }
+
+        @Test
+        public void testGarbageStaysHiddenAfterRemount() throws IOException {
+            assertEquals(0, fs.formatDisk(1000, 100));
+            int fd = fs.create();
+            assertEquals(3, fs.write(fd, "abc".getBytes()));
+            assertEquals(0, fs.close(fd));
+            fs.shutdown();
+
+            fs = new MyFileSystem(new Disk(device));
+            assertEquals(1, fs.superBlock.iinit);
+            assertEquals(-1, fs.open(InodeBlock.COUNT + 1)); // inode block 1
+            fd = fs.create();
+            assertEquals(2, fs.inumber(fd));
+            assertEquals(0, fs.close(fd));
+        }
+
+        @Test
+        public void testInitInodeTable() throws Exception {
+            assertEquals(0, fs.formatDisk(1000, 100));
+            assertEquals(90, fs.initInodeTable(10));
+            Thread t = new InodeTableInitializer(fs, fs, 1);
+            t.start();
+            t.join();
+            assertEquals(100, fs.superBlock.iinit);
+            byte[] block = new byte[Disk.BLOCK_SIZE];
+            for(int k = 0; k < 100; ++k) {
+                device.read(fs.superBlock.inodeBlock(k), block);
+                assertTrue(Arrays.equals(new byte[Disk.BLOCK_SIZE], block));
+            }
+            assertEquals(0, fs.initInodeTable(10));
+        }
+    }
+
+    public static class Defragment {
+        private BlockDevice device;
+        private MyFileSystem fs;
+        private byte[] a = new byte[150 * Disk.BLOCK_SIZE];
+        private byte[] b = new byte[150 * Disk.BLOCK_SIZE];
+        private int fdA, fdB;
+
+        @Before
+        public void setUp() throws IOException {
+            device = new MemoryBlockDevice();
+            fs = new MyFileSystem(new Disk(device));
+            fs.formatDisk(1000, 2);
+            new Random(1).nextBytes(a);
+            new Random(2).nextBytes(b);
+
+            // Write the two files a block at a time, taking turns
+            fdA = fs.create();
+            fdB = fs.create();
+            for(int off = 0; off < a.length; off += Disk.BLOCK_SIZE) {
+                fs.write(fdA, Arrays.copyOfRange(a, off, off + Disk.BLOCK_SIZE));
+                fs.write(fdB, Arrays.copyOfRange(b, off, off + Disk.BLOCK_SIZE));
+            }
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+        }
+
+        private void assertContents(int inumber, byte[] expected)
+            throws IOException {
+            int fd = fs.open(inumber);
+            byte[] buf = new byte[expected.length];
+            assertEquals(expected.length, fs.read(fd, buf));
+            assertTrue(Arrays.equals(expected, buf));
+            assertEquals(0, fs.close(fd));
+        }
+
+        @Test
+        public void testDefragmentClosedFile() throws IOException {
+            assertEquals(0, fs.close(fdA));
+            assertEquals(0, fs.close(fdB));
+            assertTrue(fs.fragments(1) > 100);
+            int free = fs.freeMap.countFree();
+
+            assertEquals(150 + 3, fs.defragment(1)); // 3 indirect blocks
+            assertEquals(1, fs.fragments(1));
+            assertEquals(free, fs.freeMap.countFree());
+            assertContents(1, a);
+            assertContents(2, b);
+            assertEquals(0, fs.defragment(1)); // nothing left to do
+        }
+
+        @Test
+        public void testDefragmentOpenFile() throws IOException {
+            assertTrue(fs.defragment(1) > 0);
+            assertEquals(1, fs.fragments(1));
+
+            // The open descriptor reads and writes the moved blocks
+            byte[] buf = new byte[a.length];
+            assertEquals(0, fs.seek(fdA, 0, Whence.SEEK_SET));
+            assertEquals(a.length, fs.read(fdA, buf));
+            assertTrue(Arrays.equals(a, buf));
+            assertEquals(0, fs.seek(fdA, 0, Whence.SEEK_SET));
+            assertEquals(3, fs.write(fdA, "abc".getBytes()));
+            assertEquals(0, fs.close(fdA));
+            assertEquals(0, fs.close(fdB));
+            System.arraycopy("abc".getBytes(), 0, a, 0, 3);
+            assertContents(1, a);
+        }
+
+        @Test
+        public void testBackgroundDefragmenter() throws Exception {
+            assertEquals(0, fs.close(fdA));
+            assertEquals(0, fs.close(fdB));
+            Defragmenter d = new Defragmenter(fs, fs, 0, 1);
+            d.start();
+            d.join();
+            assertEquals(2 * (150 + 3), d.getMoved());
+            assertEquals(1, fs.fragments(1));
+            assertEquals(1, fs.fragments(2));
+            assertContents(1, a);
+            assertContents(2, b);
+        }
+
+        @Test
+        public void testNoRoom() throws IOException {
+            assertEquals(0, fs.close(fdA));
+            assertEquals(0, fs.close(fdB));
+            while(fs.freeMap.countFree() > 100)
+                fs.freeMap.find();
+            assertEquals(-1, fs.defragment(1));
+            assertContents(1, a);
+        }
+    }
+
+    public static class Async {
+        private BlockDevice device;
+        private MyFileSystem fs;
+        private AsyncFileSystem async;
+
+        @Before
+        public void setUp() throws IOException {
+            device = new MemoryBlockDevice();
+            fs = new MyFileSystem(new Disk(device));
+            fs.formatDisk(1000, 2);
+            async = new AsyncFileSystem(fs);
+        }
+
+        @After
+        public void tearDown() throws Exception {
+            async.close();
+            fs.shutdown();
+        }
+
+        @Test
+        public void testManyOutstandingWrites() throws Exception {
+            int[] fds = new int[10];
+            for(int i = 0; i < fds.length; ++i)
+                fds[i] = async.create().get();
+
+            // 10000 calls at once; each file sees its writes in order
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for(int n = 0; n < 1000; ++n)
+                for(int i = 0; i < fds.length; ++i)
+                    results.add(async.write(fds[i],
+                                            new byte[] { (byte)(n + i) }));
+            for(Future<Integer> result : results)
+                assertEquals(1, (int)result.get());
+
+            for(int i = 0; i < fds.length; ++i) {
+                async.seek(fds[i], 0, Whence.SEEK_SET);
+                byte[] buf = new byte[1000];
+                assertEquals(1000, (int)async.read(fds[i], buf).get());
+                for(int n = 0; n < 1000; ++n)
+                    assertEquals((byte)(n + i), buf[n]);
+                assertEquals(0, (int)async.close(fds[i]).get());
+            }
+        }
+
+        @Test
+        public void testCompletionHandler() throws Exception {
+            final AtomicInteger seen = new AtomicInteger();
+            CompletionHandler<Integer, String> handler =
+                new CompletionHandler<Integer, String>() {
+                    public void completed(Integer result, String what) {
+                        assertEquals("create", what);
+                        seen.set(result + 1);
+                    }
+
+                    public void failed(Throwable e, String what) {
+                        seen.set(-100);
+                    }
+                };
+            int fd = async.create("create", handler).get();
+            async.awaitIdle();
+            assertEquals(fd + 1, seen.get());
+            assertEquals(0, (int)async.close(fd).get());
+        }
+
+        @Test
+        public void testErrorsAreResults() throws Exception {
+            assertEquals(-1, (int)async.read(7, new byte[1]).get());
+            assertEquals(-1, (int)async.open(5).get());
+            assertEquals(-1, (int)async.delete(-3).get());
+        }
+    }
+
+    public static class Server {
+        private BlockDevice device;
+        private MyFileSystem fs;
+        private FileServer server;
+        private File path;
+
+        @Before
+        public void setUp() throws IOException {
+            device = new MemoryBlockDevice();
+            fs = new MyFileSystem(new Disk(device));
+            fs.formatDisk(1000, 2);
+            path = File.createTempFile("fs-", ".sock");
+            path.delete();
+            try {
+                server = FileServer.bind(fs, path);
+            } catch(UnsupportedOperationException e) {
+                server = FileServer.bind(fs, 0);
+            }
+            server.start();
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            server.close();
+            fs.shutdown();
+        }
+
+        private RemoteFileSystem connect() throws IOException {
+            try {
+                return RemoteFileSystem.connect(path);
+            } catch(UnsupportedOperationException e) {
+                return RemoteFileSystem.connect(server.getAddress());
+            }
+        }
+
+        @Test
+        public void testRemoteCalls() throws IOException {
+            RemoteFileSystem remote = connect();
+            int fd = remote.create();
+            assertTrue(fd >= 0);
+            int inumber = remote.inumber(fd);
+            assertEquals(fs.inumber(fd), inumber);
+            assertEquals(3, remote.write(fd, new byte[] { 1, 2, 3 }));
+            assertEquals(1, remote.seek(fd, -2, Whence.SEEK_END));
+            byte[] buf = new byte[10];
+            assertEquals(2, remote.read(fd, buf));
+            assertEquals(2, buf[0]);
+            assertEquals(3, buf[1]);
+            assertEquals(0, remote.close(fd));
+            assertEquals(-1, remote.read(fd, buf));
+            assertEquals(0, remote.delete(inumber));
+            assertEquals(-1, remote.open(inumber));
+            remote.shutdown();
+        }
+
+        @Test
+        public void testPipelinedBatches() throws IOException {
+            RemoteFileSystem remote = connect();
+            int fd = remote.create();
+            byte[][] bufs = new byte[100][1];
+            for(int n = 0; n < 100; ++n)
+                remote.batch().write(fd, new byte[] { (byte)n })
+                              .seek(fd, -1, Whence.SEEK_CUR)
+                              .read(fd, bufs[n]).send();
+            assertEquals(100, remote.pending());
+            for(int n = 0; n < 100; ++n) {
+                assertArrayEquals(new int[] { 1, n, 1 }, remote.receive());
+                assertEquals((byte)n, bufs[n][0]);
+            }
+            assertEquals(0, remote.pending());
+            assertEquals(100, remote.seek(fd, 0, Whence.SEEK_END));
+            remote.shutdown();
+        }
+
+        @Test
+        public void testFilesClosedOnDisconnect() throws Exception {
+            RemoteFileSystem remote = connect();
+            int fd = remote.create();
+            int inumber = remote.inumber(fd);
+            assertEquals(-1, fs.delete(inumber)); // still open
+            remote.shutdown();
+            int deleted = -1;
+            for(int i = 0; i < 100 && deleted != 0; ++i) {
+                Thread.sleep(10); // until the server sees the disconnect
+                deleted = fs.delete(inumber);
+            }
+            assertEquals(0, deleted);
+        }
+
+        @Test
+        public void testOtherConnectionsFds() throws IOException {
+            RemoteFileSystem a = connect();
+            RemoteFileSystem b = connect();
+            int fd = a.create();
+            assertEquals(-1, b.write(fd, new byte[1]));
+            assertEquals(-1, b.close(fd));
+            assertEquals(0, a.close(fd));
+            a.shutdown();
+            b.shutdown();
+        }
+    }
+
+    public static class Nio {
+        private File disk;
+        private java.nio.file.FileSystem volume;
+
+        @Before
+        public void setUp() throws IOException {
+            disk = File.createTempFile("volume-", ".img");
+            Map<String, String> env = new HashMap<String, String>();
+            env.put("create", "true");
+            env.put("size", "2000");
+            env.put("isize", "4");
+            volume = FileSystems.newFileSystem(
+                URI.create("myfs:" + disk.getAbsolutePath()), env);
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            volume.close();
+            disk.delete();
+        }
+
+        private static byte[] pattern(int size) {
+            byte[] data = new byte[size];
+            for(int i = 0; i < size; ++i)
+                data[i] = (byte)(i * 7 + i / 512);
+            return data;
+        }
+
+        @Test
+        public void testFilesApi() throws IOException {
+            Path file = volume.getPath("/3");
+            assertFalse(Files.exists(file));
+            byte[] data = pattern(100000);
+            Files.write(file, data);
+            assertTrue(Files.exists(file));
+            assertEquals(100000, Files.size(file));
+            assertArrayEquals(data, Files.readAllBytes(file));
+
+            Files.write(file, new byte[] { 1, 2 }); // truncates
+            assertArrayEquals(new byte[] { 1, 2 }, Files.readAllBytes(file));
+
+            List<Path> files = new ArrayList<Path>();
+            for(Path p : Files.newDirectoryStream(volume.getPath("/")))
+                files.add(p);
+            assertEquals(Arrays.asList(file), files);
+
+            Files.delete(file);
+            assertFalse(Files.exists(file));
+        }
+
+        @Test
+        public void testCopyInAndOut() throws IOException {
+            File outside = File.createTempFile("outside-", ".dat");
+            File back = new File(outside.getPath() + ".back");
+            try {
+                byte[] data = pattern(70000);
+                Files.write(outside.toPath(), data);
+                Path file = volume.getPath("/1");
+                Files.copy(outside.toPath(), file);
+                Files.copy(file, volume.getPath("/2"));
+                Files.copy(volume.getPath("/2"), back.toPath());
+                assertArrayEquals(data, Files.readAllBytes(back.toPath()));
+                assertEquals(file, volume.provider()
+                             .getPath(file.toUri()));
+            } finally {
+                outside.delete();
+                back.delete();
+            }
+        }
+
+        @Test
+        public void testChannels() throws IOException {
+            byte[] data = pattern(20000);
+            FileChannel out = FileChannel.open(volume.getPath("/5"),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+            direct.put(data).flip();
+            assertEquals(data.length, out.write(direct));
+            assertEquals(data.length, out.size());
+            out.write(ByteBuffer.wrap(new byte[] { 9 }), 100);
+            assertEquals(data.length, out.position());
+            out.close();
+            data[100] = 9;
+
+            FileChannel in = FileChannel.open(volume.getPath("/5"));
+            ByteBuffer slice = ByteBuffer.allocate(1000);
+            slice.position(10);
+            assertEquals(990, in.read(slice, 50));
+            for(int i = 10; i < 1000; ++i)
+                assertEquals(data[40 + i], slice.get(i));
+            assertEquals(0, in.position());
+
+            File outside = File.createTempFile("transfer-", ".dat");
+            try {
+                FileChannel target = FileChannel.open(outside.toPath(),
+                    StandardOpenOption.WRITE);
+                assertEquals(data.length,
+                             in.transferTo(0, data.length + 10, target));
+                target.close();
+                assertArrayEquals(data, Files.readAllBytes(outside.toPath()));
+            } finally {
+                outside.delete();
+            }
+            in.position(data.length);
+            assertEquals(-1, in.read(ByteBuffer.allocate(1)));
+            in.close();
+        }
+
+        @Test
+        public void testTruncate() throws IOException {
+            Path file = volume.getPath("/6");
+            Files.write(file, pattern(30000));
+            FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.position(20000);
+            channel.truncate(1000);
+            assertEquals(1000, channel.size());
+            assertEquals(1000, channel.position());
+            channel.close();
+            assertArrayEquals(Arrays.copyOf(pattern(30000), 1000),
+                              Files.readAllBytes(file));
+        }
+
+        @Test(expected = FileAlreadyExistsException.class)
+        public void testCreateNewExisting() throws IOException {
+            Files.write(volume.getPath("/1"), new byte[1]);
+            Files.newByteChannel(volume.getPath("/1"),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+
+        @Test(expected = NoSuchFileException.class)
+        public void testNotAFileName() throws IOException {
+            Files.newByteChannel(volume.getPath("/notes.txt"));
+        }
+    }
+
+    public static class Replay {
+        private BlockDevice device;
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            device = new MemoryBlockDevice();
+            fs = new MyFileSystem(new Disk(device));
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+        }
+
+        private Plan compile(String text) throws IOException {
+            return Plan.compile(new StringReader(text), "test");
+        }
+
+        @Test
+        public void testRunPlan() throws IOException {
+            Plan plan = compile(
+                "/* comment\n" +
+                "formatDisk 100 2\n" +
+                "// echoed comment\n" +
+                "file1 = create\n" +
+                "inum1 = inumber file1\n" +
+                "write file1 Hello,world! 1000\n" +
+                "close file1\n" +
+                "vars\n" +
+                "file2 = open inum1\n" +
+                "seek file2 -12 2\n" +
+                "read file2 100\n" +
+                "close file2\n" +
+                "quit\n" +
+                "delete inum1\n");
+            assertEquals(9, plan.size());
+
+            Plan.Stats stats = new Plan.Stats();
+            assertEquals(0, plan.run(fs, stats));
+            assertEquals(9, stats.total());
+            assertEquals(1, stats.count[Plan.WRITE]);
+            assertEquals(2, stats.count[Plan.CLOSE]);
+
+            // The file is still there (delete came after quit)
+            int fd = fs.open(1);
+            byte[] buf = new byte[12];
+            assertEquals(12, fs.read(fd, buf));
+            assertEquals("Hello,world!", new String(buf));
+            assertEquals(0, fs.close(fd));
+        }
+
+        @Test
+        public void testVariableSize() throws IOException {
+            Plan plan = compile(
+                "format 100 2\n" +
+                "fd = create\n" +
+                "n = inumber fd\n" +
+                "write fd ab n\n" +
+                "read fd n\n");
+            Plan.Stats stats = new Plan.Stats();
+            assertEquals(0, plan.run(fs, stats));
+            assertEquals(1, fs.seek(0, 0, Whence.SEEK_CUR)); // wrote "a"
+        }
+
+        @Test
+        public void testTruncateAndAllocate() throws IOException {
+            Plan plan = compile(
+                "format 100 2\n" +
+                "fd = create\n" +
+                "write fd x 3000\n" +
+                "truncate fd 700\n" +
+                "allocate fd 1024 2048\n");
+            Plan.Stats stats = new Plan.Stats();
+            assertEquals(0, plan.run(fs, stats));
+            assertEquals(1, stats.count[Plan.TRUNCATE]);
+            assertEquals(1, stats.count[Plan.ALLOCATE]);
+            assertEquals(3072, fs.seek(0, 0, Whence.SEEK_END));
+        }
+
+        @Test
+        public void testFormatFlags() throws IOException {
+            Plan plan = compile(
+                "format 100 2 " + SuperBlock.TRACK + "\n" +
+                "fd = create\n" +
+                "write fd x 100\n");
+            assertEquals(0, plan.run(fs, new Plan.Stats()));
+            assertTrue(fs.superBlock.isTracked());
+            assertTrue(fs.freeMap.changed.count() > 0);
+            assertEquals(0, compile("format 100 2\n")
+                         .run(fs, new Plan.Stats()));
+            assertFalse(fs.superBlock.isTracked());
+        }
+
+        @Test
+        public void testBackupNotReplayed() throws IOException {
+            try {
+                compile("format 100 2 32\nbackup image full\n");
+                fail();
+            } catch(IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains("test:2"));
+                assertTrue(e.getMessage().contains("cannot be replayed"));
+            }
+        }
+
+        @Test
+        public void testFailedOpsCounted() throws IOException {
+            Plan plan = compile("format 100 2\nclose 3\nopen 0\n");
+            assertEquals(2, plan.run(fs, new Plan.Stats()));
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void testUnknownCommand() throws IOException {
+            compile("format 100 2\nfrobnicate 1\n");
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void testUnknownVariable() throws IOException {
+            compile("close file1\n");
+        }
+    }
+
+    public static class Devices {
+        private MyFileSystem mount(BlockDevice device, boolean format)
+            throws IOException {
+            MyFileSystem fs = new MyFileSystem(new Disk(device));
+            if(format)
+                assertEquals(0, fs.formatDisk(100, 2));
+            return fs;
+        }
+
+        private void writeFile(MyFileSystem fs, String text)
+            throws IOException {
+            int fd = fs.create();
+            assertEquals(text.length(), fs.write(fd, text.getBytes()));
+            assertEquals(0, fs.close(fd));
+        }
+
+        private String readFile(MyFileSystem fs, int inumber, int size)
+            throws IOException {
+            int fd = fs.open(inumber);
+            byte[] buf = new byte[size];
+            assertEquals(size, fs.read(fd, buf));
+            assertEquals(0, fs.close(fd));
+            return new String(buf);
+        }
+
+        @Test
+        public void testTwoVolumesInOneJvm() throws IOException {
+            MyFileSystem a = mount(new MemoryBlockDevice(), true);
+            MyFileSystem b = mount(new MemoryBlockDevice(true), true);
+            writeFile(a, "volume a");
+            writeFile(b, "volume b");
+            assertEquals("volume a", readFile(a, 1, 8));
+            assertEquals("volume b", readFile(b, 1, 8));
+            a.shutdown();
+            b.shutdown();
+        }
+
+        @Test
+        public void testRemountMemoryDevice() throws IOException {
+            BlockDevice device = new MemoryBlockDevice();
+            MyFileSystem fs = mount(device, true);
+            String text = new String(new char[3000]).replace('\0', 'x');
+            writeFile(fs, text);
+            fs.shutdown();
+
+            fs = mount(device, false);
+            assertEquals(text, readFile(fs, 1, text.length()));
+            fs.disk.stop(true); // discard
+
+            fs = mount(device, false);
+            assertEquals(-1, fs.open(1)); // nothing left
+        }
+
+        @Test
+        public void testFileDeviceAtPath() throws IOException {
+            File path = File.createTempFile("disk", ".img");
+            MyFileSystem fs = mount(new FileBlockDevice(path), true);
+            writeFile(fs, "on file");
+            fs.shutdown();
+
+            fs = mount(new FileBlockDevice(path), false);
+            assertEquals("on file", readFile(fs, 1, 7));
+            fs.disk.stop(true);
+            assertFalse(path.exists());
+        }
+
+        @Test
+        public void testStripedVolume() throws IOException {
+            MemoryBlockDevice[] members = new MemoryBlockDevice[3];
+            for(int i = 0; i < members.length; ++i)
+                members[i] = new MemoryBlockDevice();
+            MyFileSystem fs = mount(new StripedBlockDevice(4, members), false);
+            assertEquals(0, fs.formatDisk(1000, 2));
+
+            int fd = fs.create();
+            byte[] buf = new byte[200 * Disk.BLOCK_SIZE + 100];
+            new Random(3).nextBytes(buf);
+            assertEquals(buf.length, fs.write(fd, buf));
+            assertEquals(0, fs.close(fd));
+            fs.shutdown();
+
+            // Every member holds part of the file
+            byte[] block = new byte[Disk.BLOCK_SIZE];
+            for(MemoryBlockDevice member : members) {
+                member.read(40, block);
+                assertFalse(Arrays.equals(new byte[Disk.BLOCK_SIZE], block));
+            }
+
+            fs = mount(new StripedBlockDevice(4, members), false);
+            fd = fs.open(1);
+            byte[] copy = new byte[buf.length];
+            assertEquals(Disk.BLOCK_SIZE + 3, fs.read(fd,
+                new byte[Disk.BLOCK_SIZE + 3]));
+            assertEquals(0, fs.seek(fd, 0, Whence.SEEK_SET));
+            assertEquals(copy.length, fs.read(fd, copy));
+            assertTrue(Arrays.equals(buf, copy));
+            assertEquals(0, fs.close(fd));
+            fs.shutdown();
+        }
+
+        private void assertSameBlocks(BlockDevice a, BlockDevice b, int size)
+            throws IOException {
+            byte[] x = new byte[Disk.BLOCK_SIZE];
+            byte[] y = new byte[Disk.BLOCK_SIZE];
+            for(int n = 0; n < size; ++n) {
+                a.read(n, x);
+                b.read(n, y);
+                assertTrue("block " + n, Arrays.equals(x, y));
+            }
+        }
+
+        @Test
+        public void testMirroredVolume() throws Exception {
+            MemoryBlockDevice a = new MemoryBlockDevice();
+            MemoryBlockDevice b = new MemoryBlockDevice();
+            MirroredBlockDevice mirror = new MirroredBlockDevice(a, b);
+            MyFileSystem fs = mount(mirror, false);
+            assertEquals(0, fs.formatDisk(1000, 2));
+            byte[] buf = new byte[300 * Disk.BLOCK_SIZE];
+            new Random(5).nextBytes(buf);
+            int fd = fs.create();
+            assertEquals(buf.length, fs.write(fd, buf));
+            assertEquals(0, fs.close(fd));
+            assertSameBlocks(a, b, 1000);
+
+            // b misses a write while offline, then copies only that
+            mirror.fail(1);
+            writeFile(fs, "written while degraded");
+            assertEquals(0, mirror.dirtyRegions(0));
+            int missed = mirror.dirtyRegions(1);
+            assertTrue(missed > 0 && missed < 1000 / MirroredBlockDevice.REGION);
+            mirror.rebuild(1, b, false);
+            assertEquals("written while degraded", readFile(fs, 2, 22));
+            mirror.awaitResync(1);
+            assertEquals(0, mirror.dirtyRegions(1));
+            assertSameBlocks(a, b, 1000);
+
+            // a blank replacement for a is rebuilt in full
+            MemoryBlockDevice c = new MemoryBlockDevice();
+            mirror.fail(0);
+            mirror.rebuild(0, c, true);
+            mirror.awaitResync(0);
+            assertSameBlocks(b, c, Disk.NUM_BLOCKS);
+            mirror.fail(1);
+            fd = fs.open(1);
+            byte[] copy = new byte[buf.length];
+            assertEquals(copy.length, fs.read(fd, copy));
+            assertTrue(Arrays.equals(buf, copy));
+            assertEquals(0, fs.close(fd));
+            fs.shutdown();
+        }
+
+        @Test
+        public void testUnwrittenBlocksReadAsZeros() throws IOException {
+            File path = File.createTempFile("disk", ".img");
+            BlockDevice device = new FileBlockDevice(path);
+            byte[] buf = new byte[Disk.BLOCK_SIZE];
+            Arrays.fill(buf, (byte)7);
+            device.read(10, buf);
+            assertTrue(Arrays.equals(new byte[Disk.BLOCK_SIZE], buf));
+            device.close(true);
+        }
+    }
+
+    public static class Backups {
+        private BlockDevice device;
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            device = new MemoryBlockDevice();
+            fs = new MyFileSystem(new Disk(device));
+            assertEquals(0, fs.formatDisk(1000, 10, SuperBlock.TRACK));
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+        }
+
+        private int file(MyFileSystem fs, byte fill, int size)
+            throws IOException {
+            byte[] data = new byte[size];
+            Arrays.fill(data, fill);
+            int fd = fs.create();
+            assertEquals(size, fs.write(fd, data));
+            int inumber = fs.inumber(fd);
+            assertEquals(0, fs.close(fd));
+            return inumber;
+        }
+
+        private void check(MyFileSystem fs, int inumber, byte fill, int size)
+            throws IOException {
+            byte[] data = new byte[size + 1];
+            int fd = fs.open(inumber);
+            assertEquals(size, fs.read(fd, data));
+            for(int i = 0; i < size; ++i)
+                assertEquals(fill, data[i]);
+            assertEquals(0, fs.close(fd));
+        }
+
+        private byte[] export(boolean full) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertTrue(Backup.export(fs, fs, out, full) >= 0);
+            return out.toByteArray();
+        }
+
+        private int blocks(byte[] image) {
+            return (image.length - 12) / (4 + Disk.BLOCK_SIZE);
+        }
+
+        private MyFileSystem restore(byte[]... images) throws IOException {
+            BlockDevice copy = new MemoryBlockDevice();
+            for(byte[] image : images)
+                assertEquals(blocks(image),
+                    Backup.apply(copy, new ByteArrayInputStream(image)));
+            return new MyFileSystem(new Disk(copy));
+        }
+
+        @Test
+        public void testFullRestore() throws IOException {
+            int a = file(fs, (byte)1, 3000);
+            int b = file(fs, (byte)2, 20 * Disk.BLOCK_SIZE);
+            MyFileSystem copy = restore(export(true));
+            check(copy, a, (byte)1, 3000);
+            check(copy, b, (byte)2, 20 * Disk.BLOCK_SIZE);
+            copy.shutdown();
+        }
+
+        @Test
+        public void testFreeBlocksSkipped() throws IOException {
+            int before = blocks(export(true));
+            int a = file(fs, (byte)1, 50 * Disk.BLOCK_SIZE);
+            assertTrue(blocks(export(true)) > before + 50);
+            fs.delete(a);
+            assertEquals(before, blocks(export(true)));
+        }
+
+        @Test
+        public void testChangesOnly() throws IOException {
+            int a = file(fs, (byte)1, 40 * Disk.BLOCK_SIZE);
+            int b = file(fs, (byte)2, 40 * Disk.BLOCK_SIZE);
+            byte[] full = export(true);
+            assertEquals(0, fs.freeMap.changed.count());
+
+            int fd = fs.open(a);
+            fs.seek(fd, 10 * Disk.BLOCK_SIZE, Whence.SEEK_SET);
+            byte[] block = new byte[Disk.BLOCK_SIZE];
+            Arrays.fill(block, (byte)3);
+            fs.write(fd, block);
+            fs.close(fd);
+            fs.delete(b);
+            int c = file(fs, (byte)4, 100);
+            byte[] delta = export(false);
+            assertTrue(blocks(delta) > 0);
+            assertTrue(blocks(delta) < 10); // data, inode and map blocks
+
+            MyFileSystem copy = restore(full, delta);
+            fd = copy.open(a);
+            byte[] data = new byte[40 * Disk.BLOCK_SIZE];
+            assertEquals(data.length, copy.read(fd, data));
+            for(int i = 0; i < data.length; ++i)
+                assertEquals(i / Disk.BLOCK_SIZE == 10 ? 3 : 1, data[i]);
+            copy.close(fd);
+            check(copy, c, (byte)4, 100);
+            copy.shutdown();
+        }
+
+        @Test
+        public void testOpenFilesIncluded() throws IOException {
+            int fd = fs.create();
+            fs.write(fd, new byte[] { 5, 5, 5 });
+            MyFileSystem copy = restore(export(true));
+            check(copy, fs.inumber(fd), (byte)5, 3);
+            copy.shutdown();
+        }
+
+        @Test
+        public void testTrackingSurvivesRemount() throws IOException {
+            export(true);
+            int a = file(fs, (byte)6, 5 * Disk.BLOCK_SIZE);
+            fs.shutdown();
+            fs = new MyFileSystem(new Disk(device));
+            assertTrue(fs.freeMap.changed.count() >= 5);
+            byte[] delta = export(false);
+            assertTrue(blocks(delta) >= 5);
+            assertEquals(0, blocks(export(false)));
+        }
+
+        @Test
+        public void testChangesNeedTracking() throws IOException {
+            assertEquals(0, fs.formatDisk(1000, 10));
+            assertNull(fs.freeMap.changed);
+            file(fs, (byte)1, 100);
+            assertEquals(-1, Backup.export(fs, fs,
+                new ByteArrayOutputStream(), false));
+            assertTrue(blocks(export(true)) > 0);
+        }
+
+        @Test
+        public void testBadImage() throws IOException {
+            assertEquals(-1, Backup.apply(new MemoryBlockDevice(),
+                new ByteArrayInputStream(new byte[] { 1, 2, 3, 4 })));
+        }
+    }
+
+    public static class Latency {
+        private int[] range(int first, int count, int stride) {
+            int[] nums = new int[count];
+            for(int i = 0; i < count; ++i)
+                nums[i] = first + i * stride;
+            return nums;
+        }
+
+        @Test
+        public void testNoModelNoTime() {
+            Disk disk = new Disk(new MemoryBlockDevice());
+            disk.read(5, new byte[Disk.BLOCK_SIZE]);
+            assertEquals(0, disk.getTime());
+            assertFalse(disk.toString().contains("time"));
+        }
+
+        @Test
+        public void testSeeksGrowWithDistance() {
+            LatencyModel model = new LatencyModel.Rotating(100, 10, 5000,
+                                                           1000, 1);
+            assertEquals(100 + 10 * 11 + 500 + 1,
+                         model.cost(new int[] { 10 }, 1, false));
+            assertEquals(1, model.cost(new int[] { 11 }, 1, true));
+            assertEquals(100 + 10 * 88 + 500 + 1,
+                         model.cost(new int[] { 100 }, 1, false));
+            assertEquals(5000 + 500 + 1, // full stroke
+                         model.cost(new int[] { 90000 }, 1, false));
+        }
+
+        @Test
+        public void testSequentialCheaperThanScattered() {
+            Disk disk = new Disk(new MemoryBlockDevice());
+            disk.setModel(new LatencyModel.Rotating());
+            byte[] block = new byte[Disk.BLOCK_SIZE];
+            for(int n : range(1000, 100, 1))
+                disk.read(n, block);
+            long sequential = disk.getTime();
+            for(int n : range(1000, 100, 997))
+                disk.read(n, block);
+            long scattered = disk.getTime() - sequential;
+            assertTrue(scattered > 50 * sequential);
+            assertTrue(disk.toString().contains("time"));
+        }
+
+        @Test
+        public void testBatchesAreSorted() {
+            int[] up = range(100, 50, 10);
+            int[] down = range(590, 50, -10);
+            long a = new LatencyModel.Rotating().cost(up, up.length, false);
+            long b = new LatencyModel.Rotating().cost(down, down.length,
+                                                      false);
+            assertEquals(a, b);
+        }
+
+        @Test
+        public void testSolidQueueDepth() {
+            LatencyModel model = new LatencyModel.Solid(100, 300, 4);
+            assertEquals(100, model.cost(new int[] { 7 }, 1, false));
+            assertEquals(100, model.cost(new int[] { 90000 }, 1, false));
+            assertEquals(300, model.cost(range(0, 4, 1000), 4, true));
+            assertEquals(200, model.cost(range(0, 5, 1), 5, false));
+        }
+
+        @Test
+        public void testFileSystemTime() throws IOException {
+            MyFileSystem fs = new MyFileSystem(new Disk(
+                new MemoryBlockDevice()));
+            fs.disk.setModel(new LatencyModel.Solid());
+            assertEquals(0, fs.formatDisk(1000, 10));
+            long formatted = fs.disk.getTime();
+            assertTrue(formatted > 0);
+            int fd = fs.create();
+            fs.write(fd, new byte[10 * Disk.BLOCK_SIZE]);
+            fs.close(fd);
+            assertTrue(fs.disk.getTime() > formatted);
+            fs.shutdown();
+        }
+    }
 }